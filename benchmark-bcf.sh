@@ -0,0 +1,47 @@
+#!/bin/bash
+# Wall time and file size of VCF.gz against BCF on the same input.
+#
+# usage: ./benchmark-bcf.sh input.vcf.gz [work_dir]
+#
+# The input is converted to BCF once, then every tool step is run on both
+# formats, writing output of the same format. Build the jar first:
+#   mvn clean package assembly:single
+set -e
+
+INPUT=$1
+WORK=${2:-bcf-benchmark}
+JAR=${JAR:-target/VcfToolbox-0.1.1-jar-with-dependencies.jar}
+JAVA="java ${JAVA_OPTS:--Xmx4g} -cp $JAR com.cloudinside.bio.VcfToolbox"
+
+if [ -z "$INPUT" ]; then
+	echo "usage: $0 input.vcf.gz [work_dir]" >&2
+	exit 1
+fi
+
+mkdir -p $WORK
+
+# run name output command...
+run() {
+	local name=$1 output=$2
+	shift 2
+	local start=$(date +%s.%N)
+	"$@" 2>$WORK/$name.log
+	local end=$(date +%s.%N)
+	printf "%-42s %10.2f s %14d B\n" $name $(awk "BEGIN { print $end - $start }") $(stat -c %s $output)
+}
+
+printf "%-42s %12s %16s\n" step "wall time" "output size"
+
+cp $INPUT $WORK/input.vcf.gz
+run convert.bcf $WORK/input.bcf $JAVA.RemoveLowCoverageRows --input $WORK/input.vcf.gz --output $WORK/input.bcf --min-dp 0
+printf "%-42s %12s %14d B\n" input.vcf.gz - $(stat -c %s $WORK/input.vcf.gz)
+printf "%-42s %12s %14d B\n" input.bcf - $(stat -c %s $WORK/input.bcf)
+
+for ext in vcf.gz bcf; do
+	run BuildFrequencySummary.$ext $WORK/summary.$ext \
+		$JAVA.BuildFrequencySummary --input $WORK/input.$ext --output $WORK/summary.$ext
+	run RemoveLowCoverageRows.$ext $WORK/filtered.$ext \
+		$JAVA.RemoveLowCoverageRows --input $WORK/input.$ext --output $WORK/filtered.$ext
+	run RemoveLowCoverageRows.full-decode.$ext $WORK/filtered-full.$ext \
+		$JAVA.RemoveLowCoverageRows --input $WORK/input.$ext --output $WORK/filtered-full.$ext --full-decode
+done
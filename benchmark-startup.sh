@@ -0,0 +1,56 @@
+#!/bin/bash
+# Wall time of small jobs started by plain java -cp against java with the
+# AppCDS archive of cds-archive.sh, on the bundled sample (src/cds).
+#
+# usage: ./benchmark-startup.sh [runs] [work_dir]
+#
+# Build the jar and the archive first:
+#   mvn -Pcds package
+set -e
+
+RUNS=${1:-10}
+WORK=${2:-startup-benchmark}
+JAR=$(readlink -f ${JAR:-target/VcfToolbox-0.1.1-jar-with-dependencies.jar})
+ARCHIVE=$(readlink -f ${ARCHIVE:-target/VcfToolbox.jsa})
+SAMPLE=$(readlink -f $(dirname $0)/src/cds)
+
+if [ ! -f "$ARCHIVE" ]; then
+	echo "no archive $ARCHIVE, run: mvn -Pcds package" >&2
+	exit 1
+fi
+
+mkdir -p $WORK
+cp $SAMPLE/* $WORK/
+cd $WORK
+
+# mean and minimum wall time of runs: name java_options tool arguments...
+run() {
+	local name=$1 options=$2 tool=$3
+	shift 3
+	local times=()
+	for i in $(seq $RUNS); do
+		local start=$(date +%s.%N)
+		java $options -cp $JAR com.cloudinside.bio.VcfToolbox.$tool "$@" 2>$name.log
+		local end=$(date +%s.%N)
+		times+=($(awk "BEGIN { print $end - $start }"))
+	done
+	printf "%s\n" "${times[@]}" | awk -v name=$name '{ sum += $1; if (NR == 1 || $1 < min) min = $1 }
+		END { printf "%-42s %10.3f s %10.3f s\n", name, sum / NR, min }'
+}
+
+printf "%-42s %12s %12s\n" "tool.launch" "mean" "min"
+
+for launch in plain cds; do
+	if [ $launch = cds ]; then
+		OPTIONS="-XX:SharedArchiveFile=$ARCHIVE"
+	else
+		OPTIONS=""
+	fi
+	run RemoveLowCoverageRows.$launch "$OPTIONS" RemoveLowCoverageRows \
+		--input sample0.vcf --output sample0.filtered.vcf.gz --min-dp 10
+	run JoinVariants.$launch "$OPTIONS" JoinVariants \
+		--input sample0.vcf --input sample1.vcf --input sample2.vcf \
+		--prefixes S0_ --prefixes S1_ --prefixes S2_ --ref ref.fa --output joined.vcf.gz
+	run BuildFrequencySummary.$launch "$OPTIONS" BuildFrequencySummary \
+		--input joined.vcf.gz --output summary.vcf.gz
+done
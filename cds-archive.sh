@@ -0,0 +1,36 @@
+#!/bin/bash
+# Class data sharing (AppCDS) archive of the toolbox jar: classes loaded by
+# BuildFrequencySummary, JoinVariants and RemoveLowCoverageRows on the bundled
+# sample (src/cds) are stored parsed and verified, so later starts skip that.
+#
+# usage: ./cds-archive.sh jar archive [sample_dir]
+#
+# The archive is valid only for the same java and the jar at the same path,
+# use it as: java -XX:SharedArchiveFile=archive -cp jar ...
+# Jobs of src/cds/jobs.tsv are run in one JVM by VcfToolboxServer --stdin.
+set -e
+
+JAR=$(readlink -f $1)
+ARCHIVE=$(readlink -f $2)
+SAMPLE=$(readlink -f ${3:-$(dirname $0)/src/cds})
+
+if [ ! -f "$JAR" ] || [ -z "$2" ]; then
+	echo "usage: $0 jar archive [sample_dir]" >&2
+	exit 1
+fi
+
+WORK=$(mktemp -d)
+trap "rm -rf $WORK" EXIT
+cp $SAMPLE/* $WORK/
+
+cd $WORK
+java -XX:ArchiveClassesAtExit=$ARCHIVE -cp $JAR com.cloudinside.bio.VcfToolbox.VcfToolboxServer --stdin --threads 1 \
+	< jobs.tsv > jobs.out 2> jobs.log
+
+# a failed job would leave its classes out of the archive
+if [ $(grep -c "exit 0$" jobs.out) != $(grep -c . jobs.tsv) ]; then
+	cat jobs.out jobs.log >&2
+	echo "Training jobs failed, $ARCHIVE is incomplete" >&2
+	exit 1
+fi
+ls -la $ARCHIVE
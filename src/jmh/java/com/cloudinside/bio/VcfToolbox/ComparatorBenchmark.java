@@ -0,0 +1,130 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Ordering of {@link JoinVariants} inputs: {@link VariantContextComparatorAltAware}
+ * comparing records, building {@link VariantSortKey} (contig looked up per
+ * record, or once per contig of an input) and comparing keys.
+ * Pairs are neighbours in sorted order (as in the merge, mostly the same
+ * contig, often the same position) and random pairs. Scores are comparisons
+ * (or keys) per second.
+ *
+ * <pre>
+ * mvn -Pbenchmark package && java -jar target/benchmarks.jar ComparatorBenchmark
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparatorBenchmark {
+    private static final int RECORDS = 10_000;
+
+    private VariantContextComparatorAltAware comparator;
+    private VariantContext[] sorted;
+    private VariantContext[] shuffled;
+    private VariantSortKey[] sortedKeys;
+    private VariantSortKey[] shuffledKeys;
+
+    @Setup
+    public void setup() {
+        SyntheticVcf synthetic = new SyntheticVcf(42, 0);
+        comparator = new VariantContextComparatorAltAware(synthetic.getSequenceDictionary());
+        List<VariantContext> records = synthetic.records(RECORDS);
+        sorted = records.toArray(new VariantContext[0]);
+
+        List<VariantContext> copy = new ArrayList<>(records);
+        Collections.shuffle(copy, new Random(42));
+        shuffled = copy.toArray(new VariantContext[0]);
+
+        sortedKeys = new VariantSortKey[RECORDS];
+        shuffledKeys = new VariantSortKey[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            sortedKeys[i] = comparator.sortKey(sorted[i]);
+            shuffledKeys[i] = comparator.sortKey(shuffled[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS - 1)
+    public int compareNeighbours() {
+        int result = 0;
+        for (int i = 1; i < RECORDS; i++) {
+            result += comparator.compare(sorted[i - 1], sorted[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS - 1)
+    public int compareRandom() {
+        int result = 0;
+        for (int i = 1; i < RECORDS; i++) {
+            result += comparator.compare(shuffled[i - 1], shuffled[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void sortKey(Blackhole blackhole) {
+        for (VariantContext vc : sorted) {
+            blackhole.consume(comparator.sortKey(vc));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void sortKeysOfInput(Blackhole blackhole) {
+        Function<VariantContext, VariantSortKey> sortKeys = comparator.sortKeys();
+        for (VariantContext vc : sorted) {
+            blackhole.consume(sortKeys.apply(vc));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS - 1)
+    public int compareKeysNeighbours() {
+        int result = 0;
+        for (int i = 1; i < RECORDS; i++) {
+            result += sortedKeys[i - 1].compareTo(sortedKeys[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS - 1)
+    public int compareKeysRandom() {
+        int result = 0;
+        for (int i = 1; i < RECORDS; i++) {
+            result += shuffledKeys[i - 1].compareTo(shuffledKeys[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,101 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+
+/**
+ * DP filter of {@link RemoveLowCoverageRows}: raw VCF lines
+ * ({@link RawVcfDpFilter}), raw BCF records ({@link RawBcfDpFilter}) and
+ * records decoded by htsjdk (--full-decode, without encoding the output).
+ * Input is uncompressed and in memory, output is discarded. Scores are
+ * records per second.
+ *
+ * <pre>
+ * mvn -Pbenchmark package && java -jar target/benchmarks.jar DpFilterBenchmark
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DpFilterBenchmark {
+    private static final int RECORDS = 5_000;
+    private static final int MIN_DP = 10;
+
+    @Param({ "1", "10", "100" })
+    private int samples;
+
+    private byte[] vcf;
+    private byte[] bcf;
+
+    @Setup
+    public void setup() {
+        SyntheticVcf synthetic = new SyntheticVcf(42, samples);
+        List<VariantContext> records = synthetic.records(RECORDS);
+        vcf = synthetic.vcf(records);
+        bcf = synthetic.bcf(records);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long rawVcf() throws IOException {
+        RawVcfDpFilter filter = new RawVcfDpFilter(MIN_DP);
+        filter.filter(new ByteArrayInputStream(vcf), OutputStream.nullOutputStream());
+        return filter.getKept();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long rawBcf() throws IOException {
+        RawBcfDpFilter filter = new RawBcfDpFilter(MIN_DP);
+        filter.filter(new BcfStream(new ByteArrayInputStream(bcf)), OutputStream.nullOutputStream());
+        return filter.getKept();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long decodedVcf() {
+        VCFCodec codec = new VCFCodec();
+        LineIterator lines = new LineIteratorImpl(new SynchronousLineReader(new ByteArrayInputStream(vcf)));
+        codec.readActualHeader(lines);
+        long kept = 0;
+        while (lines.hasNext()) {
+            VariantContext vc = codec.decode(lines.next());
+            for (Genotype genotype : vc.getGenotypes()) {
+                if (genotype.hasDP() && genotype.getDP() >= MIN_DP) {
+                    kept++;
+                    break;
+                }
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,175 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+
+/**
+ * Per record summarization of {@link BuildFrequencySummary}: the previous
+ * multimap and TreeSet implementation against {@link AlleleCountKernel}.
+ * Scores are records per second; run with -prof gc for allocation per record
+ * (gc.alloc.rate.norm).
+ *
+ * <pre>
+ * mvn -Pbenchmark package && java -jar target/benchmarks.jar FrequencySummaryBenchmark -prof gc
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrequencySummaryBenchmark {
+    private static final int RECORDS = 100;
+    private static final String PREFIX = "ZGM_";
+
+    @Param({ "100", "1000", "5000" })
+    private int samples;
+
+    private List<VariantContext> records;
+    private BuildFrequencySummary buildFrequencySummary;
+    private AlleleCountKernel kernel;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        List<String> sampleNames = new ArrayList<>();
+        for (int i = 0; i < samples; i++) {
+            sampleNames.add("Sample_P" + i + ".bam");
+        }
+
+        Allele ref = Allele.create("A", true);
+        Allele alt1 = Allele.create("C");
+        Allele alt2 = Allele.create("G");
+        records = new ArrayList<>();
+        for (int r = 0; r < RECORDS; r++) {
+            List<Allele> alleles = r % 10 == 0 ? Arrays.asList(ref, alt1, alt2) : Arrays.asList(ref, alt1);
+            // allele frequency from rare to common
+            double carrierFraction = r % 4 == 0 ? 0.3 : 0.02;
+            List<Genotype> genotypes = new ArrayList<>(samples);
+            for (int i = 0; i < samples; i++) {
+                List<Allele> gt;
+                double x = random.nextDouble();
+                if (x < carrierFraction) {
+                    Allele alt = alleles.get(1 + random.nextInt(alleles.size() - 1));
+                    gt = random.nextInt(5) == 0 ? Arrays.asList(alt, alt) : Arrays.asList(ref, alt);
+                } else if (x < carrierFraction + 0.05) {
+                    gt = Arrays.asList(Allele.NO_CALL, Allele.NO_CALL);
+                } else {
+                    gt = Arrays.asList(ref, ref);
+                }
+                genotypes.add(new GenotypeBuilder(sampleNames.get(i), gt).DP(random.nextInt(40)).make());
+            }
+            records.add(new VariantContextBuilder("bench", "chr1", 1000 + r, 1000 + r, alleles).genotypes(genotypes)
+                    .make());
+        }
+
+        buildFrequencySummary = new BuildFrequencySummary();
+        kernel = new AlleleCountKernel(new SampleNameTable(sampleNames));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void kernel(Blackhole blackhole) {
+        for (VariantContext vc : records) {
+            buildFrequencySummary.summarize(vc, kernel, blackhole::consume);
+        }
+    }
+
+    /**
+     * Implementation before the counting kernel
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void multimap(Blackhole blackhole) {
+        for (VariantContext vc : records) {
+            Multimap<Allele, Genotype> alleles = ArrayListMultimap.create();
+            int referenceCount = 0;
+            int allSamplesCount = vc.getSampleNames().size();
+            for (Genotype genotype : vc.getGenotypes()) {
+                for (Allele allele : genotype.getAlleles()) {
+                    if (allele.isReference()) {
+                        referenceCount++;
+                    } else if (allele.isCalled()) {
+                        alleles.put(allele, genotype);
+                    }
+                }
+            }
+
+            for (Entry<Allele, Collection<Genotype>> alleleToGenotypes : alleles.asMap().entrySet()) {
+                Collection<Genotype> genotypes = alleleToGenotypes.getValue();
+                Allele allele = alleleToGenotypes.getKey();
+
+                VariantContextBuilder vcb = new VariantContextBuilder();
+                vcb.chr(vc.getContig());
+                vcb.attributes(new HashMap<String, Object>());
+                vcb.attribute(PREFIX + "RefNum", referenceCount);
+                vcb.attribute(PREFIX + "TotNum", referenceCount + genotypes.size());
+
+                Set<String> samplesList = new TreeSet<>();
+                Set<String> homSamples = new TreeSet<>();
+                Set<String> hetSamples = new TreeSet<>();
+                for (Genotype g : genotypes) {
+                    String name = g.getSampleName();
+                    name = StringUtils.removeStart(name, "Sample_");
+                    name = StringUtils.substringBefore(name, ".");
+                    if (g.isHomVar()) {
+                        homSamples.add(name);
+                        name += "*";
+                    } else if (g.isHet()) {
+                        hetSamples.add(name);
+                    }
+                    samplesList.add(name);
+                }
+                vcb.attribute(PREFIX + "Samples", Joiner.on(',').join(samplesList));
+                vcb.attribute(PREFIX + "SampNum", allSamplesCount);
+                vcb.attribute(PREFIX + "SamplesHom", homSamples.size());
+                vcb.attribute(PREFIX + "SamplesHet", hetSamples.size());
+                vcb.attribute(PREFIX + "SampCont", samplesList.size());
+                vcb.attribute(PREFIX + "SampFreq", (double) samplesList.size() / allSamplesCount);
+                vcb.attribute(PREFIX + "AllFreq", (double) genotypes.size() / (referenceCount + genotypes.size()));
+
+                vcb.start(vc.getStart()).alleles(vc.getReference().getBaseString(), allele.getBaseString());
+                vcb.noGenotypes().noID();
+                vcb.computeEndFromAlleles(vcb.getAlleles(), vc.getStart());
+                blackhole.consume(vcb.make());
+            }
+        }
+    }
+}
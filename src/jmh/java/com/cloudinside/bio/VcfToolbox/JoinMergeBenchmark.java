@@ -0,0 +1,179 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+
+/**
+ * Merge loop of {@link JoinVariants}: linear scan over all inputs (the original
+ * implementation) against {@link VariantMergeQueue}.
+ *
+ * <pre>
+ * mvn -Pbenchmark package && java -jar target/benchmarks.jar JoinMergeBenchmark
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JoinMergeBenchmark {
+    private static final List<String> CONTIGS = Arrays.asList("chr1", "chr2", "chr3");
+    private static final String[] BASES = { "A", "C", "G", "T" };
+
+    @Param({ "2", "16", "128" })
+    private int inputs;
+
+    @Param({ "20000" })
+    private int sites;
+
+    /**
+     * sparse - a site is reported by 1 + geometric(0.5) random inputs (most
+     * calls are caller specific); dense - every input reports ~60% of sites
+     */
+    @Param({ "sparse", "dense" })
+    private String overlap;
+
+    private List<List<VariantContext>> records;
+    private VariantContextComparatorAltAware comparator;
+
+    @Setup
+    public void setup() {
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        for (String contig : CONTIGS) {
+            dictionary.addSequence(new SAMSequenceRecord(contig, 100_000_000));
+        }
+        comparator = new VariantContextComparatorAltAware(dictionary);
+
+        Random random = new Random(42);
+        records = new ArrayList<>(inputs);
+        for (int i = 0; i < inputs; i++) {
+            records.add(new ArrayList<>());
+        }
+        for (int site = 0; site < sites; site++) {
+            String contig = CONTIGS.get(site * CONTIGS.size() / sites);
+            int ref = site % 4;
+            VariantContext vc = new VariantContextBuilder("bench", contig, 1000 + site * 10L, 1000 + site * 10L,
+                    Arrays.asList(Allele.create(BASES[ref], true), Allele.create(BASES[(ref + 1) % 4]))).make();
+            if ("dense".equals(overlap)) {
+                for (int i = 0; i < inputs; i++) {
+                    if (random.nextInt(10) < 6) {
+                        records.get(i).add(vc);
+                    }
+                }
+            } else {
+                boolean[] reporting = new boolean[inputs];
+                reporting[random.nextInt(inputs)] = true;
+                while (random.nextBoolean()) {
+                    reporting[random.nextInt(inputs)] = true;
+                }
+                for (int i = 0; i < inputs; i++) {
+                    if (reporting[i]) {
+                        records.get(i).add(vc);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<VcfIteratorWrapper> openInputs() {
+        List<VcfIteratorWrapper> wrappers = new ArrayList<>(inputs);
+        for (List<VariantContext> list : records) {
+            wrappers.add(new VcfIteratorWrapper(new ListIterator(list.iterator()), comparator::sortKey));
+        }
+        return wrappers;
+    }
+
+    @Benchmark
+    public int linearScan(Blackhole blackhole) {
+        List<VcfIteratorWrapper> readerIterators = openInputs();
+        int groups = 0;
+        while (true) {
+            VariantContext smallest = null;
+            for (VcfIteratorWrapper it : readerIterators) {
+                if (smallest == null) {
+                    smallest = it.peek();
+                } else {
+                    if (it.peek() != null && comparator.compare(smallest, it.peek()) > 0) {
+                        smallest = it.peek();
+                    }
+                }
+            }
+            if (smallest == null) {
+                break;
+            }
+            for (VcfIteratorWrapper it : readerIterators) {
+                if (it.peek() != null && comparator.compare(smallest, it.peek()) == 0) {
+                    blackhole.consume(it.pop());
+                }
+            }
+            groups++;
+        }
+        return groups;
+    }
+
+    @Benchmark
+    public int heapMerge(Blackhole blackhole) {
+        VariantMergeQueue queue = new VariantMergeQueue(openInputs());
+        int[] groupInputs = new int[inputs];
+        VariantContext[] groupRecords = new VariantContext[inputs];
+        int groups = 0;
+        int groupSize;
+        while ((groupSize = queue.nextGroup(groupInputs, groupRecords)) > 0) {
+            for (int i = 0; i < groupSize; i++) {
+                blackhole.consume(groupRecords[groupInputs[i]]);
+            }
+            groups++;
+        }
+        return groups;
+    }
+
+    private static class ListIterator implements CloseableIterator<VariantContext> {
+        private final Iterator<VariantContext> iterator;
+
+        ListIterator(Iterator<VariantContext> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public VariantContext next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+import htsjdk.variant.vcf.VCFStandardHeaderLines;
+
+/**
+ * Deterministic synthetic variants for benchmarks, no external data needed:
+ * the same seed gives the same records.
+ *
+ * Records are sorted, ~80% SNVs, the rest indels, every 10th record is
+ * multiallelic, a few sites have two records. Genotypes have GT, DP, GQ and
+ * AD; ~5% are no-calls, carrier frequency alternates between rare and common.
+ *
+ * @author pstawinski
+ *
+ */
+class SyntheticVcf {
+    public static final List<String> CONTIGS = Arrays.asList("chr1", "chr2", "chr3");
+    private static final int CONTIG_LENGTH = 100_000_000;
+    private static final String BASES = "ACGT";
+
+    private final long seed;
+    private final int samples;
+
+    public SyntheticVcf(long seed, int samples) {
+        this.seed = seed;
+        this.samples = samples;
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        for (String contig : CONTIGS) {
+            dictionary.addSequence(new SAMSequenceRecord(contig, CONTIG_LENGTH));
+        }
+        return dictionary;
+    }
+
+    public List<String> getSampleNames() {
+        List<String> names = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            names.add("Sample_P" + i + ".bam");
+        }
+        return names;
+    }
+
+    public VCFHeader getHeader() {
+        VCFHeader header = new VCFHeader(new HashSet<VCFHeaderLine>(), getSampleNames());
+        header.addMetaDataLine(new VCFInfoHeaderLine("DP", 1, VCFHeaderLineType.Integer, "Total depth"));
+        header.addMetaDataLine(new VCFInfoHeaderLine("AF", VCFHeaderLineCount.A, VCFHeaderLineType.Float,
+                "Allele frequency"));
+        for (String key : Arrays.asList("GT", "DP", "GQ", "AD")) {
+            VCFFormatHeaderLine line = VCFStandardHeaderLines.getFormatLine(key);
+            header.addMetaDataLine(line);
+        }
+        header.setSequenceDictionary(getSequenceDictionary());
+        return header;
+    }
+
+    /**
+     * Records spread over {@link #CONTIGS}
+     */
+    public List<VariantContext> records(int count) {
+        Random random = new Random(seed);
+        List<String> names = getSampleNames();
+        List<VariantContext> records = new ArrayList<>(count);
+        int position = 1000;
+        for (int r = 0; r < count; r++) {
+            String contig = CONTIGS.get((int) ((long) r * CONTIGS.size() / count));
+            if (r > 0 && !contig.equals(records.get(r - 1).getContig())) {
+                position = 1000;
+            }
+            // two records at the same site now and then
+            if (random.nextInt(20) != 0) {
+                position += 1 + random.nextInt(200);
+            }
+
+            List<Allele> alleles = alleles(random, r);
+            List<Genotype> genotypes = new ArrayList<>(samples);
+            double carrierFraction = r % 4 == 0 ? 0.3 : 0.02;
+            for (int i = 0; i < samples; i++) {
+                genotypes.add(genotype(random, names.get(i), alleles, carrierFraction));
+            }
+
+            List<Double> af = new ArrayList<>();
+            for (int a = 1; a < alleles.size(); a++) {
+                af.add(Math.round(random.nextDouble() * 1000) / 1000.0);
+            }
+            records.add(new VariantContextBuilder("synthetic", contig, position,
+                    position + alleles.get(0).length() - 1, alleles).attribute("DP", random.nextInt(500))
+                    .attribute("AF", af).genotypes(genotypes).make());
+        }
+        return records;
+    }
+
+    private static List<Allele> alleles(Random random, int r) {
+        int ref = random.nextInt(4);
+        String refBase = BASES.substring(ref, ref + 1);
+        List<Allele> alleles = new ArrayList<>();
+        int kind = random.nextInt(10);
+        if (kind < 8) {
+            alleles.add(Allele.create(refBase, true));
+            alleles.add(Allele.create(BASES.substring((ref + 1) % 4, (ref + 1) % 4 + 1)));
+        } else if (kind == 8) {
+            // deletion
+            alleles.add(Allele.create(refBase + randomBases(random, 1 + random.nextInt(5)), true));
+            alleles.add(Allele.create(refBase));
+        } else {
+            // insertion
+            alleles.add(Allele.create(refBase, true));
+            alleles.add(Allele.create(refBase + randomBases(random, 1 + random.nextInt(5))));
+        }
+        if (r % 10 == 0 && alleles.get(0).length() == 1) {
+            alleles.add(Allele.create(BASES.substring((ref + 2) % 4, (ref + 2) % 4 + 1)));
+        }
+        return alleles;
+    }
+
+    private static String randomBases(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(BASES.charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static Genotype genotype(Random random, String name, List<Allele> alleles, double carrierFraction) {
+        Allele ref = alleles.get(0);
+        double x = random.nextDouble();
+        List<Allele> gt;
+        if (x < carrierFraction) {
+            Allele alt = alleles.get(1 + random.nextInt(alleles.size() - 1));
+            gt = random.nextInt(5) == 0 ? Arrays.asList(alt, alt) : Arrays.asList(ref, alt);
+        } else if (x < carrierFraction + 0.05) {
+            return new GenotypeBuilder(name, Arrays.asList(Allele.NO_CALL, Allele.NO_CALL)).make();
+        } else {
+            gt = Arrays.asList(ref, ref);
+        }
+        int dp = random.nextInt(40);
+        int[] ad = new int[alleles.size()];
+        for (int i = 0; i < dp; i++) {
+            ad[random.nextInt(ad.length)]++;
+        }
+        return new GenotypeBuilder(name, gt).DP(dp).GQ(random.nextInt(100)).AD(ad).make();
+    }
+
+    /**
+     * Uncompressed VCF text
+     */
+    public byte[] vcf(List<VariantContext> records) {
+        return write(records, false);
+    }
+
+    /**
+     * Uncompressed BCF
+     */
+    public byte[] bcf(List<VariantContext> records) {
+        return write(records, true);
+    }
+
+    private byte[] write(List<VariantContext> records, boolean bcf) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VariantContextWriterBuilder builder = new VariantContextWriterBuilder()
+                .setOptions(EnumSet.noneOf(Options.class)).setReferenceDictionary(getSequenceDictionary());
+        if (bcf) {
+            builder.setOutputBCFStream(out);
+        } else {
+            builder.setOutputVCFStream(out);
+        }
+        try (VariantContextWriter writer = builder.build()) {
+            writer.writeHeader(getHeader());
+            for (VariantContext vc : records) {
+                writer.add(vc);
+            }
+        }
+        return out.toByteArray();
+    }
+}
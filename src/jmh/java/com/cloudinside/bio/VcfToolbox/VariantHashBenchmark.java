@@ -0,0 +1,106 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cloudinside.bio.VariantHashCounter;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Variant keys of {@link VariantHashCounter}: the string
+ * {@link VariantHashCounter#hash(String, Integer, Integer, String, String)}
+ * against the binary {@link VariantHashCounter#key(int, int, String, String)}.
+ * With long alleles the string key falls back to md5. Scores are keys per
+ * second.
+ *
+ * <pre>
+ * mvn -Pbenchmark package && java -jar target/benchmarks.jar VariantHashBenchmark -prof gc
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VariantHashBenchmark {
+    private static final int RECORDS = 10_000;
+
+    /**
+     * synthetic - alleles of {@link SyntheticVcf}; long - 120 bp alleles
+     */
+    @Param({ "synthetic", "long" })
+    private String alleles;
+
+    private String[] contigs;
+    private int[] contigIds;
+    private int[] starts;
+    private int[] ends;
+    private String[] refs;
+    private String[] alts;
+
+    @Setup
+    public void setup() {
+        List<VariantContext> records = new SyntheticVcf(42, 0).records(RECORDS);
+        contigs = new String[RECORDS];
+        contigIds = new int[RECORDS];
+        starts = new int[RECORDS];
+        ends = new int[RECORDS];
+        refs = new String[RECORDS];
+        alts = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            VariantContext vc = records.get(i);
+            contigs[i] = vc.getContig();
+            contigIds[i] = SyntheticVcf.CONTIGS.indexOf(vc.getContig());
+            starts[i] = vc.getStart();
+            ends[i] = vc.getEnd();
+            refs[i] = vc.getReference().getBaseString();
+            alts[i] = vc.getAlternateAllele(0).getBaseString();
+            if ("long".equals(alleles)) {
+                alts[i] = refs[i] + repeat(alts[i], 120);
+            }
+        }
+    }
+
+    private static String repeat(String s, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(s);
+        }
+        return sb.substring(0, length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void hash(Blackhole blackhole) {
+        for (int i = 0; i < RECORDS; i++) {
+            blackhole.consume(VariantHashCounter.hash(contigs[i], starts[i], ends[i], refs[i], alts[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void key(Blackhole blackhole) {
+        for (int i = 0; i < RECORDS; i++) {
+            blackhole.consume(VariantHashCounter.key(contigIds[i], starts[i], refs[i], alts[i]));
+        }
+    }
+}
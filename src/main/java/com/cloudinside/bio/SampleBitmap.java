@@ -0,0 +1,487 @@
+package com.cloudinside.bio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable compressed set of sample indexes (non negative ints), roaring
+ * style: values are split by their high 16 bits into containers, a container
+ * is a sorted array of low 16 bits (up to {@value #ARRAY_MAX} values) or a
+ * bitmap of 2^16 bits.
+ *
+ * {@link #encode()} writes every container in the smallest of array, bitmap or
+ * runs form, as URL safe base64 with no padding, so the value can be an INFO
+ * field of VCF. {@link #decode(String)} reads it back.
+ *
+ * Set operations ({@link #and(SampleBitmap)}, {@link #or(SampleBitmap)},
+ * {@link #andNot(SampleBitmap)}) work container by container.
+ *
+ * @author pstawinski
+ *
+ */
+public final class SampleBitmap {
+    public static final SampleBitmap EMPTY = new SampleBitmap(new char[0], new Object[0], new int[0]);
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private static final int ARRAY = 0;
+    private static final int BITMAP = 1;
+    private static final int RUNS = 2;
+
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int AND_NOT = 2;
+
+    /** high 16 bits of values, ascending */
+    private final char[] keys;
+    /** per key: char[] of sorted low bits or long[] bitmap */
+    private final Object[] containers;
+    private final int[] cardinalities;
+
+    private SampleBitmap(char[] keys, Object[] containers, int[] cardinalities) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinalities = cardinalities;
+    }
+
+    /**
+     * @param values
+     *            - sorted ascending, no duplicates
+     */
+    public static SampleBitmap of(int[] values, int length) {
+        Builder builder = new Builder();
+        for (int i = 0; i < length; i++) {
+            builder.add(values[i]);
+        }
+        return builder.build();
+    }
+
+    public static SampleBitmap of(int... values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        Builder builder = new Builder();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                builder.add(sorted[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds a bitmap of values added in ascending order
+     */
+    public static class Builder {
+        private final List<Character> keys = new ArrayList<>();
+        private final List<Object> containers = new ArrayList<>();
+        private final List<Integer> cardinalities = new ArrayList<>();
+
+        private int key = -1;
+        private char[] values = new char[16];
+        private long[] bitmap;
+        private int cardinality = 0;
+        private int last = -1;
+
+        public Builder add(int value) {
+            if (value <= last) {
+                throw new IllegalArgumentException("Values not ascending: " + value + " after " + last);
+            }
+            last = value;
+            int high = value >>> 16;
+            if (high != key) {
+                flush();
+                key = high;
+            }
+            char low = (char) value;
+            if (bitmap != null) {
+                bitmap[low >>> 6] |= 1L << low;
+            } else if (cardinality == ARRAY_MAX) {
+                bitmap = toBitmap(values, cardinality);
+                bitmap[low >>> 6] |= 1L << low;
+            } else {
+                if (cardinality == values.length) {
+                    values = Arrays.copyOf(values, cardinality * 2);
+                }
+                values[cardinality] = low;
+            }
+            cardinality++;
+            return this;
+        }
+
+        private void flush() {
+            if (cardinality > 0) {
+                keys.add((char) key);
+                containers.add(bitmap != null ? bitmap : Arrays.copyOf(values, cardinality));
+                cardinalities.add(cardinality);
+            }
+            bitmap = null;
+            cardinality = 0;
+        }
+
+        public SampleBitmap build() {
+            flush();
+            char[] k = new char[keys.size()];
+            int[] c = new int[keys.size()];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = keys.get(i);
+                c[i] = cardinalities.get(i);
+            }
+            key = -1;
+            return new SampleBitmap(k, containers.toArray(), c);
+        }
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int c : cardinalities) {
+            cardinality += c;
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    public boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, (char) (value >>> 16));
+        if (value < 0 || i < 0) {
+            return false;
+        }
+        char low = (char) value;
+        Object container = containers[i];
+        if (container instanceof long[]) {
+            return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, low) >= 0;
+    }
+
+    /**
+     * Values in ascending order
+     */
+    public void forEach(IntConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            int high = keys[i] << 16;
+            Object container = containers[i];
+            if (container instanceof long[]) {
+                long[] bitmap = (long[]) container;
+                for (int w = 0; w < bitmap.length; w++) {
+                    long word = bitmap[w];
+                    while (word != 0) {
+                        consumer.accept(high | (w << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (char low : (char[]) container) {
+                    consumer.accept(high | low);
+                }
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] size = { 0 };
+        forEach(value -> values[size[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Samples in both bitmaps
+     */
+    public SampleBitmap and(SampleBitmap other) {
+        return combine(other, AND);
+    }
+
+    /**
+     * Samples in any of bitmaps
+     */
+    public SampleBitmap or(SampleBitmap other) {
+        return combine(other, OR);
+    }
+
+    /**
+     * Samples of this bitmap and not of other
+     */
+    public SampleBitmap andNot(SampleBitmap other) {
+        return combine(other, AND_NOT);
+    }
+
+    /**
+     * Merges containers by key
+     */
+    private SampleBitmap combine(SampleBitmap other, int operation) {
+        List<Character> k = new ArrayList<>();
+        List<long[]> c = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            int a = i < keys.length ? keys[i] : Integer.MAX_VALUE;
+            int b = j < other.keys.length ? other.keys[j] : Integer.MAX_VALUE;
+            if (a == b) {
+                long[] x = toBitmap(containers[i++]);
+                long[] y = toBitmap(other.containers[j++]);
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    if (operation == OR) {
+                        x[w] |= y[w];
+                    } else if (operation == AND) {
+                        x[w] &= y[w];
+                    } else {
+                        x[w] &= ~y[w];
+                    }
+                }
+                k.add((char) a);
+                c.add(x);
+            } else if (a < b) {
+                if (operation != AND) {
+                    k.add((char) a);
+                    c.add(toBitmap(containers[i]));
+                }
+                i++;
+            } else {
+                if (operation == OR) {
+                    k.add((char) b);
+                    c.add(toBitmap(other.containers[j]));
+                }
+                j++;
+            }
+        }
+        return fromBitmaps(k, c);
+    }
+
+    private static SampleBitmap fromBitmaps(List<Character> keys, List<long[]> bitmaps) {
+        List<Character> k = new ArrayList<>();
+        List<Object> c = new ArrayList<>();
+        List<Integer> n = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            long[] bitmap = bitmaps.get(i);
+            int cardinality = 0;
+            for (long word : bitmap) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                continue;
+            }
+            k.add(keys.get(i));
+            c.add(cardinality > ARRAY_MAX ? bitmap : toArray(bitmap, cardinality));
+            n.add(cardinality);
+        }
+        char[] keyArray = new char[k.size()];
+        int[] cardinalities = new int[k.size()];
+        for (int i = 0; i < keyArray.length; i++) {
+            keyArray[i] = k.get(i);
+            cardinalities[i] = n.get(i);
+        }
+        return new SampleBitmap(keyArray, c.toArray(), cardinalities);
+    }
+
+    private static long[] toBitmap(Object container) {
+        if (container instanceof long[]) {
+            return ((long[]) container).clone();
+        }
+        char[] values = (char[]) container;
+        return toBitmap(values, values.length);
+    }
+
+    private static long[] toBitmap(char[] values, int length) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int i = 0; i < length; i++) {
+            bitmap[values[i] >>> 6] |= 1L << values[i];
+        }
+        return bitmap;
+    }
+
+    private static char[] toArray(long[] bitmap, int cardinality) {
+        char[] values = new char[cardinality];
+        int n = 0;
+        for (int w = 0; w < bitmap.length; w++) {
+            long word = bitmap[w];
+            while (word != 0) {
+                values[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Compact text form: URL safe base64 (no padding) of containers, each as
+     * array, bitmap or runs, whichever is the smallest
+     */
+    public String encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, keys.length);
+        int previousKey = 0;
+        for (int i = 0; i < keys.length; i++) {
+            writeVarint(out, keys[i] - previousKey);
+            previousKey = keys[i];
+            char[] values = containers[i] instanceof char[] ? (char[]) containers[i]
+                    : toArray((long[]) containers[i], cardinalities[i]);
+
+            int arrayBytes = varintSize(values.length);
+            int runs = 0;
+            int runsBytes = 0;
+            int start = 0;
+            int previousEnd = 0;
+            for (int v = 0; v < values.length; v++) {
+                arrayBytes += varintSize(v == 0 ? values[v] : values[v] - values[v - 1]);
+                if (v + 1 == values.length || values[v + 1] != values[v] + 1) {
+                    runs++;
+                    runsBytes += varintSize(values[start] - previousEnd) + varintSize(v - start);
+                    previousEnd = values[v];
+                    start = v + 1;
+                }
+            }
+            runsBytes += varintSize(runs);
+            if (runsBytes < arrayBytes && runsBytes < BITMAP_WORDS * 8) {
+                out.write(RUNS);
+                writeVarint(out, runs);
+                start = 0;
+                previousEnd = 0;
+                for (int v = 1; v <= values.length; v++) {
+                    if (v == values.length || values[v] != values[v - 1] + 1) {
+                        writeVarint(out, values[start] - previousEnd);
+                        writeVarint(out, v - start - 1);
+                        previousEnd = values[v - 1];
+                        start = v;
+                    }
+                }
+            } else if (arrayBytes > BITMAP_WORDS * 8) {
+                out.write(BITMAP);
+                long[] bitmap = toBitmap(containers[i]);
+                for (long word : bitmap) {
+                    for (int b = 0; b < 8; b++) {
+                        out.write((int) (word >>> (8 * b)));
+                    }
+                }
+            } else {
+                out.write(ARRAY);
+                writeVarint(out, values.length);
+                int previous = 0;
+                for (char value : values) {
+                    writeVarint(out, value - previous);
+                    previous = value;
+                }
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * Reads {@link #encode()} output
+     */
+    public static SampleBitmap decode(String encoded) {
+        byte[] bytes = Base64.getUrlDecoder().decode(encoded);
+        int[] position = { 0 };
+        int count = readVarint(bytes, position);
+        char[] keys = new char[count];
+        Object[] containers = new Object[count];
+        int[] cardinalities = new int[count];
+        int key = 0;
+        for (int i = 0; i < count; i++) {
+            key += readVarint(bytes, position);
+            keys[i] = (char) key;
+            int type = bytes[position[0]++];
+            long[] bitmap;
+            switch (type) {
+            case ARRAY: {
+                char[] values = new char[readVarint(bytes, position)];
+                int value = 0;
+                for (int v = 0; v < values.length; v++) {
+                    value += readVarint(bytes, position);
+                    values[v] = (char) value;
+                }
+                bitmap = toBitmap(values, values.length);
+                break;
+            }
+            case BITMAP:
+                bitmap = new long[BITMAP_WORDS];
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = 0;
+                    for (int b = 0; b < 8; b++) {
+                        word |= (bytes[position[0]++] & 0xffL) << (8 * b);
+                    }
+                    bitmap[w] = word;
+                }
+                break;
+            case RUNS: {
+                bitmap = new long[BITMAP_WORDS];
+                int runs = readVarint(bytes, position);
+                int end = 0;
+                for (int r = 0; r < runs; r++) {
+                    int start = end + readVarint(bytes, position);
+                    end = start + readVarint(bytes, position);
+                    for (int v = start; v <= end; v++) {
+                        bitmap[v >>> 6] |= 1L << v;
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Invalid sample bitmap: " + encoded);
+            }
+            int cardinality = 0;
+            for (long word : bitmap) {
+                cardinality += Long.bitCount(word);
+            }
+            cardinalities[i] = cardinality;
+            containers[i] = cardinality > ARRAY_MAX ? bitmap : toArray(bitmap, cardinality);
+        }
+        return new SampleBitmap(keys, containers, cardinalities);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SampleBitmap)) {
+            return false;
+        }
+        return Arrays.equals(toArray(), ((SampleBitmap) obj).toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
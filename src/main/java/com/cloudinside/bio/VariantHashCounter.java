@@ -1,12 +1,12 @@
 package com.cloudinside.bio;
 
-import org.apache.commons.lang3.StringUtils;
-
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
 public class VariantHashCounter {
     static private final HashFunction hf = Hashing.md5();
+    static private final int POSITION_WIDTH = 9;
+    static private final int MAX_KEY_LENGTH = 100;
 
     /**
      * @param chr
@@ -15,17 +15,35 @@ public class VariantHashCounter {
      *            - ommited
      * @param ref
      * @param obs
-     * @return
+     * @return chr:zero padded start-ref>obs, when longer than 100 characters
+     *         chr:start-md5
      */
     static public String hash(String chr, Integer start, Integer end, String ref, String obs) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(chr).append(':').append(StringUtils.leftPad(Integer.toString(start), 9, '0')).append('-').append(ref)
-                .append('>').append(obs);
-        if (sb.length() > 100) {
-            return chr + ":" + start + "-" + hf.hashUnencodedChars(sb.toString()).toString();
+        String position = Integer.toString(start);
+        int padding = Math.max(POSITION_WIDTH - position.length(), 0);
+
+        StringBuilder sb = new StringBuilder(chr.length() + padding + position.length() + ref.length()
+                + obs.length() + 3);
+        sb.append(chr).append(':');
+        for (int i = 0; i < padding; i++) {
+            sb.append('0');
+        }
+        sb.append(position).append('-').append(ref).append('>').append(obs);
+        if (sb.length() > MAX_KEY_LENGTH) {
+            return chr + ":" + position + "-" + hf.hashUnencodedChars(sb).toString();
         } else {
             return sb.toString();
         }
+    }
 
+    /**
+     * Binary form of {@link #hash(String, Integer, Integer, String, String)},
+     * see {@link VariantKey}
+     *
+     * @param contigId
+     *            - id of chr, e.g. index in the sequence dictionary
+     */
+    static public VariantKey key(int contigId, int start, String ref, String obs) {
+        return VariantKey.of(contigId, start, ref, obs);
     }
 }
@@ -0,0 +1,154 @@
+package com.cloudinside.bio;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact binary key of a variant, two longs:
+ *
+ * <pre>
+ * high: contig id (32 bits) | position (32 bits)
+ * low:  0 | ref length (4) | alt length (4) | ref and alt bases, 2 bits each (55)
+ *   or  1 | 64-bit hash of ref and alt, top bit dropped (63)
+ * </pre>
+ *
+ * Bases are packed when ref and alt are made of A, C, G and T only and
+ * together have at most {@value #MAX_PACKED_BASES} bases; longer indels and
+ * other alleles are hashed. Packed keys are equal if and only if variants are
+ * equal, hashed keys may collide, with 2^-63 probability.
+ *
+ * @author pstawinski
+ *
+ */
+public final class VariantKey {
+    public static final int MAX_PACKED_BASES = 27;
+
+    private static final long HASHED = 1L << 63;
+    private static final int MAX_LENGTH = 15;
+    private static final int REF_LENGTH_SHIFT = 59;
+    private static final int ALT_LENGTH_SHIFT = 55;
+    private static final HashFunction hf = Hashing.farmHashFingerprint64();
+
+    private final long high;
+    private final long low;
+
+    public VariantKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param contigId
+     *            - non negative, e.g. index in the sequence dictionary
+     */
+    public static VariantKey of(int contigId, int position, String ref, String alt) {
+        return new VariantKey(high(contigId, position), low(ref.getBytes(StandardCharsets.US_ASCII),
+                alt.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    public static VariantKey of(int contigId, int position, byte[] ref, byte[] alt) {
+        return new VariantKey(high(contigId, position), low(ref, alt));
+    }
+
+    /**
+     * High part of the key, for comparing keys without allocating them
+     */
+    public static long high(int contigId, int position) {
+        if (contigId < 0) {
+            throw new IllegalArgumentException("Contig id must not be negative: " + contigId);
+        }
+        return (long) contigId << 32 | (position & 0xffffffffL);
+    }
+
+    /**
+     * Low part of the key, for comparing keys without allocating them
+     */
+    public static long low(byte[] ref, byte[] alt) {
+        if (ref.length <= MAX_LENGTH && alt.length <= MAX_LENGTH && ref.length + alt.length <= MAX_PACKED_BASES) {
+            long low = (long) ref.length << REF_LENGTH_SHIFT | (long) alt.length << ALT_LENGTH_SHIFT;
+            int shift = ALT_LENGTH_SHIFT;
+            boolean packed = true;
+            for (int i = 0; i < ref.length + alt.length && packed; i++) {
+                int code = code(i < ref.length ? ref[i] : alt[i - ref.length]);
+                packed = code >= 0;
+                shift -= 2;
+                low |= (long) code << shift;
+            }
+            if (packed) {
+                return low;
+            }
+        }
+        long hash = hf.newHasher(ref.length + alt.length + 1).putBytes(ref).putByte((byte) '>').putBytes(alt).hash()
+                .asLong();
+        return HASHED | hash;
+    }
+
+    private static int code(byte base) {
+        switch (base) {
+        case 'A':
+            return 0;
+        case 'C':
+            return 1;
+        case 'G':
+            return 2;
+        case 'T':
+            return 3;
+        default:
+            return -1;
+        }
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public int getContigId() {
+        return (int) (high >>> 32);
+    }
+
+    public int getPosition() {
+        return (int) high;
+    }
+
+    /**
+     * @return true if alleles are hashed, not packed
+     */
+    public boolean isHashed() {
+        return (low & HASHED) != 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VariantKey)) {
+            return false;
+        }
+        VariantKey other = (VariantKey) obj;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        // both parts mixed, positions and packed bases differ in few bits
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return Long.hashCode(h);
+    }
+
+    @Override
+    public String toString() {
+        return getContigId() + ":" + getPosition() + "-" + Long.toHexString(low);
+    }
+}
@@ -0,0 +1,279 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.cloudinside.bio.SampleBitmap;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Counts alleles of a multisample record on allele indexes, without per record
+ * collections. Sample names come from {@link SampleNameTable}; sets of samples
+ * are bitsets with a list of set positions, cleared at the next record. The
+ * Samples string is built only by {@link #getSamples(int)}. Header indexes of
+ * samples, for {@link #getSamplesBitmap(int)}, are collected when requested in
+ * the constructor.
+ *
+ * Not thread safe, use one per thread.
+ *
+ * @author pstawinski
+ *
+ */
+class AlleleCountKernel implements AlleleCounts {
+    private final SampleNameTable samples;
+    private final boolean bitmaps;
+
+    private int referenceCount;
+    private int allSamplesCount;
+    private int allelesCount;
+
+    /** per allele index: number of observations */
+    private int[] alleleCounts = new int[0];
+    /** per allele index: entries of samples containing it, hom with "*" */
+    private SampleSet[] containing = new SampleSet[0];
+    private SampleSet[] hom = new SampleSet[0];
+    private SampleSet[] het = new SampleSet[0];
+    /** per allele index: header indexes of samples containing it, of hom */
+    private SampleSet[] carriers = new SampleSet[0];
+    private SampleSet[] homCarriers = new SampleSet[0];
+
+    /** per allele index: last genotype counted for the allele */
+    private int[] lastGenotype = new int[0];
+
+    private final StringBuilder sb = new StringBuilder();
+
+    public AlleleCountKernel(SampleNameTable samples) {
+        this(samples, false);
+    }
+
+    /**
+     * @param bitmaps
+     *            - collect header indexes of samples for
+     *            {@link #getSamplesBitmap(int)}
+     */
+    public AlleleCountKernel(SampleNameTable samples, boolean bitmaps) {
+        this.samples = samples;
+        this.bitmaps = bitmaps;
+    }
+
+    public SampleNameTable getSampleNameTable() {
+        return samples;
+    }
+
+    public void count(VariantContext vc) {
+        for (int a = 1; a < allelesCount; a++) {
+            alleleCounts[a] = 0;
+            containing[a].clear();
+            hom[a].clear();
+            het[a].clear();
+            if (bitmaps) {
+                carriers[a].clear();
+                homCarriers[a].clear();
+            }
+        }
+
+        List<Allele> alleles = vc.getAlleles();
+        allelesCount = alleles.size();
+        ensureCapacity(allelesCount);
+        Arrays.fill(lastGenotype, 0, allelesCount, -1);
+        referenceCount = 0;
+
+        GenotypesContext genotypes = vc.getGenotypes();
+        allSamplesCount = genotypes.size();
+        for (int i = 0; i < allSamplesCount; i++) {
+            Genotype genotype = genotypes.get(i);
+            List<Allele> genotypeAlleles = genotype.getAlleles();
+            for (int j = 0; j < genotypeAlleles.size(); j++) {
+                Allele allele = genotypeAlleles.get(j);
+                if (allele.isReference()) {
+                    referenceCount++;
+                } else if (allele.isCalled()) {
+                    int a = alleleIndex(alleles, allele);
+                    alleleCounts[a]++;
+                    if (lastGenotype[a] != i) {
+                        lastGenotype[a] = i;
+                        addSample(a, genotype, i);
+                    }
+                } else {
+                    // no called, probably not available here
+                }
+            }
+        }
+    }
+
+    private void addSample(int a, Genotype genotype, int genotypeIndex) {
+        int sampleIndex = genotypeIndex;
+        if (sampleIndex >= samples.getSamplesCount()
+                || !samples.getSampleName(sampleIndex).equals(genotype.getSampleName())) {
+            sampleIndex = samples.getSampleIndex(genotype.getSampleName());
+        }
+        int nameId = samples.getNameId(sampleIndex);
+        if (bitmaps) {
+            carriers[a].add(sampleIndex);
+        }
+
+        if (genotype.isHomVar()) {
+            if (bitmaps) {
+                homCarriers[a].add(sampleIndex);
+            }
+            hom[a].add(nameId);
+            containing[a].add(samples.getStarEntry(nameId));
+        } else {
+            if (genotype.isHet()) {
+                het[a].add(nameId);
+            }
+            containing[a].add(samples.getPlainEntry(nameId));
+        }
+    }
+
+    private static int alleleIndex(List<Allele> alleles, Allele allele) {
+        // genotypes of decoded records share allele instances with the record
+        for (int a = 1; a < alleles.size(); a++) {
+            if (alleles.get(a) == allele) {
+                return a;
+            }
+        }
+        for (int a = 1; a < alleles.size(); a++) {
+            if (alleles.get(a).equals(allele)) {
+                return a;
+            }
+        }
+        throw new IllegalArgumentException("Allele " + allele + " not found in record alleles " + alleles);
+    }
+
+    private void ensureCapacity(int count) {
+        if (alleleCounts.length >= count) {
+            return;
+        }
+        int previous = alleleCounts.length;
+        alleleCounts = Arrays.copyOf(alleleCounts, count);
+        lastGenotype = Arrays.copyOf(lastGenotype, count);
+        containing = Arrays.copyOf(containing, count);
+        hom = Arrays.copyOf(hom, count);
+        het = Arrays.copyOf(het, count);
+        carriers = Arrays.copyOf(carriers, count);
+        homCarriers = Arrays.copyOf(homCarriers, count);
+        for (int a = previous; a < count; a++) {
+            containing[a] = new SampleSet(samples.getEntriesCount());
+            hom[a] = new SampleSet(samples.getNamesCount());
+            het[a] = new SampleSet(samples.getNamesCount());
+            if (bitmaps) {
+                carriers[a] = new SampleSet(samples.getSamplesCount());
+                homCarriers[a] = new SampleSet(samples.getSamplesCount());
+            }
+        }
+    }
+
+    @Override
+    public int getReferenceCount() {
+        return referenceCount;
+    }
+
+    @Override
+    public int getAllSamplesCount() {
+        return allSamplesCount;
+    }
+
+    @Override
+    public int getAllelesCount() {
+        return allelesCount;
+    }
+
+    @Override
+    public int getAlleleCount(int alleleIndex) {
+        return alleleCounts[alleleIndex];
+    }
+
+    @Override
+    public int getSamplesContaining(int alleleIndex) {
+        return containing[alleleIndex].size();
+    }
+
+    @Override
+    public int getSamplesHom(int alleleIndex) {
+        return hom[alleleIndex].size();
+    }
+
+    @Override
+    public int getSamplesHet(int alleleIndex) {
+        return het[alleleIndex].size();
+    }
+
+    @Override
+    public String getSamples(int alleleIndex) {
+        SampleSet set = containing[alleleIndex];
+        set.sort();
+        sb.setLength(0);
+        for (int i = 0; i < set.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(samples.getEntry(set.get(i)));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public SampleBitmap getSamplesBitmap(int alleleIndex) {
+        return carriers[alleleIndex].toBitmap();
+    }
+
+    @Override
+    public SampleBitmap getSamplesHomBitmap(int alleleIndex) {
+        return homCarriers[alleleIndex].toBitmap();
+    }
+
+    /**
+     * Set of small ints: bitset for membership, list of members for size,
+     * iteration and clearing.
+     */
+    private static class SampleSet {
+        private final long[] bits;
+        private int[] members = new int[16];
+        private int size = 0;
+
+        public SampleSet(int capacity) {
+            this.bits = new long[(capacity + 63) >>> 6];
+        }
+
+        public void add(int value) {
+            long mask = 1L << value;
+            int word = value >>> 6;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                if (size == members.length) {
+                    members = Arrays.copyOf(members, size * 2);
+                }
+                members[size++] = value;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(int i) {
+            return members[i];
+        }
+
+        public void sort() {
+            Arrays.sort(members, 0, size);
+        }
+
+        public SampleBitmap toBitmap() {
+            sort();
+            return SampleBitmap.of(members, size);
+        }
+
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                bits[members[i] >>> 6] = 0;
+            }
+            size = 0;
+        }
+    }
+}
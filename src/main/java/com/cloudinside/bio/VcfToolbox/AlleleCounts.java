@@ -0,0 +1,51 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import com.cloudinside.bio.SampleBitmap;
+
+/**
+ * Counts of alleles of a record, summarized by
+ * {@link BuildFrequencySummary#summarize(String, int, java.util.List, AlleleCounts, java.util.function.Consumer)}.
+ * Allele indexes are indexes in the alleles of the record, 0 is the reference.
+ *
+ * @author pstawinski
+ *
+ */
+interface AlleleCounts {
+    int getReferenceCount();
+
+    int getAllSamplesCount();
+
+    /**
+     * @return number of alleles of the record, including the reference
+     */
+    int getAllelesCount();
+
+    /**
+     * @return number of observations of the alternative allele, 0 when not
+     *         observed
+     */
+    int getAlleleCount(int alleleIndex);
+
+    int getSamplesContaining(int alleleIndex);
+
+    int getSamplesHom(int alleleIndex);
+
+    int getSamplesHet(int alleleIndex);
+
+    /**
+     * @return sorted, comma separated names of samples containing the allele,
+     *         homozygotes marked with "*"
+     */
+    String getSamples(int alleleIndex);
+
+    /**
+     * @return indexes of samples containing the allele, in the sample table of
+     *         the summary
+     */
+    SampleBitmap getSamplesBitmap(int alleleIndex);
+
+    /**
+     * @return indexes of samples homozygous for the allele
+     */
+    SampleBitmap getSamplesHomBitmap(int alleleIndex);
+}
@@ -0,0 +1,238 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.bcf2.BCF2Utils;
+import htsjdk.variant.bcf2.BCFVersion;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Uncompressed BCF stream (the caller removes BGZF compression): raw header
+ * and raw records, plus htsjdk codecs for decoding them.
+ *
+ * htsjdk decodes BCF 2.1 only. Files of bcftools (BCF 2.2) are accepted when
+ * their IDX dictionary agrees with the order of header lines, which is the
+ * case unless lines were removed from the header without reindexing.
+ *
+ * @author pstawinski
+ *
+ */
+class BcfStream implements Closeable {
+    private static final byte[] MAGIC = { 'B', 'C', 'F', 2 };
+    private static final int RECORD_LENGTHS_SIZE = 8;
+
+    private static final Pattern ID = Pattern.compile("[<,]ID=([^,>]+)");
+    private static final Pattern IDX = Pattern.compile("[<,]IDX=(\\d+)");
+
+    private final DataInputStream in;
+    private final byte[] headerBytes;
+    private final String headerText;
+
+    private VCFHeader header;
+
+    private byte[] record = new byte[1 << 16];
+    private int recordLength = 0;
+
+    public BcfStream(InputStream inputStream) throws IOException {
+        this.in = new DataInputStream(inputStream);
+
+        byte[] start = new byte[MAGIC.length + 1 + 4];
+        in.readFully(start);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (start[i] != MAGIC[i]) {
+                throw new IllegalArgumentException("Not a BCF2 stream");
+            }
+        }
+        int minorVersion = start[MAGIC.length];
+        if (minorVersion != 1 && minorVersion != 2) {
+            throw new IllegalArgumentException("Unsupported BCF version 2." + minorVersion);
+        }
+
+        int textLength = readInt(start, MAGIC.length + 1);
+        this.headerBytes = new byte[start.length + textLength];
+        System.arraycopy(start, 0, headerBytes, 0, start.length);
+        in.readFully(headerBytes, start.length, textLength);
+        this.headerText = new String(headerBytes, start.length, textLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return magic, length and text of the header, as in the stream
+     */
+    public byte[] getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public String getHeaderText() {
+        return headerText;
+    }
+
+    public VCFHeader getHeader() {
+        if (header == null) {
+            newCodec();
+        }
+        return header;
+    }
+
+    /**
+     * Reads the next raw record, available through {@link #getRecord()}
+     *
+     * @return false at the end of stream
+     */
+    public boolean next() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        try {
+            record[0] = (byte) first;
+            in.readFully(record, 1, RECORD_LENGTHS_SIZE - 1);
+            long length = RECORD_LENGTHS_SIZE + (readInt(record, 0) & 0xffffffffL) + (readInt(record, 4) & 0xffffffffL);
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("BCF record too long: " + length);
+            }
+            recordLength = (int) length;
+            if (record.length < recordLength) {
+                byte[] bigger = new byte[Math.max(recordLength, record.length * 2)];
+                System.arraycopy(record, 0, bigger, 0, RECORD_LENGTHS_SIZE);
+                record = bigger;
+            }
+            in.readFully(record, RECORD_LENGTHS_SIZE, recordLength - RECORD_LENGTHS_SIZE);
+        } catch (EOFException e) {
+            throw new IOException("Truncated BCF record", e);
+        }
+        return true;
+    }
+
+    /**
+     * @return buffer with the current record: l_shared, l_indiv, shared and
+     *         individual parts; valid until the next call of {@link #next()}
+     */
+    public byte[] getRecord() {
+        return record;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * @return stream of records not read yet, for decoding with a codec
+     */
+    public InputStream getRecordsStream() {
+        return in;
+    }
+
+    /**
+     * @return codec with the header of this stream read, ready to decode
+     *         records
+     */
+    public BCF2Codec newCodec() {
+        BCF2Codec codec = new BCF2Codec() {
+            @Override
+            protected void validateVersionCompatibility(BCFVersion supportedVersion, BCFVersion actualVersion) {
+                // versions checked when reading the header
+            }
+        };
+        try (PositionalBufferedStream headerStream = new PositionalBufferedStream(
+                new ByteArrayInputStream(headerBytes), headerBytes.length)) {
+            VCFHeader codecHeader = (VCFHeader) codec.readHeader(headerStream).getHeaderValue();
+            if (header == null) {
+                validateDictionaries(codecHeader);
+                header = codecHeader;
+            }
+        }
+        return codec;
+    }
+
+    private void validateDictionaries(VCFHeader codecHeader) {
+        List<String> strings = BCF2Utils.makeDictionary(codecHeader);
+        for (Entry<String, Integer> entry : dictionary(headerText).entrySet()) {
+            int index = entry.getValue();
+            if (index >= strings.size() || !strings.get(index).equals(entry.getKey())) {
+                throw new IllegalArgumentException("IDX of " + entry.getKey()
+                        + " does not follow the order of header lines, not supported; rewrite the file with bcftools view");
+            }
+        }
+
+        List<String> contigs = new ArrayList<>();
+        for (VCFContigHeaderLine line : codecHeader.getContigLines()) {
+            contigs.add(line.getID());
+        }
+        for (Entry<String, Integer> entry : contigDictionary(headerText).entrySet()) {
+            int index = entry.getValue();
+            if (index >= contigs.size() || !contigs.get(index).equals(entry.getKey())) {
+                throw new IllegalArgumentException("IDX of contig " + entry.getKey()
+                        + " does not follow the order of header lines, not supported; rewrite the file with bcftools view");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Dictionary of strings of the header: IDX attributes when present (BCF
+     * 2.2), otherwise FILTER, INFO and FORMAT IDs in order of appearance,
+     * after the implicit PASS.
+     */
+    static Map<String, Integer> dictionary(String headerText) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        dictionary.put("PASS", 0);
+        for (String line : headerText.split("\n")) {
+            if (line.startsWith("##FILTER=<") || line.startsWith("##INFO=<") || line.startsWith("##FORMAT=<")) {
+                addToDictionary(dictionary, line);
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Contigs of the header: IDX attributes when present, otherwise order of
+     * appearance
+     */
+    static Map<String, Integer> contigDictionary(String headerText) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (String line : headerText.split("\n")) {
+            if (line.startsWith("##contig=<")) {
+                addToDictionary(dictionary, line);
+            }
+        }
+        return dictionary;
+    }
+
+    private static void addToDictionary(Map<String, Integer> dictionary, String line) {
+        Matcher id = ID.matcher(line);
+        if (!id.find()) {
+            return;
+        }
+        Matcher idx = IDX.matcher(line);
+        if (idx.find()) {
+            dictionary.put(id.group(1), Integer.parseInt(idx.group(1)));
+        } else if (!dictionary.containsKey(id.group(1))) {
+            dictionary.put(id.group(1), dictionary.size());
+        }
+    }
+}
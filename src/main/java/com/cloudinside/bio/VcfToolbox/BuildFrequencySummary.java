@@ -1,32 +1,42 @@
 package com.cloudinside.bio.VcfToolbox;
 
 import java.io.File;
-import java.util.Collection;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.google.common.base.Joiner;
+import com.beust.jcommander.ParameterException;
+import com.cloudinside.bio.VcfToolbox.VariantFiles.OutputType;
 import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.variantcontext.Allele;
-import htsjdk.variant.variantcontext.Genotype;
-import htsjdk.variant.variantcontext.GenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.filter.FilteringVariantContextIterator;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
@@ -41,71 +51,249 @@ import htsjdk.variant.vcf.VCFInfoHeaderLine;
  * Read multisample vcf file
  * 
  * Writes file with no samples, INFO contains sample names and frequencies of
- * observed allele. Multiallele obs are splitted
+ * observed allele. Multiallele obs are splitted; with --left-align input
+ * records are split and left-aligned first, by {@link VariantNormalizer}
  * 
  * @author pstawinski
  * 
  */
 public class BuildFrequencySummary {
-    private static final String REFERENCE_NUMBER_INFO = "RefNum";
-    private static final String ALLELE_FREQUENCY_INFO = "AllFreq";
-    private static final String ALL_ALLELES_COUNT_INFO = "TotNum";
-    private static final String SAMPLES_COUNT_INFO = "SampNum";
-    private static final String SAMPLES_CONTAINING_INFO = "SampCont";
-    private static final String SAMPLES_CONTAINING_FREQUENCY_INFO = "SampFreq";
+    static final String REFERENCE_NUMBER_INFO = "RefNum";
+    static final String ALLELE_FREQUENCY_INFO = "AllFreq";
+    static final String ALL_ALLELES_COUNT_INFO = "TotNum";
+    static final String SAMPLES_COUNT_INFO = "SampNum";
+    static final String SAMPLES_CONTAINING_INFO = "SampCont";
+    static final String SAMPLES_CONTAINING_FREQUENCY_INFO = "SampFreq";
     private static final String SAMPLES_INFO = "Samples";
-    private static final String SAMPLES_HOM = "SamplesHom";
-    private static final String SAMPLES_HET = "SamplesHet";
+    static final String SAMPLES_HOM = "SamplesHom";
+    static final String SAMPLES_HET = "SamplesHet";
+    static final String SAMPLES_BITMAP_INFO = "SamplesBm";
+    static final String SAMPLES_HOM_BITMAP_INFO = "SamplesHomBm";
+    /** header line with names of samples, indexes of bitmaps */
+    static final String SAMPLE_TABLE_HEADER = "SampleTable";
     private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(BuildFrequencySummary.class);
 
-    @Parameter(names = "--input", description = "Vcf input file (can be bgzipped, may need to indexed through tabix)", required = true)
+    @Parameter(names = "--input", description = "Vcf or bcf input file (can be bgzipped, may need to indexed through tabix)", required = true)
     private String inputVcfFile;
     @Parameter(names = "--prefix", description = "Prefix of info entries", required = false)
     private String infoPrefix = "ZGM_";
     @Parameter(names = "--output", description = "Vcf output", required = true)
     private String outputVcfFile;
+    @Parameter(names = "--output-type", description = "v - VCF, z - bgzipped VCF, u - BCF, b - bgzipped BCF (no index); default from --output extension (.bcf is b)", required = false)
+    private String outputType;
+    @Parameter(names = "--compression-threads", description = "Number of threads compressing bgzipped output (VCF or BCF), 1 - compressed by the writing thread", required = false)
+    private int compressionThreads = 1;
     @Parameter(names = "--ignore-missing-header", description = "Ingore missing header", required = false)
     private boolean ignoreMissingHeader = false;
     @Parameter(names = "--normalize", description = "Normalize alleles, usually not needed", required = false)
     private boolean normalize = false;
+    @Parameter(names = "--left-align", description = "Split multiallelic records and left-align indels against --ref before counting, as bcftools norm -m- -f", required = false)
+    private boolean leftAlign = false;
+    @Parameter(names = "--ref", description = "Reference fasta with .fai index, required by --left-align", required = false)
+    private String referenceFile;
+    @Parameter(names = "--norm-window", description = "With --left-align: maximal shift of a record, records moved are re-sorted within the window", required = false)
+    private int normWindow = VariantNormalizer.DEFAULT_WINDOW;
+    @Parameter(names = "--no-samples", description = "Do not write names of samples containing the allele", required = false)
+    private boolean noSamples = false;
+    @Parameter(names = "--samples-bitmap", description = "Write samples containing the allele, and homozygotes, as compressed bitmaps of indexes in the sample table of the output header, instead of names", required = false)
+    private boolean samplesBitmap = false;
+    @Parameter(names = "--threads", description = "Number of worker threads; with tabix (.tbi) or tribble (.idx) index of input the work is split by contig (or --shard-size windows), otherwise records are decoded and summarized in blocks", required = false)
+    private int threads = 1;
+    @Parameter(names = "--shard-size", description = "With --threads: size of genomic windows processed as separate shards, 0 - whole contigs", required = false)
+    private int shardSize = 0;
+    @Parameter(names = "--region", description = "Process only records overlapping region chr, chr:pos or chr:start-end (1-based), can be repeated; uses tabix (.tbi) or tribble (.idx) index of input", required = false)
+    private List<String> region;
+    @Parameter(names = "--regions-file", description = "Process only records overlapping regions of BED file; uses tabix (.tbi) or tribble (.idx) index of input", required = false)
+    private String regionsFile;
+    @Parameter(names = "--metrics", description = "Write summary of the run (records, errors, timings per record, queue depths) as JSON to the file", required = false)
+    private String metricsFile;
+    @Parameter(names = "--metrics-interval", description = "Print progress as JSON lines every given seconds instead of \"Processed N\" lines, 0 - off", required = false)
+    private int metricsInterval = 0;
+    @Parameter(names = "--mmap", description = "Read bgzipped input mapped to memory, blocks inflated by --threads workers", required = false)
+    private boolean mmap = false;
+    @Parameter(names = "--table", description = "Also write the summary (without sample names) as a columnar table, typed and compressed column chunks in row groups, see FrequencyTable", required = false)
+    private String tableFile;
     // @Parameter(names = "--ignore-input-index", description = "Require index
     // of input", required = false)
     private boolean ignoreInputIndex = true;
 
+    public BuildFrequencySummary() {
+    }
+
+    /**
+     * Summary records written by other tools, see
+     * {@link #summarize(String, int, List, AlleleCounts, Consumer)}
+     */
+    BuildFrequencySummary(String infoPrefix, boolean normalize, boolean noSamples, boolean samplesBitmap) {
+        this.infoPrefix = infoPrefix;
+        this.normalize = normalize;
+        this.noSamples = noSamples;
+        this.samplesBitmap = samplesBitmap;
+    }
+
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
         // to have Double formatted correctly
         Locale.setDefault(Locale.ENGLISH);
 
         BuildFrequencySummary app = new BuildFrequencySummary();
-        JCommander jc = null;
+        JCommander jc = JCommander.newBuilder().addObject(app).build();
         try {
-            jc = new JCommander(app, args);
-
-            app.go();
-        } catch (Exception e) {
-            e.printStackTrace();
+            jc.parse(args);
+        } catch (ParameterException e) {
             jc.usage();
-
+            throw e;
         }
+        app.go();
     }
 
-    private void go() {
+    private void go() throws InterruptedException, ExecutionException, IOException {
 
         String filename = inputVcfFile; // "/archive/pio/tmp/merged_bcf.changed.vcf.gz";
         File file = new File(filename);
+        if (leftAlign && referenceFile == null) {
+            throw new IllegalArgumentException("--left-align requires --ref");
+        }
 
-        VCFFileReader vcfFileReader = new VCFFileReader(file, !ignoreInputIndex);
+        VariantReader vcfFileReader = openInput(file, false, threads);
         VCFHeader header = vcfFileReader.getFileHeader();
-        CloseableIterator<VariantContext> it = vcfFileReader.iterator();
+        ignoreInputIndex = threads <= 1 || !vcfFileReader.isQueryable();
+        if (threads > 1 && ignoreInputIndex && new File(file.getPath() + FileExtensions.CSI).exists()) {
+            log.warn("CSI index of " + file + " is not supported, input is not sharded; index it with tabix");
+        }
+        Regions regions = Regions.of(region, regionsFile, header.getSequenceDictionary());
 
-        final EnumSet<Options> options = ignoreInputIndex ? EnumSet.of(Options.INDEX_ON_THE_FLY)
-                : EnumSet.noneOf(Options.class);
+        final EnumSet<Options> options = EnumSet.of(Options.INDEX_ON_THE_FLY);
 
         options.add(Options.USE_ASYNC_IO);
 
-        final VariantContextWriter vcfWriter = new VariantContextWriterBuilder().setOptions(options)
-                .setOutputFile(new File(outputVcfFile)).setReferenceDictionary(header.getSequenceDictionary()).build();
+        File outputFile = new File(outputVcfFile);
+        OutputType type = OutputType.of(outputFile, outputType);
+        VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type, options,
+                header.getSequenceDictionary(), compressionThreads);
+        if (tableFile != null) {
+            vcfWriter = new TableWriter(vcfWriter, new FrequencyTable.Writer(new File(tableFile), infoPrefix));
+        }
+
+        VCFHeader vcfHeader = createOutputHeader(header.getGenotypeSamples());
+        if (type.isBcf()) {
+            VariantFiles.addContigLines(vcfHeader, header.getSequenceDictionary());
+        }
+        SampleNameTable sampleNames = new SampleNameTable(header.getGenotypeSamples());
 
+        vcfWriter.writeHeader(vcfHeader);
+
+        if (threads > 1 && ignoreInputIndex && leftAlign) {
+            log.warn("--left-align needs records in order, input without index is read by a single thread");
+        } else if (threads > 1 && !ignoreInputIndex && leftAlign && shardSize > 0) {
+            log.warn("--left-align moves records between windows, shards are whole contigs");
+        }
+
+        ToolMetrics metrics = new ToolMetrics("BuildFrequencySummary").start(metricsInterval, metricsFile);
+        metrics.addInputFile(file);
+        metrics.addOutputFile(outputFile);
+        if (tableFile != null) {
+            metrics.addOutputFile(new File(tableFile));
+        }
+
+        if (threads > 1 && ignoreInputIndex && !leftAlign) {
+            IOUtils.closeQuietly(vcfFileReader);
+            try (VcfPipeline pipeline = VcfPipeline.open(file, threads, mmap)) {
+                pipeline.setSkipInvalidRecords(true).setMetrics(metrics).run(() -> {
+                    AlleleCountKernel kernel = new AlleleCountKernel(sampleNames, samplesBitmap);
+                    return (vc, output) -> {
+                        if (regions != null && !regions.overlaps(vc)) {
+                            metrics.skipped();
+                        } else if (!summarize(vc, kernel, output::add)) {
+                            metrics.error();
+                        }
+                    };
+                }, vcfWriter);
+            }
+        } else if (ignoreInputIndex) {
+            CachedReferenceSequence reference = openReference();
+            CloseableIterator<VariantContext> it = normalized(
+                    regions == null ? vcfFileReader.iterator() : regions.iterator(vcfFileReader), header, reference);
+            AlleleCountKernel kernel = new AlleleCountKernel(sampleNames, samplesBitmap);
+            List<VariantContext> output = new ArrayList<>();
+            while (it.hasNext()) {
+                summarizeNext(it, kernel, output, metrics);
+                for (VariantContext outputVc : output) {
+                    long start = System.nanoTime();
+                    vcfWriter.add(outputVc);
+                    metrics.write.since(start);
+                }
+                metrics.addOutput(output.size());
+                output.clear();
+            }
+            it.close();
+            IOUtils.closeQuietly(reference);
+        } else {
+            summarizeSharded(file, header.getSequenceDictionary(), regions, sampleNames, vcfHeader, vcfWriter,
+                    metrics);
+        }
+
+        IOUtils.closeQuietly(vcfFileReader);
+        vcfWriter.close();
+        metrics.close();
+
+    }
+
+    /**
+     * Summarizes the next record of it to output, a record that cannot be
+     * decoded or summarized is reported and omitted
+     */
+    private void summarizeNext(CloseableIterator<VariantContext> it, AlleleCountKernel kernel,
+            List<VariantContext> output, ToolMetrics metrics) {
+        try {
+            long start = System.nanoTime();
+            VariantContext vc = it.next();
+            start = metrics.decode.since(start);
+
+            if (!summarize(vc, kernel, output::add)) {
+                metrics.error();
+            }
+            metrics.transform.since(start);
+        } catch (Exception e) {
+            metrics.error();
+            System.err.println("Ommiting line due to ar error");
+            e.printStackTrace();
+        }
+        metrics.addRecords(1);
+    }
+
+    private VariantReader openInput(File file, boolean requireIndex, int inflaters) throws IOException {
+        return mmap ? VariantReader.openMapped(file, requireIndex, inflaters) : VariantReader.open(file, requireIndex);
+    }
+
+    private CachedReferenceSequence openReference() {
+        return leftAlign ? CachedReferenceSequence.open(new File(referenceFile)) : null;
+    }
+
+    /**
+     * Records of it split and left-aligned with --left-align
+     */
+    private CloseableIterator<VariantContext> normalized(CloseableIterator<VariantContext> it, VCFHeader header,
+            CachedReferenceSequence reference) {
+        return reference == null ? it : new VariantNormalizer(it, header, reference, normWindow);
+    }
+
+    /**
+     * @param sampleNames
+     *            - table of --samples-bitmap
+     */
+    VCFHeader createOutputHeader(List<String> sampleNames) {
         Set<VCFHeaderLine> set = Collections.emptySet();
         List<String> list = Collections.emptyList();
         VCFHeader vcfHeader = new VCFHeader(set, list);
@@ -121,8 +309,20 @@ public class BuildFrequencySummary {
                 "Current allele frequency divided by number of observations"));
         vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + REFERENCE_NUMBER_INFO, 1,
                 VCFHeaderLineType.Integer, "Number of reference equals observations at this point"));
-        vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_INFO, VCFHeaderLineCount.UNBOUNDED,
-                VCFHeaderLineType.String, "Sample names, that included this allele"));
+        if (noSamples) {
+            // no samples
+        } else if (samplesBitmap) {
+            vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_BITMAP_INFO, 1,
+                    VCFHeaderLineType.String, "Samples that included this allele, bitmap of indexes in "
+                            + infoPrefix + SAMPLE_TABLE_HEADER));
+            vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_HOM_BITMAP_INFO, 1,
+                    VCFHeaderLineType.String, "Samples homozygous for this allele, bitmap of indexes in "
+                            + infoPrefix + SAMPLE_TABLE_HEADER));
+            vcfHeader.addMetaDataLine(new VCFHeaderLine(infoPrefix + SAMPLE_TABLE_HEADER, String.join(",", sampleNames)));
+        } else {
+            vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_INFO, VCFHeaderLineCount.UNBOUNDED,
+                    VCFHeaderLineType.String, "Sample names, that included this allele"));
+        }
         vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_COUNT_INFO, 1, VCFHeaderLineType.Integer,
                 "All samples that were analyzed"));
         vcfHeader.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + SAMPLES_CONTAINING_INFO, 1,
@@ -133,120 +333,252 @@ public class BuildFrequencySummary {
         // vcfHeader.setSequenceDictionary(header.getSequenceDictionary());
 
         // vcfHeader.addMetaDataLine()
+        return vcfHeader;
+    }
 
-        vcfWriter.writeHeader(vcfHeader);
-
-        int counter = 0;
-        while (it.hasNext()) {
-            try {
-                VariantContext vc = it.next();
-
-                try {
+    /**
+     * Each shard (contig or window of --shard-size) is summarized by a worker
+     * to a temporary file next to the output, using index query on its own
+     * reader. Shards are then copied to the writer in dictionary order, as
+     * soon as they are ready. Contigs of the input index missing in the
+     * sequence dictionary are summarized after it, in order of the index.
+     */
+    private void summarizeSharded(File file, SAMSequenceDictionary dictionary, Regions regions,
+            SampleNameTable sampleNames, VCFHeader vcfHeader, VariantContextWriter vcfWriter, ToolMetrics metrics)
+            throws IOException, InterruptedException, ExecutionException {
+        if (dictionary == null || dictionary.isEmpty()) {
+            throw new IllegalArgumentException("Sequence dictionary (contig lines) required in " + file
+                    + " to split the work by contig");
+        }
 
-                    Multimap<Allele, Genotype> alleles = ArrayListMultimap.create();
-                    int referenceCount = 0;
-
-                    // System.out.println(vc);
-                    String chr = vc.getContig();
-                    Allele oryginalReference = vc.getReference();
-                    Set<String> sampleNames = vc.getSampleNames();
-                    int allSamplesCount = sampleNames.size();
-
-                    GenotypesContext genotypesContext = vc.getGenotypes();
-                    for (Genotype genotype : genotypesContext) {
-                        for (Allele allele : genotype.getAlleles()) {
-                            if (allele.isReference()) {
-                                referenceCount++;
-                            } else {
-                                if (allele.isCalled()) {
-                                    alleles.put(allele, genotype);
-                                } else {
-                                    // no called, probably not available here
-                                }
-                            }
-                        }
+        File tmpDir = new File(outputVcfFile).getAbsoluteFile().getParentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<File>> results = new ArrayList<>();
+        AtomicInteger pending = new AtomicInteger();
+        metrics.gauge("shards", pending::get);
+        try {
+            for (Shard shard : createShards(dictionary, regions, indexedContigs(file))) {
+                results.add(executor
+                        .submit(() -> summarizeShard(file, shard, sampleNames, vcfHeader, tmpDir, metrics)));
+            }
+            pending.set(results.size());
+
+            for (Future<File> result : results) {
+                File shardFile = result.get();
+                try (VCFFileReader shardReader = new VCFFileReader(shardFile, false)) {
+                    for (VariantContext vc : shardReader) {
+                        long start = System.nanoTime();
+                        vcfWriter.add(vc);
+                        metrics.write.since(start);
+                        metrics.addOutput(1);
                     }
+                } finally {
+                    pending.decrementAndGet();
+                    shardFile.delete();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // running shards stop at the next record and delete their files
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            for (Future<File> result : results) {
+                if (result.isDone() && !result.isCancelled()) {
+                    try {
+                        result.get().delete();
+                    } catch (ExecutionException e) {
+                        // reported already
+                    }
+                }
+            }
+        }
+    }
 
-                    for (Entry<Allele, Collection<Genotype>> alleleToGenotypes : alleles.asMap().entrySet()) {
-                        Collection<Genotype> genotypes = alleleToGenotypes.getValue();
-                        Allele allele = alleleToGenotypes.getKey();
-
-                        VariantContextBuilder vcb = new VariantContextBuilder();
-                        vcb.chr(chr);
-                        vcb.attributes(new HashMap<String, Object>());
-                        vcb.attribute(infoPrefix + REFERENCE_NUMBER_INFO, referenceCount);
-                        vcb.attribute(infoPrefix + ALL_ALLELES_COUNT_INFO, referenceCount + genotypes.size());
-
-                        Set<String> samplesList = new TreeSet<>();
-                        Set<String> homSamples = new TreeSet<>();
-                        Set<String> hetSamples = new TreeSet<>();
-
-                        for (Genotype g : genotypes) {
-                            String name = g.getSampleName();
-                            name = StringUtils.removeStart(name, "Sample_");
-                            name = StringUtils.substringBefore(name, ".");
-
-                            if (g.isHomVar()) {
-                                homSamples.add(name);
-                                name += "*";// append * to homozygotes
-                            } else if (g.isHet()) {
-                                hetSamples.add(name);
-                            }
-
-                            samplesList.add(name);
-                        }
-                        vcb.attribute(infoPrefix + SAMPLES_INFO, Joiner.on(',').join(samplesList));
-                        vcb.attribute(infoPrefix + SAMPLES_COUNT_INFO, allSamplesCount);
-                        vcb.attribute(infoPrefix + SAMPLES_HOM, homSamples.size());
-                        vcb.attribute(infoPrefix + SAMPLES_HET, hetSamples.size());
-                        vcb.attribute(infoPrefix + SAMPLES_CONTAINING_INFO, samplesList.size());
-                        vcb.attribute(infoPrefix + SAMPLES_CONTAINING_FREQUENCY_INFO,
-                                (double) samplesList.size() / allSamplesCount);
-
-                        vcb.attribute(infoPrefix + ALLELE_FREQUENCY_INFO,
-                                (double) genotypes.size() / (referenceCount + genotypes.size()));
-
-                        int position = vc.getStart();
-                        String refSequence = oryginalReference.getBaseString();
-                        String alleleSequence = allele.getBaseString();
-                        if (normalize) {
-
-                            int prefixOffset = countPrefixOffset(refSequence, alleleSequence);
-                            refSequence = refSequence.substring(prefixOffset);
-                            alleleSequence = alleleSequence.substring(prefixOffset);
-
-                            int suffixOffset = countSuffixOffset(refSequence, alleleSequence);
-                            refSequence = refSequence.substring(0, refSequence.length() - suffixOffset);
-                            alleleSequence = alleleSequence.substring(0, alleleSequence.length() - suffixOffset);
-
-                            position += prefixOffset;
-                        }
+    private File summarizeShard(File file, Shard shard, SampleNameTable sampleNames, VCFHeader vcfHeader,
+            File tmpDir, ToolMetrics metrics) throws IOException {
+        File shardFile = File.createTempFile("BuildFrequencySummary.", ".vcf", tmpDir);
+        AlleleCountKernel kernel = new AlleleCountKernel(sampleNames, samplesBitmap);
 
-                        vcb.start(position).alleles(refSequence, alleleSequence);
-                        vcb.noGenotypes().noID();
-                        vcb.computeEndFromAlleles(vcb.getAlleles(), position);
+        try {
+            writeShard(file, shard, kernel, vcfHeader, shardFile, metrics);
+        } catch (IOException | RuntimeException | Error e) {
+            shardFile.delete();
+            throw e;
+        }
+        return shardFile;
+    }
 
-                        VariantContext outputVc = vcb.make();
+    private void writeShard(File file, Shard shard, AlleleCountKernel kernel, VCFHeader vcfHeader, File shardFile,
+            ToolMetrics metrics) throws IOException {
+        try (VariantReader vcfFileReader = openInput(file, true, 1);
+                CachedReferenceSequence reference = openReference();
+                // records overlapping window start belong to the previous shard
+                CloseableIterator<VariantContext> it = normalized(new FilteringVariantContextIterator(
+                        vcfFileReader.query(shard.contig, shard.start, shard.end),
+                        vc -> vc.getStart() >= shard.minStart), vcfFileReader.getFileHeader(), reference);
+                VariantContextWriter shardWriter = new VariantContextWriterBuilder()
+                        .setOptions(EnumSet.noneOf(Options.class)).setOutputFile(shardFile).build()) {
+            shardWriter.writeHeader(vcfHeader);
+
+            List<VariantContext> output = new ArrayList<>();
+            while (it.hasNext()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Summary of " + shard.contig + ":" + shard.start + " interrupted");
+                }
+                summarizeNext(it, kernel, output, metrics);
+                for (VariantContext outputVc : output) {
+                    shardWriter.add(outputVc);
+                }
+                output.clear();
+            }
+        }
+    }
 
-                        vcfWriter.add(outputVc);
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error for: " + vc);
-                    e.printStackTrace();
+    /**
+     * @return contigs of the index of file (tabix or tribble), empty without
+     *         index
+     */
+    private static List<String> indexedContigs(File file) {
+        File indexFile = Tribble.tabixIndexFile(file);
+        if (!indexFile.exists()) {
+            indexFile = Tribble.indexFile(file);
+        }
+        if (!indexFile.exists()) {
+            return Collections.emptyList();
+        }
+        return IndexFactory.loadIndex(indexFile.getPath()).getSequenceNames();
+    }
+
+    /**
+     * Whole contigs or regions, split to windows of --shard-size; without
+     * regions, indexed contigs not in the dictionary are whole shards at the
+     * end
+     */
+    private List<Shard> createShards(SAMSequenceDictionary dictionary, Regions regions,
+            List<String> indexedContigs) {
+        List<Regions.Region> intervals = new ArrayList<>();
+        if (regions != null) {
+            intervals.addAll(regions.getRegions());
+        } else {
+            for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+                intervals.add(new Regions.Region(sequence.getSequenceName(), 1, Regions.MAX_QUERY_END, 1));
+            }
+            List<String> missing = new ArrayList<>();
+            for (String contig : indexedContigs) {
+                if (dictionary.getSequence(contig) == null) {
+                    missing.add(contig);
+                    intervals.add(new Regions.Region(contig, 1, Regions.MAX_QUERY_END, 1));
                 }
-            } catch (Exception e) {
-                System.err.println("Ommiting line due to ar error");
-                e.printStackTrace();
             }
+            if (!missing.isEmpty()) {
+                log.warn("Contigs " + missing + " of the index are not in the sequence dictionary, written last");
+            }
+        }
 
-            if (++counter % 10000 == 0) {
-                System.err.println("Processed " + counter);
+        List<Shard> shards = new ArrayList<>();
+        for (Regions.Region interval : intervals) {
+            String contig = interval.getContig();
+            SAMSequenceRecord sequence = dictionary.getSequence(contig);
+            int end = interval.getEnd();
+            if (end == Regions.MAX_QUERY_END && sequence != null && sequence.getSequenceLength() > 0) {
+                end = sequence.getSequenceLength();
+            }
+            if (shardSize <= 0 || end == Regions.MAX_QUERY_END || leftAlign) {
+                shards.add(new Shard(contig, interval.getStart(), end, interval.getMinStart()));
+            } else {
+                for (int start = interval.getStart(); start <= end; start += shardSize) {
+                    shards.add(new Shard(contig, start, (int) Math.min((long) start + shardSize - 1, end),
+                            start == interval.getStart() ? interval.getMinStart() : start));
+                }
             }
         }
+        return shards;
+    }
 
-        IOUtils.closeQuietly(vcfFileReader);
-        vcfWriter.close();
+    /**
+     * Writes one record per alternative allele observed in any of genotypes of
+     * vc
+     *
+     * @return false if vc could not be summarized (reported on stderr)
+     */
+    boolean summarize(VariantContext vc, AlleleCountKernel kernel, Consumer<VariantContext> output) {
+        try {
+            kernel.count(vc);
+            summarize(vc.getContig(), vc.getStart(), vc.getAlleles(), kernel, output);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error for: " + vc);
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    /**
+     * Writes one record per observed alternative allele of a record at
+     * chr:start with alleles, reference first
+     */
+    void summarize(String chr, int start, List<Allele> alleles, AlleleCounts counts,
+            Consumer<VariantContext> output) {
+        int referenceCount = counts.getReferenceCount();
+
+        Allele oryginalReference = alleles.get(0);
+        int allSamplesCount = counts.getAllSamplesCount();
+
+        for (int alleleIndex = 1; alleleIndex < counts.getAllelesCount(); alleleIndex++) {
+            int alleleCount = counts.getAlleleCount(alleleIndex);
+            if (alleleCount == 0) {
+                continue;
+            }
+            Allele allele = alleles.get(alleleIndex);
+
+            VariantContextBuilder vcb = new VariantContextBuilder();
+            vcb.chr(chr);
+            vcb.attributes(new HashMap<String, Object>());
+            vcb.attribute(infoPrefix + REFERENCE_NUMBER_INFO, referenceCount);
+            vcb.attribute(infoPrefix + ALL_ALLELES_COUNT_INFO, referenceCount + alleleCount);
+
+            int samplesContaining = counts.getSamplesContaining(alleleIndex);
+            if (noSamples) {
+                // no samples
+            } else if (samplesBitmap) {
+                vcb.attribute(infoPrefix + SAMPLES_BITMAP_INFO, counts.getSamplesBitmap(alleleIndex).encode());
+                vcb.attribute(infoPrefix + SAMPLES_HOM_BITMAP_INFO,
+                        counts.getSamplesHomBitmap(alleleIndex).encode());
+            } else {
+                vcb.attribute(infoPrefix + SAMPLES_INFO, counts.getSamples(alleleIndex));
+            }
+            vcb.attribute(infoPrefix + SAMPLES_COUNT_INFO, allSamplesCount);
+            vcb.attribute(infoPrefix + SAMPLES_HOM, counts.getSamplesHom(alleleIndex));
+            vcb.attribute(infoPrefix + SAMPLES_HET, counts.getSamplesHet(alleleIndex));
+            vcb.attribute(infoPrefix + SAMPLES_CONTAINING_INFO, samplesContaining);
+            vcb.attribute(infoPrefix + SAMPLES_CONTAINING_FREQUENCY_INFO,
+                    (double) samplesContaining / allSamplesCount);
+
+            vcb.attribute(infoPrefix + ALLELE_FREQUENCY_INFO, (double) alleleCount / (referenceCount + alleleCount));
+
+            int position = start;
+            String refSequence = oryginalReference.getBaseString();
+            String alleleSequence = allele.getBaseString();
+            if (normalize) {
+
+                int prefixOffset = countPrefixOffset(refSequence, alleleSequence);
+                refSequence = refSequence.substring(prefixOffset);
+                alleleSequence = alleleSequence.substring(prefixOffset);
+
+                int suffixOffset = countSuffixOffset(refSequence, alleleSequence);
+                refSequence = refSequence.substring(0, refSequence.length() - suffixOffset);
+                alleleSequence = alleleSequence.substring(0, alleleSequence.length() - suffixOffset);
+
+                position += prefixOffset;
+            }
+
+            vcb.start(position).alleles(refSequence, alleleSequence);
+            vcb.noGenotypes().noID();
+            vcb.computeEndFromAlleles(vcb.getAlleles(), position);
+
+            VariantContext outputVc = vcb.make();
+
+            output.accept(outputVc);
+        }
     }
 
     private int countPrefixOffset(String oryginalReference, String allele) {
@@ -283,4 +615,70 @@ public class BuildFrequencySummary {
             return offset;
         }
     }
+
+    private static class Shard {
+        private final String contig;
+        private final int start;
+        private final int end;
+        /** records starting before belong to the previous shard */
+        private final int minStart;
+
+        public Shard(String contig, int start, int end, int minStart) {
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+            this.minStart = minStart;
+        }
+    }
+
+    /**
+     * Writes records also to the --table
+     */
+    private static class TableWriter implements VariantContextWriter {
+        private final VariantContextWriter writer;
+        private final FrequencyTable.Writer table;
+
+        public TableWriter(VariantContextWriter writer, FrequencyTable.Writer table) {
+            this.writer = writer;
+            this.table = table;
+        }
+
+        @Override
+        public void writeHeader(VCFHeader header) {
+            writer.writeHeader(header);
+        }
+
+        @Override
+        public void setHeader(VCFHeader header) {
+            writer.setHeader(header);
+        }
+
+        @Override
+        public void add(VariantContext vc) {
+            writer.add(vc);
+            try {
+                table.add(vc);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean checkError() {
+            return writer.checkError();
+        }
+
+        @Override
+        public void close() {
+            try {
+                writer.close();
+            } finally {
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
 }
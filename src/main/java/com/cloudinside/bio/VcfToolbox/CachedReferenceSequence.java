@@ -0,0 +1,190 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Bases of an indexed fasta read in fixed windows, the least recently used
+ * windows are dropped. Variants of a sorted file look up the same few windows,
+ * so the fasta is read about once.
+ *
+ * Bases are upper case. Not thread safe, use one instance per thread.
+ *
+ * @author pstawinski
+ *
+ */
+class CachedReferenceSequence implements Closeable {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 16;
+    public static final int DEFAULT_WINDOWS = 16;
+
+    private final ReferenceSequenceFile reference;
+    private final SAMSequenceDictionary dictionary;
+    private final int windowSize;
+    private final Map<WindowKey, byte[]> windows;
+
+    // the last window, looked up without the map
+    private String lastContig;
+    private int lastIndex = -1;
+    private byte[] lastBases;
+
+    private long misses = 0;
+
+    /**
+     * Reference with a .dict, see {@link #open(File)} for a reference with
+     * only the .fai
+     */
+    public CachedReferenceSequence(ReferenceSequenceFile reference, int windowSize, int maxWindows) {
+        this(reference, reference.getSequenceDictionary(), windowSize, maxWindows);
+    }
+
+    /**
+     * @param dictionary
+     *            - contigs and lengths of the reference
+     */
+    public CachedReferenceSequence(ReferenceSequenceFile reference, SAMSequenceDictionary dictionary, int windowSize,
+            int maxWindows) {
+        if (!reference.isIndexed()) {
+            throw new IllegalArgumentException("Reference " + reference + " must be indexed (samtools faidx)");
+        }
+        if (dictionary == null) {
+            throw new IllegalArgumentException("No sequence dictionary of reference " + reference);
+        }
+        this.reference = reference;
+        this.dictionary = dictionary;
+        this.windowSize = windowSize;
+        this.windows = new LinkedHashMap<WindowKey, byte[]>(maxWindows * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<WindowKey, byte[]> eldest) {
+                return size() > maxWindows;
+            }
+        };
+    }
+
+    /**
+     * Opens an indexed fasta, contigs are read from the .dict or, without it,
+     * from the .fai
+     */
+    public static CachedReferenceSequence open(File fasta) {
+        return new CachedReferenceSequence(ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta),
+                SequenceDictionaries.get(fasta), DEFAULT_WINDOW_SIZE, DEFAULT_WINDOWS);
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return length of the contig, -1 if not in the reference
+     */
+    public int getSequenceLength(String contig) {
+        SAMSequenceRecord sequence = dictionary.getSequence(contig);
+        return sequence == null ? -1 : sequence.getSequenceLength();
+    }
+
+    /**
+     * @param position
+     *            - 1-based, within the contig
+     */
+    public byte getBase(String contig, int position) {
+        int index = (position - 1) / windowSize;
+        return window(contig, index)[(position - 1) - index * windowSize];
+    }
+
+    /**
+     * @param start
+     *            - 1-based
+     * @param end
+     *            - inclusive, within the contig
+     */
+    public byte[] getBases(String contig, int start, int end) {
+        byte[] bases = new byte[end - start + 1];
+        int position = start;
+        while (position <= end) {
+            int index = (position - 1) / windowSize;
+            byte[] window = window(contig, index);
+            int offset = (position - 1) - index * windowSize;
+            int length = Math.min(window.length - offset, end - position + 1);
+            System.arraycopy(window, offset, bases, position - start, length);
+            position += length;
+        }
+        return bases;
+    }
+
+    /**
+     * @return number of windows read from the fasta
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    private byte[] window(String contig, int index) {
+        if (index == lastIndex && contig.equals(lastContig)) {
+            return lastBases;
+        }
+        WindowKey key = new WindowKey(contig, index);
+        byte[] bases = windows.get(key);
+        if (bases == null) {
+            int length = getSequenceLength(contig);
+            if (length < 0) {
+                throw new IllegalArgumentException("Contig " + contig + " not found in reference " + reference);
+            }
+            long start = (long) index * windowSize + 1;
+            if (start > length) {
+                throw new IllegalArgumentException(
+                        "Position " + start + " beyond the end of " + contig + " (" + length + ")");
+            }
+            long end = Math.min(start + windowSize - 1, length);
+            bases = reference.getSubsequenceAt(contig, start, end).getBases();
+            StringUtil.toUpperCase(bases);
+            windows.put(key, bases);
+            misses++;
+        }
+        lastContig = contig;
+        lastIndex = index;
+        lastBases = bases;
+        return bases;
+    }
+
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        lastBases = null;
+        reference.close();
+    }
+
+    private static class WindowKey {
+        private final String contig;
+        private final int index;
+
+        public WindowKey(String contig, int index) {
+            this.contig = contig;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof WindowKey)) {
+                return false;
+            }
+            WindowKey o = (WindowKey) obj;
+            return index == o.index && contig.equals(o.contig);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(contig, index);
+        }
+    }
+}
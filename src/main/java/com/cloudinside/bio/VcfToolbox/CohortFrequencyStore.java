@@ -0,0 +1,157 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import com.cloudinside.bio.VcfToolbox.VariantFiles.OutputType;
+
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Incremental version of {@link BuildFrequencySummary}: samples of single or
+ * multisample VCF files are folded in a persistent store
+ * ({@link FrequencyStore}), samples can be removed, and the summary VCF is
+ * exported from the store.
+ *
+ * <pre>
+ * CohortFrequencyStore --store dir add --input batch1.vcf.gz --input batch2.vcf.gz
+ * CohortFrequencyStore --store dir remove --sample S1
+ * CohortFrequencyStore --store dir export --output summary.vcf.gz
+ * CohortFrequencyStore --store dir compact
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+public class CohortFrequencyStore {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(CohortFrequencyStore.class);
+
+    @Parameter(names = "--store", description = "Directory of the store, created by the first add", required = true)
+    private String store;
+
+    @Parameters(commandDescription = "Fold samples of vcf or bcf files into the store, one batch per file")
+    private static class AddCommand {
+        @Parameter(names = "--input", description = "Vcf or bcf input file (can be bgzipped), sorted; can be repeated", required = true)
+        private List<String> inputs;
+    }
+
+    @Parameters(commandDescription = "Remove samples from the store")
+    private static class RemoveCommand {
+        @Parameter(names = "--sample", description = "Name of sample, as in the vcf header; can be repeated", required = true)
+        private List<String> samples;
+    }
+
+    @Parameters(commandDescription = "Write frequency summary of the store, as BuildFrequencySummary")
+    private static class ExportCommand {
+        @Parameter(names = "--output", description = "Vcf output", required = true)
+        private String outputVcfFile;
+        @Parameter(names = "--output-type", description = "v - VCF, z - bgzipped VCF, u - BCF, b - bgzipped BCF (no index); default from --output extension (.bcf is b)", required = false)
+        private String outputType;
+        @Parameter(names = "--compression-threads", description = "Number of threads compressing bgzipped output (VCF or BCF), 1 - compressed by the writing thread", required = false)
+        private int compressionThreads = 1;
+        @Parameter(names = "--prefix", description = "Prefix of info entries", required = false)
+        private String infoPrefix = "ZGM_";
+        @Parameter(names = "--normalize", description = "Normalize alleles, usually not needed", required = false)
+        private boolean normalize = false;
+        @Parameter(names = "--no-samples", description = "Do not write names of samples containing the allele", required = false)
+        private boolean noSamples = false;
+        @Parameter(names = "--samples-bitmap", description = "Write samples containing the allele, and homozygotes, as compressed bitmaps of indexes in the sample table of the output header, instead of names", required = false)
+        private boolean samplesBitmap = false;
+    }
+
+    @Parameters(commandDescription = "Rewrite the store to one segment, without removed samples")
+    private static class CompactCommand {
+    }
+
+    private final AddCommand add = new AddCommand();
+    private final RemoveCommand remove = new RemoveCommand();
+    private final ExportCommand export = new ExportCommand();
+    private final CompactCommand compact = new CompactCommand();
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
+        // to have Double formatted correctly
+        Locale.setDefault(Locale.ENGLISH);
+
+        CohortFrequencyStore app = new CohortFrequencyStore();
+        JCommander jc = JCommander.newBuilder().addObject(app).addCommand("add", app.add)
+                .addCommand("remove", app.remove).addCommand("export", app.export)
+                .addCommand("compact", app.compact).build();
+        try {
+            jc.parse(args);
+            if (jc.getParsedCommand() == null) {
+                throw new ParameterException("Command required, one of " + jc.getCommands().keySet());
+            }
+        } catch (ParameterException e) {
+            jc.usage();
+            throw e;
+        }
+        app.go(jc.getParsedCommand());
+    }
+
+    private void go(String command) throws IOException {
+        File directory = new File(store);
+        FrequencyStore frequencyStore = FrequencyStore.open(directory, command.equals("add"));
+        switch (command) {
+        case "add":
+            for (String input : add.inputs) {
+                log.info("Adding " + input);
+                frequencyStore.add(new File(input));
+            }
+            break;
+        case "remove":
+            frequencyStore.remove(remove.samples);
+            break;
+        case "export":
+            export(frequencyStore);
+            break;
+        case "compact":
+            frequencyStore.compact();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void export(FrequencyStore frequencyStore) throws IOException {
+        BuildFrequencySummary summary = new BuildFrequencySummary(export.infoPrefix, export.normalize,
+                export.noSamples, export.samplesBitmap);
+
+        File outputFile = new File(export.outputVcfFile);
+        OutputType type = OutputType.of(outputFile, export.outputType);
+        VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type,
+                EnumSet.of(Options.INDEX_ON_THE_FLY), frequencyStore.getSequenceDictionary(),
+                export.compressionThreads);
+
+        VCFHeader vcfHeader = summary.createOutputHeader(frequencyStore.getSampleNames());
+        if (type.isBcf()) {
+            VariantFiles.addContigLines(vcfHeader, frequencyStore.getSequenceDictionary());
+        }
+        vcfWriter.writeHeader(vcfHeader);
+        try {
+            frequencyStore.export(summary, vcfWriter::add);
+        } finally {
+            vcfWriter.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * External merge sort of variants by {@link VariantSortKey}, the order of
+ * {@link VariantContextComparatorAltAware}.
+ *
+ * Records of the input are encoded with {@link VariantRecordCodec} and kept in
+ * memory up to the memory budget; then sorted and spilled as a run to a
+ * temporary file, each record with its key. The iterator merges the runs; when
+ * the input fits in the budget nothing is spilled. Equal records keep the
+ * order of the input. At most {@link #MAX_FAN_IN} runs are merged at once;
+ * runs are first merged in passes to longer runs until at most maxOpenRuns are
+ * left open for the iterator, so sorters of many inputs share the limit.
+ *
+ * Temporary files are deleted on {@link #close()}.
+ *
+ * @author pstawinski
+ *
+ */
+class ExternalVariantSorter implements CloseableIterator<VariantContext> {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ExternalVariantSorter.class);
+
+    /** estimated size of a buffered record besides its bytes */
+    private static final int RECORD_OVERHEAD = 96;
+
+    /** runs merged at once */
+    static final int MAX_FAN_IN = 64;
+
+    private static final Comparator<Encoded> ORDER = Comparator.comparing((Encoded e) -> e.key)
+            .thenComparingLong(e -> e.sequence);
+    private static final Comparator<Run> RUN_ORDER = (a, b) -> ORDER.compare(a.head, b.head);
+
+    private final VariantRecordCodec codec;
+    private final Function<VariantContext, VariantSortKey> keyFunction;
+    private final File tmpDir;
+
+    private final List<Encoded> buffer = new ArrayList<>();
+    private final List<File> runFiles = new ArrayList<>();
+
+    private Iterator<Encoded> memoryIterator;
+    private final PriorityQueue<Run> runs = new PriorityQueue<>(RUN_ORDER);
+    private final List<Run> openRuns = new ArrayList<>();
+
+    /**
+     * Encoded record
+     */
+    private static class Encoded {
+        private final VariantSortKey key;
+        private final long sequence;
+        private final byte[] data;
+
+        public Encoded(VariantSortKey key, long sequence, byte[] data) {
+            this.key = key;
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the whole input, spilling runs to tmpDir when memoryBudget bytes are
+     * exceeded; the input is closed
+     */
+    public ExternalVariantSorter(CloseableIterator<VariantContext> input, VariantRecordCodec codec,
+            Function<VariantContext, VariantSortKey> keyFunction, long memoryBudget, File tmpDir) throws IOException {
+        this(input, codec, keyFunction, memoryBudget, tmpDir, MAX_FAN_IN);
+    }
+
+    /**
+     * @param maxOpenRuns
+     *            - runs kept open for the iterator, 1 to {@link #MAX_FAN_IN};
+     *            more runs are merged first
+     */
+    public ExternalVariantSorter(CloseableIterator<VariantContext> input, VariantRecordCodec codec,
+            Function<VariantContext, VariantSortKey> keyFunction, long memoryBudget, File tmpDir, int maxOpenRuns)
+            throws IOException {
+        if (maxOpenRuns < 1 || maxOpenRuns > MAX_FAN_IN) {
+            input.close();
+            throw new IllegalArgumentException("Open runs " + maxOpenRuns + " not in 1.." + MAX_FAN_IN);
+        }
+        this.codec = codec;
+        this.keyFunction = keyFunction;
+        this.tmpDir = tmpDir;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            long buffered = 0;
+            long sequence = 0;
+            while (input.hasNext()) {
+                VariantContext vc = input.next();
+                bytes.reset();
+                codec.encode(vc, out);
+                out.flush();
+                Encoded encoded = new Encoded(keyFunction.apply(vc), sequence++, bytes.toByteArray());
+                buffer.add(encoded);
+                // the key repeats the alleles, at most the size of the record
+                buffered += 2 * encoded.data.length + RECORD_OVERHEAD;
+                if (buffered > memoryBudget) {
+                    spill();
+                    buffered = 0;
+                }
+            }
+            buffer.sort(ORDER);
+            if (runFiles.isEmpty()) {
+                memoryIterator = buffer.iterator();
+            } else {
+                // every run is read from disk, the buffer memory is freed
+                if (!buffer.isEmpty()) {
+                    spill();
+                }
+                int spilled = runFiles.size();
+                while (runFiles.size() > maxOpenRuns) {
+                    // the last pass merges just enough runs to leave maxOpenRuns
+                    int fanIn = Math.min(MAX_FAN_IN, runFiles.size() - maxOpenRuns + 1);
+                    merge(new ArrayList<>(runFiles.subList(0, fanIn)));
+                }
+                if (spilled > maxOpenRuns) {
+                    log.info("Merged " + spilled + " runs to " + runFiles.size());
+                }
+                for (File file : runFiles) {
+                    Run run = new Run(file);
+                    openRuns.add(run);
+                    if (run.advance()) {
+                        runs.add(run);
+                    }
+                }
+            }
+            log.info("Sorted " + sequence + " records, " + runFiles.size() + " runs to merge");
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            input.close();
+        }
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(ORDER);
+        File file = File.createTempFile("variant-sort-run.", ".bin", tmpDir);
+        runFiles.add(file);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (Encoded encoded : buffer) {
+                write(encoded, out);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Merges the files to a run at the end of the runs, the files are deleted
+     */
+    private void merge(List<File> files) throws IOException {
+        File file = File.createTempFile("variant-sort-run.", ".bin", tmpDir);
+        runFiles.add(file);
+        List<Run> group = new ArrayList<>();
+        PriorityQueue<Run> queue = new PriorityQueue<>(RUN_ORDER);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (File runFile : files) {
+                Run run = new Run(runFile);
+                group.add(run);
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                write(run.head, out);
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            for (Run run : group) {
+                run.in.close();
+            }
+        }
+        for (File runFile : files) {
+            runFiles.remove(runFile);
+            Files.deleteIfExists(runFile.toPath());
+        }
+    }
+
+    private static void write(Encoded encoded, DataOutputStream out) throws IOException {
+        out.writeLong(encoded.sequence);
+        encoded.key.write(out);
+        out.writeInt(encoded.data.length);
+        out.write(encoded.data);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return memoryIterator != null ? memoryIterator.hasNext() : !runs.isEmpty();
+    }
+
+    @Override
+    public VariantContext next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            if (memoryIterator != null) {
+                return decode(memoryIterator.next().data);
+            }
+            Run run = runs.poll();
+            VariantContext vc = decode(run.head.data);
+            if (run.advance()) {
+                runs.add(run);
+            }
+            return vc;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private VariantContext decode(byte[] data) throws IOException {
+        return codec.decode(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    @Override
+    public void close() {
+        memoryIterator = null;
+        buffer.clear();
+        runs.clear();
+        for (Run run : openRuns) {
+            try {
+                run.in.close();
+            } catch (IOException e) {
+                log.warn("Cannot close run " + run.file, e);
+            }
+        }
+        openRuns.clear();
+        for (File file : runFiles) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete run " + file, e);
+            }
+        }
+        runFiles.clear();
+    }
+
+    /**
+     * Spilled run with its head record, not decoded
+     */
+    private static class Run {
+        private final File file;
+        private final DataInputStream in;
+        private Encoded head;
+
+        public Run(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        /**
+         * @return false at the end of the run
+         */
+        public boolean advance() throws IOException {
+            long sequence;
+            try {
+                sequence = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            VariantSortKey key = VariantSortKey.read(in);
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            head = new Encoded(key, sequence, data);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,1208 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCompoundHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+
+/**
+ * Record filter of {@link RemoveLowCoverageRows}: an expression over INFO and
+ * FORMAT fields, e.g. "min(DP) >= 10 && GQ > 20" or
+ * "fraction(DP >= MIN_DP) >= 0.8 && QUAL > 30".
+ *
+ * Syntax is that of JEXL: numbers, + - * /, comparisons, && || ! (or and, or,
+ * not) and parentheses. Names are QUAL, INFO.NAME (a Flag is 1 or 0),
+ * FORMAT.NAME or just NAME for values of each sample, and names of the sample
+ * thresholds file, values of each sample too. NAME[i] is the i-th value
+ * (0-based) of a vector, NAME the first one. Functions of per sample values,
+ * giving one value for the record, are min, max, sum and mean of numbers,
+ * count, fraction, any and all of conditions. A per sample condition outside
+ * of functions is true if it is true for any sample, so "DP >= 10" is the rule
+ * of --min-dp 10.
+ *
+ * Missing values ('.', absent fields, values past the end of a vector) are
+ * skipped by min, max, sum and mean, give missing in arithmetic and false in
+ * comparisons, also with !=.
+ *
+ * The expression is parsed once. {@link #newEvaluator(VCFHeader)} compiles it
+ * for a file into evaluators of whole columns: values of a FORMAT field of all
+ * samples are a double array and every operator is a loop over arrays, not a
+ * JEXL context per genotype. The raw filters ({@link RawVcfDpFilter},
+ * {@link RawBcfDpFilter}) fill columns straight from VCF text or BCF bytes.
+ *
+ * Sample thresholds file: tab separated, the first line is SAMPLE and names of
+ * thresholds, then a line per sample with values. Sample * gives values of
+ * samples not listed, '.' is missing.
+ *
+ * @author pstawinski
+ *
+ */
+class FilterExpression {
+    private static final String ANY_SAMPLE = "*";
+
+    private final String text;
+    private final Expr root;
+
+    /** names of thresholds and their values by sample */
+    private final List<String> thresholdNames = new ArrayList<>();
+    private final Map<String, double[]> thresholds = new HashMap<>();
+
+    /** referenced vector indexes by field */
+    private final Map<String, TreeSet<Integer>> formatFields = new LinkedHashMap<>();
+    private final Map<String, TreeSet<Integer>> infoFields = new LinkedHashMap<>();
+    private boolean qual = false;
+
+    private FilterExpression(String text, File thresholdsFile) throws IOException {
+        this.text = text;
+        if (thresholdsFile != null) {
+            readThresholds(thresholdsFile);
+        }
+        Parser parser = new Parser();
+        this.root = parser.parse();
+        if (!root.condition) {
+            throw new IllegalArgumentException("Expression is not a condition: " + text);
+        }
+    }
+
+    /**
+     * @param thresholdsFile
+     *            - per sample values, may be null
+     */
+    public static FilterExpression compile(String expression, File thresholdsFile) throws IOException {
+        return new FilterExpression(expression, thresholdsFile);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * @return evaluator for records of files with the header, not thread safe
+     */
+    public Evaluator newEvaluator(VCFHeader header) {
+        return new Evaluator(header);
+    }
+
+    private void readThresholds(File file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith("SAMPLE\t")) {
+                throw new IOException("Sample thresholds file " + file + " must start with a line of SAMPLE and names");
+            }
+            String[] names = line.split("\t");
+            for (int i = 1; i < names.length; i++) {
+                if (!names[i].matches("[A-Za-z_][A-Za-z0-9_]*") || thresholdNames.contains(names[i])) {
+                    throw new IOException("Invalid threshold name " + names[i] + " in " + file);
+                }
+                thresholdNames.add(names[i]);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length != names.length) {
+                    throw new IOException("Invalid line of sample thresholds " + file + ": " + line);
+                }
+                double[] values = new double[fields.length - 1];
+                for (int i = 1; i < fields.length; i++) {
+                    values[i - 1] = fields[i].equals(".") ? Double.NaN : Double.parseDouble(fields[i]);
+                }
+                if (thresholds.put(fields[0], values) != null) {
+                    throw new IOException("Sample " + fields[0] + " repeated in " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of a raw VCF value, '.' and empty are missing
+     */
+    static double parseNumber(byte[] bytes, int from, int to) {
+        if (to == from || (to - from == 1 && bytes[from] == '.')) {
+            return Double.NaN;
+        }
+        int pos = from;
+        boolean negative = bytes[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        if (to - pos > 0 && to - pos <= 18) {
+            long value = 0;
+            for (; pos < to; pos++) {
+                int digit = bytes[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+            }
+            if (pos == to) {
+                return negative ? -value : value;
+            }
+        }
+        String number = new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + number);
+        }
+    }
+
+    /**
+     * Value of a decoded INFO or FORMAT attribute: a number, a string of comma
+     * separated values, a list or a flag
+     */
+    private static double valueAt(Object value, int index) {
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            return index < list.size() ? valueAt(list.get(index), 0) : Double.NaN;
+        }
+        if (value instanceof String && ((String) value).indexOf(',') >= 0) {
+            String[] values = ((String) value).split(",");
+            return index < values.length ? valueAt(values[index], 0) : Double.NaN;
+        }
+        if (index > 0 || value == null) {
+            return Double.NaN;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        String string = value.toString();
+        if (string.equals(".") || string.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(string);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + string);
+        }
+    }
+
+    private enum Op {
+        ADD("+"), SUBTRACT("-"), MULTIPLY("*"), DIVIDE("/"), EQ("=="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">="),
+        AND("&&"), OR("||");
+
+        private final String symbol;
+
+        Op(String symbol) {
+            this.symbol = symbol;
+        }
+
+        @Override
+        public String toString() {
+            return symbol;
+        }
+
+        boolean isComparison() {
+            return compareTo(EQ) >= 0 && compareTo(GE) <= 0;
+        }
+
+        /** the same comparison with arguments swapped */
+        Op swapped() {
+            switch (this) {
+            case LT:
+                return GT;
+            case LE:
+                return GE;
+            case GT:
+                return LT;
+            case GE:
+                return LE;
+            default:
+                return this;
+            }
+        }
+    }
+
+    private enum Source {
+        QUAL, INFO, FORMAT, THRESHOLD
+    }
+
+    private abstract static class Expr {
+        /** values for each sample, not one for the record */
+        final boolean perSample;
+        final boolean condition;
+
+        Expr(boolean perSample, boolean condition) {
+            this.perSample = perSample;
+            this.condition = condition;
+        }
+    }
+
+    private static class Constant extends Expr {
+        final double value;
+
+        Constant(double value) {
+            super(false, false);
+            this.value = value;
+        }
+    }
+
+    private static class Field extends Expr {
+        final Source source;
+        final String name;
+        final int index;
+
+        Field(Source source, String name, int index) {
+            super(source == Source.FORMAT || source == Source.THRESHOLD, false);
+            this.source = source;
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /** - or ! */
+    private static class Unary extends Expr {
+        final Expr arg;
+
+        Unary(Expr arg) {
+            super(arg.perSample, arg.condition);
+            this.arg = arg;
+        }
+    }
+
+    private static class Binary extends Expr {
+        final Op op;
+        final Expr left;
+        final Expr right;
+
+        Binary(Op op, Expr left, Expr right) {
+            super(left.perSample || right.perSample, op.isComparison() || op == Op.AND || op == Op.OR);
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /** function of per sample values */
+    private static class Aggregate extends Expr {
+        final String function;
+        final Expr arg;
+
+        Aggregate(String function, Expr arg) {
+            super(false, function.equals("any") || function.equals("all"));
+            this.function = function;
+            this.arg = arg;
+        }
+    }
+
+    /**
+     * Recursive descent parser of the expression, checks types and collects
+     * referenced fields
+     */
+    private class Parser {
+        private int pos = 0;
+
+        Expr parse() {
+            Expr expr = or();
+            skipSpaces();
+            if (pos < text.length()) {
+                throw error("unexpected " + text.charAt(pos));
+            }
+            return expr;
+        }
+
+        private Expr or() {
+            Expr left = and();
+            while (accept("||") || acceptWord("or")) {
+                left = logical(Op.OR, left, and());
+            }
+            return left;
+        }
+
+        private Expr and() {
+            Expr left = not();
+            while (accept("&&") || acceptWord("and")) {
+                left = logical(Op.AND, left, not());
+            }
+            return left;
+        }
+
+        private Expr logical(Op op, Expr left, Expr right) {
+            if (!left.condition || !right.condition) {
+                throw error("arguments of " + op + " must be conditions");
+            }
+            return new Binary(op, left, right);
+        }
+
+        private Expr not() {
+            if (accept("!") || acceptWord("not")) {
+                Expr arg = not();
+                if (!arg.condition) {
+                    throw error("argument of ! must be a condition");
+                }
+                return new Unary(arg);
+            }
+            return comparison();
+        }
+
+        private Expr comparison() {
+            Expr left = additive();
+            Op op = accept("==") ? Op.EQ
+                    : accept("!=") ? Op.NE
+                            : accept("<=") ? Op.LE
+                                    : accept(">=") ? Op.GE : accept("<") ? Op.LT : accept(">") ? Op.GT : null;
+            if (op == null) {
+                return left;
+            }
+            return arithmetic(op, left, additive());
+        }
+
+        private Expr additive() {
+            Expr left = multiplicative();
+            while (true) {
+                if (accept("+")) {
+                    left = arithmetic(Op.ADD, left, multiplicative());
+                } else if (accept("-")) {
+                    left = arithmetic(Op.SUBTRACT, left, multiplicative());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expr multiplicative() {
+            Expr left = unary();
+            while (true) {
+                if (accept("*")) {
+                    left = arithmetic(Op.MULTIPLY, left, unary());
+                } else if (accept("/")) {
+                    left = arithmetic(Op.DIVIDE, left, unary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expr arithmetic(Op op, Expr left, Expr right) {
+            if (left.condition || right.condition) {
+                throw error("arguments of " + op + " must be numbers");
+            }
+            return new Binary(op, left, right);
+        }
+
+        private Expr unary() {
+            if (accept("-")) {
+                Expr arg = unary();
+                if (arg.condition) {
+                    throw error("argument of - must be a number");
+                }
+                return arg instanceof Constant ? new Constant(-((Constant) arg).value) : new Unary(arg);
+            }
+            return primary();
+        }
+
+        private Expr primary() {
+            skipSpaces();
+            if (accept("(")) {
+                Expr expr = or();
+                expect(")");
+                return expr;
+            }
+            if (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                return number();
+            }
+            String name = word();
+            if (name.isEmpty()) {
+                throw error(pos < text.length() ? "unexpected " + text.charAt(pos) : "unexpected end");
+            }
+            if (accept("(")) {
+                Expr arg = or();
+                expect(")");
+                return aggregate(name, arg);
+            }
+            if (name.equals("QUAL")) {
+                qual = true;
+                return new Field(Source.QUAL, name, 0);
+            }
+            if ((name.equals("INFO") || name.equals("FORMAT")) && accept(".")) {
+                String field = word();
+                if (field.isEmpty()) {
+                    throw error("field name expected");
+                }
+                return field(name.equals("INFO") ? Source.INFO : Source.FORMAT, field);
+            }
+            if (thresholdNames.contains(name)) {
+                return new Field(Source.THRESHOLD, name, 0);
+            }
+            return field(Source.FORMAT, name);
+        }
+
+        private Expr field(Source source, String name) {
+            int index = 0;
+            if (accept("[")) {
+                skipSpaces();
+                int start = pos;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                if (start == pos) {
+                    throw error("index expected");
+                }
+                index = Integer.parseInt(text.substring(start, pos));
+                expect("]");
+            }
+            (source == Source.INFO ? infoFields : formatFields).computeIfAbsent(name, k -> new TreeSet<>())
+                    .add(index);
+            return new Field(source, name, index);
+        }
+
+        private Expr aggregate(String function, Expr arg) {
+            switch (function) {
+            case "min":
+            case "max":
+            case "sum":
+            case "mean":
+                if (arg.condition || !arg.perSample) {
+                    throw error(function + " needs a number of each sample, e.g. of a FORMAT field");
+                }
+                break;
+            case "count":
+            case "fraction":
+            case "any":
+            case "all":
+                if (!arg.condition || !arg.perSample) {
+                    throw error(function + " needs a condition of each sample, e.g. of a FORMAT field");
+                }
+                break;
+            default:
+                throw error("unknown function " + function);
+            }
+            return new Aggregate(function, arg);
+        }
+
+        private Expr number() {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("invalid number");
+            }
+        }
+
+        private String word() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean accept(String token) {
+            skipSpaces();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptWord(String word) {
+            skipSpaces();
+            int end = pos + word.length();
+            if (text.startsWith(word, pos)
+                    && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)) && text.charAt(end) != '_')) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error(token + " expected");
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid expression at position " + pos + ", " + message + ": " + text);
+        }
+    }
+
+    private static boolean hasAggregate(Expr expr) {
+        if (expr instanceof Aggregate) {
+            return true;
+        }
+        if (expr instanceof Unary) {
+            return hasAggregate(((Unary) expr).arg);
+        }
+        if (expr instanceof Binary) {
+            return hasAggregate(((Binary) expr).left) || hasAggregate(((Binary) expr).right);
+        }
+        return false;
+    }
+
+    private interface SiteNumber {
+        double get();
+    }
+
+    private interface SiteCondition {
+        boolean test();
+    }
+
+    /** values of samples, valid from (inclusive) to (exclusive) */
+    private interface SampleNumber {
+        double[] get(int from, int to);
+    }
+
+    private interface SampleCondition {
+        boolean[] test(int from, int to);
+    }
+
+    /**
+     * The expression compiled for a file: columns of referenced values, filled
+     * by {@link #test(VariantContext)} or by a raw filter between
+     * {@link #clear()} and {@link #test()}
+     */
+    class Evaluator implements Predicate<VariantContext> {
+        private static final int OTHER = 0;
+        private static final int DP = 1;
+        private static final int GQ = 2;
+        private static final int AD = 3;
+        private static final int PL = 4;
+
+        private final int samples;
+
+        private final String[] formatKeys;
+        private final int[] formatKinds;
+        /** slots of columns by vector index, -1 - not referenced */
+        private final int[][] formatSlots;
+        private final double[][] columns;
+
+        private final String[] infoKeys;
+        private final boolean[] infoFlags;
+        private final int[][] infoSlots;
+        private final int qualSlot;
+        private final double[] site;
+
+        private final double[][] thresholdColumns;
+
+        private final SiteCondition condition;
+        /**
+         * the expression when true for any sample and independent of other
+         * samples (no functions), null otherwise
+         */
+        private final SampleCondition sampleCondition;
+
+        Evaluator(VCFHeader header) {
+            List<String> sampleNames = header.getGenotypeSamples();
+            this.samples = sampleNames.size();
+
+            int slot = 0;
+            formatKeys = formatFields.keySet().toArray(new String[0]);
+            formatKinds = new int[formatKeys.length];
+            formatSlots = new int[formatKeys.length][];
+            for (int k = 0; k < formatKeys.length; k++) {
+                checkNumeric(header.getFormatHeaderLine(formatKeys[k]), "FORMAT", formatKeys[k]);
+                formatKinds[k] = formatKind(formatKeys[k]);
+                formatSlots[k] = slots(formatFields.get(formatKeys[k]), slot);
+                slot += formatFields.get(formatKeys[k]).size();
+            }
+            columns = new double[slot][samples];
+
+            slot = 0;
+            infoKeys = infoFields.keySet().toArray(new String[0]);
+            infoFlags = new boolean[infoKeys.length];
+            infoSlots = new int[infoKeys.length][];
+            for (int k = 0; k < infoKeys.length; k++) {
+                checkNumeric(header.getInfoHeaderLine(infoKeys[k]), "INFO", infoKeys[k]);
+                infoFlags[k] = header.getInfoHeaderLine(infoKeys[k]).getType() == VCFHeaderLineType.Flag;
+                infoSlots[k] = slots(infoFields.get(infoKeys[k]), slot);
+                slot += infoFields.get(infoKeys[k]).size();
+            }
+            qualSlot = qual ? slot++ : -1;
+            site = new double[slot];
+
+            thresholdColumns = new double[thresholdNames.size()][samples];
+            for (int s = 0; s < samples; s++) {
+                double[] values = thresholds.getOrDefault(sampleNames.get(s), thresholds.get(ANY_SAMPLE));
+                if (values == null && !thresholdNames.isEmpty()) {
+                    throw new IllegalArgumentException("No thresholds of sample " + sampleNames.get(s));
+                }
+                for (int t = 0; t < thresholdNames.size(); t++) {
+                    thresholdColumns[t][s] = values[t];
+                }
+            }
+
+            this.condition = siteCondition(root);
+            this.sampleCondition = root.perSample && !hasAggregate(root) ? sampleCondition(root) : null;
+        }
+
+        /**
+         * @return DP, GQ, AD and PL, read without map lookups
+         */
+        private int formatKind(String key) {
+            switch (key) {
+            case "DP":
+                return DP;
+            case "GQ":
+                return GQ;
+            case "AD":
+                return AD;
+            case "PL":
+                return PL;
+            default:
+                return OTHER;
+            }
+        }
+
+        private void checkNumeric(VCFCompoundHeaderLine line, String kind, String key) {
+            if (line == null) {
+                throw new IllegalArgumentException(kind + " field " + key + " of expression not in the header");
+            }
+            if (line.getType() == VCFHeaderLineType.String || line.getType() == VCFHeaderLineType.Character) {
+                throw new IllegalArgumentException(kind + " field " + key + " of expression is not a number");
+            }
+        }
+
+        private int[] slots(TreeSet<Integer> indexes, int first) {
+            int[] slots = new int[indexes.last() + 1];
+            Arrays.fill(slots, -1);
+            int slot = first;
+            for (int index : indexes) {
+                slots[index] = slot++;
+            }
+            return slots;
+        }
+
+        public int getSampleCount() {
+            return samples;
+        }
+
+        public String[] getFormatKeys() {
+            return formatKeys;
+        }
+
+        /**
+         * @return slots of values of the key by vector index, -1 - not
+         *         referenced
+         */
+        public int[] getFormatSlots(int key) {
+            return formatSlots[key];
+        }
+
+        public double[] getColumn(int slot) {
+            return columns[slot];
+        }
+
+        public String[] getInfoKeys() {
+            return infoKeys;
+        }
+
+        public boolean isFlag(int key) {
+            return infoFlags[key];
+        }
+
+        public int[] getInfoSlots(int key) {
+            return infoSlots[key];
+        }
+
+        /**
+         * @return slot of QUAL, -1 - not referenced
+         */
+        public int getQualSlot() {
+            return qualSlot;
+        }
+
+        public void setSite(int slot, double value) {
+            site[slot] = value;
+        }
+
+        /**
+         * Sets all values missing, absent flags are 0
+         */
+        public void clear() {
+            for (double[] column : columns) {
+                Arrays.fill(column, Double.NaN);
+            }
+            Arrays.fill(site, Double.NaN);
+            for (int k = 0; k < infoKeys.length; k++) {
+                if (infoFlags[k]) {
+                    site[infoSlots[k][0]] = 0;
+                }
+            }
+        }
+
+        /**
+         * @return value of the expression for values set since
+         *         {@link #clear()}
+         */
+        public boolean test() {
+            return condition.test();
+        }
+
+        /**
+         * @return true if the expression is true when true for any sample and
+         *         has no functions of all samples, so can be decided by
+         *         {@link #testSamples(int, int)} before all samples are read
+         */
+        public boolean isPerSample() {
+            return sampleCondition != null;
+        }
+
+        /**
+         * @return true if the per sample expression is true for any of the
+         *         samples from (inclusive) to (exclusive)
+         */
+        public boolean testSamples(int from, int to) {
+            boolean[] values = sampleCondition.test(from, to);
+            for (int s = from; s < to; s++) {
+                if (values[s]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Genotypes are taken in order of samples of the header
+         */
+        @Override
+        public boolean test(VariantContext vc) {
+            clear();
+            if (qualSlot >= 0 && vc.hasLog10PError()) {
+                site[qualSlot] = vc.getPhredScaledQual();
+            }
+            for (int k = 0; k < infoKeys.length; k++) {
+                Object value = vc.getAttribute(infoKeys[k]);
+                if (value != null) {
+                    int[] slots = infoSlots[k];
+                    for (int i = 0; i < slots.length; i++) {
+                        if (slots[i] >= 0) {
+                            site[slots[i]] = infoFlags[k] ? 1 : valueAt(value, i);
+                        }
+                    }
+                }
+            }
+            if (formatKeys.length > 0) {
+                GenotypesContext genotypes = vc.getGenotypes();
+                int n = Math.min(genotypes.size(), samples);
+                for (int s = 0; s < n; s++) {
+                    setFormat(s, genotypes.get(s));
+                }
+            }
+            return condition.test();
+        }
+
+        private void setFormat(int sample, Genotype g) {
+            for (int k = 0; k < formatKeys.length; k++) {
+                int[] slots = formatSlots[k];
+                switch (formatKinds[k]) {
+                case DP:
+                    if (g.hasDP()) {
+                        columns[slots[0]][sample] = g.getDP();
+                    }
+                    break;
+                case GQ:
+                    if (g.hasGQ()) {
+                        columns[slots[0]][sample] = g.getGQ();
+                    }
+                    break;
+                case AD:
+                case PL:
+                    int[] values = formatKinds[k] == AD ? g.getAD() : g.getPL();
+                    for (int i = 0; values != null && i < slots.length && i < values.length; i++) {
+                        if (slots[i] >= 0) {
+                            columns[slots[i]][sample] = values[i];
+                        }
+                    }
+                    break;
+                default:
+                    Object value = g.getExtendedAttribute(formatKeys[k]);
+                    for (int i = 0; value != null && i < slots.length; i++) {
+                        if (slots[i] >= 0) {
+                            columns[slots[i]][sample] = valueAt(value, i);
+                        }
+                    }
+                }
+            }
+        }
+
+        private int slot(Field field) {
+            if (field.source == Source.QUAL) {
+                return qualSlot;
+            }
+            String[] keys = field.source == Source.INFO ? infoKeys : formatKeys;
+            int[][] slots = field.source == Source.INFO ? infoSlots : formatSlots;
+            return slots[Arrays.asList(keys).indexOf(field.name)][field.index];
+        }
+
+        private SiteNumber siteNumber(Expr expr) {
+            if (expr instanceof Constant) {
+                double value = ((Constant) expr).value;
+                return () -> value;
+            }
+            if (expr instanceof Field) {
+                int slot = slot((Field) expr);
+                return () -> site[slot];
+            }
+            if (expr instanceof Unary) {
+                SiteNumber arg = siteNumber(((Unary) expr).arg);
+                return () -> -arg.get();
+            }
+            if (expr instanceof Binary) {
+                Binary binary = (Binary) expr;
+                SiteNumber left = siteNumber(binary.left);
+                SiteNumber right = siteNumber(binary.right);
+                switch (binary.op) {
+                case ADD:
+                    return () -> left.get() + right.get();
+                case SUBTRACT:
+                    return () -> left.get() - right.get();
+                case MULTIPLY:
+                    return () -> left.get() * right.get();
+                default:
+                    return () -> left.get() / right.get();
+                }
+            }
+            Aggregate aggregate = (Aggregate) expr;
+            switch (aggregate.function) {
+            case "count":
+            case "fraction": {
+                SampleCondition arg = sampleCondition(aggregate.arg);
+                boolean fraction = aggregate.function.equals("fraction");
+                return () -> {
+                    boolean[] values = arg.test(0, samples);
+                    int count = 0;
+                    for (int s = 0; s < samples; s++) {
+                        if (values[s]) {
+                            count++;
+                        }
+                    }
+                    return fraction ? (double) count / samples : count;
+                };
+            }
+            case "sum": {
+                SampleNumber arg = sampleNumber(aggregate.arg);
+                return () -> {
+                    double[] values = arg.get(0, samples);
+                    double sum = 0;
+                    for (int s = 0; s < samples; s++) {
+                        if (values[s] == values[s]) {
+                            sum += values[s];
+                        }
+                    }
+                    return sum;
+                };
+            }
+            case "mean": {
+                SampleNumber arg = sampleNumber(aggregate.arg);
+                return () -> {
+                    double[] values = arg.get(0, samples);
+                    double sum = 0;
+                    int count = 0;
+                    for (int s = 0; s < samples; s++) {
+                        if (values[s] == values[s]) {
+                            sum += values[s];
+                            count++;
+                        }
+                    }
+                    return count == 0 ? Double.NaN : sum / count;
+                };
+            }
+            default: {
+                SampleNumber arg = sampleNumber(aggregate.arg);
+                boolean min = aggregate.function.equals("min");
+                return () -> {
+                    double[] values = arg.get(0, samples);
+                    double result = Double.NaN;
+                    for (int s = 0; s < samples; s++) {
+                        double value = values[s];
+                        if (value == value && (result != result || (min ? value < result : value > result))) {
+                            result = value;
+                        }
+                    }
+                    return result;
+                };
+            }
+            }
+        }
+
+        private SiteCondition siteCondition(Expr expr) {
+            if (expr.perSample) {
+                return any(sampleCondition(expr));
+            }
+            if (expr instanceof Unary) {
+                SiteCondition arg = siteCondition(((Unary) expr).arg);
+                return () -> !arg.test();
+            }
+            if (expr instanceof Aggregate) {
+                SampleCondition arg = sampleCondition(((Aggregate) expr).arg);
+                return ((Aggregate) expr).function.equals("any") ? any(arg) : () -> {
+                    boolean[] values = arg.test(0, samples);
+                    for (int s = 0; s < samples; s++) {
+                        if (!values[s]) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            }
+            Binary binary = (Binary) expr;
+            if (binary.op == Op.AND || binary.op == Op.OR) {
+                SiteCondition left = siteCondition(binary.left);
+                SiteCondition right = siteCondition(binary.right);
+                return binary.op == Op.AND ? () -> left.test() && right.test() : () -> left.test() || right.test();
+            }
+            SiteNumber left = siteNumber(binary.left);
+            SiteNumber right = siteNumber(binary.right);
+            Op op = binary.op;
+            return () -> compare(op, left.get(), right.get());
+        }
+
+        private SiteCondition any(SampleCondition arg) {
+            return () -> {
+                boolean[] values = arg.test(0, samples);
+                for (int s = 0; s < samples; s++) {
+                    if (values[s]) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+
+        private SampleNumber sampleNumber(Expr expr) {
+            double[] out = new double[samples];
+            if (!expr.perSample) {
+                SiteNumber value = siteNumber(expr);
+                return (from, to) -> {
+                    Arrays.fill(out, from, to, value.get());
+                    return out;
+                };
+            }
+            if (expr instanceof Field) {
+                Field field = (Field) expr;
+                double[] column = field.source == Source.THRESHOLD
+                        ? thresholdColumns[thresholdNames.indexOf(field.name)]
+                        : columns[slot(field)];
+                return (from, to) -> column;
+            }
+            if (expr instanceof Unary) {
+                SampleNumber arg = sampleNumber(((Unary) expr).arg);
+                return (from, to) -> {
+                    double[] values = arg.get(from, to);
+                    for (int s = from; s < to; s++) {
+                        out[s] = -values[s];
+                    }
+                    return out;
+                };
+            }
+            Binary binary = (Binary) expr;
+            Op op = binary.op;
+            if (!binary.right.perSample) {
+                SampleNumber left = sampleNumber(binary.left);
+                SiteNumber right = siteNumber(binary.right);
+                return (from, to) -> {
+                    arithmetic(op, left.get(from, to), right.get(), out, from, to);
+                    return out;
+                };
+            }
+            SampleNumber left = sampleNumber(binary.left);
+            SampleNumber right = sampleNumber(binary.right);
+            return (from, to) -> {
+                arithmetic(op, left.get(from, to), right.get(from, to), out, from, to);
+                return out;
+            };
+        }
+
+        private SampleCondition sampleCondition(Expr expr) {
+            boolean[] out = new boolean[samples];
+            if (!expr.perSample) {
+                SiteCondition value = siteCondition(expr);
+                return (from, to) -> {
+                    Arrays.fill(out, from, to, value.test());
+                    return out;
+                };
+            }
+            if (expr instanceof Unary) {
+                SampleCondition arg = sampleCondition(((Unary) expr).arg);
+                return (from, to) -> {
+                    boolean[] values = arg.test(from, to);
+                    for (int s = from; s < to; s++) {
+                        out[s] = !values[s];
+                    }
+                    return out;
+                };
+            }
+            Binary binary = (Binary) expr;
+            if (binary.op == Op.AND || binary.op == Op.OR) {
+                SampleCondition left = sampleCondition(binary.left);
+                SampleCondition right = sampleCondition(binary.right);
+                boolean and = binary.op == Op.AND;
+                return (from, to) -> {
+                    boolean[] a = left.test(from, to);
+                    boolean[] b = right.test(from, to);
+                    for (int s = from; s < to; s++) {
+                        out[s] = and ? a[s] && b[s] : a[s] || b[s];
+                    }
+                    return out;
+                };
+            }
+            if (!binary.left.perSample || !binary.right.perSample) {
+                // column compared with a value of the record, the common case
+                boolean columnLeft = binary.left.perSample;
+                Op op = columnLeft ? binary.op : binary.op.swapped();
+                SampleNumber column = sampleNumber(columnLeft ? binary.left : binary.right);
+                SiteNumber value = siteNumber(columnLeft ? binary.right : binary.left);
+                return (from, to) -> {
+                    compare(op, column.get(from, to), value.get(), out, from, to);
+                    return out;
+                };
+            }
+            SampleNumber left = sampleNumber(binary.left);
+            SampleNumber right = sampleNumber(binary.right);
+            Op op = binary.op;
+            return (from, to) -> {
+                double[] a = left.get(from, to);
+                double[] b = right.get(from, to);
+                for (int s = from; s < to; s++) {
+                    out[s] = compare(op, a[s], b[s]);
+                }
+                return out;
+            };
+        }
+    }
+
+    private static boolean compare(Op op, double a, double b) {
+        switch (op) {
+        case EQ:
+            return a == b;
+        case NE:
+            return a != b && a == a && b == b;
+        case LT:
+            return a < b;
+        case LE:
+            return a <= b;
+        case GT:
+            return a > b;
+        default:
+            return a >= b;
+        }
+    }
+
+    /**
+     * Comparison of values with one value, a loop per operator
+     */
+    private static void compare(Op op, double[] values, double value, boolean[] out, int from, int to) {
+        switch (op) {
+        case EQ:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] == value;
+            }
+            break;
+        case NE:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] != value && values[i] == values[i] && value == value;
+            }
+            break;
+        case LT:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] < value;
+            }
+            break;
+        case LE:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] <= value;
+            }
+            break;
+        case GT:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] > value;
+            }
+            break;
+        default:
+            for (int i = from; i < to; i++) {
+                out[i] = values[i] >= value;
+            }
+        }
+    }
+
+    private static void arithmetic(Op op, double[] a, double b, double[] out, int from, int to) {
+        switch (op) {
+        case ADD:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] + b;
+            }
+            break;
+        case SUBTRACT:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] - b;
+            }
+            break;
+        case MULTIPLY:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] * b;
+            }
+            break;
+        default:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] / b;
+            }
+        }
+    }
+
+    private static void arithmetic(Op op, double[] a, double[] b, double[] out, int from, int to) {
+        switch (op) {
+        case ADD:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] + b[i];
+            }
+            break;
+        case SUBTRACT:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] - b[i];
+            }
+            break;
+        case MULTIPLY:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] * b[i];
+            }
+            break;
+        default:
+            for (int i = from; i < to; i++) {
+                out[i] = a[i] / b[i];
+            }
+        }
+    }
+}
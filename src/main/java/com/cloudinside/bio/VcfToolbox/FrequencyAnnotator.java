@@ -0,0 +1,335 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import com.cloudinside.bio.VcfToolbox.FrequencyIndex.Frequencies;
+import com.cloudinside.bio.VcfToolbox.VariantFiles.OutputType;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+
+/**
+ * Annotates vcf files with frequencies of a {@link BuildFrequencySummary}
+ * output, through a {@link FrequencyIndex} built from it once. The index is
+ * mapped to memory and searched for each alternative allele, so annotation
+ * starts at once and its heap does not depend on the size of the summary.
+ *
+ * <pre>
+ * FrequencyAnnotator build --input summary.vcf.gz --index summary.vtfi
+ * FrequencyAnnotator annotate --index summary.vtfi --input sample.vcf.gz --output annotated.vcf.gz
+ * </pre>
+ *
+ * Alleles are matched as written: a summary built with --normalize or
+ * --left-align matches inputs normalized the same way.
+ *
+ * @author pstawinski
+ *
+ */
+public class FrequencyAnnotator {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(FrequencyAnnotator.class);
+
+    @Parameter(names = "--index", description = "Frequency index file, written by build", required = true)
+    private String index;
+    @Parameter(names = "--prefix", description = "Prefix of info entries, of the summary and of the annotation", required = false)
+    private String infoPrefix = "ZGM_";
+
+    @Parameters(commandDescription = "Build the index from a BuildFrequencySummary output (vcf or bcf, sorted, or its --table)")
+    private static class BuildCommand {
+        @Parameter(names = "--input", description = "Summary vcf or bcf file (can be bgzipped), or --table of BuildFrequencySummary", required = true)
+        private String input;
+    }
+
+    @Parameters(commandDescription = "Add frequencies of the index to records of a vcf or bcf file, one value per alternative allele")
+    private static class AnnotateCommand {
+        @Parameter(names = "--input", description = "Vcf or bcf input file (can be bgzipped)", required = true)
+        private String inputVcfFile;
+        @Parameter(names = "--output", description = "Vcf output", required = true)
+        private String outputVcfFile;
+        @Parameter(names = "--output-type", description = "v - VCF, z - bgzipped VCF, u - BCF, b - bgzipped BCF; default from --output extension (.bcf is b)", required = false)
+        private String outputType;
+        @Parameter(names = "--compression-threads", description = "Number of threads compressing bgzipped output (VCF or BCF), 1 - compressed by the writing thread", required = false)
+        private int compressionThreads = 1;
+        @Parameter(names = "--threads", description = "Number of threads decoding and annotating records, 1 - everything on the main thread", required = false)
+        private int threads = 1;
+        @Parameter(names = "--mmap", description = "Read bgzipped input mapped to memory, blocks inflated by --threads workers", required = false)
+        private boolean mmap = false;
+        @Parameter(names = "--metrics", description = "Write summary of the run (records, timings per record, sizes) as JSON to the file", required = false)
+        private String metricsFile;
+        @Parameter(names = "--metrics-interval", description = "Print progress as JSON lines every given seconds instead of \"Processed N\" lines, 0 - off", required = false)
+        private int metricsInterval = 0;
+    }
+
+    private final BuildCommand build = new BuildCommand();
+    private final AnnotateCommand annotate = new AnnotateCommand();
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
+        // to have Double formatted correctly
+        Locale.setDefault(Locale.ENGLISH);
+
+        FrequencyAnnotator app = new FrequencyAnnotator();
+        JCommander jc = JCommander.newBuilder().addObject(app).addCommand("build", app.build)
+                .addCommand("annotate", app.annotate).build();
+        try {
+            jc.parse(args);
+            if (jc.getParsedCommand() == null) {
+                throw new ParameterException("Command required, one of " + jc.getCommands().keySet());
+            }
+        } catch (ParameterException e) {
+            jc.usage();
+            throw e;
+        }
+        app.go(jc.getParsedCommand());
+    }
+
+    private void go(String command) throws IOException, InterruptedException, ExecutionException {
+        switch (command) {
+        case "build":
+            build();
+            break;
+        case "annotate":
+            annotate();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void build() throws IOException {
+        File input = new File(build.input);
+        Frequencies values = new Frequencies();
+        try (FrequencyIndex.Writer writer = new FrequencyIndex.Writer(new File(index))) {
+            if (FrequencyTable.isTable(input)) {
+                buildFromTable(input, writer, values);
+            } else {
+                try (VariantReader reader = VariantReader.openSequential(input, 1 << 16);
+                        CloseableIterator<VariantContext> it = reader.iterator()) {
+                    while (it.hasNext()) {
+                        VariantContext vc = it.next();
+                        values.referenceCount = vc.getAttributeAsInt(
+                                infoPrefix + BuildFrequencySummary.REFERENCE_NUMBER_INFO, 0);
+                        values.totalCount = vc.getAttributeAsInt(
+                                infoPrefix + BuildFrequencySummary.ALL_ALLELES_COUNT_INFO, 0);
+                        values.samplesCount = vc.getAttributeAsInt(
+                                infoPrefix + BuildFrequencySummary.SAMPLES_COUNT_INFO, 0);
+                        values.samplesContaining = vc.getAttributeAsInt(
+                                infoPrefix + BuildFrequencySummary.SAMPLES_CONTAINING_INFO, 0);
+                        values.samplesHom = vc.getAttributeAsInt(infoPrefix + BuildFrequencySummary.SAMPLES_HOM, 0);
+                        values.samplesHet = vc.getAttributeAsInt(infoPrefix + BuildFrequencySummary.SAMPLES_HET, 0);
+                        values.alleleFrequency = vc.getAttributeAsDouble(
+                                infoPrefix + BuildFrequencySummary.ALLELE_FREQUENCY_INFO, Double.NaN);
+                        values.samplesFrequency = vc.getAttributeAsDouble(
+                                infoPrefix + BuildFrequencySummary.SAMPLES_CONTAINING_FREQUENCY_INFO, Double.NaN);
+                        for (Allele alt : vc.getAlternateAlleles()) {
+                            writer.add(vc.getContig(), vc.getStart(), vc.getReference().getDisplayString(),
+                                    alt.getDisplayString(), values);
+                        }
+                    }
+                }
+            }
+            writer.finish();
+            log.info("Indexed " + writer.getRecords() + " alleles"
+                    + (writer.getDuplicates() > 0 ? ", " + writer.getDuplicates() + " repeated alleles skipped" : ""));
+        }
+    }
+
+    private static void buildFromTable(File input, FrequencyIndex.Writer writer, Frequencies values)
+            throws IOException {
+        try (FrequencyTable.Reader table = new FrequencyTable.Reader(input)) {
+            for (FrequencyTable.RowGroup group : table.getRowGroups()) {
+                int[] chrom = table.readInts(group, FrequencyTable.Column.CHROM);
+                int[] pos = table.readInts(group, FrequencyTable.Column.POS);
+                String[] ref = table.readStrings(group, FrequencyTable.Column.REF);
+                String[] alt = table.readStrings(group, FrequencyTable.Column.ALT);
+                int[] refNum = table.readInts(group, FrequencyTable.Column.REF_NUM);
+                int[] totNum = table.readInts(group, FrequencyTable.Column.TOT_NUM);
+                int[] sampNum = table.readInts(group, FrequencyTable.Column.SAMP_NUM);
+                int[] sampCont = table.readInts(group, FrequencyTable.Column.SAMP_CONT);
+                int[] samplesHom = table.readInts(group, FrequencyTable.Column.SAMPLES_HOM);
+                int[] samplesHet = table.readInts(group, FrequencyTable.Column.SAMPLES_HET);
+                double[] allFreq = table.readDoubles(group, FrequencyTable.Column.ALL_FREQ);
+                double[] sampFreq = table.readDoubles(group, FrequencyTable.Column.SAMP_FREQ);
+                for (int row = 0; row < group.getRows(); row++) {
+                    values.referenceCount = refNum[row];
+                    values.totalCount = totNum[row];
+                    values.samplesCount = sampNum[row];
+                    values.samplesContaining = sampCont[row];
+                    values.samplesHom = samplesHom[row];
+                    values.samplesHet = samplesHet[row];
+                    values.alleleFrequency = allFreq[row];
+                    values.samplesFrequency = sampFreq[row];
+                    writer.add(table.getContigs().get(chrom[row]), pos[row], ref[row], alt[row], values);
+                }
+            }
+        }
+    }
+
+    private void annotate() throws IOException, InterruptedException, ExecutionException {
+        File vcfFile = new File(annotate.inputVcfFile);
+        File outputFile = new File(annotate.outputVcfFile);
+        OutputType type = OutputType.of(outputFile, annotate.outputType);
+        EnumSet<Options> options = EnumSet.of(Options.USE_ASYNC_IO);
+
+        try (FrequencyIndex.Reader frequencies = new FrequencyIndex.Reader(new File(index));
+                ToolMetrics metrics = new ToolMetrics("FrequencyAnnotator").start(annotate.metricsInterval,
+                        annotate.metricsFile)) {
+            metrics.addInputFile(vcfFile);
+            metrics.addOutputFile(outputFile);
+
+            if (annotate.threads > 1) {
+                try (VcfPipeline pipeline = VcfPipeline.open(vcfFile, annotate.threads, annotate.mmap);
+                        VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type, options,
+                                pipeline.getHeader().getSequenceDictionary(), annotate.compressionThreads)) {
+                    vcfWriter.writeHeader(annotatedHeader(pipeline.getHeader()));
+                    pipeline.setMetrics(metrics).run(() -> {
+                        Frequencies values = new Frequencies();
+                        return (vc, output) -> output.add(annotate(vc, frequencies, values));
+                    }, vcfWriter);
+                }
+                return;
+            }
+
+            try (VariantReader vcfReader = annotate.mmap ? VariantReader.openMapped(vcfFile, false, 1)
+                    : VariantReader.open(vcfFile, false);
+                    VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type, options,
+                            vcfReader.getFileHeader().getSequenceDictionary(), annotate.compressionThreads);
+                    CloseableIterator<VariantContext> it = vcfReader.iterator()) {
+                vcfWriter.writeHeader(annotatedHeader(vcfReader.getFileHeader()));
+                Frequencies values = new Frequencies();
+                while (it.hasNext()) {
+                    long start = System.nanoTime();
+                    VariantContext vc = it.next();
+                    start = metrics.decode.since(start);
+                    VariantContext annotated = annotate(vc, frequencies, values);
+                    start = metrics.transform.since(start);
+                    vcfWriter.add(annotated);
+                    metrics.write.since(start);
+                    metrics.addRecords(1);
+                    metrics.addOutput(1);
+                }
+            }
+        }
+    }
+
+    private VCFHeader annotatedHeader(VCFHeader header) {
+        VCFHeader annotated = new VCFHeader(header);
+        addInfoLine(annotated, BuildFrequencySummary.REFERENCE_NUMBER_INFO, VCFHeaderLineType.Integer,
+                "Number of reference equals observations at this point, in the frequency index");
+        addInfoLine(annotated, BuildFrequencySummary.ALL_ALLELES_COUNT_INFO, VCFHeaderLineType.Integer,
+                "Total number of observations at this position, in the frequency index");
+        addInfoLine(annotated, BuildFrequencySummary.ALLELE_FREQUENCY_INFO, VCFHeaderLineType.Float,
+                "Allele frequency in the frequency index");
+        addInfoLine(annotated, BuildFrequencySummary.SAMPLES_COUNT_INFO, VCFHeaderLineType.Integer,
+                "All samples of the frequency index");
+        addInfoLine(annotated, BuildFrequencySummary.SAMPLES_CONTAINING_INFO, VCFHeaderLineType.Integer,
+                "Samples of the frequency index containing the allele");
+        addInfoLine(annotated, BuildFrequencySummary.SAMPLES_CONTAINING_FREQUENCY_INFO, VCFHeaderLineType.Float,
+                "Fraction of samples of the frequency index containing the allele");
+        addInfoLine(annotated, BuildFrequencySummary.SAMPLES_HOM, VCFHeaderLineType.Integer,
+                "Samples of the frequency index with homozygote alt");
+        addInfoLine(annotated, BuildFrequencySummary.SAMPLES_HET, VCFHeaderLineType.Integer,
+                "Samples of the frequency index with het alt");
+        return annotated;
+    }
+
+    private void addInfoLine(VCFHeader header, String name, VCFHeaderLineType type, String description) {
+        header.addMetaDataLine(new VCFInfoHeaderLine(infoPrefix + name, VCFHeaderLineCount.A, type, description));
+    }
+
+    /**
+     * @return vc with frequencies of its alternative alleles, vc itself if
+     *         none is in the index. The summary omits alleles not observed:
+     *         alleles not in the index, when others of the record are, get
+     *         zero counts, with reference and sample numbers of the site
+     */
+    private VariantContext annotate(VariantContext vc, FrequencyIndex.Reader frequencies, Frequencies values) {
+        int contigId = frequencies.getContigId(vc.getContig());
+        if (contigId < 0) {
+            return vc;
+        }
+        String ref = vc.getReference().getDisplayString();
+        List<Allele> alts = vc.getAlternateAlleles();
+        long[] records = new long[alts.size()];
+        long site = -1;
+        for (int i = 0; i < alts.size(); i++) {
+            records[i] = frequencies.find(contigId, vc.getStart(), ref, alts.get(i).getDisplayString());
+            if (site < 0) {
+                site = records[i];
+            }
+        }
+        if (site < 0) {
+            return vc;
+        }
+        frequencies.get(site, values);
+        int referenceCount = values.referenceCount;
+        int samplesCount = values.samplesCount;
+
+        List<Integer> refNum = new ArrayList<>(alts.size());
+        List<Integer> totNum = new ArrayList<>(alts.size());
+        List<Double> allFreq = new ArrayList<>(alts.size());
+        List<Integer> sampNum = new ArrayList<>(alts.size());
+        List<Integer> sampCont = new ArrayList<>(alts.size());
+        List<Double> sampFreq = new ArrayList<>(alts.size());
+        List<Integer> samplesHom = new ArrayList<>(alts.size());
+        List<Integer> samplesHet = new ArrayList<>(alts.size());
+        for (long record : records) {
+            if (record >= 0) {
+                frequencies.get(record, values);
+            } else {
+                values.referenceCount = referenceCount;
+                values.totalCount = referenceCount;
+                values.samplesCount = samplesCount;
+                values.samplesContaining = 0;
+                values.samplesHom = 0;
+                values.samplesHet = 0;
+                values.alleleFrequency = 0;
+                values.samplesFrequency = 0;
+            }
+            refNum.add(values.referenceCount);
+            totNum.add(values.totalCount);
+            allFreq.add(values.alleleFrequency);
+            sampNum.add(values.samplesCount);
+            sampCont.add(values.samplesContaining);
+            sampFreq.add(values.samplesFrequency);
+            samplesHom.add(values.samplesHom);
+            samplesHet.add(values.samplesHet);
+        }
+        return new VariantContextBuilder(vc).attribute(infoPrefix + BuildFrequencySummary.REFERENCE_NUMBER_INFO, refNum)
+                .attribute(infoPrefix + BuildFrequencySummary.ALL_ALLELES_COUNT_INFO, totNum)
+                .attribute(infoPrefix + BuildFrequencySummary.ALLELE_FREQUENCY_INFO, allFreq)
+                .attribute(infoPrefix + BuildFrequencySummary.SAMPLES_COUNT_INFO, sampNum)
+                .attribute(infoPrefix + BuildFrequencySummary.SAMPLES_CONTAINING_INFO, sampCont)
+                .attribute(infoPrefix + BuildFrequencySummary.SAMPLES_CONTAINING_FREQUENCY_INFO, sampFreq)
+                .attribute(infoPrefix + BuildFrequencySummary.SAMPLES_HOM, samplesHom)
+                .attribute(infoPrefix + BuildFrequencySummary.SAMPLES_HET, samplesHet).make();
+    }
+}
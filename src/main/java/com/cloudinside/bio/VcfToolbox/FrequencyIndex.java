@@ -0,0 +1,449 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.cloudinside.bio.VariantKey;
+
+/**
+ * Frequencies of {@link BuildFrequencySummary} records in a file sorted by
+ * {@link VariantKey}, read mapped to memory: lookups cost no heap and opening
+ * reads only the header and the contig table.
+ *
+ * Records are of fixed width ({@value #RECORD_LENGTH} bytes): key (high and
+ * low part, contig id in the contig table of the file), then RefNum, TotNum,
+ * SampNum, SampCont, SamplesHom, SamplesHet as ints and AllFreq, SampFreq as
+ * doubles. The contig table, at the end of the file, has for each contig the
+ * range of its records, searched by interpolation on position (binary search
+ * when the interpolation does not converge). Layout:
+ *
+ * <pre>
+ * MAGIC VERSION records(long) contig_table_offset(long) 0(long) record... contig_table
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+class FrequencyIndex {
+    private static final int MAGIC = 0x56544649; // VTFI
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 32;
+    static final int RECORD_LENGTH = 56;
+    /** records of one mapped buffer */
+    private static final int SEGMENT_RECORDS = (1 << 30) / RECORD_LENGTH;
+    /** interpolation steps before falling back to bisection */
+    private static final int MAX_INTERPOLATION_STEPS = 8;
+
+    private FrequencyIndex() {
+    }
+
+    /**
+     * Values of a record
+     */
+    static class Frequencies {
+        int referenceCount;
+        int totalCount;
+        int samplesCount;
+        int samplesContaining;
+        int samplesHom;
+        int samplesHet;
+        double alleleFrequency;
+        double samplesFrequency;
+
+        void set(Frequencies other) {
+            referenceCount = other.referenceCount;
+            totalCount = other.totalCount;
+            samplesCount = other.samplesCount;
+            samplesContaining = other.samplesContaining;
+            samplesHom = other.samplesHom;
+            samplesHet = other.samplesHet;
+            alleleFrequency = other.alleleFrequency;
+            samplesFrequency = other.samplesFrequency;
+        }
+    }
+
+    private static class Contig {
+        private final String name;
+        private long first;
+        private long count;
+
+        public Contig(String name, long first) {
+            this.name = name;
+            this.first = first;
+        }
+    }
+
+    /**
+     * Writes records coming in order of the summary: contigs in blocks,
+     * positions not decreasing. Records of one position are sorted by key, of
+     * repeated keys the first is kept. The file is written next to the target
+     * and renamed by {@link #finish()}; closed without it, the partial file is
+     * deleted and the target is left as it was.
+     */
+    static class Writer implements Closeable {
+        private final File file;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private final List<Contig> contigs = new ArrayList<>();
+        private final Map<String, Contig> contigsByName = new HashMap<>();
+        private Contig contig;
+        private int position;
+        private long records = 0;
+        private long duplicates = 0;
+        private boolean finished = false;
+
+        /** records of the current position, not written yet */
+        private final List<Pending> pending = new ArrayList<>();
+        private int pendingCount = 0;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            Path directory = file.getAbsoluteFile().toPath().getParent();
+            // not Files.createTempFile, it would be published with mode 0600
+            this.tmp = directory.resolve(
+                    file.getName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW), 1 << 16));
+            out.write(new byte[HEADER_LENGTH]);
+        }
+
+        public void add(String contigName, int position, String ref, String alt, Frequencies values)
+                throws IOException {
+            if (contig == null || !contig.name.equals(contigName)) {
+                flush();
+                if (contigsByName.containsKey(contigName)) {
+                    throw new IllegalArgumentException("Records of contig " + contigName
+                            + " are not in one block; summary has to be sorted");
+                }
+                if (contig != null) {
+                    contig.count = records - contig.first;
+                }
+                contig = new Contig(contigName, records);
+                contigs.add(contig);
+                contigsByName.put(contigName, contig);
+            } else if (position < this.position) {
+                throw new IllegalArgumentException("Records not sorted at " + contigName + ":" + position
+                        + "; summary has to be sorted");
+            } else if (position > this.position) {
+                flush();
+            }
+            this.position = position;
+
+            if (pendingCount == pending.size()) {
+                pending.add(new Pending());
+            }
+            Pending record = pending.get(pendingCount++);
+            record.low = VariantKey.low(ref.getBytes(StandardCharsets.US_ASCII),
+                    alt.getBytes(StandardCharsets.US_ASCII));
+            record.values.set(values);
+            record.order = pendingCount;
+        }
+
+        /**
+         * Writes records of the current position
+         */
+        private void flush() throws IOException {
+            if (pendingCount == 0) {
+                return;
+            }
+            List<Pending> group = pending.subList(0, pendingCount);
+            // by key, of equal keys the first added first
+            Collections.sort(group, (a, b) -> a.low != b.low ? Long.compare(a.low, b.low)
+                    : Integer.compare(a.order, b.order));
+            long high = VariantKey.high(contigs.size() - 1, position);
+            for (int i = 0; i < pendingCount; i++) {
+                Pending record = group.get(i);
+                if (i > 0 && record.low == group.get(i - 1).low) {
+                    duplicates++;
+                    continue;
+                }
+                Frequencies values = record.values;
+                out.writeLong(high);
+                out.writeLong(record.low);
+                out.writeInt(values.referenceCount);
+                out.writeInt(values.totalCount);
+                out.writeInt(values.samplesCount);
+                out.writeInt(values.samplesContaining);
+                out.writeInt(values.samplesHom);
+                out.writeInt(values.samplesHet);
+                out.writeDouble(values.alleleFrequency);
+                out.writeDouble(values.samplesFrequency);
+                records++;
+            }
+            pendingCount = 0;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return records not written, of a key written already
+         */
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Completes the index and renames it to the target
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            try {
+                long contigTableOffset;
+                try (DataOutputStream o = out) {
+                    flush();
+                    if (contig != null) {
+                        contig.count = records - contig.first;
+                    }
+                    contigTableOffset = HEADER_LENGTH + records * RECORD_LENGTH;
+                    o.writeInt(contigs.size());
+                    for (Contig c : contigs) {
+                        o.writeUTF(c.name);
+                        o.writeLong(c.first);
+                        o.writeLong(c.count);
+                    }
+                }
+                // header is known at the end
+                try (RandomAccessFile header = new RandomAccessFile(tmp.toFile(), "rw")) {
+                    header.writeInt(MAGIC);
+                    header.writeInt(VERSION);
+                    header.writeLong(records);
+                    header.writeLong(contigTableOffset);
+                }
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                finished = true;
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /**
+         * Deletes the partial index unless {@link #finish()} was called
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private static class Pending {
+            private long low;
+            private final Frequencies values = new Frequencies();
+            /** for stable sorting */
+            private int order;
+        }
+    }
+
+    /**
+     * Lookups in a mapped index; thread safe
+     */
+    static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel channel;
+        private final long records;
+        private final int segmentRecords;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private final Map<String, Integer> contigIds = new HashMap<>();
+        private final List<Contig> contigs = new ArrayList<>();
+
+        public Reader(File file) throws IOException {
+            this(file, SEGMENT_RECORDS);
+        }
+
+        /**
+         * @param segmentRecords
+         *            - records of one mapped buffer
+         */
+        Reader(File file, int segmentRecords) throws IOException {
+            this.file = file;
+            this.segmentRecords = segmentRecords;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer header = read(0, HEADER_LENGTH);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a frequency index: " + file);
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported version " + version + " of frequency index " + file);
+                }
+                this.records = header.getLong();
+                long contigTableOffset = header.getLong();
+                if (contigTableOffset != HEADER_LENGTH + records * RECORD_LENGTH
+                        || contigTableOffset > channel.size()) {
+                    throw new IOException("Corrupted frequency index " + file);
+                }
+                ByteBuffer table = read(contigTableOffset, (int) (channel.size() - contigTableOffset));
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(table.array(), 0, table.limit()));
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Contig contig = new Contig(in.readUTF(), in.readLong());
+                    contig.count = in.readLong();
+                    contigIds.put(contig.name, i);
+                    contigs.add(contig);
+                }
+
+                for (long first = 0; first < records; first += segmentRecords) {
+                    long length = Math.min(segmentRecords, records - first) * RECORD_LENGTH;
+                    segments.add(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + first * RECORD_LENGTH,
+                            length));
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated frequency index " + file);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return id of the contig in the index, -1 if it has no records
+         */
+        public int getContigId(String contig) {
+            Integer id = contigIds.get(contig);
+            return id == null ? -1 : id;
+        }
+
+        /**
+         * @param contigId
+         *            - see {@link #getContigId(String)}
+         * @return number of the record of the variant, -1 if not present
+         */
+        public long find(int contigId, int position, String ref, String alt) {
+            if (contigId < 0 || contigId >= contigs.size()) {
+                return -1;
+            }
+            long low = VariantKey.low(ref.getBytes(StandardCharsets.US_ASCII),
+                    alt.getBytes(StandardCharsets.US_ASCII));
+            Contig contig = contigs.get(contigId);
+            long lo = contig.first;
+            long hi = contig.first + contig.count - 1;
+            int steps = 0;
+            while (lo <= hi) {
+                int loPosition = position(lo);
+                int hiPosition = position(hi);
+                if (position < loPosition || position > hiPosition) {
+                    return -1;
+                }
+                long mid;
+                if (loPosition == hiPosition) {
+                    mid = lo;
+                } else if (steps++ < MAX_INTERPOLATION_STEPS) {
+                    mid = lo + (long) ((double) (position - loPosition) / (hiPosition - loPosition) * (hi - lo));
+                } else {
+                    mid = (lo + hi) >>> 1;
+                }
+                int midPosition = position(mid);
+                if (midPosition < position) {
+                    lo = mid + 1;
+                } else if (midPosition > position) {
+                    hi = mid - 1;
+                } else {
+                    return findAtPosition(contig, mid, position, low);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @param record
+         *            - a record at the position
+         */
+        private long findAtPosition(Contig contig, long record, int position, long low) {
+            long end = contig.first + contig.count;
+            for (long r = record; r >= contig.first && position(r) == position; r--) {
+                if (low(r) == low) {
+                    return r;
+                }
+            }
+            for (long r = record + 1; r < end && position(r) == position; r++) {
+                if (low(r) == low) {
+                    return r;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the record to values
+         */
+        public void get(long record, Frequencies values) {
+            ByteBuffer segment = segment(record);
+            int offset = offset(record);
+            values.referenceCount = segment.getInt(offset + 16);
+            values.totalCount = segment.getInt(offset + 20);
+            values.samplesCount = segment.getInt(offset + 24);
+            values.samplesContaining = segment.getInt(offset + 28);
+            values.samplesHom = segment.getInt(offset + 32);
+            values.samplesHet = segment.getInt(offset + 36);
+            values.alleleFrequency = segment.getDouble(offset + 40);
+            values.samplesFrequency = segment.getDouble(offset + 48);
+        }
+
+        private int position(long record) {
+            // low 32 bits of the high part
+            return segment(record).getInt(offset(record) + 4);
+        }
+
+        private long low(long record) {
+            return segment(record).getLong(offset(record) + 8);
+        }
+
+        private ByteBuffer segment(long record) {
+            return segments.get((int) (record / segmentRecords));
+        }
+
+        private int offset(long record) {
+            return (int) (record % segmentRecords) * RECORD_LENGTH;
+        }
+
+        @Override
+        public void close() throws IOException {
+            segments.clear();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Immutable, bgzipped file of {@link FrequencyStore}: site rows sorted by
+ * contig index and position.
+ *
+ * A row is one input record of one batch: reference, alternative alleles and
+ * explicit genotypes, that is of samples not being diploid homozygous
+ * reference. Every other sample of the batch is such a homozygote, adding two
+ * reference observations.
+ *
+ * @author pstawinski
+ *
+ */
+class FrequencySegment {
+    private static final int MAGIC = 0x56544653; // VTFS
+    private static final int VERSION = 1;
+    private static final int END = -1;
+
+    static final byte HOM_VAR = 1;
+    static final byte HET = 2;
+    static final byte OTHER = 3;
+
+    private FrequencySegment() {
+    }
+
+    /**
+     * Record of a batch; genotype arrays are indexed by explicit genotype
+     */
+    static class SiteRow {
+        int contigIndex;
+        int position;
+        int batchId;
+        String ref;
+        String[] alts;
+        int explicitCount;
+        int[] sampleIds = new int[4];
+        int[] refAlleles = new int[4];
+        byte[] genotypeTypes = new byte[4];
+        /** per explicit genotype, per alt: number of observations */
+        int[][] altAlleles = new int[4][];
+
+        void clearGenotypes() {
+            explicitCount = 0;
+        }
+
+        /**
+         * @return index of the new explicit genotype
+         */
+        int addGenotype(int sampleId, int refCount, byte type) {
+            if (explicitCount == sampleIds.length) {
+                int capacity = explicitCount * 2;
+                sampleIds = Arrays.copyOf(sampleIds, capacity);
+                refAlleles = Arrays.copyOf(refAlleles, capacity);
+                genotypeTypes = Arrays.copyOf(genotypeTypes, capacity);
+                altAlleles = Arrays.copyOf(altAlleles, capacity);
+            }
+            int g = explicitCount++;
+            sampleIds[g] = sampleId;
+            refAlleles[g] = refCount;
+            genotypeTypes[g] = type;
+            if (altAlleles[g] == null || altAlleles[g].length < alts.length) {
+                altAlleles[g] = new int[alts.length];
+            } else {
+                Arrays.fill(altAlleles[g], 0, alts.length, 0);
+            }
+            return g;
+        }
+
+        SiteRow copy() {
+            SiteRow row = new SiteRow();
+            row.contigIndex = contigIndex;
+            row.position = position;
+            row.batchId = batchId;
+            row.ref = ref;
+            row.alts = alts;
+            row.explicitCount = explicitCount;
+            row.sampleIds = Arrays.copyOf(sampleIds, explicitCount);
+            row.refAlleles = Arrays.copyOf(refAlleles, explicitCount);
+            row.genotypeTypes = Arrays.copyOf(genotypeTypes, explicitCount);
+            row.altAlleles = new int[explicitCount][];
+            for (int g = 0; g < explicitCount; g++) {
+                row.altAlleles[g] = Arrays.copyOf(altAlleles[g], alts.length);
+            }
+            return row;
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private int lastContigIndex = -1;
+        private int lastPosition = 0;
+        private long rows = 0;
+
+        public Writer(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new BlockCompressedOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * Writes row, only genotypes accepted by the filter
+         */
+        public void write(SiteRow row, GenotypeFilter filter) throws IOException {
+            if (row.contigIndex < lastContigIndex
+                    || (row.contigIndex == lastContigIndex && row.position < lastPosition)) {
+                throw new IllegalArgumentException("Rows not sorted at contig " + row.contigIndex + " position "
+                        + row.position + "; input has to be sorted, in contig order of the store");
+            }
+            lastContigIndex = row.contigIndex;
+            lastPosition = row.position;
+
+            out.writeInt(row.contigIndex);
+            out.writeInt(row.position);
+            out.writeInt(row.batchId);
+            writeString(row.ref);
+            out.writeShort(row.alts.length);
+            for (String alt : row.alts) {
+                writeString(alt);
+            }
+            int count = 0;
+            for (int g = 0; g < row.explicitCount; g++) {
+                if (filter.accept(row.sampleIds[g])) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int g = 0; g < row.explicitCount; g++) {
+                if (!filter.accept(row.sampleIds[g])) {
+                    continue;
+                }
+                out.writeInt(row.sampleIds[g]);
+                out.writeShort(row.refAlleles[g]);
+                out.writeByte(row.genotypeTypes[g]);
+                for (int a = 0; a < row.alts.length; a++) {
+                    out.writeShort(row.altAlleles[g][a]);
+                }
+            }
+            rows++;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeInt(END);
+            out.close();
+        }
+    }
+
+    interface GenotypeFilter {
+        GenotypeFilter ALL = sampleId -> true;
+
+        boolean accept(int sampleId);
+    }
+
+    static class Reader implements Closeable {
+        private final File file;
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(
+                    new BufferedInputStream(new BlockCompressedInputStream(new FileInputStream(file)), 1 << 16));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a frequency store segment: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                in.close();
+                throw new IOException("Unsupported version " + version + " of segment " + file);
+            }
+        }
+
+        /**
+         * Reads the next row to row
+         *
+         * @return false at the end of the segment
+         */
+        public boolean next(SiteRow row) throws IOException {
+            try {
+                int contigIndex = in.readInt();
+                if (contigIndex == END) {
+                    return false;
+                }
+                row.contigIndex = contigIndex;
+                row.position = in.readInt();
+                row.batchId = in.readInt();
+                row.ref = readString();
+                row.alts = new String[in.readUnsignedShort()];
+                for (int a = 0; a < row.alts.length; a++) {
+                    row.alts[a] = readString();
+                }
+                row.clearGenotypes();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int g = row.addGenotype(in.readInt(), in.readUnsignedShort(), in.readByte());
+                    for (int a = 0; a < row.alts.length; a++) {
+                        row.altAlleles[g][a] = in.readUnsignedShort();
+                    }
+                }
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Truncated segment " + file, e);
+            }
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import com.cloudinside.bio.SampleBitmap;
+import com.cloudinside.bio.VcfToolbox.FrequencySegment.GenotypeFilter;
+import com.cloudinside.bio.VcfToolbox.FrequencySegment.SiteRow;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Persistent counts of a cohort, summarized like by
+ * {@link BuildFrequencySummary} without keeping the cohort VCF.
+ *
+ * A directory with a manifest (contigs, batches, samples, segments) and
+ * immutable segments ({@link FrequencySegment}). Every added VCF is a batch
+ * written to a new segment, so adding costs time of reading the new file only.
+ * Removed samples are marked in the manifest and skipped when segments are
+ * read; {@link #compact()} rewrites all segments to one, without them.
+ *
+ * Records of all segments are matched by contig, position, REF and ALT: RefNum
+ * of an allele sums reference observations of records listing it, SampNum is
+ * the number of samples in the store. For a single batch the summary equals
+ * output of {@link BuildFrequencySummary}.
+ *
+ * One writer at a time, the store is not locked.
+ *
+ * @author pstawinski
+ *
+ */
+class FrequencyStore {
+    private static final String MANIFEST = "manifest.tsv";
+    private static final String MANIFEST_HEADER = "##vcftoolbox-frequency-store=1";
+    private static final String ACTIVE = "active";
+    private static final String REMOVED = "removed";
+
+    private final File directory;
+
+    private final List<SAMSequenceRecord> contigs = new ArrayList<>();
+    private final Map<String, Integer> contigIndexes = new HashMap<>();
+    private final List<Batch> batches = new ArrayList<>();
+    private final List<Sample> samples = new ArrayList<>();
+    private final List<String> segments = new ArrayList<>();
+    private int nextSegment = 0;
+
+    private static class Batch {
+        private final int id;
+        private final String source;
+        private final List<Integer> sampleIds = new ArrayList<>();
+
+        public Batch(int id, String source) {
+            this.id = id;
+            this.source = source;
+        }
+    }
+
+    private static class Sample {
+        private final int id;
+        private final int batchId;
+        private final String name;
+        private boolean removed;
+
+        public Sample(int id, int batchId, String name, boolean removed) {
+            this.id = id;
+            this.batchId = batchId;
+            this.name = name;
+            this.removed = removed;
+        }
+    }
+
+    private FrequencyStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the store, an empty one is created if the directory has no manifest
+     * and create is set
+     */
+    public static FrequencyStore open(File directory, boolean create) throws IOException {
+        FrequencyStore store = new FrequencyStore(directory);
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            store.readManifest(manifest);
+        } else if (create) {
+            Files.createDirectories(directory.toPath());
+        } else {
+            throw new IllegalArgumentException("Not a frequency store: " + directory);
+        }
+        return store;
+    }
+
+    public int getActiveSamplesCount() {
+        int count = 0;
+        for (Sample sample : samples) {
+            if (!sample.removed) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return names of samples by id, removed too; ids are indexes of sample
+     *         bitmaps of the summary
+     */
+    public List<String> getSampleNames() {
+        List<String> names = new ArrayList<>();
+        for (Sample sample : samples) {
+            names.add(sample.name);
+        }
+        return names;
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return new SAMSequenceDictionary(contigs);
+    }
+
+    /**
+     * Folds samples of a VCF or BCF file, sorted in contig order of the store,
+     * in a new batch
+     */
+    public void add(File file) throws IOException {
+        Map<String, Integer> sampleIds = new HashMap<>();
+        try (VariantReader reader = VariantReader.open(file, false)) {
+            List<String> names = reader.getFileHeader().getGenotypeSamples();
+            Map<String, Sample> active = activeSamples();
+            for (String name : names) {
+                if (active.containsKey(name)) {
+                    throw new IllegalArgumentException("Sample " + name + " of " + file + " already in the store");
+                }
+            }
+
+            Batch batch = new Batch(batches.size(), file.getPath());
+            List<Sample> batchSamples = new ArrayList<>();
+            for (String name : names) {
+                Sample sample = new Sample(samples.size() + batchSamples.size(), batch.id, name, false);
+                batch.sampleIds.add(sample.id);
+                batchSamples.add(sample);
+                sampleIds.put(name, sample.id);
+            }
+            SAMSequenceDictionary dictionary = reader.getFileHeader().getSequenceDictionary();
+            if (dictionary != null) {
+                for (SAMSequenceRecord contig : dictionary.getSequences()) {
+                    contigIndex(contig.getSequenceName(), contig.getSequenceLength());
+                }
+            }
+
+            String segment = segmentName(nextSegment++);
+            File segmentFile = new File(directory, segment);
+            try (FrequencySegment.Writer writer = new FrequencySegment.Writer(segmentFile);
+                    CloseableIterator<VariantContext> it = reader.iterator()) {
+                SiteRow row = new SiteRow();
+                row.batchId = batch.id;
+                int counter = 0;
+                while (it.hasNext()) {
+                    VariantContext vc = it.next();
+                    toRow(vc, names, sampleIds, row);
+                    writer.write(row, GenotypeFilter.ALL);
+                    if (++counter % 10000 == 0) {
+                        System.err.println("Processed " + counter);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(segmentFile.toPath());
+                throw e;
+            }
+
+            batches.add(batch);
+            samples.addAll(batchSamples);
+            segments.add(segment);
+            writeManifest();
+        }
+    }
+
+    /**
+     * Marks samples removed, they are dropped from segments by
+     * {@link #compact()}
+     */
+    public void remove(List<String> names) throws IOException {
+        Map<String, Sample> active = activeSamples();
+        for (String name : names) {
+            if (!active.containsKey(name)) {
+                throw new IllegalArgumentException("Sample not in the store: " + name);
+            }
+        }
+        for (String name : names) {
+            active.get(name).removed = true;
+        }
+        writeManifest();
+    }
+
+    /**
+     * Rewrites segments to one, without genotypes of removed samples and
+     * records of batches with no samples left
+     */
+    public void compact() throws IOException {
+        boolean[] removed = removedSamples();
+        int[] activeCounts = activeCountsOfBatches(removed);
+        String segment = segmentName(nextSegment++);
+        File segmentFile = new File(directory, segment);
+        try (FrequencySegment.Writer writer = new FrequencySegment.Writer(segmentFile)) {
+            merge(row -> {
+                if (activeCounts[row.batchId] > 0) {
+                    writer.write(row, sampleId -> !removed[sampleId]);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(segmentFile.toPath());
+            throw e;
+        }
+
+        List<String> old = new ArrayList<>(segments);
+        segments.clear();
+        segments.add(segment);
+        writeManifest();
+        for (String name : old) {
+            Files.deleteIfExists(new File(directory, name).toPath());
+        }
+    }
+
+    /**
+     * Writes summary records of the store, sorted, through summary
+     */
+    public void export(BuildFrequencySummary summary, Consumer<VariantContext> output) throws IOException {
+        boolean[] removed = removedSamples();
+        int[] activeCounts = activeCountsOfBatches(removed);
+        SiteCounts counts = new SiteCounts(new SampleNameTable(getSampleNames()), getActiveSamplesCount(), removed,
+                activeCounts);
+
+        List<SiteRow> group = new ArrayList<>();
+        int[] counter = { 0 };
+        merge(row -> {
+            if (!group.isEmpty() && (group.get(0).contigIndex != row.contigIndex
+                    || group.get(0).position != row.position)) {
+                summarizeGroup(group, counts, summary, output);
+                group.clear();
+            }
+            group.add(row.copy());
+            if (++counter[0] % 10000 == 0) {
+                System.err.println("Processed " + counter[0]);
+            }
+        });
+        if (!group.isEmpty()) {
+            summarizeGroup(group, counts, summary, output);
+        }
+    }
+
+    /**
+     * Rows of one position, all segments
+     */
+    private void summarizeGroup(List<SiteRow> group, SiteCounts counts, BuildFrequencySummary summary,
+            Consumer<VariantContext> output) {
+        Map<String, List<SiteRow>> byRef = new TreeMap<>();
+        for (SiteRow row : group) {
+            byRef.computeIfAbsent(row.ref, ref -> new ArrayList<>()).add(row);
+        }
+        SiteRow first = group.get(0);
+        String contig = contigs.get(first.contigIndex).getSequenceName();
+        for (Map.Entry<String, List<SiteRow>> entry : byRef.entrySet()) {
+            TreeSet<String> alts = new TreeSet<>();
+            for (SiteRow row : entry.getValue()) {
+                alts.addAll(Arrays.asList(row.alts));
+            }
+            Allele ref = Allele.create(entry.getKey(), true);
+            for (String alt : alts) {
+                counts.count(entry.getValue(), alt);
+                summary.summarize(contig, first.position, Arrays.asList(ref, Allele.create(alt, false)), counts,
+                        output);
+            }
+        }
+    }
+
+    private interface RowConsumer {
+        void accept(SiteRow row) throws IOException;
+    }
+
+    /**
+     * Rows of all segments sorted by contig index and position
+     */
+    private void merge(RowConsumer consumer) throws IOException {
+        List<FrequencySegment.Reader> readers = new ArrayList<>();
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> {
+            int c = Integer.compare(a.row.contigIndex, b.row.contigIndex);
+            return c != 0 ? c : Integer.compare(a.row.position, b.row.position);
+        });
+        try {
+            for (String segment : segments) {
+                FrequencySegment.Reader reader = new FrequencySegment.Reader(new File(directory, segment));
+                readers.add(reader);
+                Cursor cursor = new Cursor(reader);
+                if (reader.next(cursor.row)) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                consumer.accept(cursor.row);
+                if (cursor.reader.next(cursor.row)) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            for (FrequencySegment.Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class Cursor {
+        private final FrequencySegment.Reader reader;
+        private final SiteRow row = new SiteRow();
+
+        public Cursor(FrequencySegment.Reader reader) {
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * Fills row with vc; genotypes of other samples than diploid homozygous
+     * reference are explicit
+     */
+    private void toRow(VariantContext vc, List<String> names, Map<String, Integer> sampleIds, SiteRow row) {
+        row.contigIndex = contigIndex(vc.getContig(), SAMSequenceRecord.UNKNOWN_SEQUENCE_LENGTH);
+        row.position = vc.getStart();
+        row.ref = vc.getReference().getBaseString();
+        List<Allele> alleles = vc.getAlleles();
+        row.alts = new String[alleles.size() - 1];
+        for (int a = 1; a < alleles.size(); a++) {
+            row.alts[a - 1] = alleles.get(a).getDisplayString();
+        }
+        row.clearGenotypes();
+
+        GenotypesContext genotypes = vc.getGenotypes();
+        for (int i = 0; i < genotypes.size(); i++) {
+            Genotype genotype = genotypes.get(i);
+            List<Allele> genotypeAlleles = genotype.getAlleles();
+            int refCount = 0;
+            for (Allele allele : genotypeAlleles) {
+                if (allele.isReference()) {
+                    refCount++;
+                }
+            }
+            if (refCount == 2 && genotypeAlleles.size() == 2) {
+                continue;
+            }
+            String name = genotype.getSampleName();
+            int sampleId = i < names.size() && names.get(i).equals(name) ? sampleIds.get(names.get(i))
+                    : sampleIds.get(name);
+            byte type = genotype.isHomVar() ? FrequencySegment.HOM_VAR
+                    : genotype.isHet() ? FrequencySegment.HET : FrequencySegment.OTHER;
+            int g = row.addGenotype(sampleId, refCount, type);
+            for (Allele allele : genotypeAlleles) {
+                if (!allele.isReference() && allele.isCalled()) {
+                    row.altAlleles[g][alleleIndex(alleles, allele) - 1]++;
+                }
+            }
+        }
+    }
+
+    private static int alleleIndex(List<Allele> alleles, Allele allele) {
+        for (int a = 1; a < alleles.size(); a++) {
+            if (alleles.get(a) == allele) {
+                return a;
+            }
+        }
+        for (int a = 1; a < alleles.size(); a++) {
+            if (alleles.get(a).equals(allele)) {
+                return a;
+            }
+        }
+        throw new IllegalArgumentException("Allele " + allele + " not found in record alleles " + alleles);
+    }
+
+    private int contigIndex(String contig, int length) {
+        Integer index = contigIndexes.get(contig);
+        if (index == null) {
+            index = contigs.size();
+            contigs.add(new SAMSequenceRecord(contig, length));
+            contigIndexes.put(contig, index);
+        }
+        return index;
+    }
+
+    private Map<String, Sample> activeSamples() {
+        Map<String, Sample> active = new HashMap<>();
+        for (Sample sample : samples) {
+            if (!sample.removed) {
+                active.put(sample.name, sample);
+            }
+        }
+        return active;
+    }
+
+    private boolean[] removedSamples() {
+        boolean[] removed = new boolean[samples.size()];
+        for (Sample sample : samples) {
+            removed[sample.id] = sample.removed;
+        }
+        return removed;
+    }
+
+    private int[] activeCountsOfBatches(boolean[] removed) {
+        int[] counts = new int[batches.size()];
+        for (Batch batch : batches) {
+            for (int sampleId : batch.sampleIds) {
+                if (!removed[sampleId]) {
+                    counts[batch.id]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("segment-%06d.seg", number);
+    }
+
+    private void readManifest(File manifest) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!MANIFEST_HEADER.equals(line)) {
+                throw new IOException("Unsupported frequency store manifest: " + manifest);
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                case "contig":
+                    contigIndex(fields[1], Integer.parseInt(fields[2]));
+                    break;
+                case "batch":
+                    batches.add(new Batch(Integer.parseInt(fields[1]), fields[2]));
+                    break;
+                case "sample":
+                    Sample sample = new Sample(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), fields[3],
+                            REMOVED.equals(fields[4]));
+                    samples.add(sample);
+                    batches.get(sample.batchId).sampleIds.add(sample.id);
+                    break;
+                case "segment":
+                    segments.add(fields[1]);
+                    break;
+                case "next-segment":
+                    nextSegment = Integer.parseInt(fields[1]);
+                    break;
+                default:
+                    throw new IOException("Invalid line of manifest " + manifest + ": " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the manifest atomically
+     */
+    private void writeManifest() throws IOException {
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER + "\n");
+            for (SAMSequenceRecord contig : contigs) {
+                writer.write("contig\t" + contig.getSequenceName() + "\t" + contig.getSequenceLength() + "\n");
+            }
+            for (Batch batch : batches) {
+                writer.write("batch\t" + batch.id + "\t" + batch.source + "\n");
+            }
+            for (Sample sample : samples) {
+                writer.write("sample\t" + sample.id + "\t" + sample.batchId + "\t" + sample.name + "\t"
+                        + (sample.removed ? REMOVED : ACTIVE) + "\n");
+            }
+            for (String segment : segments) {
+                writer.write("segment\t" + segment + "\n");
+            }
+            writer.write("next-segment\t" + nextSegment + "\n");
+        }
+        Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Counts of one alternative allele over rows of a position and reference
+     */
+    private static class SiteCounts implements AlleleCounts {
+        private final SampleNameTable samples;
+        private final int allSamplesCount;
+        private final boolean[] removed;
+        private final int[] activeCounts;
+
+        private int referenceCount;
+        private int alleleCount;
+        private final TreeSet<Integer> containing = new TreeSet<>();
+        private final TreeSet<Integer> hom = new TreeSet<>();
+        private final TreeSet<Integer> het = new TreeSet<>();
+        private final TreeSet<Integer> carriers = new TreeSet<>();
+        private final TreeSet<Integer> homCarriers = new TreeSet<>();
+
+        public SiteCounts(SampleNameTable samples, int allSamplesCount, boolean[] removed, int[] activeCounts) {
+            this.samples = samples;
+            this.allSamplesCount = allSamplesCount;
+            this.removed = removed;
+            this.activeCounts = activeCounts;
+        }
+
+        /**
+         * Counts alt over rows listing it
+         */
+        public void count(List<SiteRow> rows, String alt) {
+            referenceCount = 0;
+            alleleCount = 0;
+            containing.clear();
+            hom.clear();
+            het.clear();
+            carriers.clear();
+            homCarriers.clear();
+            for (SiteRow row : rows) {
+                int a = Arrays.asList(row.alts).indexOf(alt);
+                if (a < 0) {
+                    continue;
+                }
+                int homRef = activeCounts[row.batchId];
+                for (int g = 0; g < row.explicitCount; g++) {
+                    int sampleId = row.sampleIds[g];
+                    if (removed[sampleId]) {
+                        continue;
+                    }
+                    homRef--;
+                    referenceCount += row.refAlleles[g];
+                    int observations = row.altAlleles[g][a];
+                    if (observations == 0) {
+                        continue;
+                    }
+                    alleleCount += observations;
+                    int nameId = samples.getNameId(sampleId);
+                    carriers.add(sampleId);
+                    if (row.genotypeTypes[g] == FrequencySegment.HOM_VAR) {
+                        homCarriers.add(sampleId);
+                        hom.add(nameId);
+                        containing.add(samples.getStarEntry(nameId));
+                    } else {
+                        if (row.genotypeTypes[g] == FrequencySegment.HET) {
+                            het.add(nameId);
+                        }
+                        containing.add(samples.getPlainEntry(nameId));
+                    }
+                }
+                referenceCount += 2 * homRef;
+            }
+        }
+
+        @Override
+        public int getReferenceCount() {
+            return referenceCount;
+        }
+
+        @Override
+        public int getAllSamplesCount() {
+            return allSamplesCount;
+        }
+
+        @Override
+        public int getAllelesCount() {
+            return 2;
+        }
+
+        @Override
+        public int getAlleleCount(int alleleIndex) {
+            return alleleCount;
+        }
+
+        @Override
+        public int getSamplesContaining(int alleleIndex) {
+            return containing.size();
+        }
+
+        @Override
+        public int getSamplesHom(int alleleIndex) {
+            return hom.size();
+        }
+
+        @Override
+        public int getSamplesHet(int alleleIndex) {
+            return het.size();
+        }
+
+        @Override
+        public String getSamples(int alleleIndex) {
+            StringBuilder sb = new StringBuilder();
+            for (int entry : containing) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(samples.getEntry(entry));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public SampleBitmap getSamplesBitmap(int alleleIndex) {
+            return toBitmap(carriers);
+        }
+
+        @Override
+        public SampleBitmap getSamplesHomBitmap(int alleleIndex) {
+            return toBitmap(homCarriers);
+        }
+
+        private static SampleBitmap toBitmap(TreeSet<Integer> sampleIds) {
+            SampleBitmap.Builder builder = new SampleBitmap.Builder();
+            for (int sampleId : sampleIds) {
+                builder.add(sampleId);
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,674 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFEncoder;
+
+/**
+ * Columnar file of {@link BuildFrequencySummary} records, one row per
+ * alternative allele, for scans that need a few columns of many rows.
+ *
+ * Rows are written in row groups of {@link #ROW_GROUP_SIZE}, each column of a
+ * group is a chunk of typed values, encoded and deflated on its own:
+ * positions as deltas, contigs as indexes of the contig table of the file,
+ * strings and doubles through a dictionary of the chunk (unless most values
+ * are distinct), integers as varints. Doubles are stored as the VCF summary
+ * has them (formatted by {@link VCFEncoder}), so the table does not depend on
+ * whether records come from memory or from VCF text. The footer has the
+ * columns, contigs and for each group its first and last site and sizes of
+ * chunks, so a reader reads only the chunks it needs. Layout:
+ *
+ * <pre>
+ * MAGIC VERSION chunk... footer footer_offset(long) MAGIC
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+class FrequencyTable {
+    private static final int MAGIC = 0x56544654; // VTFT
+    private static final int VERSION = 1;
+    private static final int TRAILER_LENGTH = 12;
+
+    static final int ROW_GROUP_SIZE = 1 << 16;
+
+    private static final byte PLAIN = 0;
+    private static final byte DELTA = 1;
+    private static final byte DICTIONARY = 2;
+
+    enum Type {
+        /** index in the contig table */
+        CONTIG, INT, DOUBLE, STRING
+    }
+
+    enum Column {
+        CHROM("chrom", Type.CONTIG, false),
+        POS("pos", Type.INT, false),
+        REF("ref", Type.STRING, false),
+        ALT("alt", Type.STRING, false),
+        REF_NUM(BuildFrequencySummary.REFERENCE_NUMBER_INFO, Type.INT, true),
+        TOT_NUM(BuildFrequencySummary.ALL_ALLELES_COUNT_INFO, Type.INT, true),
+        ALL_FREQ(BuildFrequencySummary.ALLELE_FREQUENCY_INFO, Type.DOUBLE, true),
+        SAMP_NUM(BuildFrequencySummary.SAMPLES_COUNT_INFO, Type.INT, true),
+        SAMP_CONT(BuildFrequencySummary.SAMPLES_CONTAINING_INFO, Type.INT, true),
+        SAMP_FREQ(BuildFrequencySummary.SAMPLES_CONTAINING_FREQUENCY_INFO, Type.DOUBLE, true),
+        SAMPLES_HOM(BuildFrequencySummary.SAMPLES_HOM, Type.INT, true),
+        SAMPLES_HET(BuildFrequencySummary.SAMPLES_HET, Type.INT, true);
+
+        private final String name;
+        private final Type type;
+        /** value of INFO entry of the name, with prefix */
+        private final boolean info;
+
+        private Column(String name, Type type, boolean info) {
+            this.name = name;
+            this.type = type;
+            this.info = info;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+    }
+
+    private static final Column[] COLUMNS = Column.values();
+
+    private FrequencyTable() {
+    }
+
+    /**
+     * @return true if the file starts as a frequency table
+     */
+    static boolean isTable(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Group of rows as stored in the footer
+     */
+    static class RowGroup {
+        private long offset;
+        private int rows;
+        private int firstContig;
+        private int firstPosition;
+        private int lastContig;
+        private int lastPosition;
+        private final byte[] encodings = new byte[COLUMNS.length];
+        private final int[] lengths = new int[COLUMNS.length];
+        private final int[] compressedLengths = new int[COLUMNS.length];
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getFirstContig() {
+            return firstContig;
+        }
+
+        public int getFirstPosition() {
+            return firstPosition;
+        }
+
+        public int getLastContig() {
+            return lastContig;
+        }
+
+        public int getLastPosition() {
+            return lastPosition;
+        }
+
+        /**
+         * @return true if values of the column are stored through a
+         *         dictionary of the chunk
+         */
+        boolean isDictionary(Column column) {
+            return encodings[column.ordinal()] == DICTIONARY;
+        }
+
+        private long chunkOffset(Column column) {
+            long chunkOffset = offset;
+            for (int c = 0; c < column.ordinal(); c++) {
+                chunkOffset += compressedLengths[c];
+            }
+            return chunkOffset;
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final String infoPrefix;
+        private final List<String> contigs = new ArrayList<>();
+        private final Map<String, Integer> contigIds = new HashMap<>();
+        private final List<RowGroup> groups = new ArrayList<>();
+        private long offset;
+        private long rows = 0;
+
+        /** values of the current group by column, of its type */
+        private final int[][] ints = new int[COLUMNS.length][];
+        private final double[][] doubles = new double[COLUMNS.length][];
+        private final String[][] strings = new String[COLUMNS.length][];
+        private int groupRows = 0;
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final Chunk chunk = new Chunk();
+        private byte[] compressed = new byte[1 << 16];
+
+        /**
+         * @param infoPrefix
+         *            - prefix of INFO entries of summary records
+         */
+        public Writer(File file, String infoPrefix) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            this.infoPrefix = infoPrefix;
+            for (Column column : COLUMNS) {
+                switch (column.type) {
+                case CONTIG:
+                case INT:
+                    ints[column.ordinal()] = new int[ROW_GROUP_SIZE];
+                    break;
+                case DOUBLE:
+                    doubles[column.ordinal()] = new double[ROW_GROUP_SIZE];
+                    break;
+                case STRING:
+                    strings[column.ordinal()] = new String[ROW_GROUP_SIZE];
+                    break;
+                }
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            offset = out.size();
+        }
+
+        /**
+         * Adds a row per alternative allele of a summary record; records have
+         * to come in order of the summary
+         */
+        public void add(VariantContext vc) throws IOException {
+            Integer contig = contigIds.get(vc.getContig());
+            if (contig == null) {
+                contig = contigs.size();
+                contigs.add(vc.getContig());
+                contigIds.put(vc.getContig(), contig);
+            }
+            for (Allele alt : vc.getAlternateAlleles()) {
+                int row = groupRows;
+                ints[Column.CHROM.ordinal()][row] = contig;
+                ints[Column.POS.ordinal()][row] = vc.getStart();
+                strings[Column.REF.ordinal()][row] = vc.getReference().getBaseString();
+                strings[Column.ALT.ordinal()][row] = alt.getDisplayString();
+                for (Column column : COLUMNS) {
+                    if (!column.info) {
+                        continue;
+                    }
+                    String key = infoPrefix + column.name;
+                    if (column.type == Type.INT) {
+                        ints[column.ordinal()][row] = vc.getAttributeAsInt(key, 0);
+                    } else {
+                        doubles[column.ordinal()][row] = asWritten(vc.getAttributeAsDouble(key, Double.NaN));
+                    }
+                }
+                if (++groupRows == ROW_GROUP_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        public long getRows() {
+            return rows + groupRows;
+        }
+
+        /**
+         * Value as read back from the VCF text of the summary
+         */
+        private static double asWritten(double value) {
+            return Double.isNaN(value) ? value : Double.parseDouble(VCFEncoder.formatVCFDouble(value));
+        }
+
+        private void flush() throws IOException {
+            if (groupRows == 0) {
+                return;
+            }
+            RowGroup group = new RowGroup();
+            group.offset = offset;
+            group.rows = groupRows;
+            int[] chrom = ints[Column.CHROM.ordinal()];
+            int[] pos = ints[Column.POS.ordinal()];
+            group.firstContig = chrom[0];
+            group.firstPosition = pos[0];
+            group.lastContig = chrom[groupRows - 1];
+            group.lastPosition = pos[groupRows - 1];
+
+            for (Column column : COLUMNS) {
+                int c = column.ordinal();
+                chunk.reset();
+                switch (column.type) {
+                case CONTIG:
+                case INT:
+                    group.encodings[c] = column == Column.POS ? DELTA : PLAIN;
+                    int previous = 0;
+                    for (int row = 0; row < groupRows; row++) {
+                        int value = ints[c][row];
+                        if (column == Column.POS) {
+                            chunk.writeSignedVarint(value - previous);
+                            previous = value;
+                        } else {
+                            chunk.writeSignedVarint(value);
+                        }
+                    }
+                    break;
+                case DOUBLE:
+                    group.encodings[c] = writeDoubles(doubles[c]);
+                    break;
+                case STRING:
+                    group.encodings[c] = writeStrings(strings[c]);
+                    Arrays.fill(strings[c], 0, groupRows, null);
+                    break;
+                }
+                group.lengths[c] = chunk.size();
+                group.compressedLengths[c] = writeCompressed();
+            }
+            groups.add(group);
+            rows += groupRows;
+            groupRows = 0;
+        }
+
+        private byte writeDoubles(double[] values) {
+            Map<Double, Integer> dictionary = new HashMap<>();
+            for (int row = 0; row < groupRows && dictionary.size() <= groupRows / 2; row++) {
+                dictionary.putIfAbsent(values[row], dictionary.size());
+            }
+            if (dictionary.size() > groupRows / 2) {
+                for (int row = 0; row < groupRows; row++) {
+                    chunk.writeDouble(values[row]);
+                }
+                return PLAIN;
+            }
+            double[] entries = new double[dictionary.size()];
+            for (Map.Entry<Double, Integer> entry : dictionary.entrySet()) {
+                entries[entry.getValue()] = entry.getKey();
+            }
+            chunk.writeVarint(entries.length);
+            for (double entry : entries) {
+                chunk.writeDouble(entry);
+            }
+            for (int row = 0; row < groupRows; row++) {
+                chunk.writeVarint(dictionary.get(values[row]));
+            }
+            return DICTIONARY;
+        }
+
+        private byte writeStrings(String[] values) {
+            Map<String, Integer> dictionary = new HashMap<>();
+            for (int row = 0; row < groupRows && dictionary.size() <= groupRows / 2; row++) {
+                dictionary.putIfAbsent(values[row], dictionary.size());
+            }
+            if (dictionary.size() > groupRows / 2) {
+                for (int row = 0; row < groupRows; row++) {
+                    chunk.writeString(values[row]);
+                }
+                return PLAIN;
+            }
+            String[] entries = new String[dictionary.size()];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                entries[entry.getValue()] = entry.getKey();
+            }
+            chunk.writeVarint(entries.length);
+            for (String entry : entries) {
+                chunk.writeString(entry);
+            }
+            for (int row = 0; row < groupRows; row++) {
+                chunk.writeVarint(dictionary.get(values[row]));
+            }
+            return DICTIONARY;
+        }
+
+        /**
+         * Deflates the chunk to the output
+         *
+         * @return compressed length
+         */
+        private int writeCompressed() throws IOException {
+            deflater.reset();
+            deflater.setInput(chunk.buffer(), 0, chunk.size());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            out.write(compressed, 0, length);
+            offset += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                long footerOffset = offset;
+                out.writeInt(COLUMNS.length);
+                for (Column column : COLUMNS) {
+                    out.writeUTF(column.name);
+                    out.writeByte(column.type.ordinal());
+                }
+                out.writeInt(contigs.size());
+                for (String contig : contigs) {
+                    out.writeUTF(contig);
+                }
+                out.writeInt(groups.size());
+                for (RowGroup group : groups) {
+                    out.writeLong(group.offset);
+                    out.writeInt(group.rows);
+                    out.writeInt(group.firstContig);
+                    out.writeInt(group.firstPosition);
+                    out.writeInt(group.lastContig);
+                    out.writeInt(group.lastPosition);
+                    for (int c = 0; c < COLUMNS.length; c++) {
+                        out.writeByte(group.encodings[c]);
+                        out.writeInt(group.lengths[c]);
+                        out.writeInt(group.compressedLengths[c]);
+                    }
+                }
+                out.writeLong(footerOffset);
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel channel;
+        private final List<String> contigs = new ArrayList<>();
+        private final List<RowGroup> groups = new ArrayList<>();
+        private final Inflater inflater = new Inflater(true);
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                readFooter();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void readFooter() throws IOException {
+            long size = channel.size();
+            if (size < 8 + TRAILER_LENGTH) {
+                throw new IOException("Not a frequency table: " + file);
+            }
+            ByteBuffer head = read(0, 8);
+            ByteBuffer trailer = read(size - TRAILER_LENGTH, TRAILER_LENGTH);
+            long footerOffset = trailer.getLong();
+            if (head.getInt() != MAGIC || trailer.getInt() != MAGIC || footerOffset < 8
+                    || footerOffset > size - TRAILER_LENGTH) {
+                throw new IOException("Not a frequency table: " + file);
+            }
+            int version = head.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of frequency table " + file);
+            }
+
+            ByteBuffer footer = read(footerOffset, (int) (size - TRAILER_LENGTH - footerOffset));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer.array(), 0, footer.limit()));
+            int columns = in.readInt();
+            if (columns != COLUMNS.length) {
+                throw new IOException("Frequency table " + file + " has " + columns + " columns, expected "
+                        + COLUMNS.length);
+            }
+            for (Column column : COLUMNS) {
+                String name = in.readUTF();
+                int type = in.readByte();
+                if (!name.equals(column.name) || type != column.type.ordinal()) {
+                    throw new IOException("Unexpected column " + name + " of frequency table " + file);
+                }
+            }
+            int contigCount = in.readInt();
+            for (int i = 0; i < contigCount; i++) {
+                contigs.add(in.readUTF());
+            }
+            int groupCount = in.readInt();
+            for (int i = 0; i < groupCount; i++) {
+                RowGroup group = new RowGroup();
+                group.offset = in.readLong();
+                group.rows = in.readInt();
+                group.firstContig = in.readInt();
+                group.firstPosition = in.readInt();
+                group.lastContig = in.readInt();
+                group.lastPosition = in.readInt();
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    group.encodings[c] = in.readByte();
+                    group.lengths[c] = in.readInt();
+                    group.compressedLengths[c] = in.readInt();
+                }
+                groups.add(group);
+            }
+        }
+
+        /**
+         * @return names of contigs, indexed by values of {@link Column#CHROM}
+         */
+        public List<String> getContigs() {
+            return contigs;
+        }
+
+        public List<RowGroup> getRowGroups() {
+            return groups;
+        }
+
+        public long getRows() {
+            long rows = 0;
+            for (RowGroup group : groups) {
+                rows += group.rows;
+            }
+            return rows;
+        }
+
+        /**
+         * Values of a {@link Type#CONTIG} or {@link Type#INT} column
+         */
+        public int[] readInts(RowGroup group, Column column) throws IOException {
+            if (column.type != Type.CONTIG && column.type != Type.INT) {
+                throw new IllegalArgumentException("Column " + column.name + " is of type " + column.type);
+            }
+            ByteBuffer chunk = readChunk(group, column);
+            int[] values = new int[group.rows];
+            int previous = 0;
+            for (int row = 0; row < group.rows; row++) {
+                int value = readSignedVarint(chunk);
+                if (group.encodings[column.ordinal()] == DELTA) {
+                    value += previous;
+                    previous = value;
+                }
+                values[row] = value;
+            }
+            return values;
+        }
+
+        public double[] readDoubles(RowGroup group, Column column) throws IOException {
+            if (column.type != Type.DOUBLE) {
+                throw new IllegalArgumentException("Column " + column.name + " is of type " + column.type);
+            }
+            ByteBuffer chunk = readChunk(group, column);
+            double[] values = new double[group.rows];
+            if (group.encodings[column.ordinal()] == DICTIONARY) {
+                double[] dictionary = new double[readVarint(chunk)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = chunk.getDouble();
+                }
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = dictionary[readVarint(chunk)];
+                }
+            } else {
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = chunk.getDouble();
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Values of a {@link Type#STRING} column; equal values of a
+         * dictionary chunk are the same instance
+         */
+        public String[] readStrings(RowGroup group, Column column) throws IOException {
+            if (column.type != Type.STRING) {
+                throw new IllegalArgumentException("Column " + column.name + " is of type " + column.type);
+            }
+            ByteBuffer chunk = readChunk(group, column);
+            String[] values = new String[group.rows];
+            if (group.encodings[column.ordinal()] == DICTIONARY) {
+                String[] dictionary = new String[readVarint(chunk)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = readString(chunk);
+                }
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = dictionary[readVarint(chunk)];
+                }
+            } else {
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = readString(chunk);
+                }
+            }
+            return values;
+        }
+
+        private ByteBuffer readChunk(RowGroup group, Column column) throws IOException {
+            int c = column.ordinal();
+            ByteBuffer compressed = read(group.chunkOffset(column), group.compressedLengths[c]);
+            byte[] bytes = new byte[group.lengths[c]];
+            inflater.reset();
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            try {
+                int length = 0;
+                while (length < bytes.length) {
+                    int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated chunk " + column.name + " of frequency table " + file);
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted chunk " + column.name + " of frequency table " + file, e);
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated frequency table " + file);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            channel.close();
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int readSignedVarint(ByteBuffer in) {
+        int value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * Encoded values of a chunk
+     */
+    private static class Chunk extends ByteArrayOutputStream {
+        public Chunk() {
+            super(1 << 16);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        /** zigzag, small negative values are short too */
+        void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (bits >>> shift));
+            }
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
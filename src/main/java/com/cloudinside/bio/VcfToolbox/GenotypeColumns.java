@@ -0,0 +1,232 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
+
+/**
+ * Genotypes of all samples of one joined record, in primitive columns reused
+ * from record to record: memory depends on the number of samples and alleles,
+ * not on the number of inputs or records, and no per sample objects are kept.
+ *
+ * GT is kept as allele indexes (ploidy grows as needed), DP and GQ as ints, AD
+ * and PL as ints when of the expected length (number of alleles, diploid
+ * genotypes). Other FORMAT fields and genotype filters are kept as objects,
+ * only for samples that have them. Samples not set for the record are
+ * no-calls.
+ *
+ * Setting a record touches only samples set for the previous one, so joining
+ * many single sample inputs costs per record the samples present, plus the
+ * output genotypes.
+ *
+ * @author pstawinski
+ *
+ */
+class GenotypeColumns {
+    private static final int MISSING = Integer.MIN_VALUE;
+    private static final int NO_CALL = -1;
+
+    private final List<String> samples;
+    private final int size;
+
+    /** samples set for the current record */
+    private final BitSet set;
+    private final BitSet phased;
+
+    private int ploidyStride = 2;
+    private final byte[] ploidies;
+    private int[] alleles;
+
+    private final int[] dp;
+    private final int[] gq;
+
+    private int alleleCount;
+    private int adStride;
+    private int[] ad;
+    private int plStride;
+    private int[] pl;
+
+    /** AD and PL of other length, as given */
+    private int[][] otherAd;
+    private int[][] otherPl;
+    private String[] filters;
+    private final Map<String, Object[]> extended = new HashMap<>();
+
+    public GenotypeColumns(List<String> samples) {
+        this.samples = samples;
+        this.size = samples.size();
+        this.set = new BitSet(size);
+        this.phased = new BitSet(size);
+        this.ploidies = new byte[size];
+        this.alleles = new int[size * ploidyStride];
+        this.dp = new int[size];
+        this.gq = new int[size];
+        this.ad = new int[0];
+        this.pl = new int[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Starts a record, all samples are no-calls
+     */
+    public void reset(int alleleCount) {
+        for (int sample = set.nextSetBit(0); sample >= 0; sample = set.nextSetBit(sample + 1)) {
+            if (otherAd != null) {
+                otherAd[sample] = null;
+            }
+            if (otherPl != null) {
+                otherPl[sample] = null;
+            }
+            if (filters != null) {
+                filters[sample] = null;
+            }
+            for (Object[] values : extended.values()) {
+                values[sample] = null;
+            }
+        }
+        set.clear();
+        phased.clear();
+
+        this.alleleCount = alleleCount;
+        adStride = alleleCount;
+        plStride = alleleCount * (alleleCount + 1) / 2;
+        if (ad.length < size * adStride) {
+            ad = new int[size * adStride];
+        }
+        if (pl.length < size * plStride) {
+            pl = new int[size * plStride];
+        }
+    }
+
+    /**
+     * @param recordAlleles
+     *            - alleles of the record, the reference first; alleles of g
+     *            not among them are no-calls
+     */
+    public void set(int sample, Genotype g, List<Allele> recordAlleles) {
+        set.set(sample);
+        int ploidy = g.getPloidy();
+        if (ploidy > ploidyStride) {
+            growPloidy(ploidy);
+        }
+        ploidies[sample] = (byte) ploidy;
+        for (int i = 0; i < ploidy; i++) {
+            Allele allele = g.getAllele(i);
+            alleles[sample * ploidyStride + i] = allele.isNoCall() ? NO_CALL : recordAlleles.indexOf(allele);
+        }
+        if (g.isPhased()) {
+            phased.set(sample);
+        }
+        dp[sample] = g.hasDP() ? g.getDP() : MISSING;
+        gq[sample] = g.hasGQ() ? g.getGQ() : MISSING;
+
+        int[] values = g.getAD();
+        if (values != null && values.length == adStride) {
+            System.arraycopy(values, 0, ad, sample * adStride, adStride);
+        } else {
+            ad[sample * adStride] = MISSING;
+            if (values != null) {
+                if (otherAd == null) {
+                    otherAd = new int[size][];
+                }
+                otherAd[sample] = values;
+            }
+        }
+        values = g.getPL();
+        if (values != null && values.length == plStride) {
+            System.arraycopy(values, 0, pl, sample * plStride, plStride);
+        } else {
+            pl[sample * plStride] = MISSING;
+            if (values != null) {
+                if (otherPl == null) {
+                    otherPl = new int[size][];
+                }
+                otherPl[sample] = values;
+            }
+        }
+
+        if (g.isFiltered()) {
+            if (filters == null) {
+                filters = new String[size];
+            }
+            filters[sample] = g.getFilters();
+        }
+        for (Entry<String, Object> attribute : g.getExtendedAttributes().entrySet()) {
+            extended.computeIfAbsent(attribute.getKey(), k -> new Object[size])[sample] = attribute.getValue();
+        }
+    }
+
+    private void growPloidy(int ploidy) {
+        int[] grown = new int[size * ploidy];
+        for (int sample = 0; sample < size; sample++) {
+            System.arraycopy(alleles, sample * ploidyStride, grown, sample * ploidy, ploidyStride);
+        }
+        alleles = grown;
+        ploidyStride = ploidy;
+    }
+
+    /**
+     * Genotypes of all samples, in order of samples
+     */
+    public GenotypesContext toGenotypes(List<Allele> recordAlleles) {
+        if (recordAlleles.size() != alleleCount) {
+            throw new IllegalArgumentException("Record has " + recordAlleles.size() + " alleles, columns " + alleleCount);
+        }
+        ArrayList<Genotype> genotypes = new ArrayList<>(size);
+        for (int sample = 0; sample < size; sample++) {
+            genotypes.add(genotype(sample, recordAlleles));
+        }
+        return GenotypesContext.create(genotypes);
+    }
+
+    private Genotype genotype(int sample, List<Allele> recordAlleles) {
+        if (!set.get(sample)) {
+            return GenotypeBuilder.createMissing(samples.get(sample), 2);
+        }
+        int ploidy = ploidies[sample];
+        List<Allele> gt = new ArrayList<>(ploidy);
+        for (int i = 0; i < ploidy; i++) {
+            int allele = alleles[sample * ploidyStride + i];
+            gt.add(allele < 0 ? Allele.NO_CALL : recordAlleles.get(allele));
+        }
+        GenotypeBuilder gb = new GenotypeBuilder(samples.get(sample), gt).phased(phased.get(sample));
+        if (dp[sample] != MISSING) {
+            gb.DP(dp[sample]);
+        }
+        if (gq[sample] != MISSING) {
+            gb.GQ(gq[sample]);
+        }
+        if (ad[sample * adStride] != MISSING) {
+            gb.AD(Arrays.copyOfRange(ad, sample * adStride, (sample + 1) * adStride));
+        } else if (otherAd != null && otherAd[sample] != null) {
+            gb.AD(otherAd[sample]);
+        }
+        if (pl[sample * plStride] != MISSING) {
+            gb.PL(Arrays.copyOfRange(pl, sample * plStride, (sample + 1) * plStride));
+        } else if (otherPl != null && otherPl[sample] != null) {
+            gb.PL(otherPl[sample]);
+        }
+        if (filters != null && filters[sample] != null) {
+            gb.filter(filters[sample]);
+        }
+        for (Entry<String, Object[]> attribute : extended.entrySet()) {
+            Object value = attribute.getValue()[sample];
+            if (value != null) {
+                gb.attribute(attribute.getKey(), value);
+            }
+        }
+        return gb.make();
+    }
+}
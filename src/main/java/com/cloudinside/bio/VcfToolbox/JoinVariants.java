@@ -1,8 +1,8 @@
 package com.cloudinside.bio.VcfToolbox;
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -18,19 +18,18 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.cloudinside.bio.VcfToolbox.VariantFiles.OutputType;
 
-import htsjdk.samtools.reference.ReferenceSequenceFile;
-import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
-import htsjdk.variant.variantcontext.VariantContextComparator;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
-import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
-import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFFilterHeaderLine;
 import htsjdk.variant.vcf.VCFFormatHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
@@ -47,6 +46,17 @@ import htsjdk.variant.vcf.VCFInfoHeaderLine;
  * sort -k1,1V -k2,2n -k4,4 -k5,5
  * </pre>
  *
+ * or, with --sort-inputs, are sorted by {@link ExternalVariantSorter}. With
+ * --left-align multiallelic records are split and indels left-aligned by
+ * {@link VariantNormalizer}.
+ *
+ * By default inputs are calls of one sample (e.g. by many callers): the output
+ * has the genotype of the first input with the record, INFO entries of all
+ * inputs are prefixed. With --merge-samples inputs are different samples
+ * (single- or multi-sample files): the output has the samples of all inputs,
+ * genotypes gathered in {@link GenotypeColumns}, samples of inputs without the
+ * record are no-calls; INFO is of the first input with the record.
+ *
  * @author pstawinski
  *
  */
@@ -59,39 +69,76 @@ public class JoinVariants {
     private static final String ZGM_VCF_SUPPORTING_FREQ = "ZGM_vcf_sf";
     private static final String ZGM_VCF_SUPPORTING_NUM = "ZGM_vcf_sn";
     private static final String ZGM_VCF_SUPPORTING_SOURCES = "ZGM_vcf_sources";
+    private static final int INPUT_BUFFER_SIZE = 1 << 15;
 
     @Parameter(names = "--input", description = "Vcf input file (can be bgzipped, may need to indexed through tabix)", required = true)
     private List<String> inputVcfFiles;
-    @Parameter(names = "--prefixes", description = "Prefixes of vcfs, must be equal in size as --input", required = true)
+    @Parameter(names = "--prefixes", description = "Prefixes of vcfs, must be equal in size as --input; optional with --merge-samples, then only in the list of sources", required = false)
     private List<String> inputPrefixes;
     @Parameter(names = "--ref", description = "Reference, used only for sequence dictionary", required = true)
     private String referenceFile;
+    @Parameter(names = "--dict-cache", description = "Directory of sequence dictionaries of references, read from it instead of the .dict (or .fai) when the reference is not modified", required = false)
+    private String dictCache;
     @Parameter(names = "--output", description = "Vcf output", required = true)
     private String outputVcfFile;
+    @Parameter(names = "--output-type", description = "v - VCF, z - bgzipped VCF, u - BCF, b - bgzipped BCF; default from --output extension (.bcf is b)", required = false)
+    private String outputType;
+    @Parameter(names = "--compression-threads", description = "Number of threads compressing bgzipped output (VCF or BCF), 1 - compressed by the writing thread", required = false)
+    private int compressionThreads = 1;
     @Parameter(names = "--ignore-missing-header", description = "Ingore missing header", required = false)
     private boolean ignoreMissingHeader = false;
     @Parameter(names = "--create-output-index", description = "Create index of output vcf file", required = false)
     private boolean createOutputIndex = false;
+    @Parameter(names = "--region", description = "Join only records overlapping region chr, chr:pos or chr:start-end (1-based), can be repeated; uses tabix (.tbi) or tribble (.idx) index of inputs", required = false)
+    private List<String> region;
+    @Parameter(names = "--regions-file", description = "Join only records overlapping regions of BED file; uses tabix (.tbi) or tribble (.idx) index of inputs", required = false)
+    private String regionsFile;
+    @Parameter(names = "--metrics", description = "Write summary of the run (records, timings per record, sizes) as JSON to the file", required = false)
+    private String metricsFile;
+    @Parameter(names = "--metrics-interval", description = "Print progress as JSON lines every given seconds instead of \"Processed N\" lines, 0 - off", required = false)
+    private int metricsInterval = 0;
+    @Parameter(names = "--left-align", description = "Split multiallelic records and left-align indels against --ref (needs .fai index), as bcftools norm -m- -f; inputs need not be in single obs form", required = false)
+    private boolean leftAlign = false;
+    @Parameter(names = "--norm-window", description = "With --left-align: maximal shift of a record, records moved are re-sorted within the window", required = false)
+    private int normWindow = VariantNormalizer.DEFAULT_WINDOW;
+    @Parameter(names = "--sort-inputs", description = "Inputs need not be sorted, they are sorted by an external merge sort in the order of the join", required = false)
+    private boolean sortInputs = false;
+    @Parameter(names = "--sort-memory", description = "With --sort-inputs: memory for sorting in MB, shared by inputs; larger inputs are spilled to --tmp-dir in sorted runs, merged until all inputs keep about 64 runs open", required = false)
+    private int sortMemory = 1024;
+    @Parameter(names = "--tmp-dir", description = "With --sort-inputs: directory of sorted runs, default directory of --output", required = false)
+    private String tmpDir;
+    @Parameter(names = "--merge-samples", description = "Inputs are different samples: output has samples of all inputs (repeated names are prefixed with input number, as 2:NAME), no-calls for inputs without the record; INFO of the first input with the record", required = false)
+    private boolean mergeSamples = false;
 
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
         // to have Double formatted correctly
         Locale.setDefault(Locale.ENGLISH);
 
         JoinVariants app = new JoinVariants();
-        JCommander jc = null;
+        JCommander jc = JCommander.newBuilder().addObject(app).build();
         try {
-            jc = new JCommander(app, args);
-
-            app.go();
-        } catch (Exception e) {
-            e.printStackTrace();
+            jc.parse(args);
+        } catch (ParameterException e) {
             jc.usage();
-
+            throw e;
         }
+        app.go();
     }
 
     private void go() {
-        if (inputPrefixes.size() != inputVcfFiles.size()) {
+        if (inputPrefixes == null ? !mergeSamples : inputPrefixes.size() != inputVcfFiles.size()) {
             System.err.println("inputPrefixes size must be equal inputVcfFiles size");
             throw new NullPointerException(); // :D
         }
@@ -105,21 +152,55 @@ public class JoinVariants {
         VCFHeader oputputHeader = null;
 
         String sampleName = null;
+        SAMSequenceDictionary referenceDictionary = SequenceDictionaries.get(new File(referenceFile),
+                dictCache == null ? null : new File(dictCache));
+        VariantContextComparatorAltAware variantContextComparator = new VariantContextComparatorAltAware(
+                referenceDictionary);
+        File outputFile = new File(outputVcfFile);
+        OutputType type = OutputType.of(outputFile, outputType);
+
+        List<VariantReader> readers = new ArrayList<>();
         List<VcfIteratorWrapper> readerIterators = new ArrayList<>();
-        {
+        File sortDir = tmpDir != null ? new File(tmpDir) : outputFile.getAbsoluteFile().getParentFile();
+        long sortBudget = (long) sortMemory * 1024 * 1024 / inputVcfFiles.size();
+        // open run files of all inputs about the fan-in of one sorter
+        int sortRuns = Math.max(1, ExternalVariantSorter.MAX_FAN_IN / inputVcfFiles.size());
+        List<String> outputSamples = new ArrayList<>();
+        Set<String> outputSampleNames = new HashSet<>();
+        List<String[]> inputSamples = new ArrayList<>();
+        List<int[]> sampleColumns = new ArrayList<>();
+        List<String> contigNames = new ArrayList<>();
+        for (SAMSequenceRecord sequence : referenceDictionary.getSequences()) {
+            contigNames.add(sequence.getSequenceName());
+        }
+        CachedReferenceSequence normReference = leftAlign ? CachedReferenceSequence.open(new File(referenceFile))
+                : null;
+        try {
+            Regions regions = Regions.of(region, regionsFile, referenceDictionary);
             int index = 0;
             for (String filename : inputVcfFiles) {
                 File file = new File(filename);
 
-                VCFFileReader vcfFileReader = new VCFFileReader(file, false);
+                // without regions inputs are only iterated, small buffers let many of them be open
+                VariantReader vcfFileReader = regions == null ? VariantReader.openSequential(file, INPUT_BUFFER_SIZE)
+                        : VariantReader.open(file, false);
+                readers.add(vcfFileReader);
                 VCFHeader header = vcfFileReader.getFileHeader();
-                CloseableIterator<VariantContext> it = vcfFileReader.iterator();
-                readerIterators.add(new VcfIteratorWrapper(it));
+                CloseableIterator<VariantContext> it = regions == null ? vcfFileReader.iterator()
+                        : regions.iterator(vcfFileReader);
+                if (leftAlign) {
+                    it = new VariantNormalizer(it, header, normReference, normWindow);
+                }
+                if (sortInputs) {
+                    log.info("Sorting " + filename);
+                    it = new ExternalVariantSorter(it, new VariantRecordCodec(contigNames, header.getGenotypeSamples()),
+                            variantContextComparator.sortKeys(), sortBudget, sortDir, sortRuns);
+                }
+                readerIterators.add(new VcfIteratorWrapper(it, variantContextComparator.sortKeys()));
 
                 if (vcfWriter == null) {
-                    vcfWriter = new VariantContextWriterBuilder().setOptions(options)
-                            .setOutputFile(new File(outputVcfFile))
-                            .setReferenceDictionary(header.getSequenceDictionary()).build();
+                    vcfWriter = VariantFiles.createWriter(outputFile, type, options, header.getSequenceDictionary(),
+                            compressionThreads);
 
                 }
 
@@ -143,14 +224,24 @@ public class JoinVariants {
                                     VCFHeaderLineType.String, "vcfs supporting this observation"));
 
                     sampleName = header.getSampleNamesInOrder().get(0);
-                } else {
+                } else if (!mergeSamples) {
                     if (!sampleName.equals(header.getSampleNamesInOrder().get(0))) {
                         log.warn("Sample name differs: " + sampleName + " != " + header.getSampleNamesInOrder().get(0)
                                 + "; this is probably not a problem, but be warned");
                     }
                 }
 
+                if (mergeSamples) {
+                    addSamples(header, index, outputSamples, outputSampleNames, inputSamples, sampleColumns);
+                }
+
                 for (VCFInfoHeaderLine infoHeaderLine : header.getInfoHeaderLines()) {
+                    if (mergeSamples) {
+                        if (!oputputHeader.hasInfoLine(infoHeaderLine.getID())) {
+                            oputputHeader.addMetaDataLine(infoHeaderLine);
+                        }
+                        continue;
+                    }
                     VCFInfoHeaderLine newHeaderLine;
                     if (infoHeaderLine.getCountType() == VCFHeaderLineCount.INTEGER)
                         newHeaderLine = new VCFInfoHeaderLine(inputPrefixes.get(index) + infoHeaderLine.getID(),
@@ -178,147 +269,137 @@ public class JoinVariants {
                 // if (index == 0) {
                 // oputputHeader.setSequenceDictionary(header.getSequenceDictionary());
                 // }
-                vcfFileReader.close();
                 index++;
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
+        GenotypeColumns columns = null;
+        if (mergeSamples) {
+            oputputHeader = new VCFHeader(oputputHeader.getMetaDataInInputOrder(), outputSamples);
+            columns = new GenotypeColumns(outputSamples);
+            log.info("Joining " + outputSamples.size() + " samples of " + inputVcfFiles.size() + " inputs");
+        }
+        if (type.isBcf()) {
+            VariantFiles.addContigLines(oputputHeader, referenceDictionary);
+        }
         vcfWriter.writeHeader(oputputHeader);
 
-        ReferenceSequenceFile referenceSequenceFile = ReferenceSequenceFileFactory
-                .getReferenceSequenceFile(new File(referenceFile));
+        VariantMergeQueue mergeQueue = new VariantMergeQueue(readerIterators);
+        int[] groupInputs = new int[readerIterators.size()];
+        VariantContext[] groupRecords = new VariantContext[readerIterators.size()];
 
-        VariantContextComparatorAltAware variantContextComparator = new VariantContextComparatorAltAware(
-                new VariantContextComparator(referenceSequenceFile.getSequenceDictionary()));
-
-        try {
-            referenceSequenceFile.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        ToolMetrics metrics = new ToolMetrics("JoinVariants").start(metricsInterval, metricsFile);
+        for (String filename : inputVcfFiles) {
+            metrics.addInputFile(new File(filename));
         }
-
-        int counter = 0;
-        boolean done = false;
-        while (!done) {
-            // find smallest
-            VariantContext smallest = null;
-            for (VcfIteratorWrapper it : readerIterators) {
-                if (smallest == null) {
-                    smallest = it.peek();
-                } else {
-                    if (it.peek() != null && variantContextComparator.compare(smallest, it.peek()) > 0) {
-                        smallest = it.peek();
+        metrics.addOutputFile(outputFile);
+
+        int groupSize;
+        long start = System.nanoTime();
+        // decode is reading and merging inputs up to the next group
+        while ((groupSize = mergeQueue.nextGroup(groupInputs, groupRecords)) > 0) {
+            start = metrics.decode.since(start);
+            // smallest record of the input with the lowest index
+            VariantContext vc = groupRecords[groupInputs[0]];
+            VariantContextBuilder vcb = new VariantContextBuilder(vc);
+
+            // vcb.filter(".");
+            // vcb.noID();
+            // vcb.noGenotypes();
+
+            List<String> prefixes = new ArrayList<>(groupSize);
+            if (mergeSamples) {
+                columns.reset(vc.getNAlleles());
+                for (int i = 0; i < groupSize; i++) {
+                    int index = groupInputs[i];
+                    VariantContext itvc = groupRecords[index];
+                    groupRecords[index] = null;
+                    String[] names = inputSamples.get(index);
+                    int[] sampleColumn = sampleColumns.get(index);
+                    for (int s = 0; s < names.length; s++) {
+                        Genotype genotype = itvc.getGenotype(names[s]);
+                        if (genotype != null) {
+                            columns.set(sampleColumn[s], genotype, vc.getAlleles());
+                        }
+                    }
+                    if (inputPrefixes != null) {
+                        prefixes.add(inputPrefixes.get(index));
                     }
                 }
-            }
-
-            // smallest contains smallest or null
-            if (smallest == null) {
-                done = true;
+                vcb.genotypes(columns.toGenotypes(vc.getAlleles()));
             } else {
-                VariantContext vc = smallest;
-                VariantContextBuilder vcb = new VariantContextBuilder(vc);
-
-                // vcb.filter(".");
-                // vcb.noID();
-                // vcb.noGenotypes();
-
                 vcb.attributes(new HashMap<String, Object>());
 
-                int count = 0;
-                int index = 0;
-                List<String> prefixes = new ArrayList<>();
-                for (VcfIteratorWrapper it : readerIterators) {
-                    if (it.peek() != null && variantContextComparator.compare(smallest, it.peek()) == 0) {
-                        VariantContext itvc = it.pop();
-                        for (Entry<String, Object> attribute : itvc.getAttributes().entrySet()) {
-                            vcb.attribute(inputPrefixes.get(index) + attribute.getKey(), attribute.getValue());
-                        }
-                        count++;
-                        prefixes.add(inputPrefixes.get(index));
+                for (int i = 0; i < groupSize; i++) {
+                    int index = groupInputs[i];
+                    VariantContext itvc = groupRecords[index];
+                    groupRecords[index] = null;
+                    for (Entry<String, Object> attribute : itvc.getAttributes().entrySet()) {
+                        vcb.attribute(inputPrefixes.get(index) + attribute.getKey(), attribute.getValue());
                     }
-
-                    index++;
-
+                    prefixes.add(inputPrefixes.get(index));
                 }
                 Genotype genotype = vc.getGenotypes().get(0);
                 GenotypeBuilder modifiedGenotype = new GenotypeBuilder(genotype).name(sampleName);
 
                 vcb.genotypes(modifiedGenotype.make());
-                vcb.attribute(ZGM_VCF_SUPPORTING_ANALYZED, inputPrefixes.size());
-                vcb.attribute(ZGM_VCF_SUPPORTING_NUM, count);
-                vcb.attribute(ZGM_VCF_SUPPORTING_FREQ, (double) count / (double) inputPrefixes.size());
+            }
+            vcb.attribute(ZGM_VCF_SUPPORTING_ANALYZED, inputVcfFiles.size());
+            vcb.attribute(ZGM_VCF_SUPPORTING_NUM, groupSize);
+            vcb.attribute(ZGM_VCF_SUPPORTING_FREQ, (double) groupSize / (double) inputVcfFiles.size());
+            if (!prefixes.isEmpty()) {
                 vcb.attribute(ZGM_VCF_SUPPORTING_SOURCES, StringUtils.join(prefixes, ','));
-
-                VariantContext outputVc = vcb.make();
-
-                // remove me
-                // vcfWriter.add(vc);
-                // eo remove me
-
-                vcfWriter.add(outputVc);
-
             }
 
-            if (++counter % 10000 == 0) {
-                System.err.println("Processed " + counter);
-            }
+            VariantContext outputVc = vcb.make();
+            start = metrics.transform.since(start);
+
+            vcfWriter.add(outputVc);
+            start = metrics.write.since(start);
+            metrics.addOutput(1);
+            metrics.addRecords(groupSize);
         }
 
         for (VcfIteratorWrapper it : readerIterators) {
             IOUtils.closeQuietly(it);
         }
+        // queried by region iterators until the end
+        for (VariantReader reader : readers) {
+            IOUtils.closeQuietly(reader);
+        }
+        IOUtils.closeQuietly(normReference);
         vcfWriter.close();
-
-    }
-
-    private static class VcfIteratorWrapper implements Closeable {
-        private final CloseableIterator<VariantContext> iterator;
-
-        private VariantContext topElement;
-
-        public VcfIteratorWrapper(CloseableIterator<VariantContext> iterator) {
-            this.iterator = iterator;
+        try {
+            metrics.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
-        public VariantContext peek() {
-            if (topElement != null)
-                return topElement;
-            else
-                loadElementToTopElement();
-
-            return topElement;
-        }
+    }
 
-        public VariantContext pop() {
-            if (topElement != null) {
-                VariantContext vc = topElement;
-                topElement = null;
-                return vc;
-            } else {
-                loadElementToTopElement();
-                if (topElement != null) {
-                    VariantContext vc = topElement;
-                    topElement = null;
-                    return vc;
-                } else {
-                    return null;
-                }
+    /**
+     * Appends samples of the input to the output samples, a name already there
+     * gets the input number (from 1) as prefix
+     */
+    private static void addSamples(VCFHeader header, int index, List<String> outputSamples, Set<String> names,
+            List<String[]> inputSamples, List<int[]> sampleColumns) {
+        List<String> samples = header.getGenotypeSamples();
+        int[] columns = new int[samples.size()];
+        for (int s = 0; s < samples.size(); s++) {
+            String name = samples.get(s);
+            if (!names.add(name)) {
+                String renamed = (index + 1) + ":" + name;
+                log.warn("Sample " + name + " repeated in input " + (index + 1) + ", written as " + renamed);
+                name = renamed;
+                names.add(name);
             }
+            columns[s] = outputSamples.size();
+            outputSamples.add(name);
         }
-
-        private void loadElementToTopElement() {
-            if (iterator.hasNext())
-                topElement = iterator.next();
-            else
-                topElement = null;
-        }
-
-        @Override
-        public void close() throws IOException {
-            iterator.close();
-        }
+        inputSamples.add(samples.toArray(new String[0]));
+        sampleColumns.add(columns);
     }
 
 }
@@ -0,0 +1,302 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Decompressed content of a BGZF file mapped to memory with
+ * {@link FileChannel#map}. Block headers are read from the mapping as the
+ * stream advances; the deflated data of blocks is handed to inflating workers
+ * as slices of the mapping, without copying to heap, and decompressed blocks
+ * are read in order.
+ *
+ * Files are mapped in segments of 1 GB, each overlapping the next one
+ * by the largest block, so every block lies within one mapping.
+ *
+ * {@link #seek(long)} jumps to a virtual offset of tabix index.
+ *
+ * @author pstawinski
+ *
+ */
+class MappedBgzfInputStream extends InputStream {
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int MAX_BLOCK_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+    private static final int HEADER_LENGTH = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    private static final int FOOTER_LENGTH = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final ExecutorService executor;
+    private final int readAhead;
+    private final Queue<Future<Block>> blocks = new ArrayDeque<>();
+
+    /** address of the next block to schedule */
+    private long nextAddress = 0;
+    private Block current = Block.EMPTY;
+    private int currentOffset = 0;
+
+    private byte[] line = new byte[1024];
+
+    /**
+     * @param threads
+     *            - inflating workers, 1 - blocks are inflated by the reading
+     *            thread
+     */
+    public MappedBgzfInputStream(File file, int threads) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        if (threads > 1) {
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "bgzf-inflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.readAhead = threads * 4;
+        } else {
+            this.executor = null;
+            this.readAhead = 1;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current.data[currentOffset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(length, current.data.length - currentOffset);
+        System.arraycopy(current.data, currentOffset, bytes, offset, n);
+        currentOffset += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.data.length - currentOffset;
+    }
+
+    /**
+     * @return next line without the line terminator, null at end of file
+     */
+    public String readLine() throws IOException {
+        if (!ensureData()) {
+            return null;
+        }
+        int lineLength = 0;
+        while (ensureData()) {
+            byte[] data = current.data;
+            int end = currentOffset;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            int n = end - currentOffset;
+            if (lineLength + n > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+            }
+            System.arraycopy(data, currentOffset, line, lineLength, n);
+            lineLength += n;
+            if (end < data.length) {
+                currentOffset = end + 1;
+                break;
+            }
+            currentOffset = end;
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        return new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return virtual offset of the next byte, as in tabix index
+     */
+    public long getVirtualOffset() throws IOException {
+        if (!ensureData()) {
+            return BlockCompressedFilePointerUtil.makeFilePointer(nextAddress);
+        }
+        return BlockCompressedFilePointerUtil.makeFilePointer(current.address, currentOffset);
+    }
+
+    /**
+     * Moves to a virtual offset, blocks read ahead are dropped
+     */
+    public void seek(long virtualOffset) throws IOException {
+        long address = BlockCompressedFilePointerUtil.getBlockAddress(virtualOffset);
+        int offset = BlockCompressedFilePointerUtil.getBlockOffset(virtualOffset);
+        if (address != current.address || current == Block.EMPTY) {
+            for (Future<Block> block : blocks) {
+                block.cancel(false);
+            }
+            blocks.clear();
+            current = Block.EMPTY;
+            currentOffset = 0;
+            nextAddress = address;
+            if (!ensureData() && offset > 0) {
+                throw new IOException("Seek beyond end of " + file + ": " + virtualOffset);
+            }
+        }
+        if (offset > current.data.length) {
+            throw new IOException("Invalid virtual offset " + virtualOffset + " of " + file);
+        }
+        currentOffset = offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        blocks.clear();
+        segments.clear();
+        channel.close();
+    }
+
+    /**
+     * @return false at end of file
+     */
+    private boolean ensureData() throws IOException {
+        while (currentOffset == current.data.length) {
+            while (blocks.size() < readAhead && nextAddress < fileSize) {
+                blocks.add(schedule());
+            }
+            if (blocks.isEmpty()) {
+                return false;
+            }
+            try {
+                current = blocks.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating BGZF block");
+            } catch (ExecutionException e) {
+                throw new IOException("Invalid BGZF block in " + file, e.getCause());
+            }
+            currentOffset = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Reads header of the block at nextAddress and inflates it, on a worker if
+     * there are any
+     */
+    private Future<Block> schedule() throws IOException {
+        long address = nextAddress;
+        ByteBuffer segment = segment(address);
+        int position = (int) (address - segmentIndex(address) * SEGMENT_SIZE);
+        if (segment.limit() - position < HEADER_LENGTH
+                || segment.get(position) != BlockCompressedStreamConstants.GZIP_ID1
+                || segment.get(position + 1) != (byte) BlockCompressedStreamConstants.GZIP_ID2
+                || segment.get(position + 12) != BlockCompressedStreamConstants.BGZF_ID1
+                || segment.get(position + 13) != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new IOException("Invalid BGZF block header at " + address + " of " + file);
+        }
+        int blockSize = (segment.getShort(position + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) & 0xffff)
+                + 1;
+        if (segment.limit() - position < blockSize) {
+            throw new IOException("Truncated BGZF block at " + address + " of " + file);
+        }
+        int uncompressedSize = segment.getInt(position + blockSize - 4);
+
+        ByteBuffer deflated = segment.duplicate();
+        deflated.position(position + HEADER_LENGTH).limit(position + blockSize - FOOTER_LENGTH);
+        ByteBuffer data = deflated.slice();
+        nextAddress += blockSize;
+
+        if (executor == null) {
+            return CompletableFuture.completedFuture(inflate(address, data, uncompressedSize));
+        }
+        return executor.submit(() -> inflate(address, data, uncompressedSize));
+    }
+
+    private Block inflate(long address, ByteBuffer data, int uncompressedSize) throws IOException {
+        byte[] bytes = new byte[uncompressedSize];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            if (inflater.inflate(bytes) != uncompressedSize || !inflater.finished()) {
+                throw new IOException("Size of inflated BGZF block at " + address + " differs from ISIZE");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflate data of BGZF block at " + address, e);
+        }
+        return new Block(address, bytes);
+    }
+
+    private static int segmentIndex(long address) {
+        return (int) (address / SEGMENT_SIZE);
+    }
+
+    private ByteBuffer segment(long address) throws IOException {
+        int index = segmentIndex(address);
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null) {
+            long start = index * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE + MAX_BLOCK_SIZE, fileSize - start);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.set(index, segment);
+            // segments behind are not needed any more by sequential reading
+            if (index > 0) {
+                segments.set(index - 1, null);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Inflated block
+     */
+    private static class Block {
+        private static final Block EMPTY = new Block(-1, new byte[0]);
+
+        private final long address;
+        private final byte[] data;
+
+        public Block(long address, byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+    }
+}
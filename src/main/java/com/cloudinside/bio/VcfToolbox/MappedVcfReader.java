@@ -0,0 +1,175 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Bgzipped VCF read through {@link MappedBgzfInputStream}. Queries seek the
+ * mapped file to chunks of the tabix index (.tbi next to the file) directly.
+ *
+ * One iterator at a time: iterators share the stream and the codec.
+ *
+ * @author pstawinski
+ *
+ */
+class MappedVcfReader implements Closeable {
+    private final MappedBgzfInputStream in;
+    private final VCFCodec codec = new VCFCodec();
+    private final VCFHeader header;
+    /** virtual offset of the first record */
+    private final long recordsOffset;
+    private final TabixIndex index;
+
+    /**
+     * @param threads
+     *            - inflating workers, see {@link MappedBgzfInputStream}
+     */
+    public MappedVcfReader(File file, int threads, boolean requireIndex) throws IOException {
+        File indexFile = new File(file.getPath() + FileExtensions.TABIX_INDEX);
+        if (requireIndex && !indexFile.exists()) {
+            throw new IllegalArgumentException("Tabix index required: " + indexFile);
+        }
+        this.in = new MappedBgzfInputStream(file, threads);
+        try {
+            List<String> headerLines = new ArrayList<>();
+            long offset = in.getVirtualOffset();
+            String line;
+            while ((line = in.readLine()) != null && line.startsWith("#")) {
+                headerLines.add(line);
+                offset = in.getVirtualOffset();
+            }
+            this.recordsOffset = offset;
+            this.header = (VCFHeader) codec.readActualHeader(new LineIteratorImpl(
+                    new SynchronousLineReader(new StringReader(String.join("\n", headerLines)))));
+            this.index = indexFile.exists() ? new TabixIndex(indexFile) : null;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    public boolean isQueryable() {
+        return index != null;
+    }
+
+    public CloseableIterator<VariantContext> iterator() {
+        return new RecordIterator(Collections.singletonList(new Block(recordsOffset, Long.MAX_VALUE - recordsOffset)),
+                null, 0, 0);
+    }
+
+    /**
+     * Records overlapping contig:start-end
+     */
+    public CloseableIterator<VariantContext> query(String contig, int start, int end) {
+        if (index == null) {
+            throw new UnsupportedOperationException("Query needs tabix index");
+        }
+        return new RecordIterator(index.getBlocks(contig, start, end), contig, start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Records of index chunks, filtered by interval if contig is not null
+     */
+    private class RecordIterator implements CloseableIterator<VariantContext> {
+        private final Iterator<Block> chunks;
+        private final String contig;
+        private final int start;
+        private final int end;
+
+        private Block chunk;
+        private VariantContext next;
+        private boolean done = false;
+
+        public RecordIterator(List<Block> chunks, String contig, int start, int end) {
+            this.chunks = chunks.iterator();
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && !done) {
+                    next = readNext();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return next != null;
+        }
+
+        private VariantContext readNext() throws IOException {
+            if (chunk == null || in.getVirtualOffset() >= chunk.getEndPosition()) {
+                if (!chunks.hasNext()) {
+                    done = true;
+                    return null;
+                }
+                long position = chunk == null ? -1 : in.getVirtualOffset();
+                chunk = chunks.next();
+                // chunks may overlap the part read already
+                if (chunk.getStartPosition() > position) {
+                    in.seek(chunk.getStartPosition());
+                }
+                return null;
+            }
+            String line = in.readLine();
+            if (line == null) {
+                done = true;
+                return null;
+            }
+            VariantContext vc = codec.decode(line);
+            if (vc == null || contig == null) {
+                return vc;
+            }
+            if (!vc.getContig().equals(contig) || vc.getStart() > end) {
+                // sorted, nothing more in the interval
+                done = true;
+                return null;
+            }
+            return vc.getEnd() >= start ? vc : null;
+        }
+
+        @Override
+        public VariantContext next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            VariantContext vc = next;
+            next = null;
+            return vc;
+        }
+
+        @Override
+        public void close() {
+            done = true;
+        }
+    }
+}
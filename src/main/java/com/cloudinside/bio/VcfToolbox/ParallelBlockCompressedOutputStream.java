@@ -0,0 +1,255 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.LocationAware;
+
+/**
+ * BGZF output compressing blocks on a thread pool. Data is cut into blocks of
+ * {@link BlockCompressedStreamConstants#DEFAULT_UNCOMPRESSED_BLOCK_SIZE} like
+ * in {@link BlockCompressedOutputStream}, blocks are deflated in parallel and
+ * written in order by the thread writing to the stream, so the file is the
+ * same as written by htsjdk.
+ *
+ * Compressed address of a block is not known when data is written to it, so
+ * {@link #getPosition()} returns a pseudo virtual offset: block number instead
+ * of block address. Addresses are reported to the {@link BlockListener} once
+ * blocks are written, see {@link TabixIndexingWriter}.
+ *
+ * Not thread safe, one writing thread.
+ *
+ * @author pstawinski
+ *
+ */
+class ParallelBlockCompressedOutputStream extends OutputStream implements LocationAware {
+    private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+
+    /**
+     * Receives addresses of written blocks, in block order, on the writing
+     * thread
+     */
+    interface BlockListener {
+        void blockWritten(long blockNumber, long blockAddress);
+    }
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int maxBlocksInFlight;
+    private final Queue<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+    private final ThreadLocal<BlockCompressor> compressors;
+
+    private BlockListener listener;
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferLength = 0;
+    /** number of the block being filled */
+    private long blockNumber = 0;
+    private long writtenBlocks = 0;
+    private long address = 0;
+    private boolean closed = false;
+
+    public ParallelBlockCompressedOutputStream(File file, int threads) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), threads,
+                BlockCompressedOutputStream.getDefaultCompressionLevel());
+    }
+
+    public ParallelBlockCompressedOutputStream(OutputStream out, int threads, int compressionLevel) {
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "bgzf-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxBlocksInFlight = threads * 4;
+        this.compressors = ThreadLocal.withInitial(() -> new BlockCompressor(this.compressionLevel));
+    }
+
+    public void setBlockListener(BlockListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return block number << 16 | offset in block
+     */
+    @Override
+    public long getPosition() {
+        return blockNumber << 16 | bufferLength;
+    }
+
+    /**
+     * @return compressed size of blocks written so far
+     */
+    public long getWrittenBytes() {
+        return address;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[bufferLength++] = (byte) b;
+        if (bufferLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, BLOCK_SIZE - bufferLength);
+            System.arraycopy(bytes, offset, buffer, bufferLength, n);
+            bufferLength += n;
+            offset += n;
+            length -= n;
+            if (bufferLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the current, possibly partial, block and writes all blocks
+     */
+    @Override
+    public void flush() throws IOException {
+        if (bufferLength > 0) {
+            submitBlock();
+        }
+        writeBlocks(0);
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining blocks and the BGZF terminator block
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int length = bufferLength;
+        blocksInFlight.add(executor.submit(() -> compressors.get().compress(block, length)));
+        buffer = new byte[BLOCK_SIZE];
+        bufferLength = 0;
+        blockNumber++;
+
+        writeBlocks(maxBlocksInFlight);
+    }
+
+    /**
+     * Writes compressed blocks in order, waiting until at most maxInFlight
+     * are left; finished blocks are written anyway
+     */
+    private void writeBlocks(int maxInFlight) throws IOException {
+        while (!blocksInFlight.isEmpty()
+                && (blocksInFlight.size() > maxInFlight || blocksInFlight.peek().isDone())) {
+            byte[] compressed;
+            try {
+                compressed = blocksInFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing BGZF block");
+            } catch (ExecutionException e) {
+                throw new IOException("BGZF block compression failed", e.getCause());
+            }
+            out.write(compressed);
+            if (listener != null) {
+                listener.blockWritten(writtenBlocks, address);
+            }
+            writtenBlocks++;
+            address += compressed.length;
+        }
+    }
+
+    /**
+     * Deflater and checksum of one compressing thread
+     */
+    private static class BlockCompressor {
+        private final Deflater deflater;
+        private final Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+                - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+
+        public BlockCompressor(int compressionLevel) {
+            this.deflater = new Deflater(compressionLevel, true);
+        }
+
+        public byte[] compress(byte[] block, int length) {
+            int headerLength = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+            int footerLength = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+            // same limits as htsjdk, for identical output
+            int dataLength = deflate(deflater, block, length);
+            if (dataLength < 0) {
+                dataLength = deflate(noCompressionDeflater, block, length);
+                if (dataLength < 0) {
+                    throw new IllegalStateException("BGZF block does not fit even without compression");
+                }
+            }
+
+            crc.reset();
+            crc.update(block, 0, length);
+
+            int total = headerLength + dataLength + footerLength;
+            byte[] result = new byte[total];
+            writeHeader(result, total);
+            System.arraycopy(compressed, 0, result, headerLength, dataLength);
+            writeInt(result, headerLength + dataLength, (int) crc.getValue());
+            writeInt(result, headerLength + dataLength + 4, length);
+            return result;
+        }
+
+        /**
+         * @return compressed length, -1 if it does not fit the buffer
+         */
+        private int deflate(Deflater deflater, byte[] block, int length) {
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressed, 0, compressed.length);
+            return deflater.finished() ? compressedLength : -1;
+        }
+
+        private static void writeHeader(byte[] bytes, int blockLength) {
+            byte[] preamble = BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE;
+            System.arraycopy(preamble, 0, bytes, 0, preamble.length);
+            bytes[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] = (byte) (blockLength - 1);
+            bytes[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] = (byte) ((blockLength - 1) >>> 8);
+        }
+
+        private static void writeInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >>> 8);
+            bytes[offset + 2] = (byte) (value >>> 16);
+            bytes[offset + 3] = (byte) (value >>> 24);
+        }
+    }
+}
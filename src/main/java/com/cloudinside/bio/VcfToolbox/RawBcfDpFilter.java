@@ -0,0 +1,336 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Fast path of {@link RemoveLowCoverageRows} for BCF (version 2.1 and 2.2,
+ * see {@link BcfStream}): reads raw records, walks the typed
+ * FORMAT fields of the individual part looking only at DP and copies kept
+ * records byte for byte. Header is copied as it is.
+ *
+ * Missing and end of vector values count as DP 0, the same as in the decoding
+ * path.
+ *
+ * With a {@link FilterExpression} records passing the expression are kept
+ * instead: QUAL, INFO and FORMAT values it refers to are read into its
+ * columns, other fields are skipped.
+ *
+ * @author pstawinski
+ *
+ */
+class RawBcfDpFilter {
+    private static final int RECORD_LENGTHS_SIZE = 8;
+    /** offsets in the shared part */
+    private static final int QUAL_OFFSET = 12;
+    private static final int N_ALLELE_INFO_OFFSET = 16;
+    /** offset of n_fmt << 24 | n_sample in the shared part */
+    private static final int N_FMT_SAMPLE_OFFSET = 20;
+    private static final int SHARED_FIXED_SIZE = 24;
+
+    private static final int TYPE_INT8 = 1;
+    private static final int TYPE_INT16 = 2;
+    private static final int TYPE_INT32 = 3;
+    private static final int TYPE_FLOAT = 5;
+    private static final int TYPE_CHAR = 7;
+
+    private final int minDp;
+    private final ToolMetrics metrics;
+
+    private final FilterExpression expression;
+    private FilterExpression.Evaluator evaluator;
+    /** keys of the expression by dictionary index, -1 - not referenced */
+    private int[] formatKeys;
+    private int[] infoKeys;
+
+    /** current record and its parts */
+    private byte[] record;
+    private int indivOffset;
+
+    private long records = 0;
+    private long kept = 0;
+
+    public RawBcfDpFilter(int minDp) {
+        this(minDp, new ToolMetrics("RawBcfDpFilter"));
+    }
+
+    /**
+     * @param metrics
+     *            - input records and records kept are counted, not timed
+     */
+    public RawBcfDpFilter(int minDp, ToolMetrics metrics) {
+        this(minDp, null, metrics);
+    }
+
+    /**
+     * @param expression
+     *            - rule of kept records instead of minDp, may be null
+     */
+    public RawBcfDpFilter(int minDp, FilterExpression expression, ToolMetrics metrics) {
+        this.minDp = minDp;
+        this.expression = expression;
+        this.metrics = metrics;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getKept() {
+        return kept;
+    }
+
+    /**
+     * Copies header and records having DP >= minDp in any sample (or passing
+     * the expression) from in (uncompressed BCF) to out. Output stream is not
+     * closed.
+     */
+    public void filter(BcfStream in, OutputStream out) throws IOException {
+        out.write(in.getHeaderBytes());
+
+        Map<String, Integer> dictionary = BcfStream.dictionary(in.getHeaderText());
+        int dpKey = dictionary.getOrDefault("DP", -1);
+        if (expression != null) {
+            evaluator = expression.newEvaluator(in.getHeader());
+            formatKeys = keys(evaluator.getFormatKeys(), dictionary);
+            infoKeys = keys(evaluator.getInfoKeys(), dictionary);
+        }
+
+        while (in.next()) {
+            record = in.getRecord();
+            indivOffset = RECORD_LENGTHS_SIZE + BcfStream.readInt(record, 0);
+
+            if (evaluator != null ? test() : keep(dpKey)) {
+                out.write(record, 0, in.getRecordLength());
+                kept++;
+                metrics.addOutput(1);
+            }
+            records++;
+            metrics.addRecords(1);
+        }
+    }
+
+    private boolean keep(int dpKey) {
+        int nFmtSample = BcfStream.readInt(record, RECORD_LENGTHS_SIZE + N_FMT_SAMPLE_OFFSET);
+        int samples = nFmtSample & 0xffffff;
+        int formats = nFmtSample >>> 24;
+        if (samples == 0) {
+            return false;
+        }
+        if (minDp <= 0) {
+            return true;
+        }
+
+        int[] pos = { indivOffset };
+        for (int f = 0; f < formats; f++) {
+            int key = readTypedInt(pos);
+            int descriptor = record[pos[0]++] & 0xff;
+            int type = descriptor & 0x0f;
+            int count = descriptor >>> 4;
+            if (count == 15) {
+                count = readTypedInt(pos);
+            }
+            int size = typeSize(type);
+
+            if (key == dpKey) {
+                if (count == 0) {
+                    return false;
+                }
+                int stride = count * size;
+                for (int s = 0, offset = pos[0]; s < samples; s++, offset += stride) {
+                    if (value(type, offset) >= minDp) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            pos[0] += samples * count * size;
+        }
+        return false; // no DP
+    }
+
+    private static int[] keys(String[] keys, Map<String, Integer> dictionary) {
+        int[] byIndex = new int[dictionary.values().stream().mapToInt(Integer::intValue).max().orElse(0) + 1];
+        Arrays.fill(byIndex, -1);
+        for (int k = 0; k < keys.length; k++) {
+            Integer index = dictionary.get(keys[k]);
+            if (index != null) {
+                byIndex[index] = k;
+            }
+        }
+        return byIndex;
+    }
+
+    /**
+     * Reads values of the expression into columns of the evaluator and
+     * evaluates it
+     */
+    private boolean test() {
+        evaluator.clear();
+        int shared = RECORD_LENGTHS_SIZE;
+        if (evaluator.getQualSlot() >= 0) {
+            // missing QUAL is a NaN
+            evaluator.setSite(evaluator.getQualSlot(),
+                    Float.intBitsToFloat(BcfStream.readInt(record, shared + QUAL_OFFSET)));
+        }
+
+        int[] pos = { shared + SHARED_FIXED_SIZE };
+        if (evaluator.getInfoKeys().length > 0) {
+            int nAlleleInfo = BcfStream.readInt(record, shared + N_ALLELE_INFO_OFFSET);
+            skipTyped(pos); // ID
+            for (int a = 0; a < nAlleleInfo >>> 16; a++) {
+                skipTyped(pos);
+            }
+            skipTyped(pos); // FILTER
+            for (int i = 0; i < (nAlleleInfo & 0xffff); i++) {
+                int key = readTypedInt(pos);
+                int descriptor = record[pos[0]++] & 0xff;
+                int type = descriptor & 0x0f;
+                int count = descriptor >>> 4;
+                if (count == 15) {
+                    count = readTypedInt(pos);
+                }
+                int k = key < infoKeys.length ? infoKeys[key] : -1;
+                if (k >= 0) {
+                    int[] slots = evaluator.getInfoSlots(k);
+                    if (evaluator.isFlag(k)) {
+                        evaluator.setSite(slots[0], 1);
+                    } else {
+                        for (int j = 0; j < slots.length && j < count; j++) {
+                            if (slots[j] >= 0) {
+                                evaluator.setSite(slots[j], number(type, pos[0] + j * typeSize(type)));
+                            }
+                        }
+                    }
+                }
+                pos[0] += count * typeSize(type);
+            }
+        }
+
+        int nFmtSample = BcfStream.readInt(record, shared + N_FMT_SAMPLE_OFFSET);
+        int samples = Math.min(nFmtSample & 0xffffff, evaluator.getSampleCount());
+        int formats = nFmtSample >>> 24;
+        pos[0] = indivOffset;
+        for (int f = 0; f < formats; f++) {
+            int key = readTypedInt(pos);
+            int descriptor = record[pos[0]++] & 0xff;
+            int type = descriptor & 0x0f;
+            int count = descriptor >>> 4;
+            if (count == 15) {
+                count = readTypedInt(pos);
+            }
+            int size = typeSize(type);
+
+            int k = key < formatKeys.length ? formatKeys[key] : -1;
+            if (k >= 0) {
+                int[] slots = evaluator.getFormatSlots(k);
+                int stride = count * size;
+                for (int j = 0; j < slots.length && j < count; j++) {
+                    if (slots[j] < 0) {
+                        continue;
+                    }
+                    double[] column = evaluator.getColumn(slots[j]);
+                    for (int s = 0, offset = pos[0] + j * size; s < samples; s++, offset += stride) {
+                        column[s] = number(type, offset);
+                    }
+                }
+            }
+            pos[0] += (nFmtSample & 0xffffff) * count * size;
+        }
+        return evaluator.test();
+    }
+
+    /**
+     * @return value, NaN for missing and end of vector
+     */
+    private double number(int type, int offset) {
+        switch (type) {
+        case TYPE_INT8: {
+            int v = record[offset];
+            return v == Byte.MIN_VALUE || v == Byte.MIN_VALUE + 1 ? Double.NaN : v;
+        }
+        case TYPE_INT16: {
+            int v = (short) ((record[offset] & 0xff) | (record[offset + 1] << 8));
+            return v == Short.MIN_VALUE || v == Short.MIN_VALUE + 1 ? Double.NaN : v;
+        }
+        case TYPE_INT32: {
+            int v = BcfStream.readInt(record, offset);
+            return v == Integer.MIN_VALUE || v == Integer.MIN_VALUE + 1 ? Double.NaN : v;
+        }
+        case TYPE_FLOAT:
+            return Float.intBitsToFloat(BcfStream.readInt(record, offset));
+        default:
+            return Double.NaN;
+        }
+    }
+
+    private void skipTyped(int[] pos) {
+        int descriptor = record[pos[0]++] & 0xff;
+        int count = descriptor >>> 4;
+        if (count == 15) {
+            count = readTypedInt(pos);
+        }
+        pos[0] += count * typeSize(descriptor & 0x0f);
+    }
+
+    /**
+     * @return first value of the vector, 0 for missing and end of vector
+     */
+    private int value(int type, int offset) {
+        switch (type) {
+        case TYPE_INT8: {
+            int v = record[offset];
+            return v == Byte.MIN_VALUE || v == Byte.MIN_VALUE + 1 ? 0 : v;
+        }
+        case TYPE_INT16: {
+            int v = (short) ((record[offset] & 0xff) | (record[offset + 1] << 8));
+            return v == Short.MIN_VALUE || v == Short.MIN_VALUE + 1 ? 0 : v;
+        }
+        case TYPE_INT32: {
+            int v = BcfStream.readInt(record, offset);
+            return v == Integer.MIN_VALUE || v == Integer.MIN_VALUE + 1 ? 0 : v;
+        }
+        case TYPE_FLOAT: {
+            float v = Float.intBitsToFloat(BcfStream.readInt(record, offset));
+            return Float.isNaN(v) ? 0 : (int) v;
+        }
+        default:
+            throw new IllegalArgumentException("DP of BCF type " + type + " is not supported");
+        }
+    }
+
+    private int readTypedInt(int[] pos) {
+        int type = record[pos[0]++] & 0x0f;
+        int offset = pos[0];
+        pos[0] += typeSize(type);
+        switch (type) {
+        case TYPE_INT8:
+            return record[offset];
+        case TYPE_INT16:
+            return (short) ((record[offset] & 0xff) | (record[offset + 1] << 8));
+        case TYPE_INT32:
+            return BcfStream.readInt(record, offset);
+        default:
+            throw new IllegalArgumentException("Expected typed integer, got BCF type " + type);
+        }
+    }
+
+    private static int typeSize(int type) {
+        switch (type) {
+        case 0:
+            return 0;
+        case TYPE_INT8:
+        case TYPE_CHAR:
+            return 1;
+        case TYPE_INT16:
+            return 2;
+        case TYPE_INT32:
+        case TYPE_FLOAT:
+            return 4;
+        default:
+            throw new IllegalArgumentException("Unknown BCF type " + type);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Fast path of {@link RemoveLowCoverageRows} for VCF text: reads raw lines,
+ * scans only the DP subfield of sample columns and copies kept lines byte for
+ * byte, without decoding genotypes or encoding records again.
+ *
+ * Missing DP ('.' or omitted trailing field) counts as 0, the same as in the
+ * decoding path.
+ *
+ * With a {@link FilterExpression} records passing the expression are kept
+ * instead: QUAL, INFO and FORMAT values it refers to are parsed into its
+ * columns, other fields are skipped.
+ *
+ * @author pstawinski
+ *
+ */
+class RawVcfDpFilter {
+    private static final int QUAL_COLUMN = 5;
+    private static final int INFO_COLUMN = 7;
+    private static final int FORMAT_COLUMN = 8;
+    /** samples read before a per sample expression is tested */
+    private static final int SAMPLE_BLOCK = 16;
+
+    private final int minDp;
+    private final ToolMetrics metrics;
+
+    private final FilterExpression expression;
+    /** of the header, set at the #CHROM line */
+    private FilterExpression.Evaluator evaluator;
+    private List<String> headerLines = new ArrayList<>();
+    private byte[][] formatKeys;
+    /** columns of the evaluator by FORMAT key and vector index, null - not referenced */
+    private double[][][] formatColumns;
+    private byte[][] infoKeys;
+    /** FORMAT keys of the expression by subfield of the last FORMAT column */
+    private byte[] lastExpressionFormat;
+    private int[] subfieldKeys;
+
+    private byte[] buffer = new byte[1 << 20];
+    private int start = 0;
+    private int end = 0;
+
+    /** last FORMAT column seen and index of DP in it, -1 - absent */
+    private byte[] lastFormat = new byte[0];
+    private int lastDpIndex = -1;
+
+    private long records = 0;
+    private long kept = 0;
+
+    public RawVcfDpFilter(int minDp) {
+        this(minDp, new ToolMetrics("RawVcfDpFilter"));
+    }
+
+    /**
+     * @param metrics
+     *            - input records and records kept are counted, not timed
+     */
+    public RawVcfDpFilter(int minDp, ToolMetrics metrics) {
+        this(minDp, null, metrics);
+    }
+
+    /**
+     * @param expression
+     *            - rule of kept records instead of minDp, may be null
+     */
+    public RawVcfDpFilter(int minDp, FilterExpression expression, ToolMetrics metrics) {
+        this.minDp = minDp;
+        this.expression = expression;
+        this.metrics = metrics;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getKept() {
+        return kept;
+    }
+
+    /**
+     * Copies header and records having DP >= minDp in any sample (or passing
+     * the expression) from in to out. Streams are not closed.
+     */
+    public void filter(InputStream in, OutputStream out) throws IOException {
+        boolean eof = false;
+        // bytes of the current line already searched for a new line
+        int scanned = 0;
+        while (true) {
+            int newLine = indexOf(buffer, (byte) '\n', start + scanned, end);
+            if (newLine < 0) {
+                if (eof) {
+                    if (start < end) {
+                        processLine(start, end, out);
+                    }
+                    return;
+                }
+                scanned = end - start;
+                eof = !fill(in);
+                continue;
+            }
+
+            processLine(start, newLine + 1, out);
+            start = newLine + 1;
+            scanned = 0;
+        }
+    }
+
+    private void processLine(int from, int to, OutputStream out) throws IOException {
+        if (buffer[from] == '#') {
+            out.write(buffer, from, to - from);
+            if (expression != null) {
+                addHeaderLine(from, to);
+            }
+            return;
+        }
+        if (expression != null ? test(from, to) : keep(from, to)) {
+            out.write(buffer, from, to - from);
+            kept++;
+            metrics.addOutput(1);
+        }
+        records++;
+        metrics.addRecords(1);
+    }
+
+    private boolean keep(int from, int to) {
+        int lineEnd = to;
+        while (lineEnd > from && (buffer[lineEnd - 1] == '\n' || buffer[lineEnd - 1] == '\r')) {
+            lineEnd--;
+        }
+
+        // skip to FORMAT column
+        int pos = from;
+        for (int column = 0; column < FORMAT_COLUMN; column++) {
+            pos = indexOf(buffer, (byte) '\t', pos, lineEnd);
+            if (pos < 0) {
+                return false; // sites only
+            }
+            pos++;
+        }
+        int formatEnd = indexOf(buffer, (byte) '\t', pos, lineEnd);
+        if (formatEnd < 0) {
+            return false; // no samples
+        }
+        if (minDp <= 0) {
+            return true;
+        }
+
+        int dpIndex = dpIndex(pos, formatEnd);
+        if (dpIndex < 0) {
+            return false;
+        }
+
+        pos = formatEnd + 1;
+        while (pos <= lineEnd) {
+            int columnEnd = indexOf(buffer, (byte) '\t', pos, lineEnd);
+            if (columnEnd < 0) {
+                columnEnd = lineEnd;
+            }
+            if (sampleDp(pos, columnEnd, dpIndex) >= minDp) {
+                return true;
+            }
+            pos = columnEnd + 1;
+        }
+        return false;
+    }
+
+    private void addHeaderLine(int from, int to) {
+        String line = new String(buffer, from, to - from, StandardCharsets.ISO_8859_1).trim();
+        headerLines.add(line);
+        if (!line.startsWith("#CHROM")) {
+            return;
+        }
+        VCFHeader header = (VCFHeader) new VCFCodec().readActualHeader(new LineIteratorImpl(
+                new SynchronousLineReader(new StringReader(String.join("\n", headerLines)))));
+        headerLines = null;
+        evaluator = expression.newEvaluator(header);
+        formatKeys = bytes(evaluator.getFormatKeys());
+        formatColumns = new double[formatKeys.length][][];
+        for (int k = 0; k < formatKeys.length; k++) {
+            int[] slots = evaluator.getFormatSlots(k);
+            formatColumns[k] = new double[slots.length][];
+            for (int i = 0; i < slots.length; i++) {
+                formatColumns[k][i] = slots[i] < 0 ? null : evaluator.getColumn(slots[i]);
+            }
+        }
+        infoKeys = bytes(evaluator.getInfoKeys());
+    }
+
+    private static byte[][] bytes(String[] keys) {
+        byte[][] bytes = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bytes[i] = keys[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return bytes;
+    }
+
+    /**
+     * Fills columns of the evaluator with the record and evaluates the
+     * expression
+     */
+    private boolean test(int from, int to) {
+        if (evaluator == null) {
+            throw new IllegalArgumentException("VCF records before the #CHROM line");
+        }
+        int lineEnd = to;
+        while (lineEnd > from && (buffer[lineEnd - 1] == '\n' || buffer[lineEnd - 1] == '\r')) {
+            lineEnd--;
+        }
+        evaluator.clear();
+
+        int pos = from;
+        for (int column = 0; column < FORMAT_COLUMN; column++) {
+            int columnEnd = indexOf(buffer, (byte) '\t', pos, lineEnd);
+            if (columnEnd < 0) {
+                if (column < INFO_COLUMN) {
+                    throw new IllegalArgumentException(
+                            "Too few columns: " + new String(buffer, from, lineEnd - from, StandardCharsets.ISO_8859_1));
+                }
+                columnEnd = lineEnd;
+            }
+            if (column == QUAL_COLUMN && evaluator.getQualSlot() >= 0) {
+                evaluator.setSite(evaluator.getQualSlot(), FilterExpression.parseNumber(buffer, pos, columnEnd));
+            } else if (column == INFO_COLUMN && infoKeys.length > 0) {
+                parseInfo(pos, columnEnd);
+            }
+            pos = columnEnd + 1;
+        }
+        if (pos > lineEnd || formatKeys.length == 0) {
+            return evaluator.test(); // sites only
+        }
+
+        int formatEnd = indexOf(buffer, (byte) '\t', pos, lineEnd);
+        if (formatEnd < 0) {
+            return evaluator.test();
+        }
+        int[] keys = subfieldKeys(pos, formatEnd);
+        int samples = evaluator.getSampleCount();
+        boolean perSample = evaluator.isPerSample();
+        int blockStart = 0;
+        pos = formatEnd + 1;
+        // one pass over sample columns, values parsed in place; a per sample
+        // expression is tested by blocks, the rest is not read once true
+        for (int sample = 0; sample < samples && pos <= lineEnd; sample++) {
+            if (perSample && sample - blockStart == SAMPLE_BLOCK) {
+                if (evaluator.testSamples(blockStart, sample)) {
+                    return true;
+                }
+                blockStart = sample;
+            }
+            for (int subfield = 0;; subfield++) {
+                if (subfield >= keys.length) {
+                    while (pos < lineEnd && buffer[pos] != '\t') {
+                        pos++;
+                    }
+                } else if (keys[subfield] >= 0) {
+                    pos = parseFormatValues(pos, lineEnd, formatColumns[keys[subfield]], sample);
+                } else {
+                    while (pos < lineEnd && buffer[pos] != ':' && buffer[pos] != '\t') {
+                        pos++;
+                    }
+                }
+                if (pos >= lineEnd || buffer[pos] == '\t') {
+                    break;
+                }
+                pos++;
+            }
+            pos++;
+        }
+        return perSample ? evaluator.testSamples(blockStart, samples) : evaluator.test();
+    }
+
+    /**
+     * Comma separated values of a sample subfield into columns by index,
+     * integers parsed while scanning
+     *
+     * @return position of the end of the subfield
+     */
+    private int parseFormatValues(int pos, int lineEnd, double[][] columns, int sample) {
+        for (int i = 0;; i++) {
+            int start = pos;
+            long value = 0;
+            boolean digits = true;
+            for (; pos < lineEnd; pos++) {
+                byte b = buffer[pos];
+                if (b == ':' || b == '\t' || b == ',') {
+                    break;
+                }
+                int digit = b - '0';
+                if (digit < 0 || digit > 9) {
+                    digits = false;
+                }
+                value = value * 10 + digit;
+            }
+            if (i < columns.length && columns[i] != null) {
+                columns[i][sample] = digits && pos > start && pos - start <= 18 ? value
+                        : FilterExpression.parseNumber(buffer, start, pos);
+            }
+            if (pos >= lineEnd || buffer[pos] != ',') {
+                return pos;
+            }
+            pos++;
+        }
+    }
+
+    private void parseInfo(int from, int to) {
+        int pos = from;
+        while (pos < to) {
+            int entryEnd = indexOf(buffer, (byte) ';', pos, to);
+            if (entryEnd < 0) {
+                entryEnd = to;
+            }
+            int keyEnd = indexOf(buffer, (byte) '=', pos, entryEnd);
+            int key = find(infoKeys, pos, keyEnd < 0 ? entryEnd : keyEnd);
+            if (key >= 0) {
+                if (evaluator.isFlag(key)) {
+                    evaluator.setSite(evaluator.getInfoSlots(key)[0], 1);
+                } else if (keyEnd >= 0) {
+                    parseInfoValues(keyEnd + 1, entryEnd, evaluator.getInfoSlots(key));
+                }
+            }
+            pos = entryEnd + 1;
+        }
+    }
+
+    /**
+     * Comma separated values of an INFO field into slots by index
+     */
+    private void parseInfoValues(int from, int to, int[] slots) {
+        int pos = from;
+        for (int i = 0; i < slots.length && pos <= to; i++) {
+            int valueEnd = indexOf(buffer, (byte) ',', pos, to);
+            if (valueEnd < 0) {
+                valueEnd = to;
+            }
+            if (slots[i] >= 0) {
+                evaluator.setSite(slots[i], FilterExpression.parseNumber(buffer, pos, valueEnd));
+            }
+            pos = valueEnd + 1;
+        }
+    }
+
+    private int[] subfieldKeys(int from, int to) {
+        int length = to - from;
+        if (lastExpressionFormat != null && length == lastExpressionFormat.length
+                && Arrays.equals(buffer, from, to, lastExpressionFormat, 0, length)) {
+            return subfieldKeys;
+        }
+        lastExpressionFormat = Arrays.copyOfRange(buffer, from, to);
+
+        List<Integer> keys = new ArrayList<>();
+        int keyStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buffer[i] == ':') {
+                keys.add(find(formatKeys, keyStart, i));
+                keyStart = i + 1;
+            }
+        }
+        // subfields after the last one of the expression are not parsed
+        while (!keys.isEmpty() && keys.get(keys.size() - 1) < 0) {
+            keys.remove(keys.size() - 1);
+        }
+        subfieldKeys = keys.stream().mapToInt(Integer::intValue).toArray();
+        return subfieldKeys;
+    }
+
+    private int find(byte[][] keys, int from, int to) {
+        for (int k = 0; k < keys.length; k++) {
+            if (Arrays.equals(buffer, from, to, keys[k], 0, keys[k].length)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private int dpIndex(int from, int to) {
+        int length = to - from;
+        if (length == lastFormat.length && Arrays.equals(buffer, from, to, lastFormat, 0, length)) {
+            return lastDpIndex;
+        }
+        lastFormat = Arrays.copyOfRange(buffer, from, to);
+        lastDpIndex = -1;
+
+        int index = 0;
+        int keyStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buffer[i] == ':') {
+                if (i - keyStart == 2 && buffer[keyStart] == 'D' && buffer[keyStart + 1] == 'P') {
+                    lastDpIndex = index;
+                    break;
+                }
+                index++;
+                keyStart = i + 1;
+            }
+        }
+        return lastDpIndex;
+    }
+
+    private int sampleDp(int from, int to, int dpIndex) {
+        int pos = from;
+        for (int i = 0; i < dpIndex; i++) {
+            pos = indexOf(buffer, (byte) ':', pos, to);
+            if (pos < 0) {
+                return 0; // trailing fields omitted
+            }
+            pos++;
+        }
+
+        int dp = 0;
+        boolean digits = false;
+        for (; pos < to && buffer[pos] != ':'; pos++) {
+            byte b = buffer[pos];
+            if (b >= '0' && b <= '9') {
+                dp = dp * 10 + (b - '0');
+                digits = true;
+            } else if ((b == '.' || b == '-') && !digits) {
+                return 0; // missing or negative
+            } else {
+                throw new IllegalArgumentException("Invalid DP in sample column: " + new String(buffer, from, to - from));
+            }
+        }
+        return dp;
+    }
+
+    /**
+     * Reads more data, moving the current line to the beginning of buffer and
+     * growing it when the line does not fit.
+     *
+     * @return false at end of input
+     */
+    private boolean fill(InputStream in) throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private static int indexOf(byte[] array, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,345 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Genomic regions given with --region (chr, chr:pos or chr:start-end, 1-based,
+ * inclusive) and --regions-file (BED, 0-based, half-open; a zero-length
+ * interval is the 1 bp window at its end). Overlapping and adjacent intervals
+ * are merged; regions are ordered as contigs in the sequence dictionary,
+ * contigs missing in it go last.
+ *
+ * Records overlapping a region are selected, each of them once even if it
+ * overlaps more regions.
+ *
+ * @author pstawinski
+ *
+ */
+class Regions {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(Regions.class);
+    /** largest position addressable by tabix index */
+    static final int MAX_QUERY_END = (1 << 29) - 1;
+
+    /**
+     * Merged interval
+     */
+    static class Region {
+        private final String contig;
+        private final int start;
+        private final int end;
+        /**
+         * records starting before were selected with the previous region on
+         * the contig
+         */
+        private final int minStart;
+
+        public Region(String contig, int start, int end, int minStart) {
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+            this.minStart = minStart;
+        }
+
+        public String getContig() {
+            return contig;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public int getMinStart() {
+            return minStart;
+        }
+
+        @Override
+        public String toString() {
+            return contig + ":" + start + "-" + end;
+        }
+    }
+
+    private final List<Region> regions = new ArrayList<>();
+    /** merged regions of each contig, sorted */
+    private final Map<String, List<Region>> byContig = new LinkedHashMap<>();
+
+    private Regions(Map<String, List<int[]>> intervals, SAMSequenceDictionary dictionary) {
+        List<String> contigs = new ArrayList<>();
+        if (dictionary != null) {
+            for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+                if (intervals.containsKey(sequence.getSequenceName())) {
+                    contigs.add(sequence.getSequenceName());
+                }
+            }
+        }
+        for (String contig : intervals.keySet()) {
+            if (!contigs.contains(contig)) {
+                contigs.add(contig);
+            }
+        }
+
+        for (String contig : contigs) {
+            List<int[]> contigIntervals = intervals.get(contig);
+            contigIntervals.sort(Comparator.comparingInt(interval -> interval[0]));
+
+            List<Region> merged = new ArrayList<>();
+            int start = contigIntervals.get(0)[0];
+            int end = contigIntervals.get(0)[1];
+            for (int[] interval : contigIntervals) {
+                if (interval[0] <= end + 1) {
+                    end = Math.max(end, interval[1]);
+                } else {
+                    merged.add(region(contig, start, end, merged));
+                    start = interval[0];
+                    end = interval[1];
+                }
+            }
+            merged.add(region(contig, start, end, merged));
+
+            byContig.put(contig, merged);
+            regions.addAll(merged);
+        }
+    }
+
+    private static Region region(String contig, int start, int end, List<Region> previous) {
+        int minStart = previous.isEmpty() ? 1 : previous.get(previous.size() - 1).end + 1;
+        return new Region(contig, start, end, minStart);
+    }
+
+    /**
+     * @param regions
+     *            - --region values, may be null
+     * @param regionsFile
+     *            - BED file, may be null
+     * @param dictionary
+     *            - order of contigs, may be null
+     * @return null if no regions are given
+     */
+    public static Regions of(List<String> regions, String regionsFile, SAMSequenceDictionary dictionary)
+            throws IOException {
+        if ((regions == null || regions.isEmpty()) && regionsFile == null) {
+            return null;
+        }
+        Map<String, List<int[]>> intervals = new LinkedHashMap<>();
+        if (regions != null) {
+            for (String region : regions) {
+                parseRegion(region, dictionary, intervals);
+            }
+        }
+        if (regionsFile != null) {
+            readBed(new File(regionsFile), intervals);
+        }
+        if (intervals.isEmpty()) {
+            throw new IllegalArgumentException("No regions given");
+        }
+        return new Regions(intervals, dictionary);
+    }
+
+    /**
+     * chr, chr:pos, chr:start-end or chr:start-; a name of the dictionary is a
+     * whole contig even with a colon (as HLA-A*01:01)
+     */
+    private static void parseRegion(String region, SAMSequenceDictionary dictionary,
+            Map<String, List<int[]>> intervals) {
+        String contig = region;
+        int start = 1;
+        int end = MAX_QUERY_END;
+
+        int colon = region.lastIndexOf(':');
+        if (colon > 0 && (dictionary == null || dictionary.getSequence(region) == null)) {
+            String range = region.substring(colon + 1);
+            int dash = range.indexOf('-');
+            try {
+                if (dash < 0) {
+                    start = Integer.parseInt(range);
+                    end = start;
+                } else {
+                    start = Integer.parseInt(range.substring(0, dash));
+                    end = dash == range.length() - 1 ? MAX_QUERY_END : Integer.parseInt(range.substring(dash + 1));
+                }
+                contig = region.substring(0, colon);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid region: " + region);
+            }
+        }
+        add(intervals, contig, start, end, region);
+    }
+
+    private static void readBed(File file, Map<String, List<int[]>> intervals) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(VariantFiles.openDecompressed(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("track")
+                        || line.startsWith("browser")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException("Expected chrom, start and end in BED line: " + line);
+                }
+                int start = Integer.parseInt(fields[1].trim()) + 1;
+                int end = Integer.parseInt(fields[2].trim());
+                if (end == start - 1) {
+                    // insertion point, the base before it
+                    start = Math.max(end, 1);
+                    end = start;
+                }
+                add(intervals, fields[0], start, end, line);
+            }
+        }
+    }
+
+    private static void add(Map<String, List<int[]>> intervals, String contig, int start, int end, String source) {
+        if (start < 1 || end < start) {
+            throw new IllegalArgumentException("Invalid region: " + source);
+        }
+        intervals.computeIfAbsent(contig, c -> new ArrayList<>()).add(new int[] { start, end });
+    }
+
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * @return true if vc overlaps any region
+     */
+    public boolean overlaps(VariantContext vc) {
+        List<Region> contigRegions = byContig.get(vc.getContig());
+        if (contigRegions == null) {
+            return false;
+        }
+        // last region starting not after end of vc
+        int low = 0;
+        int high = contigRegions.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (contigRegions.get(mid).start <= vc.getEnd()) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && contigRegions.get(found).end >= vc.getStart();
+    }
+
+    /**
+     * Records of reader overlapping the regions: index queries if the reader
+     * is queryable, otherwise the whole file filtered. Reader has to stay open
+     * until the iterator is closed.
+     */
+    public CloseableIterator<VariantContext> iterator(VariantReader reader) {
+        if (reader.isQueryable()) {
+            return new QueryIterator(reader);
+        }
+        log.warn("Input is not indexed, regions are selected by reading the whole file");
+        return new FilteringIterator(reader.iterator());
+    }
+
+    private class QueryIterator implements CloseableIterator<VariantContext> {
+        private final VariantReader reader;
+        private final Iterator<Region> regionIterator = regions.iterator();
+        private Region region;
+        private CloseableIterator<VariantContext> query;
+        private VariantContext next;
+
+        public QueryIterator(VariantReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (query != null && query.hasNext()) {
+                    VariantContext vc = query.next();
+                    if (vc.getStart() >= region.minStart) {
+                        next = vc;
+                    }
+                } else if (regionIterator.hasNext()) {
+                    close();
+                    region = regionIterator.next();
+                    query = reader.query(region.contig, region.start, region.end);
+                } else {
+                    close();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public VariantContext next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            VariantContext vc = next;
+            next = null;
+            return vc;
+        }
+
+        @Override
+        public void close() {
+            if (query != null) {
+                query.close();
+                query = null;
+            }
+        }
+    }
+
+    private class FilteringIterator implements CloseableIterator<VariantContext> {
+        private final CloseableIterator<VariantContext> iterator;
+        private VariantContext next;
+
+        public FilteringIterator(CloseableIterator<VariantContext> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && iterator.hasNext()) {
+                VariantContext vc = iterator.next();
+                if (overlaps(vc)) {
+                    next = vc;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public VariantContext next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            VariantContext vc = next;
+            next = null;
+            return vc;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+        }
+    }
+}
@@ -1,102 +1,435 @@
 package com.cloudinside.bio.VcfToolbox;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.cloudinside.bio.VcfToolbox.VariantFiles.OutputType;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
-import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
-import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
 
 /**
  * Read single or multisample vcf file. Remove these rows, where number of read
  * for ANY of the sample is too low.
  * 
+ * By default rows are not decoded: only DP of raw VCF lines or BCF records is
+ * read and kept rows are copied as they are. Decoding is used with
+ * --full-decode, with regions or when input and output formats (VCF or BCF)
+ * differ.
+ * 
+ * With --include records are kept by an expression over INFO and FORMAT
+ * fields instead, see {@link FilterExpression}.
+ * 
+ * Many files are filtered in one run with repeated --input/--output pairs or a
+ * --manifest, --jobs files at once. Each file has its own progress and
+ * summary; a failed file is reported and does not stop the others.
+ * 
  * @author pstawinski
  * 
  */
 public class RemoveLowCoverageRows {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(RemoveLowCoverageRows.class);
 
-    @Parameter(names = "--input", description = "Vcf input file (can be bgzipped, may need to indexed through tabix)", required = true)
-    private String inputVcfFile;
-    @Parameter(names = "--output", description = "Vcf output", required = true)
-    private String outputVcfFile;
+    @Parameter(names = "--input", description = "Vcf input file (can be bgzipped, may need to indexed through tabix), can be repeated with --output for each", required = false)
+    private List<String> inputVcfFiles = new ArrayList<>();
+    @Parameter(names = "--output", description = "Vcf output, one for each --input", required = false)
+    private List<String> outputVcfFiles = new ArrayList<>();
+    @Parameter(names = "--manifest", description = "Tab separated file of input and output pairs, one per line, instead of --input and --output; relative paths are resolved against the manifest directory", required = false)
+    private String manifestFile;
+    @Parameter(names = "--jobs", description = "Number of files filtered at once", required = false)
+    private int jobs = 1;
+    @Parameter(names = "--virtual-threads", description = "Filter files on virtual threads (Java 21 or newer, platform threads otherwise), still --jobs at once", required = false)
+    private boolean virtualThreads = false;
+    @Parameter(names = "--output-type", description = "v - VCF, z - bgzipped VCF, u - BCF, b - bgzipped BCF; default from --output extension (.bcf is b)", required = false)
+    private String outputType;
+    @Parameter(names = "--compression-threads", description = "Number of threads compressing bgzipped output (VCF or BCF), 1 - compressed by the writing thread", required = false)
+    private int compressionThreads = 1;
     @Parameter(names = "--min-dp", description = "Minimal DP", required = false)
     private int minDp = 10;
+    @Parameter(names = "--include", description = "Keep records for which the expression is true instead of the --min-dp rule, e.g. \"min(DP) >= 10 && GQ > 20\" or \"fraction(DP >= MIN_DP) >= 0.8\"; INFO.NAME for INFO fields, QUAL; functions min, max, sum, mean, count, fraction, any, all over samples; a condition of samples outside of functions is true for any sample", required = false)
+    private String include;
+    @Parameter(names = "--sample-thresholds", description = "Tab separated values of each sample used by name in --include: the first line SAMPLE and names, then a line per sample, sample * for samples not listed", required = false)
+    private String sampleThresholdsFile;
+    @Parameter(names = "--threads", description = "Number of threads decoding and filtering records with --full-decode (and inflating with --mmap), 1 - everything on the main thread", required = false)
+    private int threads = 1;
+    @Parameter(names = "--full-decode", description = "Decode and encode records with htsjdk instead of copying raw lines", required = false)
+    private boolean fullDecode = false;
+    @Parameter(names = "--region", description = "Filter only records overlapping region chr, chr:pos or chr:start-end (1-based), can be repeated; uses tabix (.tbi) or tribble (.idx) index of input, records are decoded", required = false)
+    private List<String> region;
+    @Parameter(names = "--regions-file", description = "Filter only records overlapping regions of BED file; uses tabix (.tbi) or tribble (.idx) index of input, records are decoded", required = false)
+    private String regionsFile;
+    @Parameter(names = "--metrics", description = "Write summary of the run (records, timings per record, sizes) as JSON to the file, a line per input of many", required = false)
+    private String metricsFile;
+    @Parameter(names = "--metrics-interval", description = "Print progress as JSON lines every given seconds instead of \"Processed N\" lines, 0 - off", required = false)
+    private int metricsInterval = 0;
+    @Parameter(names = "--mmap", description = "Read bgzipped input mapped to memory, blocks inflated by --threads workers", required = false)
+    private boolean mmap = false;
+
+    private FilterExpression filter;
 
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
         // to have Double formatted correctly
         Locale.setDefault(Locale.ENGLISH);
 
         RemoveLowCoverageRows app = new RemoveLowCoverageRows();
-        JCommander jc = null;
+        JCommander jc = JCommander.newBuilder().addObject(app).build();
         try {
-            jc = new JCommander(app);
             jc.parse(args);
+        } catch (ParameterException e) {
+            jc.usage();
+            throw e;
+        }
+        app.go();
+    }
 
-            app.go();
-        } catch (Exception e) {
+    private void go() throws IOException, InterruptedException {
+        if (include != null) {
+            filter = FilterExpression.compile(include,
+                    sampleThresholdsFile == null ? null : new File(sampleThresholdsFile));
+        } else if (sampleThresholdsFile != null) {
+            throw new IllegalArgumentException("--sample-thresholds requires --include");
+        }
+        List<Job> jobList = manifestFile != null ? readManifest(new File(manifestFile)) : pairs();
+        if (jobList.size() == 1) {
+            Job job = jobList.get(0);
+            try (ToolMetrics metrics = new ToolMetrics("RemoveLowCoverageRows").start(metricsInterval, metricsFile)) {
+                metrics.addInputFile(job.input);
+                metrics.addOutputFile(job.output);
+                if (!go(job.input, job.output, job.type, metrics)) {
+                    throw new IOException("Filtering " + job.input + " failed");
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.min(jobs, jobList.size()));
+        }
+        // bounds virtual threads, one per file
+        Semaphore running = new Semaphore(jobs);
+        List<Future<?>> futures = new ArrayList<>(jobList.size());
+        try {
+            for (Job job : jobList) {
+                futures.add(executor.submit(() -> {
+                    running.acquire();
+                    try {
+                        run(job);
+                    } finally {
+                        running.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> failed = new ArrayList<>();
+        StringBuilder summaries = new StringBuilder();
+        for (Job job : jobList) {
+            if (job.failed) {
+                failed.add(job.input.getPath());
+            }
+            summaries.append(job.summary).append('\n');
+        }
+        if (metricsFile != null) {
+            Files.write(new File(metricsFile).toPath(), summaries.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        log.info("Filtered " + (jobList.size() - failed.size()) + " of " + jobList.size() + " files");
+        if (!failed.isEmpty()) {
+            throw new IOException("Failed files: " + String.join(", ", failed));
+        }
+    }
+
+    /**
+     * Filters a file of many, errors are reported and mark the job failed
+     */
+    private void run(Job job) throws IOException {
+        ToolMetrics metrics = new ToolMetrics("RemoveLowCoverageRows").setLabel(job.input.getPath())
+                .start(metricsInterval, null);
+        try {
+            metrics.addInputFile(job.input);
+            metrics.addOutputFile(job.output);
+            job.failed = !go(job.input, job.output, job.type, metrics);
+        } catch (RuntimeException e) {
+            System.err.println("Error processing VCF file " + job.input);
             e.printStackTrace();
-            jc.usage();
+            job.failed = true;
+        } finally {
+            metrics.close();
+            job.summary = metrics.getSummary();
+        }
+    }
+
+    /**
+     * Executor starting a virtual thread per task, null before Java 21
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads not available in Java " + System.getProperty("java.version")
+                    + ", filtering on platform threads");
+            return null;
+        }
+    }
+
+    private List<Job> pairs() {
+        if (inputVcfFiles.isEmpty()) {
+            throw new IllegalArgumentException("--input and --output or --manifest required");
+        }
+        if (inputVcfFiles.size() != outputVcfFiles.size()) {
+            throw new IllegalArgumentException("Number of --input (" + inputVcfFiles.size() + ") and --output ("
+                    + outputVcfFiles.size() + ") differ");
+        }
+        List<Job> jobList = new ArrayList<>();
+        for (int i = 0; i < inputVcfFiles.size(); i++) {
+            jobList.add(new Job(new File(inputVcfFiles.get(i)), new File(outputVcfFiles.get(i))));
+        }
+        return checked(jobList);
+    }
 
+    /**
+     * Lines of input and output, tab separated; empty lines and lines starting
+     * with # are skipped
+     */
+    private List<Job> readManifest(File manifest) throws IOException {
+        if (!inputVcfFiles.isEmpty() || !outputVcfFiles.isEmpty()) {
+            throw new IllegalArgumentException("Either --manifest or --input and --output");
+        }
+        File directory = manifest.getAbsoluteFile().getParentFile();
+        List<Job> jobList = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length != 2) {
+                    throw new IOException("Invalid line of manifest " + manifest + ": " + line);
+                }
+                jobList.add(new Job(directory.toPath().resolve(fields[0]).normalize().toFile(),
+                        directory.toPath().resolve(fields[1]).normalize().toFile()));
+            }
+        }
+        if (jobList.isEmpty()) {
+            throw new IOException("No files in manifest " + manifest);
         }
+        return checked(jobList);
     }
 
-    private void go() {
-        File vcfFile = new File(inputVcfFile);
-        File outputFile = new File(outputVcfFile);
+    /**
+     * Output types resolved and outputs not repeated, so arguments are wrong
+     * before any file is filtered
+     */
+    private List<Job> checked(List<Job> jobList) {
+        Set<File> outputs = new HashSet<>();
+        for (Job job : jobList) {
+            job.type = OutputType.of(job.output, outputType);
+            if (!outputs.add(job.output.getAbsoluteFile())) {
+                throw new IllegalArgumentException("Output " + job.output + " given more than once");
+            }
+        }
+        return jobList;
+    }
 
+    /**
+     * @return false if filtering failed, the error is printed
+     */
+    private boolean go(File vcfFile, File outputFile, OutputType type, ToolMetrics metrics) {
         final EnumSet<Options> options = EnumSet.noneOf(Options.class);
 
         options.add(Options.USE_ASYNC_IO);
 
-        try (VCFFileReader vcfReader = new VCFFileReader(vcfFile, false);
-                VariantContextWriter vcfWriter = new VariantContextWriterBuilder().setOptions(options)
-                        .setOutputFile(outputFile)
+        boolean regionsGiven = (region != null && !region.isEmpty()) || regionsFile != null;
 
-                        .build()) {
+        if (!fullDecode && !regionsGiven) {
+            try {
+                if (goRaw(vcfFile, outputFile, type, metrics)) {
+                    return true;
+                }
+            } catch (Exception e) {
+                System.err.println("Error processing VCF file " + vcfFile);
+                e.printStackTrace();
+                return false;
+            }
+        }
 
-            vcfWriter.writeHeader(vcfReader.getFileHeader());
+        if (threads > 1 && !regionsGiven) {
+            return goPipeline(vcfFile, outputFile, type, options, metrics);
+        }
 
-            int counter = 0;
+        try (VariantReader vcfReader = mmap ? VariantReader.openMapped(vcfFile, false, threads)
+                : VariantReader.open(vcfFile, false);
+                VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type, options,
+                        vcfReader.getFileHeader().getSequenceDictionary(), compressionThreads)) {
 
-            for (VariantContext vc : vcfReader) {
-                boolean keepVariant = false;
+            vcfWriter.writeHeader(vcfReader.getFileHeader());
 
-                // Check DP for each sample
-                for (Genotype genotype : vc.getGenotypes()) {
-                    int dp = 0;
-                    if (genotype.hasDP()) {
-                        dp = genotype.getDP();
-                    }
+            Regions regions = Regions.of(region, regionsFile, vcfReader.getFileHeader().getSequenceDictionary());
+            Predicate<VariantContext> rule = newRule(vcfReader.getFileHeader());
 
-                    // If any sample has DP >= dpThreshold, keep the variant
-                    if (dp >= minDp) {
-                        keepVariant = true;
-                        break;
+            try (CloseableIterator<VariantContext> it = regions == null ? vcfReader.iterator()
+                    : regions.iterator(vcfReader)) {
+                while (it.hasNext()) {
+                    long start = System.nanoTime();
+                    VariantContext vc = it.next();
+                    start = metrics.decode.since(start);
+                    boolean keep = rule.test(vc);
+                    start = metrics.transform.since(start);
+                    if (keep) {
+                        vcfWriter.add(vc);
+                        metrics.write.since(start);
+                        metrics.addOutput(1);
                     }
+                    metrics.addRecords(1);
                 }
+            }
 
-                if (keepVariant) {
-                    vcfWriter.add(vc);
-                }
+        } catch (Exception e) {
+            System.err.println("Error processing VCF file " + vcfFile);
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
 
-                if (++counter % 10000 == 0) {
-                    System.err.println("Processed " + counter);
-                }
+    /**
+     * Filters without decoding records, when input and output are both VCF text
+     * or both BCF.
+     * 
+     * @return false if formats differ and records have to be decoded
+     */
+    private boolean goRaw(File vcfFile, File outputFile, OutputType type, ToolMetrics metrics) throws IOException {
+        boolean bcf = VariantFiles.isBcf(vcfFile);
+        if (bcf != type.isBcf()) {
+            return false;
+        }
+
+        try (InputStream in = VariantFiles.openDecompressed(vcfFile, mmap, threads);
+                OutputStream out = openOutput(outputFile, type)) {
+            if (bcf) {
+                new RawBcfDpFilter(minDp, filter, metrics).filter(new BcfStream(in), out);
+            } else {
+                new RawVcfDpFilter(minDp, filter, metrics).filter(in, out);
             }
+        }
+        return true;
+    }
+
+    private OutputStream openOutput(File outputFile, OutputType type) throws IOException {
+        if (!type.isCompressed()) {
+            return new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16);
+        } else if (compressionThreads > 1) {
+            return new ParallelBlockCompressedOutputStream(outputFile, compressionThreads);
+        }
+        return new BlockCompressedOutputStream(outputFile);
+    }
+
+    private boolean goPipeline(File vcfFile, File outputFile, OutputType type, EnumSet<Options> options,
+            ToolMetrics metrics) {
+        try (VcfPipeline pipeline = VcfPipeline.open(vcfFile, threads, mmap);
+                VariantContextWriter vcfWriter = VariantFiles.createWriter(outputFile, type, options,
+                        pipeline.getHeader().getSequenceDictionary(), compressionThreads)) {
+
+            vcfWriter.writeHeader(pipeline.getHeader());
+
+            pipeline.setMetrics(metrics).run(() -> {
+                Predicate<VariantContext> rule = newRule(pipeline.getHeader());
+                return (vc, output) -> {
+                    if (rule.test(vc)) {
+                        output.add(vc);
+                    }
+                };
+            }, vcfWriter);
 
         } catch (Exception e) {
-            System.err.println("Error processing VCF file");
+            System.err.println("Error processing VCF file " + vcfFile);
             e.printStackTrace();
+            return false;
         }
+        return true;
+    }
 
+    /**
+     * @return --include expression or the --min-dp rule, for one thread
+     */
+    private Predicate<VariantContext> newRule(VCFHeader header) {
+        return filter != null ? filter.newEvaluator(header) : this::keepVariant;
     }
 
+    private boolean keepVariant(VariantContext vc) {
+        // Check DP for each sample
+        for (Genotype genotype : vc.getGenotypes()) {
+            int dp = 0;
+            if (genotype.hasDP()) {
+                dp = genotype.getDP();
+            }
+
+            // If any sample has DP >= dpThreshold, keep the variant
+            if (dp >= minDp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Job {
+        private final File input;
+        private final File output;
+        private OutputType type;
+        private volatile boolean failed;
+        private volatile String summary;
+
+        public Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
 }
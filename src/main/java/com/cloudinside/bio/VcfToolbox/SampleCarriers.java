@@ -0,0 +1,173 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.cloudinside.bio.SampleBitmap;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFHeaderLine;
+
+/**
+ * Samples carrying variants of a summary written with --samples-bitmap (by
+ * {@link BuildFrequencySummary} or {@link CohortFrequencyStore}): bitmaps of
+ * variants are looked up through tabix index of the summary, combined with
+ * {@link SampleBitmap} set operations and expanded to names of the sample
+ * table of the header.
+ *
+ * <pre>
+ * SampleCarriers --input summary.vcf.gz --variant chr1:10073:T:C --variant chr1:10098:T:A
+ * </pre>
+ *
+ * @author pstawinski
+ *
+ */
+public class SampleCarriers implements Closeable {
+    @Parameter(names = "--input", description = "Frequency summary with sample bitmaps (bgzipped and indexed through tabix for fast lookup)", required = true)
+    private String inputVcfFile;
+    @Parameter(names = "--variant", description = "Variant chr:pos:ref:alt, can be repeated", required = true)
+    private List<String> variants;
+    @Parameter(names = "--operation", description = "and - samples carrying all variants, or - any of variants", required = false)
+    private String operation = "and";
+    @Parameter(names = "--hom", description = "Only homozygous samples", required = false)
+    private boolean hom = false;
+    @Parameter(names = "--prefix", description = "Prefix of info entries", required = false)
+    private String infoPrefix = "ZGM_";
+
+    private VariantReader reader;
+    private List<String> sampleNames;
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the tool, errors are thrown instead of reported (for
+     * {@link VcfToolboxServer})
+     */
+    public static void run(String[] args) throws Exception {
+        Locale.setDefault(Locale.ENGLISH);
+
+        SampleCarriers app = new SampleCarriers();
+        JCommander jc = JCommander.newBuilder().addObject(app).build();
+        try {
+            jc.parse(args);
+        } catch (ParameterException e) {
+            jc.usage();
+            throw e;
+        }
+        app.go();
+    }
+
+    private SampleCarriers() {
+    }
+
+    /**
+     * Opens summary for {@link #getCarriers(String, int, String, String, boolean)}
+     */
+    public static SampleCarriers open(File file, String infoPrefix) throws IOException {
+        SampleCarriers carriers = new SampleCarriers();
+        carriers.infoPrefix = infoPrefix;
+        carriers.open(file);
+        return carriers;
+    }
+
+    private void open(File file) throws IOException {
+        reader = VariantReader.open(file, false);
+        VCFHeaderLine table = reader.getFileHeader()
+                .getOtherHeaderLine(infoPrefix + BuildFrequencySummary.SAMPLE_TABLE_HEADER);
+        if (table == null) {
+            reader.close();
+            throw new IllegalArgumentException(
+                    "No sample table in " + file + ", summary has to be written with --samples-bitmap");
+        }
+        sampleNames = table.getValue().isEmpty() ? Collections.emptyList()
+                : Arrays.asList(table.getValue().split(","));
+    }
+
+    private void go() throws IOException {
+        open(new File(inputVcfFile));
+        try {
+            SampleBitmap result = null;
+            for (String variant : variants) {
+                String[] fields = variant.split(":");
+                if (fields.length != 4) {
+                    throw new IllegalArgumentException("Invalid variant, not chr:pos:ref:alt: " + variant);
+                }
+                SampleBitmap carriers = getCarriers(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3],
+                        hom);
+                if (result == null) {
+                    result = carriers;
+                } else if (operation.equals("and")) {
+                    result = result.and(carriers);
+                } else if (operation.equals("or")) {
+                    result = result.or(carriers);
+                } else {
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+                }
+            }
+            for (String name : getNames(result)) {
+                System.out.println(name);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Names of samples in the sample table, by index
+     */
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    /**
+     * @return samples containing the variant (homozygous if hom), empty if the
+     *         variant is not in the summary
+     */
+    public SampleBitmap getCarriers(String contig, int position, String ref, String alt, boolean hom) {
+        String info = infoPrefix
+                + (hom ? BuildFrequencySummary.SAMPLES_HOM_BITMAP_INFO : BuildFrequencySummary.SAMPLES_BITMAP_INFO);
+        try (CloseableIterator<VariantContext> it = reader.isQueryable() ? reader.query(contig, position, position)
+                : reader.iterator()) {
+            while (it.hasNext()) {
+                VariantContext vc = it.next();
+                if (vc.getStart() == position && vc.getContig().equals(contig)
+                        && vc.getReference().getBaseString().equals(ref) && vc.getAlternateAlleles().size() == 1
+                        && vc.getAlternateAllele(0).equals(Allele.create(alt, false))) {
+                    return SampleBitmap.decode(vc.getAttributeAsString(info, ""));
+                }
+            }
+        }
+        return SampleBitmap.EMPTY;
+    }
+
+    /**
+     * Expands bitmap to sample names
+     */
+    public List<String> getNames(SampleBitmap samples) {
+        List<String> names = new ArrayList<>(samples.cardinality());
+        samples.forEach(index -> names.add(sampleNames.get(index)));
+        return names;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,133 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Sample names of a VCF header normalized once: "Sample_" prefix and
+ * everything after the first dot are removed. Different samples may share a
+ * normalized name.
+ *
+ * Every normalized name has two entries: the name and the name with "*"
+ * appended (as written for homozygotes). Entries are numbered in their sorted
+ * order, so a list of sample names sorted like in a TreeSet is obtained by
+ * sorting entry numbers.
+ *
+ * @author pstawinski
+ *
+ */
+class SampleNameTable {
+    private final List<String> sampleNames;
+    private final Map<String, Integer> sampleIndexes = new HashMap<>();
+
+    /** sample index -> normalized name id */
+    private final int[] nameIds;
+    private final String[] names;
+
+    /** name id -> entry of name, entry of name* */
+    private final int[] plainEntries;
+    private final int[] starEntries;
+    private final String[] entries;
+
+    public SampleNameTable(List<String> sampleNames) {
+        this.sampleNames = new ArrayList<>(sampleNames);
+        this.nameIds = new int[sampleNames.size()];
+
+        Map<String, Integer> nameToId = new LinkedHashMap<>();
+        for (int i = 0; i < sampleNames.size(); i++) {
+            sampleIndexes.put(sampleNames.get(i), i);
+            String name = normalize(sampleNames.get(i));
+            Integer id = nameToId.get(name);
+            if (id == null) {
+                id = nameToId.size();
+                nameToId.put(name, id);
+            }
+            nameIds[i] = id;
+        }
+        this.names = nameToId.keySet().toArray(new String[nameToId.size()]);
+
+        String[] all = new String[names.length * 2];
+        for (int i = 0; i < names.length; i++) {
+            all[2 * i] = names[i];
+            all[2 * i + 1] = names[i] + "*";
+        }
+        Integer[] order = new Integer[all.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> all[i]));
+
+        this.plainEntries = new int[names.length];
+        this.starEntries = new int[names.length];
+        this.entries = new String[all.length];
+        for (int entry = 0; entry < order.length; entry++) {
+            int i = order[entry];
+            entries[entry] = all[i];
+            if (i % 2 == 0) {
+                plainEntries[i / 2] = entry;
+            } else {
+                starEntries[i / 2] = entry;
+            }
+        }
+    }
+
+    public static String normalize(String sampleName) {
+        String name = StringUtils.removeStart(sampleName, "Sample_");
+        return StringUtils.substringBefore(name, ".");
+    }
+
+    public int getSamplesCount() {
+        return sampleNames.size();
+    }
+
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    /**
+     * @return header index of the sample or -1
+     */
+    public int getSampleIndex(String sampleName) {
+        Integer index = sampleIndexes.get(sampleName);
+        return index == null ? -1 : index;
+    }
+
+    public String getSampleName(int sampleIndex) {
+        return sampleNames.get(sampleIndex);
+    }
+
+    public int getNamesCount() {
+        return names.length;
+    }
+
+    public int getNameId(int sampleIndex) {
+        return nameIds[sampleIndex];
+    }
+
+    public String getName(int nameId) {
+        return names[nameId];
+    }
+
+    public int getEntriesCount() {
+        return entries.length;
+    }
+
+    public int getPlainEntry(int nameId) {
+        return plainEntries[nameId];
+    }
+
+    public int getStarEntry(int nameId) {
+        return starEntries[nameId];
+    }
+
+    public String getEntry(int entry) {
+        return entries[entry];
+    }
+}
@@ -0,0 +1,224 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.reference.FastaSequenceIndex;
+import htsjdk.samtools.reference.FastaSequenceIndexEntry;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.BufferedLineReader;
+
+/**
+ * Sequence dictionaries of references without opening the fasta: read from
+ * the .dict, without it built from the .fai (names and lengths only).
+ *
+ * Dictionaries are kept for the life of the process, so jobs of
+ * {@link VcfToolboxServer} share them. With a cache directory they are also
+ * stored there in a compact binary form, keyed by the path of the fasta. A
+ * dictionary is read again when the fasta, .dict or .fai is modified
+ * (modification time or size).
+ *
+ * Returned dictionaries are shared, do not modify them.
+ *
+ * @author pstawinski
+ *
+ */
+class SequenceDictionaries {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(SequenceDictionaries.class);
+
+    private static final int CACHE_VERSION = 1;
+
+    private static final Map<String, Cached> cache = new ConcurrentHashMap<>();
+
+    private SequenceDictionaries() {
+    }
+
+    /**
+     * @return dictionary of the reference, null if the reference has neither
+     *         .dict nor .fai
+     */
+    public static SAMSequenceDictionary get(File fasta) {
+        return get(fasta, null);
+    }
+
+    /**
+     * @param cacheDir
+     *            - directory of serialized dictionaries, may be null
+     * @return dictionary of the reference, null if the reference has neither
+     *         .dict nor .fai
+     */
+    public static SAMSequenceDictionary get(File fasta, File cacheDir) {
+        String path = fasta.getAbsolutePath();
+        Stamp stamp = new Stamp(fasta);
+        Cached cached = cache.get(path);
+        if (cached != null && cached.stamp.equals(stamp)) {
+            return cached.dictionary;
+        }
+
+        SAMSequenceDictionary dictionary = null;
+        File cacheFile = cacheDir == null ? null
+                : new File(cacheDir, fasta.getName() + "." + Integer.toHexString(path.hashCode()) + ".dictcache");
+        if (cacheFile != null && cacheFile.isFile()) {
+            try {
+                dictionary = readCache(cacheFile, path, stamp);
+            } catch (IOException e) {
+                log.warn("Ignoring unreadable dictionary cache " + cacheFile + ": " + e);
+            }
+        }
+        if (dictionary == null) {
+            dictionary = read(fasta, stamp);
+            if (cacheFile != null && dictionary != null) {
+                try {
+                    writeCache(cacheFile, path, stamp, dictionary);
+                } catch (IOException e) {
+                    log.warn("Cannot write dictionary cache " + cacheFile + ": " + e);
+                }
+            }
+        }
+        cache.put(path, new Cached(stamp, dictionary));
+        return dictionary;
+    }
+
+    private static SAMSequenceDictionary read(File fasta, Stamp stamp) {
+        try {
+            if (stamp.dict.isFile()) {
+                try (BufferedLineReader reader = new BufferedLineReader(new FileInputStream(stamp.dict))) {
+                    return new SAMTextHeaderCodec().decode(reader, stamp.dict.getPath()).getSequenceDictionary();
+                }
+            }
+            if (stamp.fai.isFile()) {
+                List<SAMSequenceRecord> sequences = new ArrayList<>();
+                for (FastaSequenceIndexEntry entry : new FastaSequenceIndex(stamp.fai.toPath())) {
+                    sequences.add(new SAMSequenceRecord(entry.getContig(), (int) entry.getSize()));
+                }
+                return new SAMSequenceDictionary(sequences);
+            }
+            try (ReferenceSequenceFile reference = ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta)) {
+                return reference.getSequenceDictionary();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return null if the cache is of other reference or outdated
+     */
+    private static SAMSequenceDictionary readCache(File cacheFile, String path, Stamp stamp) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_VERSION || !in.readUTF().equals(path) || !new Stamp(in).equals(stamp)) {
+                return null;
+            }
+            int count = in.readInt();
+            List<SAMSequenceRecord> sequences = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                SAMSequenceRecord sequence = new SAMSequenceRecord(in.readUTF(), in.readInt());
+                int attributes = in.readInt();
+                for (int a = 0; a < attributes; a++) {
+                    sequence.setAttribute(in.readUTF(), in.readUTF());
+                }
+                sequences.add(sequence);
+            }
+            return new SAMSequenceDictionary(sequences);
+        }
+    }
+
+    private static void writeCache(File cacheFile, String path, Stamp stamp, SAMSequenceDictionary dictionary)
+            throws IOException {
+        Files.createDirectories(cacheFile.toPath().getParent());
+        // renamed when complete, readers never see a partial file
+        Path tmp = Files.createTempFile(cacheFile.toPath().getParent(), cacheFile.getName(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(CACHE_VERSION);
+                out.writeUTF(path);
+                stamp.write(out);
+                out.writeInt(dictionary.size());
+                for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+                    out.writeUTF(sequence.getSequenceName());
+                    out.writeInt(sequence.getSequenceLength());
+                    out.writeInt(sequence.getAttributes().size());
+                    for (Entry<String, String> attribute : sequence.getAttributes()) {
+                        out.writeUTF(attribute.getKey());
+                        out.writeUTF(attribute.getValue());
+                    }
+                }
+            }
+            Files.move(tmp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static class Cached {
+        private final Stamp stamp;
+        private final SAMSequenceDictionary dictionary;
+
+        public Cached(Stamp stamp, SAMSequenceDictionary dictionary) {
+            this.stamp = stamp;
+            this.dictionary = dictionary;
+        }
+    }
+
+    /**
+     * Modification times and sizes of the fasta, its .dict and .fai
+     */
+    private static class Stamp {
+        private final File dict;
+        private final File fai;
+        private final long[] values;
+
+        public Stamp(File fasta) {
+            this.dict = ReferenceSequenceFileFactory.getDefaultDictionaryForReferenceSequence(fasta.toPath())
+                    .toFile();
+            this.fai = ReferenceSequenceFileFactory.getFastaIndexFileName(fasta.toPath()).toFile();
+            this.values = new long[] { fasta.lastModified(), fasta.length(), dict.lastModified(), dict.length(),
+                    fai.lastModified(), fai.length() };
+        }
+
+        private Stamp(DataInputStream in) throws IOException {
+            this.dict = null;
+            this.fai = null;
+            this.values = new long[6];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readLong();
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Stamp && Arrays.equals(values, ((Stamp) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
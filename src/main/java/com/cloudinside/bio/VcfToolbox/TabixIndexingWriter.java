@@ -0,0 +1,117 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Tabix index on the fly for a VCF writer on a
+ * {@link ParallelBlockCompressedOutputStream}. Positions of records are pseudo
+ * virtual offsets until their blocks are written, so records wait here and are
+ * added to the {@link TabixIndexCreator} when addresses of their blocks are
+ * known. The index is the same as created by htsjdk for bgzipped VCF.
+ *
+ * @author pstawinski
+ *
+ */
+class TabixIndexingWriter implements VariantContextWriter, ParallelBlockCompressedOutputStream.BlockListener {
+    private final File file;
+    private final VariantContextWriter delegate;
+    private final ParallelBlockCompressedOutputStream stream;
+    private final SAMSequenceDictionary dictionary;
+    private final TabixIndexCreator indexCreator;
+    private final Queue<PendingFeature> pending = new ArrayDeque<>();
+
+    /**
+     * @param delegate
+     *            - writer of VCF to stream
+     */
+    public TabixIndexingWriter(File file, VariantContextWriter delegate, ParallelBlockCompressedOutputStream stream,
+            SAMSequenceDictionary dictionary) {
+        this.file = file;
+        this.delegate = delegate;
+        this.stream = stream;
+        this.dictionary = dictionary;
+        this.indexCreator = dictionary == null ? new TabixIndexCreator(TabixFormat.VCF)
+                : new TabixIndexCreator(dictionary, TabixFormat.VCF);
+        stream.setBlockListener(this);
+    }
+
+    @Override
+    public void writeHeader(VCFHeader header) {
+        delegate.writeHeader(header);
+    }
+
+    @Override
+    public void setHeader(VCFHeader header) {
+        delegate.setHeader(header);
+    }
+
+    @Override
+    public boolean checkError() {
+        return delegate.checkError();
+    }
+
+    @Override
+    public void add(VariantContext vc) {
+        pending.add(new PendingFeature(new SimpleFeature(vc.getContig(), vc.getStart(), vc.getEnd()),
+                stream.getPosition()));
+        delegate.add(vc);
+    }
+
+    @Override
+    public void blockWritten(long blockNumber, long blockAddress) {
+        while (!pending.isEmpty() && block(pending.peek().position) == blockNumber) {
+            addToIndex(pending.poll(), blockAddress);
+        }
+    }
+
+    @Override
+    public void close() {
+        // writes all blocks
+        delegate.close();
+
+        long end = stream.getWrittenBytes();
+        while (!pending.isEmpty()) {
+            addToIndex(pending.poll(), end);
+        }
+        try {
+            indexCreator.setIndexSequenceDictionary(dictionary);
+            Index index = indexCreator.finalizeIndex(BlockCompressedFilePointerUtil.makeFilePointer(end));
+            index.writeBasedOnFeaturePath(file.toPath());
+        } catch (IOException e) {
+            throw new RuntimeIOException("Unable to close index for " + file, e);
+        }
+    }
+
+    private void addToIndex(PendingFeature feature, long blockAddress) {
+        indexCreator.addFeature(feature.feature,
+                BlockCompressedFilePointerUtil.makeFilePointer(blockAddress, (int) (feature.position & 0xffff)));
+    }
+
+    private static long block(long position) {
+        return position >>> 16;
+    }
+
+    private static class PendingFeature {
+        private final SimpleFeature feature;
+        private final long position;
+
+        public PendingFeature(SimpleFeature feature, long position) {
+            this.feature = feature;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and timings of a tool run: input and output records, skipped and
+ * failed records, decode, transform and write time per record, depths of
+ * queues and sizes of input and output files.
+ *
+ * Without reporting interval progress is printed as before, "Processed N"
+ * every {@link #PROGRESS_RECORDS} records. With interval a JSON line is
+ * printed to stderr instead, every interval seconds. On {@link #close()} the
+ * summary (the same JSON) is printed and written to the summary file.
+ *
+ * Counters may be updated from many threads.
+ *
+ * @author pstawinski
+ *
+ */
+class ToolMetrics implements Closeable {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ToolMetrics.class);
+
+    public static final int PROGRESS_RECORDS = 10000;
+
+    private final String tool;
+    private final long startNanos = System.nanoTime();
+    private final Instant startTime = Instant.now();
+
+    private final AtomicLong records = new AtomicLong();
+    private final LongAdder output = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /** time of iterator next or raw record decoding */
+    public final Timer decode = new Timer();
+    /** time of the tool work on a decoded record */
+    public final Timer transform = new Timer();
+    /** time of writing output records */
+    public final Timer write = new Timer();
+
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final List<File> inputFiles = new ArrayList<>();
+    private final List<File> outputFiles = new ArrayList<>();
+
+    /** input of a batch run, named in progress and the summary */
+    private String label;
+    private File summaryFile;
+    private String summary;
+    private ScheduledExecutorService reporter;
+    private long lastReportNanos = startNanos;
+    private long lastReportRecords = 0;
+
+    public ToolMetrics(String tool) {
+        this.tool = tool;
+    }
+
+    /**
+     * @param intervalSeconds
+     *            - JSON progress lines every interval, 0 - "Processed N"
+     *            lines
+     * @param summaryFile
+     *            - file of the final summary, may be null
+     */
+    public ToolMetrics start(int intervalSeconds, String summaryFile) {
+        this.summaryFile = summaryFile == null ? null : new File(summaryFile);
+        if (intervalSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ToolMetrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> System.err.println(toJson("progress")), intervalSeconds,
+                    intervalSeconds, TimeUnit.SECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Names the input of one of many runs of a tool at once, in progress lines
+     * and the summary
+     */
+    public ToolMetrics setLabel(String label) {
+        this.label = label;
+        return this;
+    }
+
+    public void addInputFile(File file) {
+        inputFiles.add(file);
+    }
+
+    public void addOutputFile(File file) {
+        outputFiles.add(file);
+    }
+
+    /**
+     * Value reported in every line, e.g. depth of a queue; the maximum of
+     * reported values goes to the summary
+     */
+    public synchronized void gauge(String name, IntSupplier value) {
+        gauges.put(name, new Gauge(value));
+    }
+
+    /**
+     * Input records processed (or failed); gauges are sampled every
+     * {@link #PROGRESS_RECORDS} records
+     */
+    public void addRecords(long count) {
+        long previous = records.getAndAdd(count);
+        long current = previous + count;
+        if (previous / PROGRESS_RECORDS == current / PROGRESS_RECORDS) {
+            return;
+        }
+        sampleGauges();
+        if (reporter == null) {
+            for (long reported = (previous / PROGRESS_RECORDS + 1) * PROGRESS_RECORDS; reported <= current;
+                    reported += PROGRESS_RECORDS) {
+                System.err.println(label == null ? "Processed " + reported : label + ": Processed " + reported);
+            }
+        }
+    }
+
+    private synchronized void sampleGauges() {
+        for (Gauge gauge : gauges.values()) {
+            gauge.sample();
+        }
+    }
+
+    public void addOutput(long count) {
+        output.add(count);
+    }
+
+    /**
+     * Record not processed on purpose, e.g. outside of regions
+     */
+    public void skipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Record omitted due to an error
+     */
+    public void error() {
+        errors.increment();
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the summary JSON, null before {@link #close()}
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * Stops reporting, prints the summary and writes the summary file
+     */
+    @Override
+    public void close() throws IOException {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        summary = toJson("summary");
+        if (reporter != null) {
+            System.err.println(summary);
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        log.info(String.format(Locale.ROOT,
+                "%s: %d records in %.1f s (%.0f records/s), %d written, %d skipped, %d errors",
+                label == null ? tool : tool + " " + label, records.get(),
+                seconds, records.get() / Math.max(seconds, 1e-9), output.sum(), skipped.sum(), errors.sum()));
+        if (summaryFile != null) {
+            Files.write(summaryFile.toPath(), (summary + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    synchronized String toJson(String event) {
+        long now = System.nanoTime();
+        double seconds = (now - startNanos) / 1e9;
+        long recordCount = records.get();
+        double intervalSeconds = (now - lastReportNanos) / 1e9;
+        long intervalRecords = recordCount - lastReportRecords;
+        lastReportNanos = now;
+        lastReportRecords = recordCount;
+
+        StringBuilder sb = new StringBuilder(512);
+        sb.append('{');
+        field(sb, "tool").append('"').append(tool).append('"');
+        if (label != null) {
+            field(sb, "label").append('"').append(label.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        field(sb, "event").append('"').append(event).append('"');
+        field(sb, "start").append('"').append(startTime).append('"');
+        field(sb, "elapsed_s").append(format(seconds));
+        field(sb, "records").append(recordCount);
+        field(sb, "records_per_s").append(format(recordCount / Math.max(seconds, 1e-9)));
+        if (event.equals("progress")) {
+            field(sb, "interval_records_per_s").append(format(intervalRecords / Math.max(intervalSeconds, 1e-9)));
+        }
+        field(sb, "output_records").append(output.sum());
+        field(sb, "skipped").append(skipped.sum());
+        field(sb, "errors").append(errors.sum());
+        field(sb, "input_bytes").append(size(inputFiles));
+        field(sb, "output_bytes").append(size(outputFiles));
+        field(sb, "decode");
+        decode.toJson(sb);
+        field(sb, "transform");
+        transform.toJson(sb);
+        field(sb, "write");
+        write.toJson(sb);
+        field(sb, "queues").append('{');
+        boolean first = true;
+        for (Entry<String, Gauge> gauge : gauges.entrySet()) {
+            int value = gauge.getValue().sample();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(gauge.getKey()).append("\":");
+            if (event.equals("summary")) {
+                sb.append("{\"max\":").append(gauge.getValue().max).append('}');
+            } else {
+                sb.append(value);
+            }
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name) {
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        return sb.append('"').append(name).append("\":");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Current sizes, of files written so far for outputs
+     */
+    private static long size(List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static class Gauge {
+        private final IntSupplier value;
+        private int max = 0;
+
+        public Gauge(IntSupplier value) {
+            this.value = value;
+        }
+
+        private int sample() {
+            int current = value.getAsInt();
+            max = Math.max(max, current);
+            return current;
+        }
+    }
+
+    /**
+     * Durations in power of 2 nanosecond buckets; percentiles are upper bounds
+     * of buckets, at most 2x off
+     */
+    static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        public void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+            buckets.incrementAndGet(nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        }
+
+        /**
+         * Records time since start, see {@link System#nanoTime()}
+         *
+         * @return now
+         */
+        public long since(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+
+        private long percentile(long n, double fraction) {
+            long threshold = (long) Math.ceil(n * fraction);
+            long cumulative = 0;
+            for (int i = 0; i < 64; i++) {
+                cumulative += buckets.get(i);
+                if (cumulative >= threshold) {
+                    return Math.min(i >= 62 ? Long.MAX_VALUE : 2L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private void toJson(StringBuilder sb) {
+            long n = count.sum();
+            sb.append("{\"count\":").append(n);
+            if (n > 0) {
+                sb.append(",\"total_s\":").append(format(total.sum() / 1e9));
+                sb.append(",\"mean_us\":").append(format(total.sum() / 1e3 / n));
+                sb.append(",\"p50_us\":").append(format(percentile(n, 0.5) / 1e3));
+                sb.append(",\"p99_us\":").append(format(percentile(n, 0.99) / 1e3));
+                sb.append(",\"max_us\":").append(format(max.get() / 1e3));
+            }
+            sb.append('}');
+        }
+    }
+}
@@ -1,28 +1,151 @@
 package com.cloudinside.bio.VcfToolbox;
 
 import java.util.Comparator;
-import java.util.stream.Collectors;
-
-import com.google.common.collect.ComparisonChain;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextComparator;
 
+/**
+ * Orders by contig, position, reference bases and then all alleles joined with
+ * a comma. Comparison does not allocate; when the same records are compared
+ * many times use {@link #sortKey(VariantContext)} and compare the keys.
+ * 
+ * @author pstawinski
+ *
+ */
 public class VariantContextComparatorAltAware implements Comparator<VariantContext> {
     private final VariantContextComparator vcc;
+    private final Map<String, Integer> contigIndexes;
 
     public VariantContextComparatorAltAware(VariantContextComparator vcc) {
         this.vcc = vcc;
+        this.contigIndexes = null;
+    }
+
+    public VariantContextComparatorAltAware(SAMSequenceDictionary dictionary) {
+        this.vcc = new VariantContextComparator(dictionary);
+        this.contigIndexes = new HashMap<>();
+        for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+            contigIndexes.put(sequence.getSequenceName(), sequence.getSequenceIndex());
+        }
     }
 
     @Override
     public int compare(VariantContext o1, VariantContext o2) {
-        return ComparisonChain.start().compare(o1, o2, vcc)
-                .compare(o1.getReference().getBaseString(), o2.getReference().getBaseString())
-                .compare(o1.getAlleles().stream().map(Allele::getBaseString).collect(Collectors.joining(",")),
-                        o2.getAlleles().stream().map(Allele::getBaseString).collect(Collectors.joining(",")))
-                .result();
+        int result = vcc.compare(o1, o2);
+        if (result != 0) {
+            return result;
+        }
+        result = compareBases(o1.getReference().getBases(), o2.getReference().getBases());
+        if (result != 0) {
+            return result;
+        }
+        return compareJoined(o1.getAlleles(), o2.getAlleles());
+    }
+
+    /**
+     * Sort key consistent with this comparator, available only when created
+     * from a sequence dictionary
+     * 
+     * @param vc
+     * @return
+     */
+    public VariantSortKey sortKey(VariantContext vc) {
+        return VariantSortKey.of(vc, contigIndex(vc.getContig()));
+    }
+
+    /**
+     * Sort keys of one sorted input: records come contig by contig and
+     * decoders share contig name strings, so the contig index is looked up
+     * once per contig, not per record. Not thread safe, one function per
+     * input.
+     */
+    public Function<VariantContext, VariantSortKey> sortKeys() {
+        if (contigIndexes == null) {
+            throw new IllegalStateException("Sort keys require comparator created from a sequence dictionary");
+        }
+        return new Function<VariantContext, VariantSortKey>() {
+            private String lastContig;
+            private int lastIndex;
+
+            @Override
+            public VariantSortKey apply(VariantContext vc) {
+                String contig = vc.getContig();
+                if (!contig.equals(lastContig)) {
+                    lastIndex = contigIndex(contig);
+                    lastContig = contig;
+                }
+                return VariantSortKey.of(vc, lastIndex);
+            }
+        };
+    }
+
+    private int contigIndex(String contig) {
+        if (contigIndexes == null) {
+            throw new IllegalStateException("Sort keys require comparator created from a sequence dictionary");
+        }
+        Integer contigIndex = contigIndexes.get(contig);
+        if (contigIndex == null) {
+            throw new IllegalArgumentException("Contig " + contig + " not found in sequence dictionary");
+        }
+        return contigIndex;
+    }
+
+    private static int compareBases(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xff) - (b[i] & 0xff);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Compares alleles as if their bases were joined with ',', without building
+     * the strings
+     */
+    private static int compareJoined(List<Allele> a, List<Allele> b) {
+        int ai = 0, bi = 0; // allele index
+        int ao = 0, bo = 0; // offset in allele, -1 is separator
+        byte[] aBases = a.get(0).getBases();
+        byte[] bBases = b.get(0).getBases();
+        while (true) {
+            if (ao == aBases.length) {
+                if (ai + 1 < a.size()) {
+                    aBases = a.get(++ai).getBases();
+                    ao = -1;
+                } else {
+                    aBases = null;
+                }
+            }
+            if (bo == bBases.length) {
+                if (bi + 1 < b.size()) {
+                    bBases = b.get(++bi).getBases();
+                    bo = -1;
+                } else {
+                    bBases = null;
+                }
+            }
+            if (aBases == null || bBases == null) {
+                return aBases == null ? (bBases == null ? 0 : -1) : 1;
+            }
+
+            int ac = ao < 0 ? ',' : aBases[ao] & 0xff;
+            int bc = bo < 0 ? ',' : bBases[bo] & 0xff;
+            if (ac != bc) {
+                return ac - bc;
+            }
+            ao++;
+            bo++;
+        }
     }
 
 }
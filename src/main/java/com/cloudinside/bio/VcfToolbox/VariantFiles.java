@@ -0,0 +1,242 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.variant.variantcontext.writer.AsyncVariantContextWriter;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Input format detection and output writers shared by the tools.
+ *
+ * @author pstawinski
+ *
+ */
+final class VariantFiles {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Output formats, named with bcftools -O letters
+     */
+    enum OutputType {
+        /** VCF text */
+        VCF("v"),
+        /** bgzipped VCF, tabix index on the fly */
+        VCF_GZ("z"),
+        /** uncompressed BCF, tribble index on the fly */
+        BCF_UNCOMPRESSED("u"),
+        /** bgzipped BCF, no index on the fly */
+        BCF("b");
+
+        private final String letter;
+
+        private OutputType(String letter) {
+            this.letter = letter;
+        }
+
+        public boolean isBcf() {
+            return this == BCF || this == BCF_UNCOMPRESSED;
+        }
+
+        public boolean isCompressed() {
+            return this == VCF_GZ || this == BCF;
+        }
+
+        /**
+         * @param outputType
+         *            - v, z, u or b; null or empty - from extension of file
+         */
+        public static OutputType of(File file, String outputType) {
+            if (outputType == null || outputType.isEmpty()) {
+                String name = file.getName();
+                if (name.endsWith(".bcf")) {
+                    return BCF;
+                } else if (name.endsWith(".gz") || name.endsWith(".bgz")) {
+                    return VCF_GZ;
+                } else {
+                    return VCF;
+                }
+            }
+            for (OutputType type : values()) {
+                if (type.letter.equals(outputType)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown output type " + outputType + ", expected one of v, z, u, b");
+        }
+    }
+
+    private VariantFiles() {
+    }
+
+    /**
+     * Writer of the given type. BCF needs contig lines in the header, see
+     * {@link #addContigLines(VCFHeader, SAMSequenceDictionary)}.
+     */
+    public static VariantContextWriter createWriter(File file, OutputType outputType, EnumSet<Options> options,
+            SAMSequenceDictionary dictionary) throws IOException {
+        return createWriter(file, outputType, options, dictionary, 1);
+    }
+
+    /**
+     * As {@link #createWriter(File, OutputType, EnumSet, SAMSequenceDictionary)},
+     * compressed types are compressed by compressionThreads threads when more
+     * than one, see {@link ParallelBlockCompressedOutputStream}
+     */
+    public static VariantContextWriter createWriter(File file, OutputType outputType, EnumSet<Options> options,
+            SAMSequenceDictionary dictionary, int compressionThreads) throws IOException {
+        if (compressionThreads > 1 && outputType.isCompressed()) {
+            return createParallelWriter(file, outputType, options, dictionary, compressionThreads);
+        }
+        VariantContextWriterBuilder builder = new VariantContextWriterBuilder().setReferenceDictionary(dictionary);
+        EnumSet<Options> writerOptions = EnumSet.copyOf(options);
+        switch (outputType) {
+        case VCF:
+            builder.setOutputFile(file).setOutputFileType(VariantContextWriterBuilder.OutputType.VCF);
+            break;
+        case VCF_GZ:
+            builder.setOutputFile(file).setOutputFileType(VariantContextWriterBuilder.OutputType.BLOCK_COMPRESSED_VCF);
+            break;
+        case BCF_UNCOMPRESSED:
+            builder.setOutputFile(file).setOutputFileType(VariantContextWriterBuilder.OutputType.BCF);
+            break;
+        case BCF:
+            // htsjdk has no CSI index creator
+            writerOptions.remove(Options.INDEX_ON_THE_FLY);
+            builder.setOutputBCFStream(new BlockCompressedOutputStream(file));
+            break;
+        }
+        return builder.setOptions(writerOptions).build();
+    }
+
+    private static VariantContextWriter createParallelWriter(File file, OutputType outputType,
+            EnumSet<Options> options, SAMSequenceDictionary dictionary, int compressionThreads) throws IOException {
+        ParallelBlockCompressedOutputStream stream = new ParallelBlockCompressedOutputStream(file,
+                compressionThreads);
+        EnumSet<Options> writerOptions = EnumSet.copyOf(options);
+        writerOptions.remove(Options.INDEX_ON_THE_FLY);
+        writerOptions.remove(Options.USE_ASYNC_IO);
+        VariantContextWriterBuilder builder = new VariantContextWriterBuilder().setReferenceDictionary(dictionary)
+                .setOptions(writerOptions);
+
+        VariantContextWriter writer;
+        if (outputType.isBcf()) {
+            // htsjdk has no CSI index creator
+            writer = builder.setOutputBCFStream(stream).build();
+        } else {
+            writer = builder.setOutputVCFStream(stream).build();
+            if (options.contains(Options.INDEX_ON_THE_FLY)) {
+                writer = new TabixIndexingWriter(file, writer, stream, dictionary);
+            }
+        }
+        if (options.contains(Options.USE_ASYNC_IO)) {
+            writer = new AsyncVariantContextWriter(writer, 2000);
+        }
+        return writer;
+    }
+
+    /**
+     * Adds contig lines of the dictionary to a header without them, BCF
+     * encodes contigs as indexes of these lines.
+     */
+    public static void addContigLines(VCFHeader header, SAMSequenceDictionary dictionary) {
+        if (!header.getContigLines().isEmpty()) {
+            return;
+        }
+        if (dictionary == null || dictionary.isEmpty()) {
+            throw new IllegalArgumentException("Sequence dictionary (contig lines) required to write BCF");
+        }
+        header.setSequenceDictionary(dictionary);
+    }
+
+    /**
+     * Opens file skipping BGZF or gzip compression, detected from content
+     */
+    public static InputStream openDecompressed(File file) throws IOException {
+        return openDecompressed(file, BUFFER_SIZE);
+    }
+
+    /**
+     * As {@link #openDecompressed(File)}, with buffers of the given size (BGZF
+     * blocks are buffered whole anyway)
+     */
+    public static InputStream openDecompressed(File file, int bufferSize) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), bufferSize);
+        try {
+            if (BlockCompressedInputStream.isValidFile(in)) {
+                return new BufferedInputStream(new BlockCompressedInputStream(in), bufferSize);
+            } else if (isGzip(in)) {
+                return new BufferedInputStream(new GZIPInputStream(in, bufferSize), bufferSize);
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * As {@link #openDecompressed(File)}; with mmap BGZF file is mapped to
+     * memory and inflated by threads workers, see
+     * {@link MappedBgzfInputStream}
+     */
+    public static InputStream openDecompressed(File file, boolean mmap, int threads) throws IOException {
+        if (mmap && isBgzf(file)) {
+            return new MappedBgzfInputStream(file, threads);
+        }
+        return openDecompressed(file);
+    }
+
+    public static boolean isBgzf(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return BlockCompressedInputStream.isValidFile(in);
+        }
+    }
+
+    /**
+     * @return true if content of the file, after decompression, is BCF
+     */
+    public static boolean isBcf(File file) throws IOException {
+        try (InputStream in = openDecompressed(file)) {
+            return startsWith(in, new byte[] { 'B', 'C', 'F' });
+        }
+    }
+
+    public static boolean isCompressed(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return isGzip(in);
+        }
+    }
+
+    private static boolean isGzip(InputStream in) throws IOException {
+        return startsWith(in, new byte[] { 0x1f, (byte) 0x8b });
+    }
+
+    /**
+     * Checks the prefix and resets the stream, which has to support marks
+     */
+    static boolean startsWith(InputStream in, byte[] prefix) throws IOException {
+        in.mark(prefix.length);
+        try {
+            for (byte b : prefix) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * K-way merge of sorted variant inputs.
+ *
+ * Heads of all inputs are kept in a loser tree (tournament tree) ordered by
+ * their cached {@link VariantSortKey}, ties are resolved by input index. Taking a record and replaying the tournament for its
+ * input costs log N comparisons, so a group of k equal records costs
+ * O(k log N) instead of two scans over all N inputs. This pays off when most
+ * records are reported by a small subset of inputs, which is the usual case for
+ * many callers of one sample.
+ *
+ * From every input at most one record is taken per group, the same as the
+ * original linear loop in {@link JoinVariants}.
+ *
+ * @author pstawinski
+ *
+ */
+class VariantMergeQueue {
+    private final VcfIteratorWrapper[] inputs;
+    private final int size;
+
+    /**
+     * tree[0] is the winner, tree[1..size-1] are losers of internal nodes;
+     * leaf of input i is the node size + i
+     */
+    private final int[] tree;
+
+    /**
+     * inputs already taken in the current group, whose next record is equal to
+     * the group - these lose ties until the group is finished
+     */
+    private final boolean[] deferred;
+
+    private final boolean[] inGroup;
+
+    private final int[] taken;
+
+    /**
+     * @param inputs
+     *            - wrappers created with a sort key function
+     */
+    public VariantMergeQueue(List<VcfIteratorWrapper> inputs) {
+        this.inputs = inputs.toArray(new VcfIteratorWrapper[inputs.size()]);
+        this.size = this.inputs.length;
+        this.tree = new int[Math.max(size, 1)];
+        this.deferred = new boolean[size];
+        this.inGroup = new boolean[size];
+        this.taken = new int[size];
+
+        if (size > 0) {
+            int[] winners = new int[2 * size];
+            for (int i = 0; i < size; i++) {
+                winners[size + i] = i;
+            }
+            for (int node = size - 1; node >= 1; node--) {
+                int a = winners[2 * node];
+                int b = winners[2 * node + 1];
+                if (less(a, b)) {
+                    winners[node] = a;
+                    tree[node] = b;
+                } else {
+                    winners[node] = b;
+                    tree[node] = a;
+                }
+            }
+            tree[0] = size == 1 ? 0 : winners[1];
+        }
+    }
+
+    public int getInputsCount() {
+        return size;
+    }
+
+    public boolean hasNext() {
+        return size > 0 && inputs[tree[0]].peek() != null;
+    }
+
+    /**
+     * Takes the smallest record and equal records of the other inputs.
+     *
+     * @param groupInputs
+     *            - filled with indexes of inputs that contributed to the group,
+     *            in ascending order; length must be at least number of inputs
+     * @param records
+     *            - records[inputIndex] is set to the record taken from the
+     *            input; entries of other inputs are left untouched
+     * @return number of inputs in the group, 0 when all inputs are exhausted
+     */
+    public int nextGroup(int[] groupInputs, VariantContext[] records) {
+        if (!hasNext()) {
+            return 0;
+        }
+
+        VariantSortKey smallest = inputs[tree[0]].peekKey();
+        int count = 0;
+        while (true) {
+            int winner = tree[0];
+            VariantSortKey head = inputs[winner].peekKey();
+            if (head == null || deferred[winner] || (count > 0 && smallest.compareTo(head) != 0)) {
+                break;
+            }
+
+            if (inGroup[winner]) {
+                // duplicate record in the same input, goes to the next group
+                deferred[winner] = true;
+            } else {
+                records[winner] = inputs[winner].pop();
+                taken[count++] = winner;
+                inGroup[winner] = true;
+            }
+            replay(winner);
+        }
+
+        for (int i = 0; i < count; i++) {
+            // order among records equal to the group does not depend on the flag
+            inGroup[taken[i]] = false;
+            deferred[taken[i]] = false;
+        }
+
+        System.arraycopy(taken, 0, groupInputs, 0, count);
+        Arrays.sort(groupInputs, 0, count);
+        return count;
+    }
+
+    private void replay(int input) {
+        int winner = input;
+        for (int node = (size + input) >>> 1; node >= 1; node >>>= 1) {
+            if (less(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Exhausted inputs are greater than anything else.
+     */
+    private boolean less(int a, int b) {
+        VariantSortKey va = inputs[a].peekKey();
+        VariantSortKey vb = inputs[b].peekKey();
+        if (va == null) {
+            return false;
+        } else if (vb == null) {
+            return true;
+        }
+
+        int result = va.compareTo(vb);
+        if (result != 0) {
+            return result < 0;
+        } else if (deferred[a] != deferred[b]) {
+            return deferred[b];
+        } else {
+            return a < b;
+        }
+    }
+}
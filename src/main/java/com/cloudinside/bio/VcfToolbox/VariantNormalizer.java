@@ -0,0 +1,429 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCompoundHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+
+/**
+ * Streaming normalization of a sorted variant file, as bcftools norm -m- -f:
+ * multiallelic records are split to one record per alternative allele, then
+ * alleles are trimmed and indels are left-aligned against the reference.
+ *
+ * Split records keep genotypes: alleles of other records become reference (as
+ * in bcftools), AD, PL and attributes of Number=A, R and G are subset.
+ * Left-alignment moves a record at most window bases to the left; moved
+ * records are re-sorted in a buffer of the window, so the output is sorted
+ * when the input is (by contig, position and alleles). Records with REF not
+ * matching the reference are only split.
+ *
+ * @author pstawinski
+ *
+ */
+class VariantNormalizer implements CloseableIterator<VariantContext> {
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(VariantNormalizer.class);
+
+    public static final int DEFAULT_WINDOW = 1000;
+
+    private static final Comparator<Pending> ORDER = Comparator.comparing((Pending p) -> p.key)
+            .thenComparingLong(p -> p.sequence);
+
+    private final CloseableIterator<VariantContext> input;
+    private final CachedReferenceSequence reference;
+    private final int window;
+    private final Map<String, VCFHeaderLineCount> infoCounts = new HashMap<>();
+    private final Map<String, VCFHeaderLineCount> formatCounts = new HashMap<>();
+
+    private final PriorityQueue<Pending> buffer = new PriorityQueue<>(ORDER);
+    private final Deque<VariantContext> ready = new ArrayDeque<>();
+    private String contig;
+    private long sequence = 0;
+
+    private long records = 0;
+    private long split = 0;
+    private long realigned = 0;
+    private long mismatches = 0;
+
+    /**
+     * Record waiting in the buffer, ordered by position and alleles
+     */
+    private static class Pending {
+        private final VariantSortKey key;
+        private final long sequence;
+        private final VariantContext vc;
+
+        public Pending(VariantSortKey key, long sequence, VariantContext vc) {
+            this.key = key;
+            this.sequence = sequence;
+            this.vc = vc;
+        }
+    }
+
+    /**
+     * @param header
+     *            - header of input, Number of INFO and FORMAT fields
+     * @param reference
+     *            - null to split only; not closed
+     * @param window
+     *            - maximal shift of a record to the left
+     */
+    public VariantNormalizer(CloseableIterator<VariantContext> input, VCFHeader header,
+            CachedReferenceSequence reference, int window) {
+        this.input = input;
+        this.reference = reference;
+        this.window = window;
+        for (VCFCompoundHeaderLine line : header.getInfoHeaderLines()) {
+            infoCounts.put(line.getID(), line.getCountType());
+        }
+        for (VCFCompoundHeaderLine line : header.getFormatHeaderLines()) {
+            formatCounts.put(line.getID(), line.getCountType());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (ready.isEmpty()) {
+            if (!input.hasNext()) {
+                if (buffer.isEmpty()) {
+                    return false;
+                }
+                flush(Integer.MAX_VALUE);
+            } else {
+                add(input.next());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public VariantContext next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ready.poll();
+    }
+
+    private void add(VariantContext vc) {
+        records++;
+        if (!vc.getContig().equals(contig)) {
+            flush(Integer.MAX_VALUE);
+            contig = vc.getContig();
+        }
+        for (VariantContext record : split(vc)) {
+            VariantContext normalized = reference == null ? record : leftAlign(record);
+            // contig index is the same within the buffer
+            buffer.add(new Pending(VariantSortKey.of(normalized, 0), sequence++, normalized));
+        }
+        // following records start at least at vc start - window
+        flush(vc.getStart() - window);
+    }
+
+    /**
+     * Moves records starting before position to ready
+     */
+    private void flush(int position) {
+        while (!buffer.isEmpty() && buffer.peek().key.getPosition() < position) {
+            ready.add(buffer.poll().vc);
+        }
+    }
+
+    /**
+     * One record per alternative allele, vc if biallelic
+     */
+    List<VariantContext> split(VariantContext vc) {
+        int allelesCount = vc.getNAlleles();
+        if (allelesCount <= 2) {
+            return Arrays.asList(vc);
+        }
+        split++;
+        List<VariantContext> records = new ArrayList<>(allelesCount - 1);
+        Allele ref = vc.getReference();
+        GenotypesContext genotypes = vc.getGenotypes();
+        for (int alleleIndex = 1; alleleIndex < allelesCount; alleleIndex++) {
+            Allele alt = vc.getAlternateAllele(alleleIndex - 1);
+
+            VariantContextBuilder vcb = new VariantContextBuilder(vc);
+            vcb.alleles(Arrays.asList(ref, alt));
+            Map<String, Object> attributes = new HashMap<>(vc.getAttributes().size() * 2);
+            for (Entry<String, Object> attribute : vc.getAttributes().entrySet()) {
+                attributes.put(attribute.getKey(), subset(attribute.getValue(), infoCounts.get(attribute.getKey()),
+                        allelesCount, alleleIndex, 2));
+            }
+            vcb.attributes(attributes);
+
+            List<Genotype> splitGenotypes = new ArrayList<>(genotypes.size());
+            for (Genotype genotype : genotypes) {
+                splitGenotypes.add(splitGenotype(genotype, ref, alt, allelesCount, alleleIndex));
+            }
+            vcb.genotypes(splitGenotypes);
+            records.add(vcb.make());
+        }
+        return records;
+    }
+
+    private Genotype splitGenotype(Genotype genotype, Allele ref, Allele alt, int allelesCount, int alleleIndex) {
+        GenotypeBuilder gb = new GenotypeBuilder(genotype);
+        List<Allele> alleles = new ArrayList<>(genotype.getPloidy());
+        for (Allele allele : genotype.getAlleles()) {
+            alleles.add(allele.isNoCall() || allele.equals(alt) ? allele : ref);
+        }
+        gb.alleles(alleles);
+        int ploidy = genotype.getPloidy();
+        if (genotype.hasAD() && genotype.getAD().length == allelesCount) {
+            gb.AD(new int[] { genotype.getAD()[0], genotype.getAD()[alleleIndex] });
+        }
+        if (genotype.hasPL()) {
+            int[] indexes = genotypeIndexes(allelesCount, alleleIndex, ploidy);
+            int[] pl = genotype.getPL();
+            if (indexes != null && pl.length == genotypeCount(allelesCount, ploidy)) {
+                int[] splitPl = new int[indexes.length];
+                for (int i = 0; i < indexes.length; i++) {
+                    splitPl[i] = pl[indexes[i]];
+                }
+                gb.PL(splitPl);
+            }
+        }
+        Map<String, Object> attributes = new HashMap<>(genotype.getExtendedAttributes().size() * 2);
+        for (Entry<String, Object> attribute : genotype.getExtendedAttributes().entrySet()) {
+            attributes.put(attribute.getKey(), subset(attribute.getValue(), formatCounts.get(attribute.getKey()),
+                    allelesCount, alleleIndex, ploidy));
+        }
+        gb.noAttributes().attributes(attributes);
+        return gb.make();
+    }
+
+    /**
+     * Values of the reference and the allele of a Number=A, R or G value,
+     * value of other Number or size
+     */
+    private static Object subset(Object value, VCFHeaderLineCount count, int allelesCount, int alleleIndex,
+            int ploidy) {
+        if (count == null) {
+            return value;
+        }
+        int[] indexes;
+        int size;
+        switch (count) {
+        case A:
+            indexes = new int[] { alleleIndex - 1 };
+            size = allelesCount - 1;
+            break;
+        case R:
+            indexes = new int[] { 0, alleleIndex };
+            size = allelesCount;
+            break;
+        case G:
+            indexes = genotypeIndexes(allelesCount, alleleIndex, ploidy);
+            size = genotypeCount(allelesCount, ploidy);
+            break;
+        default:
+            return value;
+        }
+        if (indexes == null) {
+            return value;
+        }
+
+        List<?> values;
+        if (value instanceof List) {
+            values = (List<?>) value;
+        } else if (value instanceof String && ((String) value).indexOf(',') >= 0) {
+            values = Arrays.asList(((String) value).split(","));
+        } else {
+            return value;
+        }
+        if (values.size() != size) {
+            return value;
+        }
+        if (indexes.length == 1) {
+            return values.get(indexes[0]);
+        }
+        List<Object> subset = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            subset.add(values.get(index));
+        }
+        return value instanceof String ? joinValues(subset) : subset;
+    }
+
+    private static String joinValues(List<Object> values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object v : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Indexes of genotypes 0/0, 0/i, i/i (0 and i if haploid) in a Number=G
+     * value, null for other ploidy
+     */
+    private static int[] genotypeIndexes(int allelesCount, int alleleIndex, int ploidy) {
+        if (ploidy == 1) {
+            return new int[] { 0, alleleIndex };
+        } else if (ploidy == 2) {
+            int first = alleleIndex * (alleleIndex + 1) / 2;
+            return new int[] { 0, first, first + alleleIndex };
+        }
+        return null;
+    }
+
+    private static int genotypeCount(int allelesCount, int ploidy) {
+        return ploidy == 1 ? allelesCount : allelesCount * (allelesCount + 1) / 2;
+    }
+
+    /**
+     * Trims bases common to all alleles and shifts indels to the left while the
+     * last bases are equal, at most window bases; vc if nothing changes
+     */
+    VariantContext leftAlign(VariantContext vc) {
+        for (Allele allele : vc.getAlleles()) {
+            if (allele.isSymbolic() || allele.isNoCall() || allele.equals(Allele.SPAN_DEL)) {
+                return vc;
+            }
+        }
+        String chr = vc.getContig();
+        int contigLength = reference.getSequenceLength(chr);
+        if (contigLength < 0) {
+            throw new IllegalArgumentException("Contig " + chr + " not found in reference, cannot left-align " + chr
+                    + ":" + vc.getStart());
+        }
+        int start = vc.getStart();
+        byte[] refBases = vc.getReference().getBases();
+        if (start + refBases.length - 1 > contigLength
+                || !Arrays.equals(refBases, reference.getBases(chr, start, start + refBases.length - 1))) {
+            if (mismatches++ < 10) {
+                log.warn("REF does not match reference, record not left-aligned: " + chr + ":" + start + " "
+                        + vc.getReference().getBaseString());
+            }
+            return vc;
+        }
+
+        List<Allele> alleles = vc.getAlleles();
+        byte[][] bases = new byte[alleles.size()][];
+        int[] lengths = new int[alleles.size()];
+        int[] offsets = new int[alleles.size()];
+        int capacity = window + refBases.length + 1;
+        for (int i = 0; i < bases.length; i++) {
+            byte[] alleleBases = alleles.get(i).getBases();
+            // room for bases added on the left
+            bases[i] = new byte[capacity + alleleBases.length];
+            offsets[i] = capacity;
+            lengths[i] = alleleBases.length;
+            System.arraycopy(alleleBases, 0, bases[i], capacity, alleleBases.length);
+        }
+
+        int position = start;
+        int minPosition = Math.max(1, start - window);
+        while (sameLastBase(bases, offsets, lengths)) {
+            if (min(lengths) == 1) {
+                // trimming would leave an empty allele, add the base on the left
+                if (position <= minPosition) {
+                    break;
+                }
+                position--;
+                byte base = reference.getBase(chr, position);
+                for (int i = 0; i < bases.length; i++) {
+                    bases[i][--offsets[i]] = base;
+                    lengths[i]++;
+                }
+            }
+            for (int i = 0; i < bases.length; i++) {
+                lengths[i]--;
+            }
+        }
+        while (min(lengths) >= 2 && sameFirstBase(bases, offsets)) {
+            for (int i = 0; i < bases.length; i++) {
+                offsets[i]++;
+                lengths[i]--;
+            }
+            position++;
+        }
+
+        if (position == start && lengths[0] == refBases.length) {
+            return vc;
+        }
+        realigned++;
+
+        List<Allele> normalized = new ArrayList<>(alleles.size());
+        Map<Allele, Allele> alleleMap = new HashMap<>();
+        for (int i = 0; i < bases.length; i++) {
+            Allele allele = Allele.create(Arrays.copyOfRange(bases[i], offsets[i], offsets[i] + lengths[i]),
+                    i == 0);
+            normalized.add(allele);
+            alleleMap.put(alleles.get(i), allele);
+        }
+
+        VariantContextBuilder vcb = new VariantContextBuilder(vc);
+        vcb.start(position).alleles(normalized);
+        vcb.computeEndFromAlleles(normalized, position);
+        if (vc.hasGenotypes()) {
+            List<Genotype> genotypes = new ArrayList<>(vc.getNSamples());
+            for (Genotype genotype : vc.getGenotypes()) {
+                List<Allele> genotypeAlleles = new ArrayList<>(genotype.getPloidy());
+                for (Allele allele : genotype.getAlleles()) {
+                    genotypeAlleles.add(alleleMap.getOrDefault(allele, allele));
+                }
+                genotypes.add(new GenotypeBuilder(genotype).alleles(genotypeAlleles).make());
+            }
+            vcb.genotypes(genotypes);
+        }
+        return vcb.make();
+    }
+
+    private static boolean sameLastBase(byte[][] bases, int[] offsets, int[] lengths) {
+        byte last = bases[0][offsets[0] + lengths[0] - 1];
+        for (int i = 1; i < bases.length; i++) {
+            if (bases[i][offsets[i] + lengths[i] - 1] != last) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameFirstBase(byte[][] bases, int[] offsets) {
+        byte first = bases[0][offsets[0]];
+        for (int i = 1; i < bases.length; i++) {
+            if (bases[i][offsets[i]] != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int min(int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    @Override
+    public void close() {
+        log.info("Normalized " + records + " records: " + split + " split, " + realigned + " left-aligned, "
+                + mismatches + " REF mismatches");
+        buffer.clear();
+        ready.clear();
+        input.close();
+    }
+}
@@ -0,0 +1,227 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Reader of VCF (plain or bgzipped, through {@link VCFFileReader}) and BCF
+ * (plain or bgzipped, through {@link BcfStream}). Format is detected from the
+ * content. BCF can be iterated only, it is never queryable. Bgzipped files can
+ * be read mapped to memory, see {@link #openMapped(File, boolean, int)}, or
+ * with small buffers, see {@link #openSequential(File, int)}.
+ *
+ * As with {@link VCFFileReader}, an iterator stays usable after the reader is
+ * closed; it is closed on its own. Except for mapped VCF, which is unmapped
+ * with the reader.
+ *
+ * @author pstawinski
+ *
+ */
+class VariantReader implements Closeable, Iterable<VariantContext> {
+    private final VCFFileReader vcfFileReader;
+    private final MappedVcfReader mappedVcfReader;
+    private final VcfStream vcfStream;
+    private final BcfStream bcfStream;
+    /** of BCF records, 0 for the htsjdk default */
+    private final int bufferSize;
+    private boolean streamIterated = false;
+
+    private VariantReader(VCFFileReader vcfFileReader, MappedVcfReader mappedVcfReader, BcfStream bcfStream) {
+        this(vcfFileReader, mappedVcfReader, null, bcfStream, 0);
+    }
+
+    private VariantReader(VCFFileReader vcfFileReader, MappedVcfReader mappedVcfReader, VcfStream vcfStream,
+            BcfStream bcfStream, int bufferSize) {
+        this.vcfFileReader = vcfFileReader;
+        this.mappedVcfReader = mappedVcfReader;
+        this.vcfStream = vcfStream;
+        this.bcfStream = bcfStream;
+        this.bufferSize = bufferSize;
+    }
+
+    public static VariantReader open(File file, boolean requireIndex) throws IOException {
+        if (VariantFiles.isBcf(file)) {
+            if (requireIndex) {
+                throw new IllegalArgumentException("Index queries of BCF are not supported: " + file);
+            }
+            return new VariantReader(null, null, new BcfStream(VariantFiles.openDecompressed(file)));
+        }
+        return new VariantReader(new VCFFileReader(file, requireIndex), null, null);
+    }
+
+    /**
+     * As {@link #open(File, boolean)}, bgzipped files are mapped to memory
+     * and inflated by threads workers ({@link MappedBgzfInputStream}); index
+     * of VCF has to be tabix
+     */
+    public static VariantReader openMapped(File file, boolean requireIndex, int threads) throws IOException {
+        if (!VariantFiles.isBgzf(file)) {
+            return open(file, requireIndex);
+        }
+        if (VariantFiles.isBcf(file)) {
+            if (requireIndex) {
+                throw new IllegalArgumentException("Index queries of BCF are not supported: " + file);
+            }
+            return new VariantReader(null, null, new BcfStream(new MappedBgzfInputStream(file, threads)));
+        }
+        return new VariantReader(null, new MappedVcfReader(file, threads, requireIndex), null);
+    }
+
+    /**
+     * As {@link #open(File, boolean)} without index, for many files open at
+     * once: VCF is read by {@link VcfStream} and all buffers are of
+     * bufferSize. Can be iterated once, never queryable.
+     */
+    public static VariantReader openSequential(File file, int bufferSize) throws IOException {
+        InputStream in = VariantFiles.openDecompressed(file, bufferSize);
+        try {
+            if (VariantFiles.isBcf(file)) {
+                return new VariantReader(null, null, null, new BcfStream(in), bufferSize);
+            }
+            return new VariantReader(null, null, new VcfStream(in, bufferSize), null, bufferSize);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public boolean isBcf() {
+        return bcfStream != null;
+    }
+
+    public VCFHeader getFileHeader() {
+        if (isBcf()) {
+            return bcfStream.getHeader();
+        }
+        if (vcfStream != null) {
+            return vcfStream.getHeader();
+        }
+        return mappedVcfReader != null ? mappedVcfReader.getHeader() : vcfFileReader.getFileHeader();
+    }
+
+    public boolean isQueryable() {
+        if (isBcf() || vcfStream != null) {
+            return false;
+        }
+        return mappedVcfReader != null ? mappedVcfReader.isQueryable() : vcfFileReader.isQueryable();
+    }
+
+    public CloseableIterator<VariantContext> query(String contig, int start, int end) {
+        if (isBcf()) {
+            throw new UnsupportedOperationException("Index queries of BCF are not supported");
+        }
+        if (vcfStream != null) {
+            throw new UnsupportedOperationException("Index queries of sequentially read VCF are not supported");
+        }
+        return mappedVcfReader != null ? mappedVcfReader.query(contig, start, end)
+                : vcfFileReader.query(contig, start, end);
+    }
+
+    @Override
+    public CloseableIterator<VariantContext> iterator() {
+        if (!isBcf() && vcfStream == null) {
+            return mappedVcfReader != null ? mappedVcfReader.iterator() : vcfFileReader.iterator();
+        }
+        if (streamIterated) {
+            throw new IllegalStateException((isBcf() ? "BCF" : "VCF") + " stream can be iterated once");
+        }
+        streamIterated = true;
+        return isBcf() ? new BcfIterator() : new VcfIterator();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isBcf()) {
+            if (!streamIterated) {
+                bcfStream.close();
+            }
+        } else if (vcfStream != null) {
+            if (!streamIterated) {
+                vcfStream.close();
+            }
+        } else if (mappedVcfReader != null) {
+            mappedVcfReader.close();
+        } else {
+            vcfFileReader.close();
+        }
+    }
+
+    private class BcfIterator implements CloseableIterator<VariantContext> {
+        private final BCF2Codec codec = bcfStream.newCodec();
+        private final PositionalBufferedStream records = bufferSize > 0
+                ? new PositionalBufferedStream(bcfStream.getRecordsStream(), bufferSize)
+                : new PositionalBufferedStream(bcfStream.getRecordsStream());
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return !records.isDone();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public VariantContext next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return codec.decode(records);
+        }
+
+        @Override
+        public void close() {
+            try {
+                bcfStream.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private class VcfIterator implements CloseableIterator<VariantContext> {
+        private VariantContext next;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = vcfStream.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public VariantContext next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            VariantContext vc = next;
+            next = null;
+            return vc;
+        }
+
+        @Override
+        public void close() {
+            try {
+                vcfStream.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
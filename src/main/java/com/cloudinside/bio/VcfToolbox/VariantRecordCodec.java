@@ -0,0 +1,328 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+
+/**
+ * Binary encoding of {@link VariantContext}, for records spilled to temporary
+ * files and read back by the same process.
+ *
+ * Values are kept as decoded (strings of VCF stay strings, typed values of BCF
+ * stay typed), so a record read back is written exactly as the original one.
+ * Contigs and samples are written as indexes of the tables given to the
+ * constructor.
+ *
+ * @author pstawinski
+ *
+ */
+class VariantRecordCodec {
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int DOUBLE = 3;
+    private static final int BOOLEAN = 4;
+    private static final int LIST = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int INT_ARRAY = 8;
+
+    private final List<String> contigs;
+    private final Map<String, Integer> contigIndexes = new HashMap<>();
+    private final List<String> samples;
+    private final Map<String, Integer> sampleIndexes = new HashMap<>();
+
+    public VariantRecordCodec(List<String> contigs, List<String> samples) {
+        this.contigs = new ArrayList<>(contigs);
+        this.samples = new ArrayList<>(samples);
+        for (int i = 0; i < contigs.size(); i++) {
+            contigIndexes.put(contigs.get(i), i);
+        }
+        for (int i = 0; i < samples.size(); i++) {
+            sampleIndexes.put(samples.get(i), i);
+        }
+    }
+
+    public void encode(VariantContext vc, DataOutput out) throws IOException {
+        writeName(out, vc.getContig(), contigIndexes);
+        out.writeInt(vc.getStart());
+        out.writeInt(vc.getEnd());
+        writeString(out, vc.getSource());
+        writeString(out, vc.getID());
+        out.writeDouble(vc.getLog10PError());
+
+        List<Allele> alleles = vc.getAlleles();
+        out.writeShort(alleles.size());
+        for (Allele allele : alleles) {
+            out.writeBoolean(allele.isReference());
+            writeString(out, allele.getDisplayString());
+        }
+
+        Set<String> filters = vc.getFiltersMaybeNull();
+        out.writeInt(filters == null ? -1 : filters.size());
+        if (filters != null) {
+            for (String filter : filters) {
+                writeString(out, filter);
+            }
+        }
+        writeAttributes(out, vc.getAttributes());
+
+        GenotypesContext genotypes = vc.getGenotypes();
+        out.writeInt(genotypes.size());
+        for (int i = 0; i < genotypes.size(); i++) {
+            encodeGenotype(genotypes.get(i), alleles, out);
+        }
+    }
+
+    private void encodeGenotype(Genotype genotype, List<Allele> alleles, DataOutput out) throws IOException {
+        writeName(out, genotype.getSampleName(), sampleIndexes);
+        List<Allele> genotypeAlleles = genotype.getAlleles();
+        out.writeShort(genotypeAlleles.size());
+        for (Allele allele : genotypeAlleles) {
+            out.writeShort(allele.isNoCall() ? -1 : alleleIndex(alleles, allele));
+        }
+        out.writeBoolean(genotype.isPhased());
+        out.writeInt(genotype.hasGQ() ? genotype.getGQ() : -1);
+        out.writeInt(genotype.hasDP() ? genotype.getDP() : -1);
+        writeValue(out, genotype.hasAD() ? genotype.getAD() : null);
+        writeValue(out, genotype.hasPL() ? genotype.getPL() : null);
+        writeString(out, genotype.getFilters());
+        writeAttributes(out, genotype.getExtendedAttributes());
+    }
+
+    public VariantContext decode(DataInput in) throws IOException {
+        VariantContextBuilder vcb = new VariantContextBuilder();
+        vcb.chr(readName(in, contigs));
+        vcb.start(in.readInt());
+        vcb.stop(in.readInt());
+        vcb.source(readString(in));
+        vcb.id(readString(in));
+        vcb.log10PError(in.readDouble());
+
+        int allelesCount = in.readShort();
+        List<Allele> alleles = new ArrayList<>(allelesCount);
+        for (int i = 0; i < allelesCount; i++) {
+            boolean reference = in.readBoolean();
+            alleles.add(Allele.create(readString(in), reference));
+        }
+        vcb.alleles(alleles);
+
+        int filtersCount = in.readInt();
+        if (filtersCount < 0) {
+            vcb.unfiltered();
+        } else {
+            Set<String> filters = new LinkedHashSet<>();
+            for (int i = 0; i < filtersCount; i++) {
+                filters.add(readString(in));
+            }
+            vcb.filters(filters);
+        }
+        vcb.attributes(readAttributes(in));
+
+        int genotypesCount = in.readInt();
+        List<Genotype> genotypes = new ArrayList<>(genotypesCount);
+        for (int i = 0; i < genotypesCount; i++) {
+            genotypes.add(decodeGenotype(alleles, in));
+        }
+        vcb.genotypes(genotypes);
+        return vcb.make();
+    }
+
+    private Genotype decodeGenotype(List<Allele> alleles, DataInput in) throws IOException {
+        GenotypeBuilder gb = new GenotypeBuilder(readName(in, samples));
+        int ploidy = in.readShort();
+        List<Allele> genotypeAlleles = new ArrayList<>(ploidy);
+        for (int i = 0; i < ploidy; i++) {
+            int index = in.readShort();
+            genotypeAlleles.add(index < 0 ? Allele.NO_CALL : alleles.get(index));
+        }
+        gb.alleles(genotypeAlleles);
+        gb.phased(in.readBoolean());
+        int gq = in.readInt();
+        if (gq >= 0) {
+            gb.GQ(gq);
+        }
+        int dp = in.readInt();
+        if (dp >= 0) {
+            gb.DP(dp);
+        }
+        Object ad = readValue(in);
+        if (ad != null) {
+            gb.AD((int[]) ad);
+        }
+        Object pl = readValue(in);
+        if (pl != null) {
+            gb.PL((int[]) pl);
+        }
+        gb.filter(readString(in));
+        gb.attributes(readAttributes(in));
+        return gb.make();
+    }
+
+    private static int alleleIndex(List<Allele> alleles, Allele allele) {
+        for (int a = 0; a < alleles.size(); a++) {
+            if (alleles.get(a) == allele) {
+                return a;
+            }
+        }
+        int index = alleles.indexOf(allele);
+        if (index < 0) {
+            throw new IllegalArgumentException("Allele " + allele + " not found in record alleles " + alleles);
+        }
+        return index;
+    }
+
+    /**
+     * Index of the table, or -1 and the name
+     */
+    private static void writeName(DataOutput out, String name, Map<String, Integer> indexes) throws IOException {
+        Integer index = indexes.get(name);
+        out.writeInt(index == null ? -1 : index);
+        if (index == null) {
+            writeString(out, name);
+        }
+    }
+
+    private static String readName(DataInput in, List<String> table) throws IOException {
+        int index = in.readInt();
+        return index < 0 ? readString(in) : table.get(index);
+    }
+
+    private static void writeAttributes(DataOutput out, Map<String, Object> attributes) throws IOException {
+        out.writeInt(attributes.size());
+        for (Entry<String, Object> attribute : attributes.entrySet()) {
+            writeString(out, attribute.getKey());
+            writeValue(out, attribute.getValue());
+        }
+    }
+
+    private static Map<String, Object> readAttributes(DataInput in) throws IOException {
+        int count = in.readInt();
+        Map<String, Object> attributes = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            attributes.put(readString(in), readValue(in));
+        }
+        return attributes;
+    }
+
+    /**
+     * Values of other types are written as strings
+     */
+    private static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof int[]) {
+            int[] values = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(values.length);
+            for (int v : values) {
+                out.writeInt(v);
+            }
+        } else if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(values.size());
+            for (Object v : values) {
+                writeValue(out, v);
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, String.valueOf(value));
+        }
+    }
+
+    private static Object readValue(DataInput in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case INTEGER:
+            return in.readInt();
+        case DOUBLE:
+            return in.readDouble();
+        case BOOLEAN:
+            return in.readBoolean();
+        case LONG:
+            return in.readLong();
+        case FLOAT:
+            return in.readFloat();
+        case INT_ARRAY: {
+            int[] values = new int[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+        case LIST: {
+            int size = in.readInt();
+            List<Object> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readValue(in));
+            }
+            return values;
+        }
+        default:
+            throw new IOException("Invalid value type " + type);
+        }
+    }
+
+    /**
+     * UTF-8 with int length, -1 is null; not limited to 64 kB as
+     * {@link DataOutput#writeUTF(String)}
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,140 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Compact sort key of a variant: contig index, position and bases of all
+ * alleles packed into one array (comma separated, the reference first).
+ *
+ * Computed once per record, comparison does not allocate. The order is the
+ * same as of {@link VariantContextComparatorAltAware}: contig index, start,
+ * reference bases, then all alleles joined with a comma.
+ *
+ * @author pstawinski
+ *
+ */
+public final class VariantSortKey implements Comparable<VariantSortKey> {
+    public static final Comparator<VariantSortKey> COMPARATOR = Comparator.naturalOrder();
+
+    private final int contigIndex;
+    private final int position;
+    private final int referenceLength;
+    private final byte[] alleles;
+
+    /**
+     * @param contigIndex
+     * @param position
+     * @param referenceLength
+     *            - length of the reference bases at the beginning of alleles
+     * @param alleles
+     *            - bases of all alleles joined with a comma, the reference
+     *            first; not copied
+     */
+    public VariantSortKey(int contigIndex, int position, int referenceLength, byte[] alleles) {
+        this.contigIndex = contigIndex;
+        this.position = position;
+        this.referenceLength = referenceLength;
+        this.alleles = alleles;
+    }
+
+    /**
+     * @param vc
+     * @param contigIndex
+     *            - index of vc's contig in the sequence dictionary
+     * @return
+     */
+    public static VariantSortKey of(VariantContext vc, int contigIndex) {
+        List<Allele> vcAlleles = vc.getAlleles();
+        int length = vcAlleles.size() - 1;
+        for (Allele allele : vcAlleles) {
+            length += allele.getBases().length;
+        }
+
+        byte[] alleles = new byte[Math.max(length, 0)];
+        int offset = 0;
+        for (Allele allele : vcAlleles) {
+            if (offset > 0) {
+                alleles[offset++] = ',';
+            }
+            byte[] bases = allele.getBases();
+            System.arraycopy(bases, 0, alleles, offset, bases.length);
+            offset += bases.length;
+        }
+
+        return new VariantSortKey(contigIndex, vc.getStart(), vc.getReference().getBases().length, alleles);
+    }
+
+    /**
+     * Reads a key written by {@link #write(DataOutput)}
+     */
+    static VariantSortKey read(DataInput in) throws IOException {
+        int contigIndex = in.readInt();
+        int position = in.readInt();
+        int referenceLength = in.readInt();
+        byte[] alleles = new byte[in.readInt()];
+        in.readFully(alleles);
+        return new VariantSortKey(contigIndex, position, referenceLength, alleles);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(contigIndex);
+        out.writeInt(position);
+        out.writeInt(referenceLength);
+        out.writeInt(alleles.length);
+        out.write(alleles);
+    }
+
+    public int getContigIndex() {
+        return contigIndex;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public int compareTo(VariantSortKey o) {
+        if (contigIndex != o.contigIndex) {
+            return Integer.compare(contigIndex, o.contigIndex);
+        }
+        if (position != o.position) {
+            return Integer.compare(position, o.position);
+        }
+        int result = Arrays.compareUnsigned(alleles, 0, referenceLength, o.alleles, 0, o.referenceLength);
+        if (result != 0) {
+            return result;
+        }
+        return Arrays.compareUnsigned(alleles, o.alleles);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VariantSortKey)) {
+            return false;
+        }
+        VariantSortKey o = (VariantSortKey) obj;
+        return contigIndex == o.contigIndex && position == o.position && referenceLength == o.referenceLength
+                && Arrays.equals(alleles, o.alleles);
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * contigIndex + position) * 31 + Arrays.hashCode(alleles);
+    }
+
+    @Override
+    public String toString() {
+        return contigIndex + ":" + position + ":" + new String(alleles);
+    }
+}
@@ -0,0 +1,86 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Function;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Iterator over sorted variants with one element look-ahead. Sort key of the
+ * look-ahead element is computed once and cached.
+ * 
+ * @author pstawinski
+ * 
+ */
+class VcfIteratorWrapper implements Closeable {
+    private final CloseableIterator<VariantContext> iterator;
+
+    private final Function<VariantContext, VariantSortKey> keyFunction;
+
+    private VariantContext topElement;
+    private VariantSortKey topKey;
+
+    public VcfIteratorWrapper(CloseableIterator<VariantContext> iterator) {
+        this(iterator, null);
+    }
+
+    public VcfIteratorWrapper(CloseableIterator<VariantContext> iterator,
+            Function<VariantContext, VariantSortKey> keyFunction) {
+        this.iterator = iterator;
+        this.keyFunction = keyFunction;
+    }
+
+    public VariantContext peek() {
+        if (topElement != null)
+            return topElement;
+        else
+            loadElementToTopElement();
+
+        return topElement;
+    }
+
+    /**
+     * @return sort key of {@link #peek()}, null when exhausted
+     */
+    public VariantSortKey peekKey() {
+        if (peek() == null) {
+            return null;
+        }
+        if (topKey == null) {
+            topKey = keyFunction.apply(topElement);
+        }
+        return topKey;
+    }
+
+    public VariantContext pop() {
+        if (topElement != null) {
+            VariantContext vc = topElement;
+            topElement = null;
+            topKey = null;
+            return vc;
+        } else {
+            loadElementToTopElement();
+            if (topElement != null) {
+                VariantContext vc = topElement;
+                topElement = null;
+                return vc;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private void loadElementToTopElement() {
+        if (iterator.hasNext())
+            topElement = iterator.next();
+        else
+            topElement = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        iterator.close();
+    }
+}
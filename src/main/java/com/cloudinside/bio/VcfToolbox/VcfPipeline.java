@@ -0,0 +1,432 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.readers.AsciiLineReader;
+import htsjdk.tribble.readers.AsciiLineReaderIterator;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+
+/**
+ * Streaming pipeline for tools processing a single VCF record by record.
+ *
+ * <ul>
+ * <li>reader thread reads raw lines (or raw BCF records) and groups them into
+ * blocks of {@link #DEFAULT_BLOCK_SIZE} records,</li>
+ * <li>worker pool decodes the blocks (genotypes are decoded lazily, only when
+ * the transform asks for them) and applies the per record transform,</li>
+ * <li>calling thread writes the transformed blocks in input order.</li>
+ * </ul>
+ *
+ * Number of blocks in flight is bounded, so a slow writer stops the reader.
+ * Transforms are not shared between threads, each worker gets its own from the
+ * supplier.
+ *
+ * @author pstawinski
+ *
+ */
+public class VcfPipeline implements Closeable {
+    public static final int DEFAULT_BLOCK_SIZE = 2000;
+
+    /**
+     * Per record operation, one instance per worker thread
+     */
+    public interface Transform {
+        /**
+         * @param vc
+         *            - decoded record, genotypes decoded on first access
+         * @param output
+         *            - records to write, in order
+         */
+        void apply(VariantContext vc, List<VariantContext> output);
+    }
+
+    private static final Block END_OF_INPUT = new Block(0, Collections.emptyList());
+
+    private final Input input;
+    private final VCFHeader header;
+    private final int threads;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean skipInvalidRecords = false;
+    private ToolMetrics metrics = new ToolMetrics("VcfPipeline");
+
+    /**
+     * @param inputStream
+     *            - uncompressed VCF
+     */
+    public VcfPipeline(InputStream inputStream, int threads) {
+        this(new TextInput(inputStream), threads);
+    }
+
+    private VcfPipeline(Input input, int threads) {
+        this.input = input;
+        this.header = input.getHeader();
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * @param file
+     *            - VCF or BCF, plain or (b)gzipped
+     * @param threads
+     *            - number of decoding and transforming workers
+     * @throws IOException
+     */
+    public static VcfPipeline open(File file, int threads) throws IOException {
+        return open(file, threads, false);
+    }
+
+    /**
+     * As {@link #open(File, int)}; with mmap bgzipped input is mapped to
+     * memory and inflated by threads workers, see
+     * {@link MappedBgzfInputStream}
+     */
+    public static VcfPipeline open(File file, int threads, boolean mmap) throws IOException {
+        if (VariantFiles.isBcf(file)) {
+            return new VcfPipeline(new BcfInput(new BcfStream(VariantFiles.openDecompressed(file, mmap, threads))),
+                    threads);
+        }
+        if (mmap && VariantFiles.isBgzf(file)) {
+            return new VcfPipeline(new MappedBgzfInputStream(file, threads), threads);
+        }
+        return new VcfPipeline(IOUtil.openFileForReading(file), threads);
+    }
+
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    public VcfPipeline setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * When set, records that cannot be decoded or transformed are reported and
+     * omitted, otherwise the first error stops the pipeline.
+     */
+    public VcfPipeline setSkipInvalidRecords(boolean skipInvalidRecords) {
+        this.skipInvalidRecords = skipInvalidRecords;
+        return this;
+    }
+
+    /**
+     * Metrics of the tool: records, decode, transform and write times, errors
+     * and blocks in flight
+     */
+    public VcfPipeline setMetrics(ToolMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Runs the pipeline to the end of input, writing output on the calling
+     * thread.
+     *
+     * @return number of input records
+     */
+    public long run(Supplier<? extends Transform> transforms, VariantContextWriter writer)
+            throws InterruptedException, ExecutionException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ThreadLocal<Worker> worker = ThreadLocal
+                .withInitial(() -> new Worker(input.newDecoder(), transforms.get()));
+
+        BlockingQueue<Future<Block>> blocks = new ArrayBlockingQueue<>(threads * 2);
+        metrics.gauge("blocks", blocks::size);
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    RawBlock block = input.read(blockSize);
+                    if (block.size() == 0) {
+                        break;
+                    }
+                    blocks.put(workers.submit(() -> worker.get().process(block)));
+                }
+                blocks.put(CompletableFuture.completedFuture(END_OF_INPUT));
+            } catch (InterruptedException e) {
+                // writer gave up
+            } catch (IOException | RuntimeException e) {
+                CompletableFuture<Block> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                try {
+                    blocks.put(failed);
+                } catch (InterruptedException e1) {
+                    // writer gave up
+                }
+            }
+        }, "VcfPipeline-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long counter = 0;
+        try {
+            while (true) {
+                Block block = blocks.take().get();
+                if (block == END_OF_INPUT) {
+                    break;
+                }
+                for (VariantContext vc : block.output) {
+                    long start = System.nanoTime();
+                    writer.add(vc);
+                    metrics.write.since(start);
+                }
+                metrics.addOutput(block.output.size());
+
+                counter += block.inputRecords;
+                metrics.addRecords(block.inputRecords);
+            }
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+        return counter;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private class Worker {
+        private final Decoder decoder;
+        private final Transform transform;
+
+        public Worker(Decoder decoder, Transform transform) {
+            this.decoder = decoder;
+            this.transform = transform;
+        }
+
+        public Block process(RawBlock block) {
+            List<VariantContext> output = new ArrayList<>(block.size());
+            decoder.start(block);
+            for (int i = 0; i < block.size(); i++) {
+                try {
+                    long start = System.nanoTime();
+                    VariantContext vc = decoder.next();
+                    start = metrics.decode.since(start);
+                    if (vc != null) {
+                        transform.apply(vc, output);
+                        metrics.transform.since(start);
+                    }
+                } catch (RuntimeException e) {
+                    if (!skipInvalidRecords) {
+                        throw e;
+                    }
+                    metrics.error();
+                    System.err.println("Ommiting line due to ar error");
+                    e.printStackTrace();
+                }
+            }
+            return new Block(block.size(), output);
+        }
+    }
+
+    /**
+     * Source of raw records, read on the reader thread
+     */
+    private interface Input extends Closeable {
+        VCFHeader getHeader();
+
+        /**
+         * @return at most blockSize records, none at the end of input
+         */
+        RawBlock read(int blockSize) throws IOException;
+
+        /**
+         * @return decoder for one worker
+         */
+        Decoder newDecoder();
+    }
+
+    private interface RawBlock {
+        int size();
+    }
+
+    /**
+     * Decodes records of a block one by one, not thread safe
+     */
+    private interface Decoder {
+        void start(RawBlock block);
+
+        /**
+         * @return next record of the block, null if the line has no record
+         */
+        VariantContext next();
+    }
+
+    private static class TextInput implements Input {
+        private final LineIterator lineIterator;
+        private final Closeable closeable;
+        private final VCFHeader header;
+        private final VCFHeaderVersion version;
+
+        public TextInput(InputStream inputStream) {
+            AsciiLineReaderIterator lineIterator = new AsciiLineReaderIterator(
+                    AsciiLineReader.from(new PositionalBufferedStream(inputStream)));
+            VCFCodec codec = new VCFCodec();
+            this.header = (VCFHeader) codec.readActualHeader(lineIterator);
+            this.version = codec.getVersion();
+            this.lineIterator = lineIterator;
+            this.closeable = lineIterator;
+        }
+
+        @Override
+        public VCFHeader getHeader() {
+            return header;
+        }
+
+        @Override
+        public RawBlock read(int blockSize) {
+            TextBlock block = new TextBlock(blockSize);
+            while (block.lines.size() < blockSize && lineIterator.hasNext()) {
+                block.lines.add(lineIterator.next());
+            }
+            return block;
+        }
+
+        @Override
+        public Decoder newDecoder() {
+            VCFCodec codec = new VCFCodec();
+            codec.setVCFHeader(header, version);
+            return new Decoder() {
+                private TextBlock block;
+                private int next;
+
+                @Override
+                public void start(RawBlock rawBlock) {
+                    block = (TextBlock) rawBlock;
+                    next = 0;
+                }
+
+                @Override
+                public VariantContext next() {
+                    return codec.decode(block.lines.get(next++));
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeable.close();
+        }
+    }
+
+    private static class TextBlock implements RawBlock {
+        private final List<String> lines;
+
+        public TextBlock(int blockSize) {
+            this.lines = new ArrayList<>(blockSize);
+        }
+
+        @Override
+        public int size() {
+            return lines.size();
+        }
+    }
+
+    private static class BcfInput implements Input {
+        private final BcfStream stream;
+
+        public BcfInput(BcfStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public VCFHeader getHeader() {
+            return stream.getHeader();
+        }
+
+        @Override
+        public RawBlock read(int blockSize) throws IOException {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            int[] offsets = new int[blockSize + 1];
+            int count = 0;
+            while (count < blockSize && stream.next()) {
+                records.write(stream.getRecord(), 0, stream.getRecordLength());
+                offsets[++count] = records.size();
+            }
+            return new BcfBlock(count, offsets, records.toByteArray());
+        }
+
+        @Override
+        public Decoder newDecoder() {
+            BCF2Codec codec = stream.newCodec();
+            return new Decoder() {
+                private BcfBlock block;
+                private int next;
+
+                @Override
+                public void start(RawBlock rawBlock) {
+                    block = (BcfBlock) rawBlock;
+                    next = 0;
+                }
+
+                @Override
+                public VariantContext next() {
+                    // stream per record, an invalid record does not shift the following ones
+                    int offset = block.offsets[next];
+                    int length = block.offsets[++next] - offset;
+                    return codec.decode(new PositionalBufferedStream(
+                            new ByteArrayInputStream(block.records, offset, length), length));
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private static class BcfBlock implements RawBlock {
+        private final int size;
+        /** start of each record in records, and end of the last one */
+        private final int[] offsets;
+        private final byte[] records;
+
+        public BcfBlock(int size, int[] offsets, byte[] records) {
+            this.size = size;
+            this.offsets = offsets;
+            this.records = records;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static class Block {
+        private final int inputRecords;
+        private final List<VariantContext> output;
+
+        public Block(int inputRecords, List<VariantContext> output) {
+            this.inputRecords = inputRecords;
+            this.output = output;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Uncompressed VCF stream (the caller removes compression) read line by line
+ * and decoded by the htsjdk codec, as {@link BcfStream} for BCF. Bytes are
+ * read as chars one to one, so non ASCII text is written back unchanged
+ * (VCFFileReader turns it into '?').
+ *
+ * Buffers are of the given size, unlike of VCFFileReader (over 512 KB per
+ * file), so many files can be open at once, e.g. inputs of
+ * {@link JoinVariants}.
+ *
+ * @author pstawinski
+ *
+ */
+class VcfStream implements Closeable {
+    private final BufferedReader reader;
+    private final VCFCodec codec = new VCFCodec();
+    private final VCFHeader header;
+
+    /** the first record, read with the header */
+    private String pending;
+
+    public VcfStream(InputStream in, int bufferSize) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1), bufferSize);
+        try {
+            List<String> headerLines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && line.startsWith("#")) {
+                headerLines.add(line);
+            }
+            this.pending = line;
+            this.header = (VCFHeader) codec.readActualHeader(new LineIteratorImpl(
+                    new SynchronousLineReader(new StringReader(String.join("\n", headerLines)))));
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the next record, null at the end of stream
+     */
+    public VariantContext next() throws IOException {
+        VariantContext vc = null;
+        while (vc == null) {
+            String line = pending != null ? pending : reader.readLine();
+            pending = null;
+            if (line == null) {
+                return null;
+            }
+            vc = codec.decode(line);
+        }
+        return vc;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Submits a job to {@link VcfToolboxServer} and waits for it: output of the
+ * job goes to stdout and stderr, exit status is the status of the job.
+ *
+ * Usage: VcfToolboxClient --socket PATH TOOL [ARGUMENTS...], TOOL shutdown
+ * stops the server. Kept to JDK classes only, to start fast.
+ *
+ * @author pstawinski
+ *
+ */
+public class VcfToolboxClient {
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !args[0].equals("--socket")) {
+            System.err.println("Usage: VcfToolboxClient --socket PATH TOOL [ARGUMENTS...]");
+            System.err.println("       VcfToolboxClient --socket PATH " + VcfToolboxServer.SHUTDOWN);
+            System.exit(VcfToolboxServer.STATUS_BAD_REQUEST);
+        }
+        System.exit(submit(Paths.get(args[1]), Arrays.asList(args).subList(2, args.length)));
+    }
+
+    /**
+     * @param job
+     *            - tool name and arguments
+     * @return exit status of the job
+     */
+    static int submit(Path socket, List<String> job) {
+        for (String arg : job) {
+            if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                System.err.println("Line breaks in arguments are not supported: \"" + arg + "\"");
+                return VcfToolboxServer.STATUS_BAD_REQUEST;
+            }
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            System.err.println("Cannot connect to VcfToolboxServer on " + socket + ": " + e.getMessage());
+            return VcfToolboxServer.STATUS_UNAVAILABLE;
+        }
+        try (SocketChannel c = channel) {
+            Writer writer = new OutputStreamWriter(Channels.newOutputStream(c), StandardCharsets.UTF_8);
+            writer.write(Paths.get("").toAbsolutePath() + "\n");
+            writer.write(job.size() + "\n");
+            for (String arg : job) {
+                writer.write(arg + "\n");
+            }
+            writer.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == VcfToolboxServer.EXIT) {
+                    return in.readInt();
+                }
+                int length = in.readInt();
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                PrintStream target = kind == VcfToolboxServer.STDOUT ? System.out : System.err;
+                target.write(buffer, 0, length);
+                target.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("VcfToolboxServer closed the connection before the job finished");
+            return VcfToolboxServer.STATUS_FAILED;
+        } catch (IOException e) {
+            System.err.println("Connection to VcfToolboxServer failed: " + e.getMessage());
+            return VcfToolboxServer.STATUS_FAILED;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+/**
+ * Runs tools in one long-running JVM, so many small jobs do not pay for JVM
+ * startup, class loading and JIT warm-up each, and share sequence
+ * dictionaries of references (see {@link SequenceDictionaries}).
+ *
+ * Jobs come over a Unix domain socket, submitted by {@link VcfToolboxClient},
+ * or from stdin, one per line. At most --threads jobs run at once, --queue
+ * more wait; further socket jobs are rejected, stdin is not read until a job
+ * finishes.
+ *
+ * Stdout, stderr and log of a job, also of threads it starts, go to its client
+ * (with --stdin: to stdout and stderr of the server, lines prefixed by the job
+ * number). Relative paths of {@link #PATH_OPTIONS} are resolved against the
+ * working directory of the client. Jobs call run of the tool, not main, so
+ * errors of the tool are printed to the job stderr and end the job with
+ * {@link #STATUS_FAILED}.
+ *
+ * Socket protocol, request: lines of working directory, number of words, tool
+ * name and arguments, one per line. Response: frames of kind byte
+ * {@link #STDOUT} or {@link #STDERR}, int length and bytes, the last one
+ * {@link #EXIT} and int status.
+ *
+ * @author pstawinski
+ *
+ */
+public class VcfToolboxServer {
+    static final byte STDOUT = 'O';
+    static final byte STDERR = 'E';
+    static final byte EXIT = 'X';
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_FAILED = 1;
+    static final int STATUS_BAD_REQUEST = 2;
+    static final int STATUS_UNAVAILABLE = 3;
+
+    /** tool name stopping the server after running jobs */
+    static final String SHUTDOWN = "shutdown";
+
+    static final Set<String> PATH_OPTIONS = new HashSet<>(Arrays.asList("--input", "--output", "--ref",
+            "--regions-file", "--tmp-dir", "--metrics", "--store", "--dict-cache", "--table", "--index", "--manifest",
+            "--sample-thresholds"));
+
+    private static final Map<String, Tool> TOOLS = new LinkedHashMap<>();
+    static {
+        TOOLS.put("BuildFrequencySummary", BuildFrequencySummary::run);
+        TOOLS.put("CohortFrequencyStore", CohortFrequencyStore::run);
+        TOOLS.put("FrequencyAnnotator", FrequencyAnnotator::run);
+        TOOLS.put("JoinVariants", JoinVariants::run);
+        TOOLS.put("RemoveLowCoverageRows", RemoveLowCoverageRows::run);
+        TOOLS.put("SampleCarriers", SampleCarriers::run);
+    }
+
+    /** output of the job run by the thread, inherited by threads it starts */
+    private static final InheritableThreadLocal<JobOutput> jobOutput = new InheritableThreadLocal<>();
+    private static PrintStream serverOut = System.out;
+    private static PrintStream serverErr = System.err;
+
+    @Parameter(names = "--socket", description = "Unix domain socket to listen on, jobs are submitted by VcfToolboxClient", required = false)
+    private String socket;
+
+    @Parameter(names = "--stdin", description = "Read jobs from stdin, one per line: tool name and arguments separated by tabs", required = false)
+    private boolean stdin = false;
+
+    @Parameter(names = "--threads", description = "Number of jobs run at once", required = false)
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "--queue", description = "Number of jobs waiting for a free thread; further jobs are rejected", required = false)
+    private int queue = 64;
+
+    private ThreadPoolExecutor executor;
+    private final AtomicInteger jobIds = new AtomicInteger();
+    private volatile boolean stopping = false;
+    private volatile ServerSocketChannel serverChannel;
+
+    public static void main(String[] args) {
+        // to have Double formatted correctly
+        Locale.setDefault(Locale.ENGLISH);
+        // before log4j is configured, its console appender keeps System.err
+        routeOutputs();
+
+        VcfToolboxServer app = new VcfToolboxServer();
+        JCommander jc = null;
+        try {
+            jc = new JCommander(app);
+            jc.parse(args);
+
+            app.go();
+        } catch (Exception e) {
+            e.printStackTrace();
+            jc.usage();
+        }
+    }
+
+    private static void routeOutputs() {
+        serverOut = System.out;
+        serverErr = System.err;
+        System.setOut(new PrintStream(new RoutingOutputStream(serverOut, STDOUT), true));
+        System.setErr(new PrintStream(new RoutingOutputStream(serverErr, STDERR), true));
+    }
+
+    private void go() throws IOException, InterruptedException {
+        if ((socket == null) == !stdin) {
+            throw new IllegalArgumentException("Exactly one of --socket and --stdin is required");
+        }
+        AtomicInteger threadIds = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queue, 1)), r -> {
+                    Thread thread = new Thread(r, "VcfToolboxServer-job-" + threadIds.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            if (stdin) {
+                serveStdin();
+            } else {
+                serveSocket(Paths.get(socket));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void serveSocket(Path path) throws IOException {
+        if (Files.exists(path)) {
+            if (isListening(path)) {
+                throw new IllegalStateException("Server already listening on " + path);
+            }
+            Files.delete(path);
+        }
+        ExecutorService connections = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "VcfToolboxServer-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread cleanup = new Thread(() -> path.toFile().delete());
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            serverChannel = server;
+            server.bind(UnixDomainSocketAddress.of(path));
+            serverErr.println("VcfToolboxServer listening on " + path + ", " + threads + " threads");
+            while (!stopping) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                connections.execute(() -> serve(channel));
+            }
+        } finally {
+            connections.shutdown();
+            Files.deleteIfExists(path);
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+        }
+    }
+
+    private static boolean isListening(Path path) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            return channel.isConnected();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads request of the connection, runs the job and waits for it
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(c), StandardCharsets.UTF_8));
+            String workingDirectory = reader.readLine();
+            String count = reader.readLine();
+            int words = count != null && count.matches("\\d{1,6}") ? Integer.parseInt(count) : 0;
+            List<String> job = new ArrayList<>();
+            String line;
+            while (job.size() < words && (line = reader.readLine()) != null) {
+                job.add(line);
+            }
+            SocketOutput output = new SocketOutput(Channels.newOutputStream(c));
+            int status;
+            if (workingDirectory == null || words == 0 || job.size() != words) {
+                output.message("Request needs working directory, number of words, tool name and arguments");
+                status = STATUS_BAD_REQUEST;
+            } else {
+                status = submit(job.get(0), resolvePaths(job.subList(1, job.size()), Paths.get(workingDirectory)),
+                        output);
+            }
+            output.exit(status);
+        } catch (IOException e) {
+            serverErr.println("Connection failed: " + e);
+        }
+    }
+
+    private int submit(String tool, String[] args, SocketOutput output) {
+        if (SHUTDOWN.equals(tool)) {
+            output.message("VcfToolboxServer stopping after running jobs");
+            stop();
+            return STATUS_OK;
+        }
+        Tool main = TOOLS.get(tool);
+        if (main == null) {
+            output.message("Unknown tool " + tool + ", one of " + TOOLS.keySet());
+            return STATUS_BAD_REQUEST;
+        }
+        int id = jobIds.incrementAndGet();
+        Future<Integer> job;
+        try {
+            job = executor.submit(() -> run(id, tool, main, args, output));
+        } catch (RejectedExecutionException e) {
+            output.message("VcfToolboxServer busy: " + threads + " jobs running, " + queue + " waiting");
+            return STATUS_UNAVAILABLE;
+        }
+        try {
+            return job.get();
+        } catch (ExecutionException e) {
+            return STATUS_FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return STATUS_FAILED;
+        }
+    }
+
+    private void serveStdin() throws IOException, InterruptedException {
+        Semaphore slots = new Semaphore(threads + queue);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while (!stopping && (line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            String tool = fields[0];
+            if (SHUTDOWN.equals(tool)) {
+                stop();
+                break;
+            }
+            int id = jobIds.incrementAndGet();
+            Tool main = TOOLS.get(tool);
+            if (main == null) {
+                serverOut.println("[job " + id + "] unknown tool " + tool + ", one of " + TOOLS.keySet());
+                serverOut.println("[job " + id + "] exit " + STATUS_BAD_REQUEST);
+                continue;
+            }
+            String[] args = Arrays.copyOfRange(fields, 1, fields.length);
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    int status = run(id, tool, main, args, new PrefixedOutput(id));
+                    serverOut.println("[job " + id + "] exit " + status);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+    }
+
+    private void stop() {
+        stopping = true;
+        ServerSocketChannel server = serverChannel;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                serverErr.println("Closing server socket failed: " + e);
+            }
+        }
+    }
+
+    private static int run(int id, String tool, Tool main, String[] args, JobOutput output) {
+        Thread thread = Thread.currentThread();
+        String name = thread.getName();
+        thread.setName(tool + "-" + id);
+        jobOutput.set(output);
+        try {
+            main.run(args);
+            return STATUS_OK;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return STATUS_FAILED;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            jobOutput.remove();
+            thread.setName(name);
+        }
+    }
+
+    /**
+     * Values of {@link #PATH_OPTIONS} resolved against the working directory;
+     * JCommander splits values of list options on commas, so each of comma
+     * separated paths is resolved (a path cannot contain a comma)
+     */
+    static String[] resolvePaths(List<String> args, Path workingDirectory) {
+        String[] resolved = args.toArray(new String[0]);
+        for (int i = 1; i < resolved.length; i++) {
+            if (PATH_OPTIONS.contains(resolved[i - 1])) {
+                String[] paths = resolved[i].split(",", -1);
+                for (int p = 0; p < paths.length; p++) {
+                    if (!paths[p].isEmpty()) {
+                        paths[p] = workingDirectory.resolve(paths[p]).toString();
+                    }
+                }
+                resolved[i] = String.join(",", paths);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Run method of a tool, throwing errors of the job
+     */
+    private interface Tool {
+        void run(String[] args) throws Exception;
+    }
+
+    private interface JobOutput {
+        void write(byte stream, byte[] b, int off, int len);
+    }
+
+    /**
+     * Writes to the output of the job of the current thread, or of the server
+     */
+    private static class RoutingOutputStream extends OutputStream {
+        private final PrintStream server;
+        private final byte stream;
+
+        public RoutingOutputStream(PrintStream server, byte stream) {
+            this.server = server;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            JobOutput output = jobOutput.get();
+            if (output == null) {
+                server.write(b, off, len);
+            } else {
+                output.write(stream, b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (jobOutput.get() == null) {
+                server.flush();
+            }
+        }
+    }
+
+    /**
+     * Frames to the client; once the client is gone the output is dropped, the
+     * job goes on
+     */
+    private static class SocketOutput implements JobOutput {
+        private final DataOutputStream out;
+        private boolean closed = false;
+
+        public SocketOutput(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+        }
+
+        @Override
+        public synchronized void write(byte stream, byte[] b, int off, int len) {
+            if (closed) {
+                return;
+            }
+            try {
+                out.writeByte(stream);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            } catch (IOException e) {
+                closed = true;
+            }
+        }
+
+        public void message(String message) {
+            byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            write(STDERR, bytes, 0, bytes.length);
+        }
+
+        public synchronized void exit(int status) throws IOException {
+            if (closed) {
+                return;
+            }
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    /**
+     * Lines to stdout and stderr of the server, prefixed by the job number
+     */
+    private static class PrefixedOutput implements JobOutput {
+        private final byte[] prefix;
+        private boolean outLineStart = true;
+        private boolean errLineStart = true;
+
+        public PrefixedOutput(int id) {
+            this.prefix = ("[job " + id + "] ").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public synchronized void write(byte stream, byte[] b, int off, int len) {
+            PrintStream target = stream == STDOUT ? serverOut : serverErr;
+            boolean lineStart = stream == STDOUT ? outLineStart : errLineStart;
+            synchronized (target) {
+                int end = off + len;
+                int start = off;
+                for (int i = off; i < end; i++) {
+                    if (lineStart) {
+                        target.write(prefix, 0, prefix.length);
+                        lineStart = false;
+                    }
+                    if (b[i] == '\n') {
+                        target.write(b, start, i + 1 - start);
+                        start = i + 1;
+                        lineStart = true;
+                    }
+                }
+                if (start < end) {
+                    target.write(b, start, end - start);
+                }
+                target.flush();
+            }
+            if (stream == STDOUT) {
+                outLineStart = lineStart;
+            } else {
+                errLineStart = lineStart;
+            }
+        }
+    }
+}
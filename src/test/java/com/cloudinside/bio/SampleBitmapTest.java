@@ -0,0 +1,123 @@
+package com.cloudinside.bio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class SampleBitmapTest {
+
+    private static SampleBitmap roundTrip(SampleBitmap bitmap) {
+        return SampleBitmap.decode(bitmap.encode());
+    }
+
+    private static int[] toArray(TreeSet<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    public void emptyRoundTrip() {
+        SampleBitmap decoded = roundTrip(SampleBitmap.EMPTY);
+        assertTrue(decoded.isEmpty());
+        assertEquals(0, decoded.cardinality());
+        assertEquals(SampleBitmap.EMPTY, decoded);
+        assertEquals(SampleBitmap.EMPTY, roundTrip(SampleBitmap.of()));
+    }
+
+    @Test
+    public void arrayContainerRoundTrip() {
+        SampleBitmap bitmap = SampleBitmap.of(0, 3, 17, 1000, 65535);
+        SampleBitmap decoded = roundTrip(bitmap);
+        assertArrayEquals(new int[] { 0, 3, 17, 1000, 65535 }, decoded.toArray());
+        assertTrue(decoded.contains(1000));
+        assertFalse(decoded.contains(1001));
+        assertFalse(decoded.contains(-1));
+    }
+
+    @Test
+    public void bitmapContainerRoundTrip() {
+        // scattered values over the array limit, stored as a bitmap
+        Random random = new Random(13);
+        TreeSet<Integer> values = new TreeSet<>();
+        while (values.size() < 20000) {
+            values.add(random.nextInt(1 << 16));
+        }
+        SampleBitmap bitmap = SampleBitmap.of(toArray(values), values.size());
+        SampleBitmap decoded = roundTrip(bitmap);
+        assertEquals(values.size(), decoded.cardinality());
+        assertArrayEquals(toArray(values), decoded.toArray());
+    }
+
+    @Test
+    public void runsRoundTrip() {
+        SampleBitmap.Builder builder = new SampleBitmap.Builder();
+        for (int value = 0; value < 60000; value++) {
+            builder.add(value);
+        }
+        builder.add(60002);
+        SampleBitmap bitmap = builder.build();
+        String encoded = bitmap.encode();
+        // two runs, not 60001 values
+        assertTrue(encoded, encoded.length() < 20);
+        SampleBitmap decoded = SampleBitmap.decode(encoded);
+        assertEquals(60001, decoded.cardinality());
+        assertTrue(decoded.contains(59999));
+        assertFalse(decoded.contains(60000));
+        assertTrue(decoded.contains(60002));
+    }
+
+    @Test
+    public void containersOfManyKeys() {
+        Random random = new Random(7);
+        TreeSet<Integer> values = new TreeSet<>();
+        for (int i = 0; i < 5000; i++) {
+            values.add(random.nextInt(5 << 16));
+        }
+        for (int value = 3 << 16; value < (3 << 16) + 5000; value++) {
+            values.add(value);
+        }
+        values.add(Integer.MAX_VALUE);
+        SampleBitmap bitmap = SampleBitmap.of(toArray(values), values.size());
+        assertArrayEquals(toArray(values), roundTrip(bitmap).toArray());
+    }
+
+    @Test
+    public void setOperations() {
+        Random random = new Random(21);
+        TreeSet<Integer> a = new TreeSet<>();
+        TreeSet<Integer> b = new TreeSet<>();
+        for (int i = 0; i < 6000; i++) {
+            a.add(random.nextInt(3 << 16));
+            b.add(random.nextInt(2 << 16));
+        }
+        SampleBitmap x = SampleBitmap.of(toArray(a), a.size());
+        SampleBitmap y = SampleBitmap.of(toArray(b), b.size());
+
+        TreeSet<Integer> and = new TreeSet<>(a);
+        and.retainAll(b);
+        TreeSet<Integer> or = new TreeSet<>(a);
+        or.addAll(b);
+        TreeSet<Integer> andNot = new TreeSet<>(a);
+        andNot.removeAll(b);
+
+        assertArrayEquals(toArray(and), roundTrip(x.and(y)).toArray());
+        assertArrayEquals(toArray(or), roundTrip(x.or(y)).toArray());
+        assertArrayEquals(toArray(andNot), roundTrip(x.andNot(y)).toArray());
+        assertTrue(x.andNot(x).isEmpty());
+    }
+
+    @Test
+    public void ofSortsAndSkipsRepeated() {
+        assertArrayEquals(new int[] { 1, 5, 9 }, SampleBitmap.of(9, 1, 5, 9, 1).toArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void builderRejectsUnsorted() {
+        new SampleBitmap.Builder().add(5).add(3);
+    }
+}
@@ -0,0 +1,144 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+
+public class ExternalVariantSorterTest {
+    private static final List<String> CONTIGS = Arrays.asList("chr1", "chr2", "chrX");
+    private static final String[] BASES = { "A", "C", "G", "T" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Function<VariantContext, VariantSortKey> KEY = vc -> VariantSortKey.of(vc,
+            CONTIGS.indexOf(vc.getContig()));
+
+    private static CloseableIterator<VariantContext> iterator(List<VariantContext> records) {
+        Iterator<VariantContext> it = records.iterator();
+        return new CloseableIterator<VariantContext>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public VariantContext next() {
+                return it.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Shuffled records, some of them repeated with another ID
+     */
+    private static List<VariantContext> records(int count) {
+        Random random = new Random(3);
+        List<VariantContext> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String ref = BASES[random.nextInt(4)];
+            String alt = BASES[(Arrays.asList(BASES).indexOf(ref) + 1 + random.nextInt(3)) % 4];
+            List<Allele> alleles = Arrays.asList(Allele.create(ref, true), Allele.create(alt, false));
+            int position = 1 + random.nextInt(count / 2);
+            records.add(new VariantContextBuilder("test", CONTIGS.get(random.nextInt(3)), position, position, alleles)
+                    .id("id" + i).genotypes(new GenotypeBuilder("S1", alleles).DP(i).make()).make());
+        }
+        return records;
+    }
+
+    private List<String> sorted(List<VariantContext> records, long memoryBudget) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (ExternalVariantSorter sorter = new ExternalVariantSorter(iterator(records),
+                new VariantRecordCodec(CONTIGS, Arrays.asList("S1")), KEY, memoryBudget, folder.getRoot())) {
+            while (sorter.hasNext()) {
+                VariantContext vc = sorter.next();
+                assertEquals(vc.getID(), "id" + vc.getGenotype("S1").getDP());
+                ids.add(vc.getID());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Stable sort by key in memory
+     */
+    private static List<String> expected(List<VariantContext> records) {
+        List<VariantContext> sorted = new ArrayList<>(records);
+        Collections.sort(sorted, (a, b) -> KEY.apply(a).compareTo(KEY.apply(b)));
+        List<String> ids = new ArrayList<>();
+        for (VariantContext vc : sorted) {
+            ids.add(vc.getID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void sortedInMemory() throws IOException {
+        List<VariantContext> records = records(500);
+        assertEquals(expected(records), sorted(records, Long.MAX_VALUE));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void runsAreMergedInPasses() throws IOException {
+        // a run per record: more runs than merged at once
+        int count = ExternalVariantSorter.MAX_FAN_IN * ExternalVariantSorter.MAX_FAN_IN + 17;
+        List<VariantContext> records = records(count);
+        assertEquals(expected(records), sorted(records, 1));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void fewRunsAreMergedAtOnce() throws IOException {
+        List<VariantContext> records = records(ExternalVariantSorter.MAX_FAN_IN - 1);
+        assertEquals(expected(records), sorted(records, 1));
+    }
+
+    @Test
+    public void runsAreMergedToOpenRunLimit() throws IOException {
+        List<VariantContext> records = records(300);
+        for (int maxOpenRuns : new int[] { 1, 3, ExternalVariantSorter.MAX_FAN_IN }) {
+            List<String> ids = new ArrayList<>();
+            try (ExternalVariantSorter sorter = new ExternalVariantSorter(iterator(records),
+                    new VariantRecordCodec(CONTIGS, Arrays.asList("S1")), KEY, 1, folder.getRoot(), maxOpenRuns)) {
+                // a file per run left open
+                assertEquals(maxOpenRuns, folder.getRoot().list().length);
+                while (sorter.hasNext()) {
+                    ids.add(sorter.next().getID());
+                }
+            }
+            assertEquals(expected(records), ids);
+            assertEquals(0, folder.getRoot().list().length);
+        }
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        try (ExternalVariantSorter sorter = new ExternalVariantSorter(iterator(new ArrayList<>()),
+                new VariantRecordCodec(CONTIGS, new ArrayList<>()), KEY, 1, folder.getRoot())) {
+            assertFalse(sorter.hasNext());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudinside.bio.VcfToolbox.FrequencyIndex.Frequencies;
+
+public class FrequencyIndexTest {
+    private static final String[] ALTS = { "C", "G", "T", "AT", "<DEL>" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Site {
+        final String contig;
+        final int position;
+        final String ref;
+        final String alt;
+        final Frequencies values = new Frequencies();
+
+        Site(String contig, int position, String ref, String alt, int seed) {
+            this.contig = contig;
+            this.position = position;
+            this.ref = ref;
+            this.alt = alt;
+            values.referenceCount = seed;
+            values.totalCount = seed + 1;
+            values.samplesCount = seed + 2;
+            values.samplesContaining = seed + 3;
+            values.samplesHom = seed + 4;
+            values.samplesHet = seed + 5;
+            values.alleleFrequency = seed / 1000.0;
+            values.samplesFrequency = seed % 3 == 0 ? Double.NaN : seed / 2000.0;
+        }
+    }
+
+    /**
+     * Sites of two contigs, 1 to 5 alleles per position
+     */
+    private static List<Site> sites() {
+        List<Site> sites = new ArrayList<>();
+        int seed = 0;
+        for (String contig : new String[] { "chr1", "chrX" }) {
+            for (int position = 10; position < 3000; position += 7 + position % 13) {
+                for (int a = 0; a <= position % ALTS.length; a++) {
+                    sites.add(new Site(contig, position, "A", ALTS[a], seed++));
+                }
+            }
+        }
+        return sites;
+    }
+
+    private static File write(File file, List<Site> sites) throws IOException {
+        try (FrequencyIndex.Writer writer = new FrequencyIndex.Writer(file)) {
+            for (Site site : sites) {
+                writer.add(site.contig, site.position, site.ref, site.alt, site.values);
+            }
+            writer.finish();
+            assertEquals(sites.size(), writer.getRecords());
+        }
+        return file;
+    }
+
+    private static void assertValuesEqual(Frequencies expected, Frequencies actual) {
+        assertArrayEquals(
+                new int[] { expected.referenceCount, expected.totalCount, expected.samplesCount,
+                        expected.samplesContaining, expected.samplesHom, expected.samplesHet },
+                new int[] { actual.referenceCount, actual.totalCount, actual.samplesCount, actual.samplesContaining,
+                        actual.samplesHom, actual.samplesHet });
+        assertEquals(expected.alleleFrequency, actual.alleleFrequency, 0);
+        assertEquals(expected.samplesFrequency, actual.samplesFrequency, 0);
+    }
+
+    private static void assertAllFound(FrequencyIndex.Reader reader, List<Site> sites) {
+        Frequencies values = new Frequencies();
+        for (Site site : sites) {
+            long record = reader.find(reader.getContigId(site.contig), site.position, site.ref, site.alt);
+            assertTrue(site.contig + ":" + site.position + " " + site.alt, record >= 0);
+            reader.get(record, values);
+            assertValuesEqual(site.values, values);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<Site> sites = sites();
+        File file = write(new File(folder.getRoot(), "summary.vtfi"), sites);
+        try (FrequencyIndex.Reader reader = new FrequencyIndex.Reader(file)) {
+            assertEquals(sites.size(), reader.getRecords());
+            assertAllFound(reader, sites);
+
+            int chr1 = reader.getContigId("chr1");
+            assertEquals(-1, reader.find(chr1, 11, "A", "C"));
+            assertEquals(-1, reader.find(chr1, 1, "A", "C"));
+            assertEquals(-1, reader.find(chr1, 1 << 20, "A", "C"));
+            assertEquals(-1, reader.find(chr1, 10, "A", "AC"));
+            assertEquals(-1, reader.find(chr1, 10, "C", "A"));
+            assertEquals(-1, reader.getContigId("chr2"));
+            assertEquals(-1, reader.find(-1, 10, "A", "C"));
+        }
+    }
+
+    @Test
+    public void lookupsAcrossSegments() throws IOException {
+        List<Site> sites = sites();
+        File file = write(new File(folder.getRoot(), "summary.vtfi"), sites);
+        // positions and contigs span mapped buffers of a few records
+        for (int segmentRecords : new int[] { 1, 2, 7, 64 }) {
+            try (FrequencyIndex.Reader reader = new FrequencyIndex.Reader(file, segmentRecords)) {
+                assertAllFound(reader, sites);
+                assertEquals(-1, reader.find(reader.getContigId("chrX"), 11, "A", "C"));
+            }
+        }
+    }
+
+    @Test
+    public void repeatedKeysKeepTheFirst() throws IOException {
+        Site first = new Site("chr1", 100, "A", "G", 1);
+        Site repeated = new Site("chr1", 100, "A", "G", 2);
+        Site other = new Site("chr1", 100, "A", "C", 3);
+        File file = new File(folder.getRoot(), "repeated.vtfi");
+        try (FrequencyIndex.Writer writer = new FrequencyIndex.Writer(file)) {
+            for (Site site : new Site[] { first, other, repeated }) {
+                writer.add(site.contig, site.position, site.ref, site.alt, site.values);
+            }
+            writer.finish();
+            assertEquals(2, writer.getRecords());
+            assertEquals(1, writer.getDuplicates());
+        }
+        try (FrequencyIndex.Reader reader = new FrequencyIndex.Reader(file)) {
+            Frequencies values = new Frequencies();
+            reader.get(reader.find(reader.getContigId("chr1"), 100, "A", "G"), values);
+            assertValuesEqual(first.values, values);
+        }
+    }
+
+    @Test
+    public void emptyIndex() throws IOException {
+        File file = write(new File(folder.getRoot(), "empty.vtfi"), new ArrayList<>());
+        try (FrequencyIndex.Reader reader = new FrequencyIndex.Reader(file)) {
+            assertEquals(0, reader.getRecords());
+            assertEquals(-1, reader.getContigId("chr1"));
+            assertEquals(-1, reader.find(0, 10, "A", "C"));
+        }
+    }
+
+    @Test
+    public void notFinishedIndexIsNotPublished() throws IOException {
+        List<Site> sites = sites();
+        File file = write(new File(folder.getRoot(), "summary.vtfi"), sites.subList(0, 10));
+        try (FrequencyIndex.Writer writer = new FrequencyIndex.Writer(file)) {
+            for (Site site : sites) {
+                writer.add(site.contig, site.position, site.ref, site.alt, site.values);
+            }
+        }
+        // the previous index stays, no partial file is left
+        String[] files = folder.getRoot().list();
+        assertArrayEquals(new String[] { "summary.vtfi" }, files);
+        try (FrequencyIndex.Reader reader = new FrequencyIndex.Reader(file)) {
+            assertEquals(10, reader.getRecords());
+        }
+    }
+
+    @Test
+    public void unsortedRecordsAreRejected() throws IOException {
+        File file = new File(folder.getRoot(), "unsorted.vtfi");
+        Frequencies values = new Frequencies();
+        try (FrequencyIndex.Writer writer = new FrequencyIndex.Writer(file)) {
+            writer.add("chr1", 100, "A", "C", values);
+            writer.add("chr2", 50, "A", "C", values);
+            writer.add("chr1", 200, "A", "C", values);
+            throw new AssertionError("Contig chr1 accepted in two blocks");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("chr1"));
+        }
+        assertFalse(file.exists());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,148 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudinside.bio.VcfToolbox.FrequencySegment.GenotypeFilter;
+import com.cloudinside.bio.VcfToolbox.FrequencySegment.SiteRow;
+
+public class FrequencySegmentTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SiteRow row(int contigIndex, int position, int batchId, String ref, String... alts) {
+        SiteRow row = new SiteRow();
+        row.contigIndex = contigIndex;
+        row.position = position;
+        row.batchId = batchId;
+        row.ref = ref;
+        row.alts = alts;
+        return row;
+    }
+
+    private static List<SiteRow> readAll(File file) throws IOException {
+        List<SiteRow> rows = new ArrayList<>();
+        try (FrequencySegment.Reader reader = new FrequencySegment.Reader(file)) {
+            SiteRow row = new SiteRow();
+            while (reader.next(row)) {
+                rows.add(row.copy());
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRowEquals(SiteRow expected, SiteRow actual) {
+        assertEquals(expected.contigIndex, actual.contigIndex);
+        assertEquals(expected.position, actual.position);
+        assertEquals(expected.batchId, actual.batchId);
+        assertEquals(expected.ref, actual.ref);
+        assertArrayEquals(expected.alts, actual.alts);
+        assertEquals(expected.explicitCount, actual.explicitCount);
+        for (int g = 0; g < expected.explicitCount; g++) {
+            assertEquals(expected.sampleIds[g], actual.sampleIds[g]);
+            assertEquals(expected.refAlleles[g], actual.refAlleles[g]);
+            assertEquals(expected.genotypeTypes[g], actual.genotypeTypes[g]);
+            assertArrayEquals(Arrays.copyOf(expected.altAlleles[g], expected.alts.length),
+                    Arrays.copyOf(actual.altAlleles[g], actual.alts.length));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<SiteRow> rows = new ArrayList<>();
+        SiteRow snv = row(0, 100, 1, "A", "G");
+        snv.clearGenotypes();
+        snv.addGenotype(3, 1, FrequencySegment.HET);
+        snv.altAlleles[0][0] = 1;
+        rows.add(snv);
+
+        // more genotypes than the initial capacity, several alternative alleles
+        SiteRow multiallelic = row(0, 100, 2, "ACGT", "A", "ACGTACGT", "<DEL>");
+        multiallelic.clearGenotypes();
+        for (int sample = 0; sample < 10; sample++) {
+            byte type = sample % 3 == 0 ? FrequencySegment.HOM_VAR
+                    : sample % 3 == 1 ? FrequencySegment.HET : FrequencySegment.OTHER;
+            int g = multiallelic.addGenotype(sample * 7, sample % 3 == 0 ? 0 : 1, type);
+            multiallelic.altAlleles[g][sample % 3] = sample % 3 == 0 ? 2 : 1;
+        }
+        rows.add(multiallelic);
+
+        SiteRow noGenotypes = row(0, 250, 1, "C", "T");
+        noGenotypes.clearGenotypes();
+        rows.add(noGenotypes);
+
+        SiteRow nextContig = row(2, 5, 3, "G", "C");
+        nextContig.clearGenotypes();
+        nextContig.addGenotype(65536, 0, FrequencySegment.HOM_VAR);
+        nextContig.altAlleles[0][0] = 2;
+        rows.add(nextContig);
+
+        File file = folder.newFile("segment.vtfs");
+        try (FrequencySegment.Writer writer = new FrequencySegment.Writer(file)) {
+            for (SiteRow row : rows) {
+                writer.write(row, GenotypeFilter.ALL);
+            }
+            assertEquals(rows.size(), writer.getRows());
+        }
+
+        List<SiteRow> read = readAll(file);
+        assertEquals(rows.size(), read.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertRowEquals(rows.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void filteredGenotypesAreNotWritten() throws IOException {
+        SiteRow row = row(1, 42, 0, "T", "A");
+        row.clearGenotypes();
+        for (int sample = 0; sample < 6; sample++) {
+            int g = row.addGenotype(sample, 1, FrequencySegment.HET);
+            row.altAlleles[g][0] = 1;
+        }
+
+        File file = folder.newFile("filtered.vtfs");
+        try (FrequencySegment.Writer writer = new FrequencySegment.Writer(file)) {
+            writer.write(row, sampleId -> sampleId % 2 == 0);
+        }
+
+        List<SiteRow> read = readAll(file);
+        assertEquals(1, read.size());
+        assertEquals(3, read.get(0).explicitCount);
+        assertArrayEquals(new int[] { 0, 2, 4 }, Arrays.copyOf(read.get(0).sampleIds, 3));
+    }
+
+    @Test
+    public void emptySegment() throws IOException {
+        File file = folder.newFile("empty.vtfs");
+        try (FrequencySegment.Writer writer = new FrequencySegment.Writer(file)) {
+            assertEquals(0, writer.getRows());
+        }
+        try (FrequencySegment.Reader reader = new FrequencySegment.Reader(file)) {
+            assertFalse(reader.next(new SiteRow()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsortedRowsAreRejected() throws IOException {
+        try (FrequencySegment.Writer writer = new FrequencySegment.Writer(folder.newFile("unsorted.vtfs"))) {
+            SiteRow first = row(1, 10, 0, "A", "C");
+            first.clearGenotypes();
+            writer.write(first, GenotypeFilter.ALL);
+            SiteRow second = row(0, 20, 0, "A", "C");
+            second.clearGenotypes();
+            writer.write(second, GenotypeFilter.ALL);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudinside.bio.VcfToolbox.FrequencyTable.Column;
+import com.cloudinside.bio.VcfToolbox.FrequencyTable.RowGroup;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+
+public class FrequencyTableTest {
+    private static final String PREFIX = "T_";
+    private static final String[] BASES = { "A", "C", "G", "T" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Expected rows, one per alternative allele
+     */
+    private static class Rows {
+        final List<String> contigs = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        final List<String> refs = new ArrayList<>();
+        final List<String> alts = new ArrayList<>();
+        final List<Integer> totalCounts = new ArrayList<>();
+        final List<Double> alleleFrequencies = new ArrayList<>();
+        final List<Double> samplesFrequencies = new ArrayList<>();
+    }
+
+    /**
+     * Summary record; samplesFrequency NaN leaves the entry out
+     */
+    private static VariantContext record(String contig, int position, String ref, String[] alts, int totalCount,
+            double alleleFrequency, double samplesFrequency, Rows rows) {
+        List<Allele> alleles = new ArrayList<>();
+        alleles.add(Allele.create(ref, true));
+        for (String alt : alts) {
+            alleles.add(Allele.create(alt, false));
+        }
+        VariantContextBuilder vcb = new VariantContextBuilder("test", contig, position,
+                position + ref.length() - 1, alleles);
+        vcb.attribute(PREFIX + BuildFrequencySummary.ALL_ALLELES_COUNT_INFO, totalCount);
+        vcb.attribute(PREFIX + BuildFrequencySummary.ALLELE_FREQUENCY_INFO, alleleFrequency);
+        if (!Double.isNaN(samplesFrequency)) {
+            vcb.attribute(PREFIX + BuildFrequencySummary.SAMPLES_CONTAINING_FREQUENCY_INFO, samplesFrequency);
+        }
+        for (String alt : alts) {
+            rows.contigs.add(contig);
+            rows.positions.add(position);
+            rows.refs.add(ref);
+            rows.alts.add(alt);
+            rows.totalCounts.add(totalCount);
+            rows.alleleFrequencies.add(alleleFrequency);
+            rows.samplesFrequencies.add(samplesFrequency);
+        }
+        return vcb.make();
+    }
+
+    private static String randomBases(Random random, int length) {
+        StringBuilder bases = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            bases.append(BASES[random.nextInt(4)]);
+        }
+        return bases.toString();
+    }
+
+    @Test
+    public void roundTripOfManyRowGroups() throws IOException {
+        int records = 2 * FrequencyTable.ROW_GROUP_SIZE + 100;
+        Random random = new Random(5);
+        Rows rows = new Rows();
+        File file = folder.newFile("summary.vtft");
+        try (FrequencyTable.Writer writer = new FrequencyTable.Writer(file, PREFIX)) {
+            for (int i = 0; i < records; i++) {
+                boolean second = i >= 100000;
+                String contig = second ? "chr2" : "chr1";
+                int position = 1 + 3 * (second ? i - 100000 : i);
+                String ref = BASES[i % 4];
+                String[] alts;
+                if (i < FrequencyTable.ROW_GROUP_SIZE) {
+                    // distinct, stored plain
+                    alts = new String[] { ref + randomBases(random, 16) };
+                } else if (i % 1000 == 0) {
+                    alts = new String[] { BASES[(i + 1) % 4], BASES[(i + 2) % 4] };
+                } else {
+                    alts = new String[] { BASES[(i + 1) % 4] };
+                }
+                // quarters are written exactly to VCF, so distinct
+                writer.add(record(contig, position, ref, alts, 2 * (i % 50), i / 4.0,
+                        i % 7 == 0 ? Double.NaN : (i % 5) / 5.0, rows));
+            }
+            assertEquals(rows.alts.size(), writer.getRows());
+        }
+
+        assertTrue(FrequencyTable.isTable(file));
+        try (FrequencyTable.Reader reader = new FrequencyTable.Reader(file)) {
+            assertEquals(Arrays.asList("chr1", "chr2"), reader.getContigs());
+            assertEquals(rows.alts.size(), reader.getRows());
+            List<RowGroup> groups = reader.getRowGroups();
+            assertEquals(3, groups.size());
+            assertEquals(FrequencyTable.ROW_GROUP_SIZE, groups.get(0).getRows());
+            assertEquals(FrequencyTable.ROW_GROUP_SIZE, groups.get(1).getRows());
+            assertEquals(rows.alts.size() - 2 * FrequencyTable.ROW_GROUP_SIZE, groups.get(2).getRows());
+
+            assertFalse(groups.get(0).isDictionary(Column.ALT));
+            assertTrue(groups.get(1).isDictionary(Column.ALT));
+            assertTrue(groups.get(0).isDictionary(Column.REF));
+            assertFalse(groups.get(0).isDictionary(Column.ALL_FREQ));
+            assertTrue(groups.get(0).isDictionary(Column.SAMP_FREQ));
+
+            int row = 0;
+            for (RowGroup group : groups) {
+                int[] chrom = reader.readInts(group, Column.CHROM);
+                int[] pos = reader.readInts(group, Column.POS);
+                String[] ref = reader.readStrings(group, Column.REF);
+                String[] alt = reader.readStrings(group, Column.ALT);
+                int[] totalCount = reader.readInts(group, Column.TOT_NUM);
+                int[] referenceCount = reader.readInts(group, Column.REF_NUM);
+                double[] alleleFrequency = reader.readDoubles(group, Column.ALL_FREQ);
+                double[] samplesFrequency = reader.readDoubles(group, Column.SAMP_FREQ);
+
+                assertEquals(reader.getContigs().indexOf(rows.contigs.get(row)), group.getFirstContig());
+                assertEquals((int) rows.positions.get(row), group.getFirstPosition());
+                int last = row + group.getRows() - 1;
+                assertEquals(reader.getContigs().indexOf(rows.contigs.get(last)), group.getLastContig());
+                assertEquals((int) rows.positions.get(last), group.getLastPosition());
+
+                for (int r = 0; r < group.getRows(); r++, row++) {
+                    assertEquals(rows.contigs.get(row), reader.getContigs().get(chrom[r]));
+                    assertEquals((int) rows.positions.get(row), pos[r]);
+                    assertEquals(rows.refs.get(row), ref[r]);
+                    assertEquals(rows.alts.get(row), alt[r]);
+                    assertEquals((int) rows.totalCounts.get(row), totalCount[r]);
+                    assertEquals(0, referenceCount[r]);
+                    assertEquals(rows.alleleFrequencies.get(row), alleleFrequency[r], 0);
+                    assertEquals(rows.samplesFrequencies.get(row), samplesFrequency[r], 0);
+                }
+            }
+            assertEquals(rows.alts.size(), row);
+        }
+    }
+
+    @Test
+    public void dictionaryWhenAtMostHalfOfValuesAreDistinct() throws IOException {
+        // 10 rows: 5 distinct alleles are a dictionary, 6 are plain
+        for (int distinct : new int[] { 5, 6 }) {
+            Rows rows = new Rows();
+            File file = folder.newFile("distinct" + distinct + ".vtft");
+            try (FrequencyTable.Writer writer = new FrequencyTable.Writer(file, PREFIX)) {
+                for (int i = 0; i < 10; i++) {
+                    String alt = "A" + "CCCCCC".substring(0, Math.min(i, distinct - 1));
+                    writer.add(record("chr1", 100 + i, "G", new String[] { alt }, 10, 0.5, 0.5, rows));
+                }
+            }
+            try (FrequencyTable.Reader reader = new FrequencyTable.Reader(file)) {
+                RowGroup group = reader.getRowGroups().get(0);
+                assertEquals(distinct == 5, group.isDictionary(Column.ALT));
+                assertArrayEquals(rows.alts.toArray(new String[0]), reader.readStrings(group, Column.ALT));
+                assertTrue(group.isDictionary(Column.ALL_FREQ));
+            }
+        }
+    }
+
+    @Test
+    public void doublesAreStoredAsWrittenToVcf() throws IOException {
+        double[] values = { 0.5121951219512195, 1.23456e-5, 2.0 / 3, 123.456, 0.0 };
+        double[] written = { 0.512, 1.235e-5, 0.667, 123.46, 0.0 };
+        Rows rows = new Rows();
+        File file = folder.newFile("rounded.vtft");
+        try (FrequencyTable.Writer writer = new FrequencyTable.Writer(file, PREFIX)) {
+            for (int i = 0; i < values.length; i++) {
+                writer.add(record("chr1", 100 + i, "G", new String[] { "A" }, 10, values[i], Double.NaN, rows));
+            }
+        }
+        try (FrequencyTable.Reader reader = new FrequencyTable.Reader(file)) {
+            RowGroup group = reader.getRowGroups().get(0);
+            assertArrayEquals(written, reader.readDoubles(group, Column.ALL_FREQ), 0);
+            for (double value : reader.readDoubles(group, Column.SAMP_FREQ)) {
+                assertTrue(Double.isNaN(value));
+            }
+        }
+    }
+
+    @Test
+    public void emptyTable() throws IOException {
+        File file = folder.newFile("empty.vtft");
+        try (FrequencyTable.Writer writer = new FrequencyTable.Writer(file, PREFIX)) {
+            assertEquals(0, writer.getRows());
+        }
+        assertTrue(FrequencyTable.isTable(file));
+        try (FrequencyTable.Reader reader = new FrequencyTable.Reader(file)) {
+            assertEquals(0, reader.getRows());
+            assertTrue(reader.getRowGroups().isEmpty());
+            assertTrue(reader.getContigs().isEmpty());
+        }
+    }
+
+    @Test
+    public void otherFilesAreNotTables() throws IOException {
+        File empty = folder.newFile("empty.txt");
+        assertFalse(FrequencyTable.isTable(empty));
+        try {
+            new FrequencyTable.Reader(empty).close();
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Empty file read as a frequency table");
+    }
+}
@@ -0,0 +1,46 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RegionsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> bedRegions(String... lines) throws IOException {
+        File bed = folder.newFile();
+        Files.write(bed.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        List<String> regions = new ArrayList<>();
+        for (Regions.Region region : Regions.of(null, bed.getPath(), null).getRegions()) {
+            regions.add(region.toString());
+        }
+        return regions;
+    }
+
+    @Test
+    public void bedIntervalsAreOneBased() throws IOException {
+        assertEquals(List.of("chr1:101-200", "chr2:1-10"), bedRegions("chr1\t100\t150", "chr1\t150\t200\tname",
+                "# comment", "chr2\t0\t10"));
+    }
+
+    @Test
+    public void zeroLengthIntervalIsTheBaseBeforeIt() throws IOException {
+        assertEquals(List.of("chr1:100-100", "chr1:300-400", "chr2:1-1"),
+                bedRegions("chr1\t100\t100", "chr1\t300\t300", "chr1\t300\t400", "chr2\t0\t0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void endBeforeStartIsRejected() throws IOException {
+        bedRegions("chr1\t200\t100");
+    }
+}
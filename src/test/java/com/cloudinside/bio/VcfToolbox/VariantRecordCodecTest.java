@@ -0,0 +1,137 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFHeader;
+
+public class VariantRecordCodecTest {
+    private static final String HEADER = String.join("\n",
+            "##fileformat=VCFv4.2",
+            "##FILTER=<ID=q10,Description=\"Quality below 10\">",
+            "##FILTER=<ID=s50,Description=\"Less than 50% of samples\">",
+            "##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">",
+            "##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">",
+            "##INFO=<ID=DB,Number=0,Type=Flag,Description=\"dbSNP\">",
+            "##INFO=<ID=ANN,Number=.,Type=String,Description=\"Annotation\">",
+            "##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">",
+            "##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">",
+            "##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">",
+            "##FORMAT=<ID=AD,Number=R,Type=Integer,Description=\"Allelic depths\">",
+            "##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Likelihoods\">",
+            "##FORMAT=<ID=FT,Number=1,Type=String,Description=\"Genotype filter\">",
+            "##FORMAT=<ID=XS,Number=1,Type=String,Description=\"Extra\">",
+            "##contig=<ID=chr1,length=10000>",
+            "##contig=<ID=chr2,length=10000>",
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\tS3");
+
+    private static final String[] RECORDS = {
+            "chr1\t100\trs1\tA\tG\t50\tPASS\tDP=20;AF=0.5;DB\tGT:GQ:DP:AD:PL\t0/1:30:10:5,5:30,0,40\t1/1:20:8:0,8:60,20,0\t./.:.:.:.:.",
+            "chr1\t200\t.\tACGT\tA,ACGTACGT\t.\tq10;s50\tAF=0.1,0.2;ANN=a|b,c|d\tGT:AD:FT:XS\t0|2:3,0,4:PASS:x\t1|0:2,5,0:lowGQ:.\t0/0:9,0,0:.:y z",
+            "chr2\t5\t.\tG\t<DEL>\t12.5\t.\t.\tGT\t0\t1\t.",
+            "chr3\t7\t.\tT\tC\t99\tPASS\tDP=1\tGT:GQ\t0/1:99\t0/0:.\t1/1:50", };
+
+    private static VCFHeader readHeader(VCFCodec codec) {
+        LineIterator lines = new LineIteratorImpl(new SynchronousLineReader(new StringReader(HEADER + "\n")));
+        return (VCFHeader) codec.readActualHeader(lines);
+    }
+
+    private static VariantContext roundTrip(VariantRecordCodec codec, VariantContext vc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            codec.encode(vc, out);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        VariantContext decoded = codec.decode(in);
+        assertEquals(-1, in.read());
+        return decoded;
+    }
+
+    @Test
+    public void vcfRecordsAreWrittenAsTheOriginal() throws IOException {
+        VCFCodec vcfCodec = new VCFCodec();
+        VCFHeader header = readHeader(vcfCodec);
+        VCFEncoder encoder = new VCFEncoder(header, true, false);
+        // chr3 and S3 are not in the tables, they are written as names
+        VariantRecordCodec codec = new VariantRecordCodec(Arrays.asList("chr1", "chr2"), Arrays.asList("S2", "S1"));
+
+        for (String line : RECORDS) {
+            VariantContext vc = vcfCodec.decode(line);
+            VariantContext decoded = roundTrip(codec, vc);
+            assertEquals(encoder.encode(vc), encoder.encode(decoded));
+            assertEquals(vc.getSampleNamesOrderedByName(), decoded.getSampleNamesOrderedByName());
+        }
+    }
+
+    @Test
+    public void typedValuesKeepTheirTypes() throws IOException {
+        Allele ref = Allele.create("C", true);
+        Allele alt = Allele.create("T", false);
+        List<Object> list = new ArrayList<>(Arrays.asList(1, 2.5, "x", null));
+        Genotype genotype = new GenotypeBuilder("S1", Arrays.asList(ref, alt)).GQ(40).DP(12).AD(new int[] { 7, 5 })
+                .PL(new int[] { 40, 0, 90 }).attribute("I", 3).attribute("F", 0.25f).make();
+        VariantContext vc = new VariantContextBuilder("src", "chr1", 1000, 1000, Arrays.asList(ref, alt))
+                .attribute("INT", 7).attribute("LONG", 1L << 40).attribute("FLOAT", 1.5f).attribute("DOUBLE", 0.125)
+                .attribute("BOOL", true).attribute("ARRAY", new int[] { 1, -2, 3 }).attribute("LIST", list)
+                .genotypes(genotype).make();
+
+        VariantContext decoded = roundTrip(new VariantRecordCodec(Arrays.asList("chr1"), Arrays.asList("S1")), vc);
+
+        assertEquals(Integer.valueOf(7), decoded.getAttribute("INT"));
+        assertEquals(Long.valueOf(1L << 40), decoded.getAttribute("LONG"));
+        assertEquals(Float.valueOf(1.5f), decoded.getAttribute("FLOAT"));
+        assertEquals(Double.valueOf(0.125), decoded.getAttribute("DOUBLE"));
+        assertEquals(Boolean.TRUE, decoded.getAttribute("BOOL"));
+        assertArrayEquals(new int[] { 1, -2, 3 }, (int[]) decoded.getAttribute("ARRAY"));
+        assertEquals(list, decoded.getAttribute("LIST"));
+        assertEquals("src", decoded.getSource());
+        assertFalse(decoded.filtersWereApplied());
+
+        Genotype decodedGenotype = decoded.getGenotype("S1");
+        assertEquals(genotype.getAlleles(), decodedGenotype.getAlleles());
+        assertEquals(40, decodedGenotype.getGQ());
+        assertEquals(12, decodedGenotype.getDP());
+        assertArrayEquals(new int[] { 7, 5 }, decodedGenotype.getAD());
+        assertArrayEquals(new int[] { 40, 0, 90 }, decodedGenotype.getPL());
+        assertEquals(Integer.valueOf(3), decodedGenotype.getExtendedAttribute("I"));
+        assertEquals(Float.valueOf(0.25f), decodedGenotype.getExtendedAttribute("F"));
+    }
+
+    @Test
+    public void recordWithoutGenotypesOrAttributes() throws IOException {
+        VariantContext vc = new VariantContextBuilder(null, "chr2", 5, 7,
+                Arrays.asList(Allele.create("ACG", true), Allele.create("A", false))).make();
+        VariantContext decoded = roundTrip(new VariantRecordCodec(Arrays.asList("chr1"), new ArrayList<>()), vc);
+        assertEquals("chr2", decoded.getContig());
+        assertEquals(5, decoded.getStart());
+        assertEquals(7, decoded.getEnd());
+        assertEquals(vc.getAlleles(), decoded.getAlleles());
+        assertNull(decoded.getSource());
+        assertEquals(0, decoded.getNSamples());
+        assertEquals(0, decoded.getAttributes().size());
+    }
+}
@@ -0,0 +1,19 @@
+package com.cloudinside.bio.VcfToolbox;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class VcfToolboxServerTest {
+
+    @Test
+    public void pathsAreResolvedAgainstWorkingDirectory() {
+        String[] resolved = VcfToolboxServer.resolvePaths(Arrays.asList("--input", "a.vcf,/data/b.vcf,sub/c.vcf",
+                "--output", "out.vcf", "--prefixes", "A_,B_", "--ref", "/ref/hg38.fa"), Paths.get("/work"));
+        assertArrayEquals(new String[] { "--input", "/work/a.vcf,/data/b.vcf,/work/sub/c.vcf", "--output",
+                "/work/out.vcf", "--prefixes", "A_,B_", "--ref", "/ref/hg38.fa" }, resolved);
+    }
+}